@@ -30,6 +30,9 @@ package de.frauzufall.cellsketch;
 
 import de.frauzufall.cellsketch.model.BdvItemGroup;
 import de.frauzufall.cellsketch.model.FileItem;
+import de.frauzufall.cellsketch.n5.CompressionPolicy;
+import de.frauzufall.cellsketch.n5.DatasetKind;
+import de.frauzufall.cellsketch.n5.ProjectN5Store;
 import net.imglib2.RandomAccessibleInterval;
 import org.janelia.saalfeldlab.n5.metadata.N5CosemMetadata;
 import org.janelia.saalfeldlab.n5.metadata.N5CosemMetadataParser;
@@ -45,13 +48,16 @@ import java.util.Map;
 public interface BdvProject extends Project, Disposable {
 
     BdvInterface labelEditorInterface();
-	void addImageFile(Path file, String fileName, String type, double scaleX, double scaleY, double scaleZ) throws IOException;
+	void addImageFile(Path file, String fileName, String type, DatasetKind kind, double scaleX, double scaleY, double scaleZ) throws IOException;
 
     String getDefaultFileName(String directory, String name);
 
     String getDefaultFileName(String name);
 
-    void writeImage(String raw_name, RandomAccessibleInterval img, N5CosemMetadataParser metaWriter, N5CosemMetadata metadata, Double min, Double max) throws IOException;
+    void writeImage(String raw_name, RandomAccessibleInterval img, DatasetKind kind, N5CosemMetadataParser metaWriter, N5CosemMetadata metadata, Double min, Double max) throws IOException;
+    CompressionPolicy getCompressionPolicy(DatasetKind kind);
+    ProjectExecutors getExecutors();
+    ProjectN5Store getN5Store();
     DataSelection getDataSelection(String name);
 	Map<String, Object> projectData();
 	N5LabelViewer viewer();
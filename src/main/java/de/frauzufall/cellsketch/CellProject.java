@@ -32,9 +32,8 @@ import com.google.gson.JsonSyntaxException;
 import de.frauzufall.cellsketch.analysis.FilamentsImporter;
 import de.frauzufall.cellsketch.analysis.NMLReader;
 import de.frauzufall.cellsketch.model.*;
+import de.frauzufall.cellsketch.n5.DatasetKind;
 import net.imglib2.type.numeric.ARGBType;
-import org.janelia.saalfeldlab.n5.N5FSReader;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.jdom2.DataConversionException;
@@ -86,12 +85,11 @@ public class CellProject extends DefaultBdvProject {
 	@Override
 	public void loadConfig() throws IOException {
 		super.loadConfig();
-		N5Reader reader = new N5FSReader(getConfigPath());
+		N5Reader reader = getN5Store().getReader(getConfigPath());
 		loadMasks(reader);
 		loadLabelMaps(reader);
 		loadFilaments(reader);
 		loadCellBounds(reader);
-		reader.close();
 	}
 
 	private void loadMasks(N5Reader reader) throws IOException {
@@ -169,7 +167,7 @@ public class CellProject extends DefaultBdvProject {
 	@Override
 	public void saveConfig() throws IOException {
 		super.saveConfig();
-		N5Writer writer = new N5FSWriter(getConfigPath());
+		N5Writer writer = getN5Store().getWriter(getConfigPath());
 		Map<String, String> masks = new HashMap<>();
 		Map<String, String> labelmaps = new HashMap<>();
 		Map<String, String> filaments = new HashMap<>();
@@ -190,7 +188,6 @@ public class CellProject extends DefaultBdvProject {
 			cellBounds.put(cellBoundsItem.getName(), cellBoundsItem.getMask().getDefaultFileName());
 			writer.setAttribute(File.separator, configKeyCellBounds, cellBounds);
 		}
-		writer.close();
 	}
 
 	@Override
@@ -205,6 +202,7 @@ public class CellProject extends DefaultBdvProject {
 
 	public void configChanged() throws IOException {
 		saveConfig();
+		getN5Store().flush();
 		populateModel();
 		updateUI();
 	}
@@ -234,7 +232,7 @@ public class CellProject extends DefaultBdvProject {
 	public MaskItemGroup addMaskItem(File input, String name, int color, Double connectedToFilamentsThresholdInUM, double scaleX, double scaleY, double scaleZ) throws IOException {
 		MaskItemGroup group = new MaskItemGroup(this, name, getDefaultFileName(toFileName(name)));
 		if (input != null && input.exists()) {
-			addImageFile(input.toPath(), group.getMask().getDefaultFileName(), "int", scaleX, scaleY, scaleZ);
+			addImageFile(input.toPath(), group.getMask().getDefaultFileName(), "int", DatasetKind.MASK, scaleX, scaleY, scaleZ);
 			group.getMask().setFile(new File(getProjectDir(), group.getMask().getDefaultFileName()));
 			updateUI();
 		}
@@ -250,7 +248,7 @@ public class CellProject extends DefaultBdvProject {
 		if(input == null) return;
 		MaskFileItem item = new MaskFileItem(this, getDefaultFileName(toFileName(name)), true);
 		if (input != null && input.exists()) {
-			addImageFile(input.toPath(), item.getDefaultFileName(), "int", scaleX, scaleY, scaleZ);
+			addImageFile(input.toPath(), item.getDefaultFileName(), "int", DatasetKind.MASK, scaleX, scaleY, scaleZ);
 			item.setFile(new File(getProjectDir(), item.getDefaultFileName()));
 			updateUI();
 		}
@@ -264,13 +262,12 @@ public class CellProject extends DefaultBdvProject {
 		getItems().add(group);
 	}
 
-	public void addFilamentsFromKNOSSOS(File input, String name, int color, double scaleX, double scaleY, double scaleZ, double radius_in_um, boolean fixZOffset, boolean fixLineOrder) throws IOException, NMLReader.NMLReaderIOException, DataConversionException {
+	public void addFilamentsFromKNOSSOS(File input, String name, int color, double scaleX, double scaleY, double scaleZ, double radius_in_um, boolean fixZOffset, boolean fixLineOrder, boolean renderLabelMap) throws IOException, NMLReader.NMLReaderIOException, DataConversionException {
 		if(input != null && input.exists()) {
 			String defaultFileName = getDefaultFileName(toFileName(name));
 			FilamentsItemGroup item = new FilamentsItemGroup(this, name, defaultFileName + ".yml", defaultFileName);
 			FilamentsImporter importer = new FilamentsImporter(this, item);
-			importer.processKnossosFilaments(input, scaleX, scaleY, scaleZ, fixZOffset, fixLineOrder);
-			importer.render(radius_in_um * (1./this.getPixelToUM()));
+			importer.importKnossosFilaments(input, scaleX, scaleY, scaleZ, fixZOffset, fixLineOrder, radius_in_um * (1./this.getPixelToUM()), renderLabelMap);
 			item.getLabelMap().setColor(color);
 
 			item.getTagLength().setColorForMaxValues(false);
@@ -293,7 +290,7 @@ public class CellProject extends DefaultBdvProject {
 	public LabelMapItemGroup addLabelMapItem(File input, String name, int color, Double connectedToFilamentsEndThresholdInUM, double scaleX, double scaleY, double scaleZ) throws IOException {
 		LabelMapItemGroup group = new LabelMapItemGroup(this, name, getDefaultFileName(toFileName(name)));
 		if (input != null && input.exists()) {
-			addImageFile(input.toPath(), group.getLabelMap().getDefaultFileName(), "int", scaleX, scaleY, scaleZ);
+			addImageFile(input.toPath(), group.getLabelMap().getDefaultFileName(), "int", DatasetKind.LABEL_MAP, scaleX, scaleY, scaleZ);
 			group.getLabelMap().setFile(new File(getProjectDir(), group.getLabelMap().getDefaultFileName()));
 			updateUI();
 		} else return null;
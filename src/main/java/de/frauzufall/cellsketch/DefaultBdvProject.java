@@ -31,21 +31,21 @@ package de.frauzufall.cellsketch;
 import bdv.ui.BdvDefaultCards;
 import bdv.util.BdvHandle;
 import de.frauzufall.cellsketch.model.*;
+import de.frauzufall.cellsketch.n5.CompressionPolicy;
+import de.frauzufall.cellsketch.n5.CompressionSelector;
+import de.frauzufall.cellsketch.n5.DatasetKind;
+import de.frauzufall.cellsketch.n5.MetadataCache;
+import de.frauzufall.cellsketch.n5.ParallelBlockWriter;
+import de.frauzufall.cellsketch.n5.ProjectN5Store;
+import de.frauzufall.cellsketch.n5.StorageLayoutConverter;
 import de.frauzufall.cellsketch.ui.ProjectActionsCard;
 import de.frauzufall.cellsketch.ui.ProjectItemsCard;
-import ij.IJ;
-import ij.ImagePlus;
-import ij.process.ImageStatistics;
-import net.imagej.ops.OpService;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.Img;
-import net.imglib2.img.display.imagej.ImageJFunctions;
-import net.imglib2.interpolation.InterpolatorFactory;
-import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Util;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.janelia.saalfeldlab.n5.*;
-import org.janelia.saalfeldlab.n5.ij.N5Importer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.metadata.*;
 import org.janelia.saalfeldlab.n5.metadata.canonical.CanonicalMetadataParser;
@@ -70,7 +70,6 @@ import java.nio.file.Path;
 import java.util.List;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class DefaultBdvProject extends DefaultItemGroup implements BdvProject {
 
@@ -102,18 +101,27 @@ public class DefaultBdvProject extends DefaultItemGroup implements BdvProject {
 	private N5LabelViewer viewer;
 	protected ProjectActionsCard actionsCard;
 	private double pixelToUM;
+	private final Map<DatasetKind, CompressionPolicy> compressionPolicies = new EnumMap<>(DatasetKind.class);
 	private final List<String> processes = new ArrayList<>();
+	private final MetadataCache metadataCache;
+	private final ProjectN5Store n5Store;
+	private final ProjectExecutors executors = new ProjectExecutors(0);
+	private int threads = 0;
 
 	public DefaultBdvProject(File parent, String title, Context context) {
 		super(title, false);
 		parent.mkdirs();
 		this.projectDir = new File(parent, title + ".n5");
+		this.n5Store = new ProjectN5Store(this.projectDir);
+		this.metadataCache = new MetadataCache(projectDir, this::discoverDataSelection);
 		context.inject(this);
 	}
 
 	public DefaultBdvProject(File projectDir, Context context) {
 		super(StringUtils.stripEnd(projectDir.getName(), ".n5"), false);
 		this.projectDir = projectDir;
+		this.n5Store = new ProjectN5Store(this.projectDir);
+		this.metadataCache = new MetadataCache(projectDir, this::discoverDataSelection);
 		context.inject(this);
 	}
 
@@ -154,10 +162,35 @@ public class DefaultBdvProject extends DefaultItemGroup implements BdvProject {
 
 	@Override
 	public DataSelection getDataSelection(String raw_name) {
+		return metadataCache.get(raw_name);
+	}
+
+	/**
+	 * Caches {@link #getDataSelection(String)}, writers of datasets should invalidate the written dataset.
+	 */
+	public MetadataCache getMetadataCache() {
+		return metadataCache;
+	}
+
+	/**
+	 * The shared N5 store of the project, attributes written to it are only stored on disk with
+	 * {@link ProjectN5Store#flush()}.
+	 */
+	@Override
+	public ProjectN5Store getN5Store() {
+		return n5Store;
+	}
+
+	private synchronized DataSelection discoverDataSelection(String raw_name) {
 		final ArrayList<N5Metadata> selectedMetadata = new ArrayList<>();
-		N5Importer.N5ViewerReaderFun n5Fun = new N5Importer.N5ViewerReaderFun();
-		N5Reader n5 = n5Fun.apply(projectDir.getAbsolutePath());
-		ExecutorService loaderExecutor = Executors.newCachedThreadPool();
+		N5Reader n5;
+		try {
+			n5 = n5Store.getReader();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		ExecutorService loaderExecutor = executors.getDiscoveryExecutor();
 		final N5MetadataParser<?>[] groupParsers = new N5MetadataParser[]{
 				new N5CosemMultiScaleMetadata.CosemMultiScaleParser(),
 				new N5ViewerMultiscaleMetadataParser(),
@@ -176,11 +209,13 @@ public class DefaultBdvProject extends DefaultItemGroup implements BdvProject {
 		final List<N5MetadataParser<?>> parserList = Arrays.asList(parsers);
 		N5DatasetDiscoverer datasetDiscoverer = new N5DatasetDiscoverer(n5, loaderExecutor, parserList, groupParserList);
 		N5TreeNode node = datasetDiscoverer.parse(raw_name);
-		if (node.isDataset() && node.getMetadata() != null) {
+		// groups of channel datasets (c0, c1, ..) are displayed as one item
+		boolean isMultichannel = node.getMetadata() instanceof N5ViewerMultichannelMetadata;
+		if ((node.isDataset() || isMultichannel) && node.getMetadata() != null) {
 			selectedMetadata.add(node.getMetadata());
 		}
 
-		if (!node.isDataset() || node.getMetadata() == null) {
+		if ((!node.isDataset() && !isMultichannel) || node.getMetadata() == null) {
 //			JOptionPane.showMessageDialog(null, "Could not find a dataset / metadata at the provided path at " + raw_name);
 			return null;
 		}
@@ -245,10 +280,8 @@ public class DefaultBdvProject extends DefaultItemGroup implements BdvProject {
 
 	@Override
 	public void create(File input, double pixelToUM, double scaleX, double scaleY, double scaleZ) {
-		ImagePlus imp = IJ.openImage(input.getAbsolutePath());
 		try {
-			writeToN5(imp, sourceItem.getDefaultFileName(), scaleX, scaleY, scaleZ);
-			imp.close();
+			importImage(input.toPath(), sourceItem.getDefaultFileName(), null, DatasetKind.SOURCE, scaleX, scaleY, scaleZ);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -258,20 +291,37 @@ public class DefaultBdvProject extends DefaultItemGroup implements BdvProject {
 	@Override
 	public void loadConfig() throws IOException {
 		super.loadConfig();
-		N5Reader reader = new N5FSReader(getConfigPath());
+		N5Reader reader = getN5Store().getReader(getConfigPath());
 		Double pixelToUM = reader.getAttribute(File.separator, "pixelToUM", Double.class);
 		if(pixelToUM != null) {
 			this.pixelToUM = pixelToUM;
 		}
-		reader.close();
+		Map<String, String> policies = reader.getAttribute(File.separator, "compressionPolicies", Map.class);
+		if(policies != null) {
+			policies.forEach((kind, policy) -> compressionPolicies.put(DatasetKind.valueOf(kind), CompressionPolicy.valueOf(policy)));
+		}
+		Integer threads = reader.getAttribute(File.separator, "threads", Integer.class);
+		if(threads != null) {
+			setThreads(threads);
+		}
+		Integer shardSize = reader.getAttribute(File.separator, "shardSize", Integer.class);
+		if(shardSize != null) {
+			n5Store.setShardSize(shardSize);
+		}
 	}
 
 	@Override
 	public void saveConfig() throws IOException {
 		super.saveConfig();
-		N5Writer writer = new N5FSWriter(getConfigPath());
+		N5Writer writer = getN5Store().getWriter(getConfigPath());
 		writer.setAttribute(File.separator, "pixelToUM", pixelToUM);
-		writer.close();
+		Map<String, String> policies = new LinkedHashMap<>();
+		for (DatasetKind kind : DatasetKind.values()) {
+			policies.put(kind.name(), getCompressionPolicy(kind).name());
+		}
+		writer.setAttribute(File.separator, "compressionPolicies", policies);
+		writer.setAttribute(File.separator, "threads", threads);
+		writer.setAttribute(File.separator, "shardSize", n5Store.getShardSize());
 	}
 
 	protected String getConfigPath() {
@@ -289,11 +339,46 @@ public class DefaultBdvProject extends DefaultItemGroup implements BdvProject {
 	}
 
 	@Override
-	public void addImageFile(Path file, String fileName, String type, double scaleX, double scaleY, double scaleZ) throws IOException {
+	public CompressionPolicy getCompressionPolicy(DatasetKind kind) {
+		return compressionPolicies.getOrDefault(kind, kind.getDefaultCompressionPolicy());
+	}
+
+	/**
+	 * Sets the trade-off between speed and size used to choose the compression of datasets of the given kind written
+	 * from now on.
+	 */
+	public void setCompressionPolicy(DatasetKind kind, CompressionPolicy policy) {
+		compressionPolicies.put(kind, policy);
+	}
+
+	@Override
+	public ProjectExecutors getExecutors() {
+		return executors;
+	}
+
+	/**
+	 * Sets the number of threads of the project pools and stores it in the project config. Use
+	 * {@link ProjectExecutors#setThreads(int)} to change it for this session only.
+	 * @param threads the number of threads, 0 to use all available processors
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+		executors.setThreads(threads);
+	}
+
+	/**
+	 * Sets the storage layout of datasets written from now on, existing datasets are converted with
+	 * {@link StorageLayoutConverter}.
+	 * @param shardSize the number of blocks per shard file in each dimension, 0 to store one file per block
+	 */
+	public void setShardSize(int shardSize) {
+		n5Store.setShardSize(shardSize);
+	}
+
+	@Override
+	public void addImageFile(Path file, String fileName, String type, DatasetKind kind, double scaleX, double scaleY, double scaleZ) throws IOException {
 		context().service(StatusService.class).showStatus("Importing dataset " + fileName + " from " + file + "..");
-		ImagePlus imp = IJ.openImage(file.toAbsolutePath().toString());
-		writeToN5(imp, fileName, type, scaleX, scaleY, scaleZ);
-		imp.close();
+		importImage(file, fileName, type, kind, scaleX, scaleY, scaleZ);
 		context().service(StatusService.class).showStatus("Successfully imported dataset " + fileName + ".");
 	}
 
@@ -307,35 +392,27 @@ public class DefaultBdvProject extends DefaultItemGroup implements BdvProject {
 		return File.separator + this.getName() + "_" + name;
 	}
 
-	private void writeToN5(ImagePlus imp, String raw_name, double scaleX, double scaleY, double scaleZ) throws IOException {
-		writeToN5(imp, raw_name, null, scaleX, scaleY, scaleZ);
-	}
-
-	private void writeToN5(ImagePlus imp, String raw_name, String type, double scaleX, double scaleY, double scaleZ) throws IOException {
-		if(imp.getNDimensions() != 3) {
-			throw new RuntimeException("Can only process datasets with 3 dimensions.");
-		}
-		Img img = ImageJFunctions.wrap(imp);
-		if(type != null) {
-			if(type.equals("int")) {
-				img = context().service(OpService.class).convert().int16(img);
-			} else {
-				if(type.equals("byte")) {
-					img = context().service(OpService.class).convert().bit(img);
-				}
-			}
+	private void importImage(Path file, String raw_name, String type, DatasetKind kind, double scaleX, double scaleY, double scaleZ) throws IOException {
+		StreamingStackImporter importer = new StreamingStackImporter(file);
+		N5Writer writer = getN5Store().getWriter();
+		try {
+			double[] minMax = importer.write(writer, raw_name, type, new double[]{scaleX, scaleY, scaleZ}, new int[]{64, 64, 64}, getCompressionPolicy(kind), kind.indexesLabels(), executors);
+			writer.setAttribute(raw_name, "max", minMax[1]);
+			writer.setAttribute(raw_name, "min", minMax[0]);
+		} finally {
+			metadataCache.invalidate(raw_name);
 		}
-		InterpolatorFactory interpolator = new NearestNeighborInterpolatorFactory();
-		RandomAccessibleInterval rai = context.service(OpService.class).transform().scaleView(img, new double[]{scaleX, scaleY, scaleZ}, interpolator);
-		ImageStatistics statistics = imp.getStatistics();
-		writeImage(raw_name, rai, null, null, statistics.min, statistics.max);
-
+		n5Store.flush();
 	}
 
-	public void writeImage(String raw_name, RandomAccessibleInterval img, N5CosemMetadataParser metaWriter, N5CosemMetadata metadata, Double min, Double max) throws IOException {
+	public void writeImage(String raw_name, RandomAccessibleInterval img, DatasetKind kind, N5CosemMetadataParser metaWriter, N5CosemMetadata metadata, Double min, Double max) throws IOException {
 		int[] blocksize = new int[]{64,64,64};
-		N5Writer writer = new N5FSWriter(projectDir.getAbsolutePath());
-		N5Utils.save(img, writer, raw_name, blocksize, new RawCompression());
+		CompressionPolicy policy = getCompressionPolicy(kind);
+		DataType dataType = N5Utils.dataType((NativeType) Util.getTypeFromInterval(img));
+		CompressionSelector.Selection selection = CompressionSelector.select(img, blocksize, dataType, policy);
+		N5Writer writer = getN5Store().getWriter();
+		ParallelBlockWriter.save(img, writer, raw_name, blocksize, selection.compression, kind.indexesLabels(), executors.getCpuExecutor(), context().service(StatusService.class));
+		CompressionSelector.record(writer, raw_name, policy, selection);
 		if (metaWriter != null) {
 			try {
 				metaWriter.writeMetadata(metadata, writer, raw_name);
@@ -347,7 +424,8 @@ public class DefaultBdvProject extends DefaultItemGroup implements BdvProject {
 			writer.setAttribute(raw_name, "max", max);
 			writer.setAttribute(raw_name, "min", min);
 		}
-		writer.close();
+		n5Store.flush();
+		metadataCache.invalidate(raw_name);
 	}
 
 	@Override
@@ -358,6 +436,12 @@ public class DefaultBdvProject extends DefaultItemGroup implements BdvProject {
 	@Override
 	public void dispose() {
 		unload();
+		try {
+			n5Store.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		executors.shutdown();
 		if(bdvHandlePanel != null) bdvHandlePanel.close();
 		context().dispose();
 	}
@@ -382,6 +466,8 @@ public class DefaultBdvProject extends DefaultItemGroup implements BdvProject {
 			} else {
 				Files.delete(fileItem.getFile().toPath());
 			}
+			n5Store.invalidate(fileItem.getFile());
+			metadataCache.invalidate(fileItem.getDefaultFileName());
 			updateUI();
 		}
 	}
@@ -33,6 +33,7 @@ import bdv.tools.brightness.ConverterSetup;
 import bdv.tools.transformation.TransformedSource;
 import bdv.ui.splitpanel.SplitPanel;
 import bdv.util.*;
+import bdv.util.volatiles.SharedQueue;
 import bdv.util.volatiles.VolatileTypeMatcher;
 import bdv.util.volatiles.VolatileViews;
 import bdv.viewer.Source;
@@ -96,6 +97,9 @@ public class N5LabelViewer {
 
 	private final BdvHandle bdv;
 
+	// one fetcher queue for all sources, sized by the project threads
+	private final SharedQueue sharedQueue;
+
 	public BdvHandle getBdv() {
 		return bdv;
 	}
@@ -113,6 +117,8 @@ public class N5LabelViewer {
 	N5LabelViewer(final DataSelection dataSelection, final BdvInterface labelEditorInterface, final DefaultBdvProject project) throws IOException
 	{
 		Prefs.showScaleBar( true );
+		final int threads = project.getExecutors().getThreads();
+		sharedQueue = new SharedQueue(Math.max(1, threads / 2));
 
 		// TODO: These setups are not used anymore, because BdvFunctions creates its own.
 		//       They either need to be deleted from here or integrated somehow.
@@ -146,7 +152,8 @@ public class N5LabelViewer {
 
 		BdvHandle bdvHandle = null;
 
-		BdvOptions options = BdvOptions.options().frameTitle(CellProject.appName).accumulateProjectorFactory(labelEditorInterface.projector());
+		BdvOptions options = BdvOptions.options().frameTitle(CellProject.appName).accumulateProjectorFactory(labelEditorInterface.projector())
+				.numRenderingThreads(threads);
 		if (is2D) {
 			options = options.is2D();
 		}
@@ -315,7 +322,7 @@ public class N5LabelViewer {
 
 			final RandomAccessibleInterval[] vimages = new RandomAccessibleInterval[images.length];
 			for (int s = 0; s < images.length; ++s) {
-				vimages[s] = VolatileViews.wrapAsVolatile(images[s]);
+				vimages[s] = VolatileViews.wrapAsVolatile(images[s], sharedQueue);
 			}
 			// TODO: Ideally, the volatile views should use a caching strategy
 			//   where blocks are enqueued with reverse resolution level as
@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch;
+
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.parallel.TaskExecutors;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The thread pools of a project. Computations, including encoding blocks, run on {@link #getCpuExecutor()}, reading
+ * and writing files which mostly waits for the disk runs on {@link #getIoExecutor()}, so that slow I/O does not keep
+ * the CPU pool from working. Both pools use {@link #getThreads()} threads and are created on first use. Tasks must not
+ * shut them down, {@link #shutdown()} is called when the project is disposed.
+ */
+public class ProjectExecutors {
+
+	private int threads;
+	private ExecutorService cpuExecutor;
+	private ExecutorService ioExecutor;
+	private ExecutorService discoveryExecutor;
+
+	/**
+	 * @param threads the number of threads of each pool, 0 to use all available processors
+	 */
+	public ProjectExecutors(int threads) {
+		setThreads(threads);
+	}
+
+	/**
+	 * Changes the number of threads of each pool. Running pools are shut down after finishing their queued tasks,
+	 * new tasks run on new pools.
+	 * @param threads the number of threads of each pool, 0 to use all available processors
+	 */
+	public synchronized void setThreads(int threads) {
+		int newThreads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		if(newThreads == this.threads) return;
+		this.threads = newThreads;
+		shutdown();
+	}
+
+	public synchronized int getThreads() {
+		return threads;
+	}
+
+	public synchronized ExecutorService getCpuExecutor() {
+		if(cpuExecutor == null) cpuExecutor = Executors.newFixedThreadPool(threads, daemonThreads("cellsketch-cpu"));
+		return cpuExecutor;
+	}
+
+	public synchronized ExecutorService getIoExecutor() {
+		if(ioExecutor == null) ioExecutor = Executors.newFixedThreadPool(threads, daemonThreads("cellsketch-io"));
+		return ioExecutor;
+	}
+
+	/**
+	 * An unbounded pool for discovering the metadata of datasets, since the discoverer waits for tasks it submitted
+	 * from tasks running on the same pool, which could deadlock a fixed pool.
+	 */
+	public synchronized ExecutorService getDiscoveryExecutor() {
+		if(discoveryExecutor == null) discoveryExecutor = Executors.newCachedThreadPool(daemonThreads("cellsketch-discovery"));
+		return discoveryExecutor;
+	}
+
+	/**
+	 * The CPU pool for imglib2 algorithms, e.g. {@code LoopBuilder.multiThreaded(TaskExecutor)}. The caller must not
+	 * be a thread of the pool itself, since it waits for the tasks.
+	 */
+	public TaskExecutor getCpuTaskExecutor() {
+		return TaskExecutors.forExecutorService(getCpuExecutor());
+	}
+
+	public synchronized void shutdown() {
+		if(cpuExecutor != null) cpuExecutor.shutdown();
+		if(ioExecutor != null) ioExecutor.shutdown();
+		if(discoveryExecutor != null) discoveryExecutor.shutdown();
+		cpuExecutor = null;
+		ioExecutor = null;
+		discoveryExecutor = null;
+	}
+
+	/**
+	 * @return the number of threads of a fixed pool, or the number of available processors for other executors
+	 */
+	public static int getParallelism(ExecutorService executor) {
+		if(executor instanceof ThreadPoolExecutor) {
+			int size = ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+			if(size < Integer.MAX_VALUE) return size;
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	private static ThreadFactory daemonThreads(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
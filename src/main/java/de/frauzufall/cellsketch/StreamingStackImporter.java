@@ -0,0 +1,344 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch;
+
+import de.frauzufall.cellsketch.n5.CompressionPolicy;
+import de.frauzufall.cellsketch.n5.CompressionSelector;
+import de.frauzufall.cellsketch.n5.ParallelBlockWriter;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Imports a 3D image into N5 slab by slab, without loading the whole image. A TIFF file is opened as virtual stack,
+ * so that only the planes of the current slab are read; a folder is read as one TIFF file per plane, in the order of
+ * the file names. The planes of each slab of block depth are read in parallel, and its blocks are written before the
+ * next slab is read.
+ */
+public class StreamingStackImporter {
+
+	private final ImageStack stack;
+	private final File[] planeFiles;
+	private final long[] dimensions = new long[3];
+	private final int bitDepth;
+
+	public StreamingStackImporter(Path source) throws IOException {
+		if(Files.isDirectory(source)) {
+			File[] files = source.toFile().listFiles((dir, name) -> {
+				String lowerCase = name.toLowerCase(Locale.ROOT);
+				return lowerCase.endsWith(".tif") || lowerCase.endsWith(".tiff");
+			});
+			if(files == null || files.length == 0) throw new IOException("No TIFF files found in " + source);
+			Arrays.sort(files);
+			planeFiles = files;
+			stack = null;
+			ImagePlus first = openPlane(files[0]);
+			dimensions[0] = first.getWidth();
+			dimensions[1] = first.getHeight();
+			dimensions[2] = files.length;
+			bitDepth = first.getBitDepth();
+			first.close();
+		} else {
+			ImagePlus imp = IJ.openVirtual(source.toAbsolutePath().toString());
+			if(imp == null) imp = IJ.openImage(source.toAbsolutePath().toString());
+			if(imp == null) throw new IOException("Cannot open " + source);
+			if(imp.getNDimensions() != 3) {
+				throw new RuntimeException("Can only process datasets with 3 dimensions.");
+			}
+			planeFiles = null;
+			stack = imp.getStack();
+			dimensions[0] = imp.getWidth();
+			dimensions[1] = imp.getHeight();
+			dimensions[2] = imp.getStackSize();
+			bitDepth = imp.getBitDepth();
+		}
+		if(bitDepth == 24) throw new IOException("Cannot import RGB image " + source);
+	}
+
+	public long[] getDimensions() {
+		return dimensions;
+	}
+
+	/**
+	 * Writes the image as dataset, scaled with nearest neighbor interpolation. The compression is chosen with the
+	 * given policy from the blocks of the first slab.
+	 * @param type "int" to convert to INT16, "byte" to convert to a binary UINT8 image, null to keep the type
+	 * @param indexLabels whether the image is a label map, see {@link ParallelBlockWriter#setIndexLabels(boolean)}
+	 * @param executors planes are read on the I/O pool, blocks are assembled and written on the CPU pool
+	 * @return the minimum and maximum of the written values
+	 */
+	public double[] write(N5Writer writer, String dataset, String type, double[] scale, int[] blockSize, CompressionPolicy policy, boolean indexLabels, ProjectExecutors executors) throws IOException {
+		DataType dataType = getDataType(type);
+		long[] outputDimensions = new long[3];
+		int[][] sourceIndices = new int[3][];
+		for (int d = 0; d < 3; d++) {
+			outputDimensions[d] = Math.round(dimensions[d] * scale[d]);
+			sourceIndices[d] = getSourceIndices(dimensions[d], outputDimensions[d], scale[d]);
+		}
+		DatasetAttributes layout = new DatasetAttributes(outputDimensions, blockSize, dataType, new RawCompression());
+		DatasetAttributes attributes = null;
+		ParallelBlockWriter blockWriter = null;
+		double[] minMax = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		long[] gridDimensions = new long[3];
+		for (int d = 0; d < 3; d++) {
+			gridDimensions[d] = (outputDimensions[d] + blockSize[d] - 1) / blockSize[d];
+		}
+		try {
+			for (long gridZ = 0; gridZ < gridDimensions[2]; gridZ++) {
+				int zMin = (int) (gridZ * blockSize[2]);
+				int depth = (int) Math.min(blockSize[2], outputDimensions[2] - zMin);
+				Object[] planes = readSlab(sourceIndices[2], zMin, depth, type, executors.getIoExecutor());
+				List<Callable<AssembledBlock>> tasks = new ArrayList<>();
+				for (long gridY = 0; gridY < gridDimensions[1]; gridY++) {
+					for (long gridX = 0; gridX < gridDimensions[0]; gridX++) {
+						long[] gridPosition = {gridX, gridY, gridZ};
+						tasks.add(() -> assembleBlock(layout, gridPosition, depth, planes, sourceIndices));
+					}
+				}
+				List<AssembledBlock> blocks = new ArrayList<>();
+				for (Future<AssembledBlock> future : executors.getCpuExecutor().invokeAll(tasks)) {
+					AssembledBlock block = future.get();
+					minMax[0] = Math.min(minMax[0], block.min);
+					minMax[1] = Math.max(minMax[1], block.max);
+					blocks.add(block);
+				}
+				if(blockWriter == null) {
+					CompressionSelector.Selection selection = CompressionSelector.select(sample(blocks), blockSize, dataType, policy);
+					attributes = new DatasetAttributes(outputDimensions, blockSize, dataType, selection.compression);
+					boolean replacing = writer.datasetExists(dataset);
+					writer.createDataset(dataset, attributes);
+					CompressionSelector.record(writer, dataset, policy, selection);
+					blockWriter = new ParallelBlockWriter(writer, dataset, attributes, executors.getCpuExecutor(), 4 * ProjectExecutors.getParallelism(executors.getCpuExecutor()));
+					blockWriter.setReplacing(replacing);
+					blockWriter.setIndexLabels(indexLabels);
+				}
+				for (AssembledBlock block : blocks) {
+					blockWriter.write(() -> block.block);
+				}
+				// the next slab is only read when this one is written
+				blockWriter.awaitWritten();
+			}
+			if(blockWriter != null) blockWriter.finish();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException(e);
+		}
+		return minMax;
+	}
+
+	private static List<DataBlock<?>> sample(List<AssembledBlock> blocks) {
+		List<DataBlock<?>> res = new ArrayList<>();
+		int count = Math.min(4, blocks.size());
+		for (int i = 0; i < count; i++) {
+			res.add(blocks.get(blocks.size() * (2 * i + 1) / (2 * count)).block);
+		}
+		return res;
+	}
+
+	private static class AssembledBlock {
+		final DataBlock<?> block;
+		final double min;
+		final double max;
+
+		AssembledBlock(DataBlock<?> block, double min, double max) {
+			this.block = block;
+			this.min = min;
+			this.max = max;
+		}
+	}
+
+	private DataType getDataType(String type) {
+		if("int".equals(type)) return DataType.INT16;
+		if("byte".equals(type)) return DataType.UINT8;
+		switch (bitDepth) {
+			case 8: return DataType.UINT8;
+			case 16: return DataType.UINT16;
+			default: return DataType.FLOAT32;
+		}
+	}
+
+	/**
+	 * @return for each output index, the nearest source index, mirrored at the borders
+	 */
+	static int[] getSourceIndices(long sourceSize, long outputSize, double scale) {
+		int[] res = new int[(int) outputSize];
+		for (int i = 0; i < res.length; i++) {
+			long index = (long) Math.floor(i / scale + 0.5);
+			if(sourceSize == 1) index = 0;
+			else {
+				long period = 2 * sourceSize - 2;
+				index = Math.floorMod(index, period);
+				if(index >= sourceSize) index = period - index;
+			}
+			res[i] = (int) index;
+		}
+		return res;
+	}
+
+	/**
+	 * Reads the source planes of the output planes {@code zMin} to {@code zMin + depth - 1} in parallel.
+	 * @return the converted planes of the slab, the same array for output planes sharing a source plane
+	 */
+	private Object[] readSlab(int[] sourceZ, int zMin, int depth, String type, ExecutorService executor) throws InterruptedException, ExecutionException {
+		Object[] res = new Object[depth];
+		List<Future<Object>> futures = new ArrayList<>();
+		List<Integer> firstUses = new ArrayList<>();
+		for (int z = 0; z < depth; z++) {
+			int source = sourceZ[zMin + z];
+			if(z > 0 && sourceZ[zMin + z - 1] == source) continue;
+			firstUses.add(z);
+			futures.add(executor.submit(() -> convert(readPlane(source), type)));
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			res[firstUses.get(i)] = futures.get(i).get();
+		}
+		for (int z = 1; z < depth; z++) {
+			if(res[z] == null) res[z] = res[z - 1];
+		}
+		return res;
+	}
+
+	private ImageProcessor readPlane(int z) throws IOException {
+		if(planeFiles == null) return stack.getProcessor(z + 1);
+		ImagePlus imp = openPlane(planeFiles[z]);
+		if(imp.getWidth() != dimensions[0] || imp.getHeight() != dimensions[1]) {
+			throw new IOException("Dimensions of " + planeFiles[z] + " differ from the first plane.");
+		}
+		return imp.getProcessor();
+	}
+
+	private static ImagePlus openPlane(File file) throws IOException {
+		ImagePlus imp = IJ.openImage(file.getAbsolutePath());
+		if(imp == null) throw new IOException("Cannot open " + file);
+		return imp;
+	}
+
+	private static Object convert(ImageProcessor processor, String type) {
+		Object pixels = processor.getPixels();
+		if("int".equals(type)) {
+			if(pixels instanceof short[]) return pixels;
+			short[] res = new short[processor.getPixelCount()];
+			for (int i = 0; i < res.length; i++) {
+				res[i] = (short) (int) processor.getf(i);
+			}
+			return res;
+		}
+		if("byte".equals(type)) {
+			byte[] res = new byte[processor.getPixelCount()];
+			for (int i = 0; i < res.length; i++) {
+				res[i] = (byte) (processor.getf(i) != 0 ? 1 : 0);
+			}
+			return res;
+		}
+		return pixels;
+	}
+
+	private AssembledBlock assembleBlock(DatasetAttributes attributes, long[] gridPosition, int depth, Object[] planes, int[][] sourceIndices) {
+		int[] blockSize = attributes.getBlockSize();
+		long[] outputDimensions = attributes.getDimensions();
+		int xMin = (int) (gridPosition[0] * blockSize[0]);
+		int yMin = (int) (gridPosition[1] * blockSize[1]);
+		int[] size = {(int) Math.min(blockSize[0], outputDimensions[0] - xMin), (int) Math.min(blockSize[1], outputDimensions[1] - yMin), depth};
+		int width = (int) dimensions[0];
+		int length = size[0] * size[1] * size[2];
+		int[] sourceX = sourceIndices[0];
+		int[] sourceY = sourceIndices[1];
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		DataBlock<?> block;
+		if(planes[0] instanceof byte[]) {
+			byte[] data = new byte[length];
+			for (int z = 0, i = 0; z < depth; z++) {
+				byte[] plane = (byte[]) planes[z];
+				for (int y = 0; y < size[1]; y++) {
+					int row = sourceY[yMin + y] * width;
+					for (int x = 0; x < size[0]; x++, i++) {
+						data[i] = plane[row + sourceX[xMin + x]];
+						int value = data[i] & 0xff;
+						if(value < min) min = value;
+						if(value > max) max = value;
+					}
+				}
+			}
+			block = new ByteArrayDataBlock(size, gridPosition, data);
+		} else if(planes[0] instanceof short[]) {
+			boolean signed = attributes.getDataType() == DataType.INT16;
+			short[] data = new short[length];
+			for (int z = 0, i = 0; z < depth; z++) {
+				short[] plane = (short[]) planes[z];
+				for (int y = 0; y < size[1]; y++) {
+					int row = sourceY[yMin + y] * width;
+					for (int x = 0; x < size[0]; x++, i++) {
+						data[i] = plane[row + sourceX[xMin + x]];
+						int value = signed ? data[i] : data[i] & 0xffff;
+						if(value < min) min = value;
+						if(value > max) max = value;
+					}
+				}
+			}
+			block = new ShortArrayDataBlock(size, gridPosition, data);
+		} else {
+			float[] data = new float[length];
+			for (int z = 0, i = 0; z < depth; z++) {
+				float[] plane = (float[]) planes[z];
+				for (int y = 0; y < size[1]; y++) {
+					int row = sourceY[yMin + y] * width;
+					for (int x = 0; x < size[0]; x++, i++) {
+						data[i] = plane[row + sourceX[xMin + x]];
+						if(data[i] < min) min = data[i];
+						if(data[i] > max) max = data[i];
+					}
+				}
+			}
+			block = new FloatArrayDataBlock(size, gridPosition, data);
+		}
+		return new AssembledBlock(block, min, max);
+	}
+}
@@ -36,6 +36,7 @@ import net.imglib2.algorithm.math.ImgMath;
 import net.imglib2.algorithm.math.Max;
 import net.imglib2.img.Img;
 import net.imglib2.loops.LoopBuilder;
+import net.imglib2.parallel.TaskExecutor;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -50,30 +51,30 @@ import java.util.List;
 
 public class AnalyzeUtils {
 
-	public static void calculateDistanceTransform(OpService ops, ImageFileItem input, ImageFileItem<FloatType> output, boolean recalculateDistanceMaps) throws IOException {
+	public static void calculateDistanceTransform(OpService ops, ImageFileItem input, ImageFileItem<FloatType> output, boolean recalculateDistanceMaps, TaskExecutor taskExecutor) throws IOException {
 		if(output.exists() && !recalculateDistanceMaps) {
 			ops.context().service(StatusService.class).showStatus("Not recalculating distance transform map of " + input.getName());
 			return;
 		}
-		calculateDistanceTransform(ops, input.getImage(), output, false);
+		calculateDistanceTransform(ops, input.getImage(), output, false, taskExecutor);
 	}
 
-	public static void calculateDistanceTransformInner(OpService ops, ImageFileItem input, ImageFileItem<FloatType> output, boolean recalculateDistanceMaps) throws IOException {
+	public static void calculateDistanceTransformInner(OpService ops, ImageFileItem input, ImageFileItem<FloatType> output, boolean recalculateDistanceMaps, TaskExecutor taskExecutor) throws IOException {
 		if(output.exists() && !recalculateDistanceMaps) {
 			ops.context().service(StatusService.class).showStatus("Not recalculating distance transform map of " + input.getName());
 			return;
 		}
-		calculateDistanceTransform(ops, input.getImage(), output, true);
+		calculateDistanceTransform(ops, input.getImage(), output, true, taskExecutor);
 	}
 
-	public static <T extends IntegerType<T>> void calculateDistanceTransform(OpService ops, RandomAccessibleInterval<T> input, ImageFileItem<FloatType> output, boolean inverted) throws IOException {
+	public static <T extends IntegerType<T>> void calculateDistanceTransform(OpService ops, RandomAccessibleInterval<T> input, ImageFileItem<FloatType> output, boolean inverted, TaskExecutor taskExecutor) throws IOException {
 //		Img<FloatType> img = ops.create().img(input, new FloatType());
 //		LoopBuilder.setImages(input, img).multiThreaded().forEachPixel((in, out) -> out.set(in.getInteger() == 0? Float.MAX_VALUE : 0));
 		Img<BitType> img = ops.create().img(input, new BitType());
 		if(inverted) {
-			LoopBuilder.setImages(input, img).multiThreaded().forEachPixel((in, out) -> out.set(in.getInteger() != 0));
+			LoopBuilder.setImages(input, img).multiThreaded(taskExecutor).forEachPixel((in, out) -> out.set(in.getInteger() != 0));
 		} else {
-			LoopBuilder.setImages(input, img).multiThreaded().forEachPixel((in, out) -> out.set(in.getInteger() == 0));
+			LoopBuilder.setImages(input, img).multiThreaded(taskExecutor).forEachPixel((in, out) -> out.set(in.getInteger() == 0));
 		}
 //		DistanceTransform.transform(img, new EuclidianDistanceIsotropic(1));
 		RandomAccessibleInterval<FloatType> distance = ops.image().distancetransform(img);
@@ -0,0 +1,166 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import de.frauzufall.cellsketch.ProjectExecutors;
+import de.frauzufall.cellsketch.model.Filaments;
+import de.frauzufall.cellsketch.n5.ParallelBlockWriter;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Renders labeled line segments with a radius (capsules) into an N5 label dataset. Segments are binned into the blocks
+ * of the dataset they overlap, and each block is filled in memory and written once. Voxels covered by several capsules
+ * get the label of the capsule added last.
+ */
+public class CapsuleRasterizer {
+
+	private final SegmentGrid grid;
+	private final long radius;
+
+	/**
+	 * @param radius in pixels, rounded and at least 1 like {@link NMLReader#drawPoint}
+	 */
+	public CapsuleRasterizer(long[] dimensions, int[] blockSize, double radius) {
+		this.grid = new SegmentGrid(dimensions, blockSize);
+		this.radius = Math.max(1, Math.round(radius));
+	}
+
+	/**
+	 * @return the radius of the capsules in pixels
+	 */
+	public long getRadius() {
+		return radius;
+	}
+
+	public int getSegmentCount() {
+		return grid.getSegmentCount();
+	}
+
+	public void addSegment(int x1, int y1, int z1, int x2, int y2, int z2, int label) {
+		grid.addSegment(x1, y1, z1, x2, y2, z2, label);
+	}
+
+	public void addSegments(int[] coordinates, int firstPoint, int pointCount, int label) {
+		grid.addSegments(coordinates, firstPoint, pointCount, label);
+	}
+
+	public void addFilaments(Filaments filaments) {
+		grid.addFilaments(filaments);
+	}
+
+	/**
+	 * Creates (or replaces) an INT32 dataset and writes all blocks touched by at least one capsule. The capsule radius
+	 * is stored as <code>radius</code> attribute of the dataset.
+	 */
+	public void write(N5Writer writer, String dataset, Compression compression, ExecutorService executor) throws IOException {
+		if(writer.exists(dataset)) writer.remove(dataset);
+		DatasetAttributes attributes = new DatasetAttributes(grid.getDimensions(), grid.getBlockSize(), DataType.INT32, compression);
+		writer.createDataset(dataset, attributes);
+		writer.setAttribute(dataset, "radius", radius);
+		int[][] blocks = binSegments();
+		ParallelBlockWriter blockWriter = new ParallelBlockWriter(writer, dataset, attributes, executor, 4 * ProjectExecutors.getParallelism(executor));
+		blockWriter.setIndexLabels(true);
+		for (int block = 0; block < blocks.length; block++) {
+			if(blocks[block] == null) continue;
+			int[] segments = blocks[block];
+			long[] gridPosition = getGridPosition(block);
+			blockWriter.write(() -> {
+				int[] size = getBlockSize(gridPosition);
+				return new IntArrayDataBlock(size, gridPosition, rasterize(gridPosition, size, segments));
+			});
+		}
+		blockWriter.finish();
+	}
+
+	int[][] binSegments() {
+		return grid.binSegments(radius);
+	}
+
+	/**
+	 * @return the labels of the block, x fastest
+	 */
+	int[] rasterize(long[] gridPosition, int[] size, int[] segments) {
+		int[] data = new int[size[0] * size[1] * size[2]];
+		long[] blockMin = grid.getBlockMin(gridPosition);
+		int[] coordinates = grid.getCoordinates();
+		// tolerance for voxels exactly on the capsule surface
+		double radiusSquared = radius * radius + 1e-6;
+		int[] min = new int[3];
+		int[] max = new int[3];
+		for (int segment : segments) {
+			if(!grid.getVoxelRange(segment, radius, blockMin, size, min, max)) continue;
+			int offset = segment * 6;
+			double ax = coordinates[offset] - blockMin[0];
+			double ay = coordinates[offset + 1] - blockMin[1];
+			double az = coordinates[offset + 2] - blockMin[2];
+			double abx = coordinates[offset + 3] - coordinates[offset];
+			double aby = coordinates[offset + 4] - coordinates[offset + 1];
+			double abz = coordinates[offset + 5] - coordinates[offset + 2];
+			double lengthSquared = abx * abx + aby * aby + abz * abz;
+			int label = grid.getLabel(segment);
+			for (int z = min[2]; z <= max[2]; z++) {
+				for (int y = min[1]; y <= max[1]; y++) {
+					int index = (z * size[1] + y) * size[0] + min[0];
+					for (int x = min[0]; x <= max[0]; x++, index++) {
+						if(distanceSquared(x - ax, y - ay, z - az, abx, aby, abz, lengthSquared) <= radiusSquared) data[index] = label;
+					}
+				}
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * @return the squared distance of point p to the segment from a to b, given p - a and b - a
+	 */
+	static double distanceSquared(double px, double py, double pz, double abx, double aby, double abz, double lengthSquared) {
+		double t = lengthSquared == 0 ? 0 : (px * abx + py * aby + pz * abz) / lengthSquared;
+		if(t < 0) t = 0;
+		else if(t > 1) t = 1;
+		double dx = px - t * abx;
+		double dy = py - t * aby;
+		double dz = pz - t * abz;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	long[] getGridPosition(int block) {
+		return grid.getGridPosition(block);
+	}
+
+	int[] getBlockSize(long[] gridPosition) {
+		return grid.getBlockSize(gridPosition);
+	}
+}
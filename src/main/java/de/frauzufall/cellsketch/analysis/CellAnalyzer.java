@@ -30,18 +30,33 @@ package de.frauzufall.cellsketch.analysis;
 
 import de.frauzufall.cellsketch.CellProject;
 import de.frauzufall.cellsketch.model.*;
+import de.frauzufall.cellsketch.n5.CompressionPolicy;
+import de.frauzufall.cellsketch.n5.CompressionSelector;
+import de.frauzufall.cellsketch.n5.DatasetKind;
 import net.imagej.ops.OpService;
+import net.imglib2.type.numeric.real.FloatType;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
 import org.jdom2.DataConversionException;
 import org.scijava.app.StatusService;
 import org.scijava.log.LogService;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 
 public class CellAnalyzer {
     private final CellProject project;
     private final OpService ops;
     private final boolean skipExistingDistanceMaps;
     private final double connectedThresholdInUM;
+    private double spatialStatisticsMaxRadiusInUM = 2;
+    private int spatialStatisticsRadiusSteps = 40;
+    private int spatialStatisticsSimulations = 99;
+    private double radialProfileBinWidthInUM = 0.05;
+    private double filamentDistanceTruncationInUM = 0;
+    private double filamentFieldSpacingInUM = 0;
 
     public CellAnalyzer(CellProject project, boolean skipExistingDistanceMaps, OpService ops, double connectedThresholdInUM){
         this.project = project;
@@ -49,9 +64,37 @@ public class CellAnalyzer {
         this.ops = ops;
         this.connectedThresholdInUM = connectedThresholdInUM;
     }
+
+    public void setSpatialStatisticsParameters(double maxRadiusInUM, int radiusSteps, int simulations) {
+        this.spatialStatisticsMaxRadiusInUM = maxRadiusInUM;
+        this.spatialStatisticsRadiusSteps = radiusSteps;
+        this.spatialStatisticsSimulations = simulations;
+    }
+
+    public void setRadialProfileBinWidthInUM(double binWidthInUM) {
+        this.radialProfileBinWidthInUM = binWidthInUM;
+    }
+
+    /**
+     * @param truncationInUM if larger than zero, the distance maps of filaments are computed from the filament segments
+     *                       up to this distance instead of from the rendered label map
+     */
+    public void setFilamentDistanceTruncationInUM(double truncationInUM) {
+        this.filamentDistanceTruncationInUM = truncationInUM;
+    }
+
+    /**
+     * @param spacingInUM if larger than zero, coarse maps of filament length density and orientation order are computed
+     *                    with this grid spacing
+     */
+    public void setFilamentFieldSpacingInUM(double spacingInUM) {
+        this.filamentFieldSpacingInUM = spacingInUM;
+    }
+
     public void analyze() {
         String progressName = "Running analysis...";
         project.startProgress(progressName);
+        ExecutorService executor = project.getExecutors().getCpuExecutor();
         try {
             for (Item item : project.getItems()) {
                 item.unload();
@@ -66,12 +109,20 @@ public class CellAnalyzer {
             if(project.getBoundary() != null) {
                 calculateDistanceTransformInner(project.getBoundary());
             }
+            project.getN5Store().flush();
             for (FilamentsItemGroup filamentsItemGroup : project.getFilamentsItems()) {
-                analyzeFilaments(project.getPixelToUM(), filamentsItemGroup);
+                analyzeFilaments(project.getPixelToUM(), filamentsItemGroup, executor);
             }
+            project.getN5Store().flush();
             for (LabelMapItemGroup labelMapItemGroup : project.getLabelMapItems()) {
                 analyzeLabelMaps(labelMapItemGroup);
             }
+            project.getN5Store().flush();
+            for (LabelMapItemGroup labelMapItemGroup : project.getLabelMapItems()) {
+                analyzeSpatialStatistics(labelMapItemGroup, executor);
+            }
+            analyzeRadialProfiles(executor);
+            project.getN5Store().flush();
             project.populateModel();
             project.updateUI();
         } catch (IOException | NMLReader.NMLReaderIOException | DataConversionException e) {
@@ -89,7 +140,7 @@ public class CellAnalyzer {
                 return;
             }
             project.context().service(StatusService.class).showStatus("Calculating distance transform map of " + item.getName());
-            AnalyzeUtils.calculateDistanceTransform(ops, item.distanceMapSource(), item.getDistanceMap(), !skipExistingDistanceMaps);
+            AnalyzeUtils.calculateDistanceTransform(ops, item.distanceMapSource(), item.getDistanceMap(), !skipExistingDistanceMaps, project.getExecutors().getCpuTaskExecutor());
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -106,7 +157,7 @@ public class CellAnalyzer {
                 return;
             }
             project.context().service(StatusService.class).showStatus("Calculating distance transform map of " + item.getName());
-            AnalyzeUtils.calculateDistanceTransformInner(ops, item.distanceMapSource(), item.getDistanceMap(), !skipExistingDistanceMaps);
+            AnalyzeUtils.calculateDistanceTransformInner(ops, item.distanceMapSource(), item.getDistanceMap(), !skipExistingDistanceMaps, project.getExecutors().getCpuTaskExecutor());
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -115,10 +166,111 @@ public class CellAnalyzer {
         }
     }
 
-    private void analyzeFilaments(double pixelToMicroMeters, FilamentsItemGroup filamentsItemGroup) throws DataConversionException, IOException, NMLReader.NMLReaderIOException {
-        calculateDistanceTransform(filamentsItemGroup);
-        FilamentsAnalyzer analyzer = new FilamentsAnalyzer(project, filamentsItemGroup);
+    private void analyzeFilaments(double pixelToMicroMeters, FilamentsItemGroup filamentsItemGroup, ExecutorService executor) throws DataConversionException, IOException, NMLReader.NMLReaderIOException {
+        if(filamentDistanceTruncationInUM > 0 && filamentsItemGroup.importLegacyFilaments()) {
+            calculateFilamentDistanceMap(filamentsItemGroup, executor);
+        } else {
+            calculateDistanceTransform(filamentsItemGroup);
+        }
+        if(filamentFieldSpacingInUM > 0 && filamentsItemGroup.importLegacyFilaments()) {
+            calculateFilamentFields(filamentsItemGroup, executor);
+        }
+        FilamentsAnalyzer analyzer = new FilamentsAnalyzer(project, filamentsItemGroup, executor, connectedThresholdInUM);
         analyzer.analyze(pixelToMicroMeters);
+        if(filamentsItemGroup.getGraph().exists()) {
+            new FilamentGraphAnalyzer(project, filamentsItemGroup, executor).analyze(pixelToMicroMeters);
+        }
+    }
+
+    private void calculateFilamentDistanceMap(FilamentsItemGroup item, ExecutorService executor) throws IOException {
+        ImageFileItem<FloatType> output = item.getDistanceMap();
+        if(output.exists() && this.skipExistingDistanceMaps) {
+            project.context().service(LogService.class).debug("Not recalculating already existing distance transform map of " + item.getName());
+            return;
+        }
+        project.context().service(StatusService.class).showStatus("Calculating distance map of " + item.getName() + " from filament segments");
+        String dataset = output.getDefaultFileName();
+        N5Reader reader = project.getN5Store().getReader();
+        Double radius = null;
+        if(reader.exists(item.getLabelMap().getDefaultFileName())) {
+            radius = reader.getAttribute(item.getLabelMap().getDefaultFileName(), "radius", Double.class);
+        }
+        FilamentDistanceMap distanceMap = new FilamentDistanceMap(item.getFilaments().read(), new int[]{64, 64, 64},
+                radius == null ? 0 : radius, filamentDistanceTruncationInUM / project.getPixelToUM());
+        N5Writer writer = project.getN5Store().getWriter();
+        try {
+            CompressionPolicy policy = project.getCompressionPolicy(DatasetKind.DISTANCE_MAP);
+            CompressionSelector.Selection selection = CompressionSelector.selectUnsampled(DataType.FLOAT32, policy);
+            double max = distanceMap.write(writer, dataset, selection.compression, executor);
+            CompressionSelector.record(writer, dataset, policy, selection);
+            writer.setAttribute(dataset, "max", max);
+            writer.setAttribute(dataset, "min", 0.);
+            output.setMaxValue(max);
+            output.setFile(new File(project.getProjectDir(), dataset));
+            output.saveConfig();
+        } finally {
+            project.getMetadataCache().invalidate(dataset);
+            output.unload();
+        }
+    }
+
+    private void calculateFilamentFields(FilamentsItemGroup item, ExecutorService executor) throws IOException {
+        project.context().service(StatusService.class).showStatus("Calculating density and orientation maps of " + item.getName());
+        int spacing = (int) Math.max(1, Math.round(filamentFieldSpacingInUM / project.getPixelToUM()));
+        FilamentFieldMap fieldMap = new FilamentFieldMap(item.getFilaments().read(), spacing, new int[]{64, 64, 64}, project.getPixelToUM());
+        ImageFileItem<FloatType> density = item.getDensity();
+        ImageFileItem<FloatType> orientation = item.getOrientation();
+        String densityDataset = density.getDefaultFileName();
+        String orientationGroup = orientation.getDefaultFileName();
+        N5Writer writer = project.getN5Store().getWriter();
+        try {
+            CompressionPolicy policy = project.getCompressionPolicy(DatasetKind.DISTANCE_MAP);
+            CompressionSelector.Selection selection = CompressionSelector.selectUnsampled(DataType.FLOAT32, policy);
+            double max = fieldMap.write(writer, densityDataset, orientationGroup, selection.compression, executor);
+            CompressionSelector.record(writer, densityDataset, policy, selection);
+            for (int c = 0; c < FilamentFieldMap.ORIENTATION_CHANNELS.length; c++) {
+                CompressionSelector.record(writer, orientationGroup + "/c" + c, policy, selection);
+            }
+            writer.setAttribute(densityDataset, "max", max);
+            writer.setAttribute(densityDataset, "min", 0.);
+            density.setMaxValue(max);
+            density.setFile(new File(project.getProjectDir(), densityDataset));
+            density.saveConfig();
+            orientation.setMaxValue(1);
+            orientation.setFile(new File(project.getProjectDir(), orientationGroup));
+            orientation.saveConfig();
+        } finally {
+            project.getMetadataCache().invalidate(densityDataset);
+            project.getMetadataCache().invalidate(orientationGroup);
+            density.unload();
+            orientation.unload();
+        }
+    }
+
+    private void analyzeSpatialStatistics(LabelMapItemGroup labelMap, ExecutorService executor) {
+        if(!labelMap.getLabelMap().exists()) return;
+        SpatialStatisticsAnalyzer analyzer = new SpatialStatisticsAnalyzer(project, labelMap, executor,
+                spatialStatisticsMaxRadiusInUM, spatialStatisticsRadiusSteps, spatialStatisticsSimulations);
+        try {
+            analyzer.analyze();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if(project.getBoundary() != null) project.getBoundary().getMask().unload();
+        }
+    }
+
+    private void analyzeRadialProfiles(ExecutorService executor) {
+        RadialProfileAnalyzer analyzer = new RadialProfileAnalyzer(project, executor, radialProfileBinWidthInUM);
+        try {
+            analyzer.analyze();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (Item item : project.getItems()) {
+                item.unload();
+            }
+        }
     }
 
     private void analyzeLabelMaps(LabelMapItemGroup labelMap) {
@@ -0,0 +1,183 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+/**
+ * Static 3D k-d tree over a fixed set of points, stored implicitly in primitive arrays.
+ * The median of each range is the split node, so no node objects are allocated.
+ * Instances are immutable after construction and can be queried from multiple threads.
+ */
+public class CentroidKDTree {
+
+	private final double[] coordinates;
+	private final int[] indices;
+	private final int size;
+
+	public CentroidKDTree(double[] x, double[] y, double[] z) {
+		size = x.length;
+		coordinates = new double[size * 3];
+		indices = new int[size];
+		for (int i = 0; i < size; i++) {
+			coordinates[i * 3] = x[i];
+			coordinates[i * 3 + 1] = y[i];
+			coordinates[i * 3 + 2] = z[i];
+			indices[i] = i;
+		}
+		build(0, size, 0);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of points with a distance smaller or equal to {@code radius} from the given position
+	 */
+	public int countWithin(double x, double y, double z, double radius) {
+		return countWithin(x, y, z, radius * radius, 0, size, 0);
+	}
+
+	/**
+	 * @return the number of ordered pairs of distinct points which are not further apart than {@code radius}
+	 */
+	public long countPairsWithin(double radius) {
+		double radiusSquared = radius * radius;
+		long count = 0;
+		for (int i = 0; i < size; i++) {
+			// the point itself is always within the radius
+			count += countWithin(coordinates[i * 3], coordinates[i * 3 + 1], coordinates[i * 3 + 2], radiusSquared, 0, size, 0) - 1;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the distance of the closest point to the given position which is not the point with index {@code excluded}
+	 */
+	public double nearestNeighborDistance(double x, double y, double z, int excluded) {
+		double[] best = new double[]{Double.POSITIVE_INFINITY};
+		nearest(x, y, z, excluded, 0, size, 0, best);
+		return Math.sqrt(best[0]);
+	}
+
+	/**
+	 * @return for each point (in construction order) the distance to its closest other point
+	 */
+	public double[] nearestNeighborDistances() {
+		double[] res = new double[size];
+		for (int i = 0; i < size; i++) {
+			int index = indices[i];
+			res[index] = nearestNeighborDistance(coordinates[i * 3], coordinates[i * 3 + 1], coordinates[i * 3 + 2], index);
+		}
+		return res;
+	}
+
+	private int countWithin(double x, double y, double z, double radiusSquared, int lo, int hi, int depth) {
+		int count = 0;
+		while (hi > lo) {
+			int mid = (lo + hi) >>> 1;
+			int axis = depth % 3;
+			double dx = coordinates[mid * 3] - x;
+			double dy = coordinates[mid * 3 + 1] - y;
+			double dz = coordinates[mid * 3 + 2] - z;
+			if (dx * dx + dy * dy + dz * dz <= radiusSquared) count++;
+			double diff = (axis == 0 ? x : axis == 1 ? y : z) - coordinates[mid * 3 + axis];
+			depth++;
+			if (diff * diff <= radiusSquared) {
+				// both halves can contain points within the radius
+				count += countWithin(x, y, z, radiusSquared, mid + 1, hi, depth);
+				hi = mid;
+			} else if (diff < 0) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		return count;
+	}
+
+	private void nearest(double x, double y, double z, int excluded, int lo, int hi, int depth, double[] best) {
+		if (hi <= lo) return;
+		int mid = (lo + hi) >>> 1;
+		int axis = depth % 3;
+		if (indices[mid] != excluded) {
+			double dx = coordinates[mid * 3] - x;
+			double dy = coordinates[mid * 3 + 1] - y;
+			double dz = coordinates[mid * 3 + 2] - z;
+			double d = dx * dx + dy * dy + dz * dz;
+			if (d < best[0]) best[0] = d;
+		}
+		double diff = (axis == 0 ? x : axis == 1 ? y : z) - coordinates[mid * 3 + axis];
+		if (diff < 0) {
+			nearest(x, y, z, excluded, lo, mid, depth + 1, best);
+			if (diff * diff < best[0]) nearest(x, y, z, excluded, mid + 1, hi, depth + 1, best);
+		} else {
+			nearest(x, y, z, excluded, mid + 1, hi, depth + 1, best);
+			if (diff * diff < best[0]) nearest(x, y, z, excluded, lo, mid, depth + 1, best);
+		}
+	}
+
+	private void build(int lo, int hi, int depth) {
+		if (hi - lo <= 1) return;
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, depth % 3);
+		build(lo, mid, depth + 1);
+		build(mid + 1, hi, depth + 1);
+	}
+
+	private void select(int left, int right, int k, int axis) {
+		while (right > left) {
+			double pivot = coordinates[((left + right) >>> 1) * 3 + axis];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (coordinates[i * 3 + axis] < pivot) i++;
+				while (coordinates[j * 3 + axis] > pivot) j--;
+				if (i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) right = j;
+			else if (k >= i) left = i;
+			else return;
+		}
+	}
+
+	private void swap(int a, int b) {
+		for (int d = 0; d < 3; d++) {
+			double tmp = coordinates[a * 3 + d];
+			coordinates[a * 3 + d] = coordinates[b * 3 + d];
+			coordinates[b * 3 + d] = tmp;
+		}
+		int tmp = indices[a];
+		indices[a] = indices[b];
+		indices[b] = tmp;
+	}
+}
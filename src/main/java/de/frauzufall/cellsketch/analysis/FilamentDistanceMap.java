@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import de.frauzufall.cellsketch.ProjectExecutors;
+import de.frauzufall.cellsketch.model.Filaments;
+import de.frauzufall.cellsketch.n5.ParallelBlockWriter;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Distance of each voxel to the surface of the closest filament tube, computed from the filament segments instead of a
+ * distance transform of the rendered label map. Distances are evaluated per block, only against the segments within
+ * the truncation distance of the block. Voxels further away than the truncation distance get the truncation distance.
+ */
+public class FilamentDistanceMap {
+
+	private final SegmentGrid grid;
+	private final double tubeRadius;
+	private final double truncation;
+
+	/**
+	 * @param tubeRadius radius of the filaments in pixels, distances are measured to the tube surface
+	 * @param truncation largest computed distance in pixels
+	 */
+	public FilamentDistanceMap(Filaments filaments, int[] blockSize, double tubeRadius, double truncation) {
+		this.grid = new SegmentGrid(filaments.getDimensions(), blockSize);
+		this.tubeRadius = tubeRadius;
+		this.truncation = truncation;
+		grid.addFilaments(filaments);
+	}
+
+	/**
+	 * Creates (or replaces) a FLOAT32 dataset and writes all of its blocks.
+	 * @return the largest distance in the dataset
+	 */
+	public double write(N5Writer writer, String dataset, Compression compression, ExecutorService executor) throws IOException {
+		if(writer.exists(dataset)) writer.remove(dataset);
+		DatasetAttributes attributes = new DatasetAttributes(grid.getDimensions(), grid.getBlockSize(), DataType.FLOAT32, compression);
+		writer.createDataset(dataset, attributes);
+		int[][] blocks = grid.binSegments(getMargin());
+		ParallelBlockWriter blockWriter = new ParallelBlockWriter(writer, dataset, attributes, executor, 4 * ProjectExecutors.getParallelism(executor));
+		for (int block = 0; block < blocks.length; block++) {
+			int[] segments = blocks[block];
+			long[] gridPosition = grid.getGridPosition(block);
+			blockWriter.write(() -> {
+				int[] size = grid.getBlockSize(gridPosition);
+				return new FloatArrayDataBlock(size, gridPosition, compute(gridPosition, size, segments));
+			});
+		}
+		blockWriter.finish();
+		return Math.max(0, blockWriter.getSummary().getMax());
+	}
+
+	/**
+	 * @param segments the segments close to the block, can be null
+	 * @return the distances of the block, x fastest
+	 */
+	float[] compute(long[] gridPosition, int[] size, int[] segments) {
+		int length = size[0] * size[1] * size[2];
+		float[] data = new float[length];
+		if(segments == null) {
+			Arrays.fill(data, (float) truncation);
+			return data;
+		}
+		double maxDistance = tubeRadius + truncation;
+		double[] distancesSquared = new double[length];
+		Arrays.fill(distancesSquared, maxDistance * maxDistance);
+		long[] blockMin = grid.getBlockMin(gridPosition);
+		int[] coordinates = grid.getCoordinates();
+		long margin = getMargin();
+		int[] min = new int[3];
+		int[] max = new int[3];
+		for (int segment : segments) {
+			if(!grid.getVoxelRange(segment, margin, blockMin, size, min, max)) continue;
+			int offset = segment * 6;
+			double ax = coordinates[offset] - blockMin[0];
+			double ay = coordinates[offset + 1] - blockMin[1];
+			double az = coordinates[offset + 2] - blockMin[2];
+			double abx = coordinates[offset + 3] - coordinates[offset];
+			double aby = coordinates[offset + 4] - coordinates[offset + 1];
+			double abz = coordinates[offset + 5] - coordinates[offset + 2];
+			double lengthSquared = abx * abx + aby * aby + abz * abz;
+			for (int z = min[2]; z <= max[2]; z++) {
+				for (int y = min[1]; y <= max[1]; y++) {
+					int index = (z * size[1] + y) * size[0] + min[0];
+					for (int x = min[0]; x <= max[0]; x++, index++) {
+						double distanceSquared = CapsuleRasterizer.distanceSquared(x - ax, y - ay, z - az, abx, aby, abz, lengthSquared);
+						if(distanceSquared < distancesSquared[index]) distancesSquared[index] = distanceSquared;
+					}
+				}
+			}
+		}
+		for (int i = 0; i < length; i++) {
+			data[i] = (float) Math.max(0, Math.sqrt(distancesSquared[i]) - tubeRadius);
+		}
+		return data;
+	}
+
+	private long getMargin() {
+		return (long) Math.ceil(tubeRadius + truncation);
+	}
+}
@@ -0,0 +1,273 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import de.frauzufall.cellsketch.ProjectExecutors;
+import de.frauzufall.cellsketch.model.Filaments;
+import de.frauzufall.cellsketch.n5.ParallelBlockWriter;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Coarse maps of filament length density and nematic orientation order. Each cell of the coarse grid covers
+ * {@code spacing} pixels along each dimension. The segments of all filaments are split at the cell borders, and the
+ * length and direction tensor of each piece are accumulated in the cell containing it. Blocks of the coarse grid are
+ * computed in parallel, each only from the segments overlapping it. Empty blocks are not written.
+ */
+public class FilamentFieldMap {
+
+	/**
+	 * Names of the orientation channels: the largest eigenvalue of the order tensor Q = (3 &lt;u u&gt; - I) / 2,
+	 * followed by the components of Q.
+	 */
+	public static final String[] ORIENTATION_CHANNELS = {"order", "Qxx", "Qxy", "Qxz", "Qyy", "Qyz", "Qzz"};
+
+	private final SegmentGrid grid;
+	private final int spacing;
+	private final double pixelToUM;
+	private final long[] dimensions = new long[3];
+	private final int[] blockSize;
+
+	/**
+	 * @param spacing size of a cell of the coarse grid in pixels
+	 * @param blockSize block size of the coarse grid datasets, in cells
+	 */
+	public FilamentFieldMap(Filaments filaments, int spacing, int[] blockSize, double pixelToUM) {
+		this.spacing = spacing;
+		this.pixelToUM = pixelToUM;
+		this.blockSize = blockSize.clone();
+		long[] imageDimensions = filaments.getDimensions();
+		int[] pixelBlockSize = new int[3];
+		for (int d = 0; d < 3; d++) {
+			dimensions[d] = (imageDimensions[d] + spacing - 1) / spacing;
+			pixelBlockSize[d] = blockSize[d] * spacing;
+		}
+		this.grid = new SegmentGrid(imageDimensions, pixelBlockSize);
+		grid.addFilaments(filaments);
+	}
+
+	/**
+	 * @return the number of cells of the coarse grid along each dimension
+	 */
+	public long[] getDimensions() {
+		return dimensions;
+	}
+
+	/**
+	 * Creates (or replaces) the density dataset and the orientation group with one dataset per channel
+	 * ({@code c0}, {@code c1}, ..) and writes all of their blocks.
+	 * @return the largest density in µm filament length per µm³
+	 */
+	public double write(N5Writer writer, String densityDataset, String orientationGroup, Compression compression, ExecutorService executor) throws IOException {
+		DatasetAttributes attributes = new DatasetAttributes(dimensions, blockSize, DataType.FLOAT32, compression);
+		String[] datasets = new String[ORIENTATION_CHANNELS.length + 1];
+		datasets[0] = densityDataset;
+		if(writer.exists(orientationGroup)) writer.remove(orientationGroup);
+		writer.createGroup(orientationGroup);
+		writer.setAttribute(orientationGroup, "channels", ORIENTATION_CHANNELS);
+		for (int c = 0; c < ORIENTATION_CHANNELS.length; c++) {
+			datasets[c + 1] = orientationGroup + "/c" + c;
+		}
+		long[] downsamplingFactors = {spacing, spacing, spacing};
+		for (String dataset : datasets) {
+			if(writer.exists(dataset)) writer.remove(dataset);
+			writer.createDataset(dataset, attributes);
+			writer.setAttribute(dataset, "downsamplingFactors", downsamplingFactors);
+		}
+		int[][] blocks = grid.binSegments(0);
+		ParallelBlockWriter[] blockWriters = new ParallelBlockWriter[datasets.length];
+		for (int c = 0; c < datasets.length; c++) {
+			blockWriters[c] = new ParallelBlockWriter(writer, datasets[c], attributes, executor, 4 * ProjectExecutors.getParallelism(executor));
+		}
+		// each block is computed once by a worker of the density writer, which writes the orientation blocks as well
+		for (int block = 0; block < blocks.length; block++) {
+			int[] segments = blocks[block];
+			long[] gridPosition = grid.getGridPosition(block);
+			blockWriters[0].write(() -> {
+				int[] size = getBlockSize(gridPosition);
+				float[][] channels = compute(gridPosition, size, segments);
+				for (int c = 1; c < datasets.length; c++) {
+					blockWriters[c].writeBlock(new FloatArrayDataBlock(size, gridPosition, channels[c]));
+				}
+				return new FloatArrayDataBlock(size, gridPosition, channels[0]);
+			});
+		}
+		// the density writer waits for all blocks
+		for (ParallelBlockWriter blockWriter : blockWriters) {
+			blockWriter.finish();
+		}
+		return Math.max(0, blockWriters[0].getSummary().getMax());
+	}
+
+	/**
+	 * @return the number of cells of the block at the given grid position
+	 */
+	int[] getBlockSize(long[] gridPosition) {
+		int[] res = new int[3];
+		for (int d = 0; d < 3; d++) {
+			res[d] = (int) Math.min(blockSize[d], dimensions[d] - gridPosition[d] * blockSize[d]);
+		}
+		return res;
+	}
+
+	/**
+	 * @param segments the segments overlapping the block, can be null
+	 * @return the density followed by the orientation channels of the block, x fastest
+	 */
+	float[][] compute(long[] gridPosition, int[] size, int[] segments) {
+		int length = size[0] * size[1] * size[2];
+		float[][] channels = new float[ORIENTATION_CHANNELS.length + 1][length];
+		if(segments == null) return channels;
+		// per cell: length, followed by the length weighted xx, xy, xz, yy, yz, zz direction products
+		double[] sums = new double[length * 7];
+		long[] cellMin = new long[3];
+		for (int d = 0; d < 3; d++) {
+			cellMin[d] = gridPosition[d] * blockSize[d];
+		}
+		int[] coordinates = grid.getCoordinates();
+		for (int segment : segments) {
+			accumulate(coordinates, segment * 6, cellMin, size, sums);
+		}
+		long[] imageDimensions = grid.getDimensions();
+		double[] tensor = new double[6];
+		for (int z = 0, index = 0; z < size[2]; z++) {
+			for (int y = 0; y < size[1]; y++) {
+				for (int x = 0; x < size[0]; x++, index++) {
+					double totalLength = sums[index * 7];
+					if(totalLength == 0) continue;
+					long voxels = cellVoxels(cellMin[0] + x, imageDimensions[0])
+							* cellVoxels(cellMin[1] + y, imageDimensions[1])
+							* cellVoxels(cellMin[2] + z, imageDimensions[2]);
+					channels[0][index] = (float) (totalLength / (voxels * pixelToUM * pixelToUM));
+					for (int i = 0; i < 6; i++) {
+						tensor[i] = sums[index * 7 + 1 + i] / totalLength * 1.5;
+					}
+					// subtract I / 2 from the diagonal
+					tensor[0] -= 0.5;
+					tensor[3] -= 0.5;
+					tensor[5] -= 0.5;
+					channels[1][index] = (float) largestEigenvalue(tensor);
+					for (int i = 0; i < 6; i++) {
+						channels[2 + i][index] = (float) tensor[i];
+					}
+				}
+			}
+		}
+		return channels;
+	}
+
+	private long cellVoxels(long cell, long imageDimension) {
+		return Math.min(spacing, imageDimension - cell * spacing);
+	}
+
+	/**
+	 * Walks along the segment through the cells of the coarse grid and adds the length and direction tensor of each
+	 * piece to the cell containing it, if that cell is part of the block.
+	 * Voxel {@code x} belongs to cell {@code floor(x / spacing)}, so cell borders are at {@code k * spacing - 0.5}.
+	 */
+	private void accumulate(int[] coordinates, int offset, long[] cellMin, int[] size, double[] sums) {
+		double[] start = new double[3];
+		double[] direction = new double[3];
+		double lengthSquared = 0;
+		for (int d = 0; d < 3; d++) {
+			start[d] = (coordinates[offset + d] + 0.5) / spacing;
+			direction[d] = (coordinates[offset + 3 + d] - coordinates[offset + d]) / (double) spacing;
+			lengthSquared += direction[d] * direction[d];
+		}
+		if(lengthSquared == 0) return;
+		double segmentLength = Math.sqrt(lengthSquared) * spacing;
+		double ux = direction[0] * spacing / segmentLength;
+		double uy = direction[1] * spacing / segmentLength;
+		double uz = direction[2] * spacing / segmentLength;
+		long[] cell = new long[3];
+		int[] step = new int[3];
+		double[] tMax = new double[3];
+		double[] tDelta = new double[3];
+		for (int d = 0; d < 3; d++) {
+			cell[d] = (long) Math.floor(start[d]);
+			if(direction[d] > 0) {
+				step[d] = 1;
+				tMax[d] = (cell[d] + 1 - start[d]) / direction[d];
+				tDelta[d] = 1 / direction[d];
+			} else if(direction[d] < 0) {
+				step[d] = -1;
+				tMax[d] = (cell[d] - start[d]) / direction[d];
+				tDelta[d] = -1 / direction[d];
+			} else {
+				tMax[d] = Double.POSITIVE_INFINITY;
+				tDelta[d] = Double.POSITIVE_INFINITY;
+			}
+		}
+		double t = 0;
+		while(t < 1) {
+			int axis = tMax[0] < tMax[1] ? (tMax[0] < tMax[2] ? 0 : 2) : (tMax[1] < tMax[2] ? 1 : 2);
+			double next = Math.min(1, tMax[axis]);
+			double pieceLength = (next - t) * segmentLength;
+			long x = cell[0] - cellMin[0];
+			long y = cell[1] - cellMin[1];
+			long z = cell[2] - cellMin[2];
+			if(pieceLength > 0 && x >= 0 && y >= 0 && z >= 0 && x < size[0] && y < size[1] && z < size[2]) {
+				int index = (int) ((z * size[1] + y) * size[0] + x) * 7;
+				sums[index] += pieceLength;
+				sums[index + 1] += pieceLength * ux * ux;
+				sums[index + 2] += pieceLength * ux * uy;
+				sums[index + 3] += pieceLength * ux * uz;
+				sums[index + 4] += pieceLength * uy * uy;
+				sums[index + 5] += pieceLength * uy * uz;
+				sums[index + 6] += pieceLength * uz * uz;
+			}
+			t = next;
+			cell[axis] += step[axis];
+			tMax[axis] += tDelta[axis];
+		}
+	}
+
+	/**
+	 * Closed form largest eigenvalue of a symmetric 3x3 matrix.
+	 * @param m the xx, xy, xz, yy, yz, zz components of the matrix
+	 */
+	static double largestEigenvalue(double[] m) {
+		double offDiagonal = m[1] * m[1] + m[2] * m[2] + m[4] * m[4];
+		double q = (m[0] + m[3] + m[5]) / 3;
+		double xx = m[0] - q;
+		double yy = m[3] - q;
+		double zz = m[5] - q;
+		double p = Math.sqrt((xx * xx + yy * yy + zz * zz + 2 * offDiagonal) / 6);
+		if(p < 1e-12) return q;
+		double determinant = xx * (yy * zz - m[4] * m[4]) - m[1] * (m[1] * zz - m[4] * m[2]) + m[2] * (m[1] * m[4] - yy * m[2]);
+		double r = Math.max(-1, Math.min(1, determinant / (2 * p * p * p)));
+		return q + 2 * p * Math.cos(Math.acos(r) / 3);
+	}
+}
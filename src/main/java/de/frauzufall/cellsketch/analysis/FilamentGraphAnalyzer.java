@@ -0,0 +1,293 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import de.frauzufall.cellsketch.CellProject;
+import de.frauzufall.cellsketch.ProjectExecutors;
+import de.frauzufall.cellsketch.model.FilamentGraph;
+import de.frauzufall.cellsketch.model.FilamentGraphTable;
+import de.frauzufall.cellsketch.model.FilamentsItemGroup;
+import org.scijava.app.StatusService;
+import org.scijava.table.DefaultGenericTable;
+import org.scijava.table.Table;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static de.frauzufall.cellsketch.analysis.LabelMapAnalyzer.getColumnIndex;
+
+/**
+ * Network metrics of the skeleton graph of filaments: per connected component the number of end points
+ * (degree 1) and branch points (degree 3 or more), the total length and the branches, which are the paths
+ * between two nodes which are not of degree 2. Components are analyzed in parallel.
+ */
+public class FilamentGraphAnalyzer {
+
+	private static final String typeEnd = "end";
+	private static final String typeJunction = "junction";
+	private static final String typeLoop = "loop";
+
+	private final CellProject project;
+	private final FilamentsItemGroup item;
+	private final ExecutorService executor;
+
+	public FilamentGraphAnalyzer(CellProject project, FilamentsItemGroup item, ExecutorService executor) {
+		this.project = project;
+		this.item = item;
+		this.executor = executor;
+	}
+
+	public void analyze(double pixelToUM) throws IOException {
+		if(!item.getGraph().exists()) {
+			project.context().service(StatusService.class).showStatus("Cannot analyze filament network of " + item.getName() + ", graph missing.");
+			return;
+		}
+		project.context().service(StatusService.class).showStatus("Analyzing filament network of " + item.getName());
+		FilamentGraph graph = item.getGraph().read();
+		List<ComponentStats> components = new ArrayList<>();
+		List<Branch> branches = new ArrayList<>();
+		try {
+			analyze(graph, executor, components, branches);
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException(e);
+		}
+		writeComponentTable(components, pixelToUM);
+		writeBranchTable(branches, pixelToUM);
+	}
+
+	/**
+	 * Collects the statistics of all components of the graph and all of its branches, both in order of their lowest
+	 * node index.
+	 */
+	static void analyze(FilamentGraph graph, ExecutorService executor, List<ComponentStats> components, List<Branch> branches) throws InterruptedException, ExecutionException {
+		int[] componentOfNode = graph.computeComponents();
+		int componentCount = 0;
+		for (int component : componentOfNode) {
+			componentCount = Math.max(componentCount, component + 1);
+		}
+		// nodes grouped by component, in CSR layout
+		int[] componentOffsets = new int[componentCount + 1];
+		for (int component : componentOfNode) {
+			componentOffsets[component + 1]++;
+		}
+		for (int i = 0; i < componentCount; i++) {
+			componentOffsets[i + 1] += componentOffsets[i];
+		}
+		int[] componentNodes = new int[componentOfNode.length];
+		int[] fill = new int[componentCount];
+		for (int node = 0; node < componentOfNode.length; node++) {
+			int component = componentOfNode[node];
+			componentNodes[componentOffsets[component] + fill[component]++] = node;
+		}
+		// components are disjoint, so are the neighbor slots visited by different tasks
+		boolean[] visited = new boolean[graph.getNeighbors().length];
+		List<Callable<Result>> tasks = new ArrayList<>();
+		int chunkSize = Math.max(1, componentCount / (4 * ProjectExecutors.getParallelism(executor)));
+		for (int start = 0; start < componentCount; start += chunkSize) {
+			int from = start;
+			int to = Math.min(componentCount, start + chunkSize);
+			tasks.add(() -> {
+				Result result = new Result();
+				for (int component = from; component < to; component++) {
+					analyzeComponent(graph, component, componentNodes, componentOffsets[component], componentOffsets[component + 1], visited, result);
+				}
+				return result;
+			});
+		}
+		for (Future<Result> future : executor.invokeAll(tasks)) {
+			Result result = future.get();
+			components.addAll(result.components);
+			branches.addAll(result.branches);
+		}
+	}
+
+	private static void analyzeComponent(FilamentGraph graph, int component, int[] nodes, int from, int to, boolean[] visited, Result result) {
+		ComponentStats stats = new ComponentStats(component);
+		int[] offsets = graph.getOffsets();
+		for (int i = from; i < to; i++) {
+			int node = nodes[i];
+			int degree = graph.getDegree(node);
+			stats.nodes++;
+			stats.edges += degree;
+			if(degree == 1) stats.endPoints++;
+			if(degree >= 3) stats.branchPoints++;
+			for (int k = 0; k < degree; k++) {
+				int neighbor = graph.getNeighbor(node, k);
+				if(neighbor > node) stats.length += graph.getDistance(node, neighbor);
+			}
+		}
+		stats.edges /= 2;
+		// branches start and end at nodes which are not of degree 2
+		for (int i = from; i < to; i++) {
+			int node = nodes[i];
+			if(graph.getDegree(node) == 2) continue;
+			for (int slot = offsets[node]; slot < offsets[node + 1]; slot++) {
+				if(visited[slot]) continue;
+				result.branches.add(walk(graph, component, node, slot, visited));
+				stats.branches++;
+			}
+		}
+		// the remaining edges belong to cycles without any junction
+		for (int i = from; i < to; i++) {
+			int node = nodes[i];
+			for (int slot = offsets[node]; slot < offsets[node + 1]; slot++) {
+				if(visited[slot]) continue;
+				result.branches.add(walk(graph, component, node, slot, visited));
+				stats.branches++;
+			}
+		}
+		result.components.add(stats);
+	}
+
+	private static Branch walk(FilamentGraph graph, int component, int start, int startSlot, boolean[] visited) {
+		int[] offsets = graph.getOffsets();
+		int[] neighbors = graph.getNeighbors();
+		int previous = start;
+		int slot = startSlot;
+		double length = 0;
+		while(true) {
+			int current = neighbors[slot];
+			visited[slot] = true;
+			visited[findSlot(graph, current, previous)] = true;
+			length += graph.getDistance(previous, current);
+			if(current == start || graph.getDegree(current) != 2) {
+				return new Branch(component, start, current, length, graph.getDegree(start), graph.getDegree(current));
+			}
+			int next = offsets[current];
+			if(neighbors[next] == previous) next++;
+			previous = current;
+			slot = next;
+		}
+	}
+
+	private static int findSlot(FilamentGraph graph, int node, int neighbor) {
+		int[] offsets = graph.getOffsets();
+		int[] neighbors = graph.getNeighbors();
+		for (int slot = offsets[node]; slot < offsets[node + 1]; slot++) {
+			if(neighbors[slot] == neighbor) return slot;
+		}
+		throw new IllegalStateException("Graph is not symmetric, " + neighbor + " is not a neighbor of " + node);
+	}
+
+	private void writeComponentTable(List<ComponentStats> components, double pixelToUM) throws IOException {
+		Table table = new DefaultGenericTable();
+		int nodesColumn = getColumnIndex(table, FilamentGraphTable.getNodeCountColumnName());
+		int edgesColumn = getColumnIndex(table, FilamentGraphTable.getEdgeCountColumnName());
+		int endPointsColumn = getColumnIndex(table, FilamentGraphTable.getEndPointCountColumnName());
+		int branchPointsColumn = getColumnIndex(table, FilamentGraphTable.getBranchPointCountColumnName());
+		int branchesColumn = getColumnIndex(table, FilamentGraphTable.getBranchCountColumnName());
+		int lengthColumn = getColumnIndex(table, FilamentGraphTable.getTotalLengthColumnName());
+		int meanBranchLengthColumn = getColumnIndex(table, FilamentGraphTable.getMeanBranchLengthColumnName());
+		for (int row = 0; row < components.size(); row++) {
+			ComponentStats stats = components.get(row);
+			table.appendRow(String.valueOf(stats.component + 1));
+			table.set(nodesColumn, row, String.valueOf(stats.nodes));
+			table.set(edgesColumn, row, String.valueOf(stats.edges));
+			table.set(endPointsColumn, row, String.valueOf(stats.endPoints));
+			table.set(branchPointsColumn, row, String.valueOf(stats.branchPoints));
+			table.set(branchesColumn, row, String.valueOf(stats.branches));
+			table.set(lengthColumn, row, String.valueOf(stats.length * pixelToUM));
+			table.set(meanBranchLengthColumn, row, String.valueOf(stats.branches == 0 ? 0 : stats.length * pixelToUM / stats.branches));
+		}
+		item.getComponentStats().setTable(table);
+		item.getComponentStats().save();
+	}
+
+	private void writeBranchTable(List<Branch> branches, double pixelToUM) throws IOException {
+		Table table = new DefaultGenericTable();
+		int componentColumn = getColumnIndex(table, FilamentGraphTable.getComponentColumnName());
+		int typeColumn = getColumnIndex(table, FilamentGraphTable.getBranchTypeColumnName());
+		int lengthColumn = getColumnIndex(table, FilamentGraphTable.getLengthColumnName());
+		int startDegreeColumn = getColumnIndex(table, FilamentGraphTable.getStartDegreeColumnName());
+		int endDegreeColumn = getColumnIndex(table, FilamentGraphTable.getEndDegreeColumnName());
+		for (int row = 0; row < branches.size(); row++) {
+			Branch branch = branches.get(row);
+			table.appendRow(String.valueOf(row + 1));
+			table.set(componentColumn, row, String.valueOf(branch.component + 1));
+			table.set(typeColumn, row, branch.getType());
+			table.set(lengthColumn, row, String.valueOf(branch.length * pixelToUM));
+			table.set(startDegreeColumn, row, String.valueOf(branch.startDegree));
+			table.set(endDegreeColumn, row, String.valueOf(branch.endDegree));
+		}
+		item.getBranchStats().setTable(table);
+		item.getBranchStats().save();
+	}
+
+	private static class Result {
+		final List<ComponentStats> components = new ArrayList<>();
+		final List<Branch> branches = new ArrayList<>();
+	}
+
+	static class ComponentStats {
+		final int component;
+		int nodes;
+		int edges;
+		int endPoints;
+		int branchPoints;
+		int branches;
+		double length;
+
+		ComponentStats(int component) {
+			this.component = component;
+		}
+	}
+
+	static class Branch {
+		final int component;
+		final int start;
+		final int end;
+		final double length;
+		final int startDegree;
+		final int endDegree;
+
+		Branch(int component, int start, int end, double length, int startDegree, int endDegree) {
+			this.component = component;
+			this.start = start;
+			this.end = end;
+			this.length = length;
+			this.startDegree = startDegree;
+			this.endDegree = endDegree;
+		}
+
+		String getType() {
+			if(start == end && startDegree == 2) return typeLoop;
+			if(startDegree == 1 || endDegree != 1) return getNodeType(startDegree) + "-" + getNodeType(endDegree);
+			return getNodeType(endDegree) + "-" + getNodeType(startDegree);
+		}
+
+		private static String getNodeType(int degree) {
+			return degree == 1 ? typeEnd : typeJunction;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import de.frauzufall.cellsketch.model.Filaments;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Length and tortuosity of each filament, computed in parallel on chunks of filaments directly from the coordinate
+ * array, with summaries of both metrics.
+ */
+public class FilamentMetrics {
+
+	// fixed chunks keep the summaries independent of the number of threads
+	private static final int CHUNK_SIZE = 1024;
+
+	public final double[] lengths;
+	public final double[] tortuosities;
+	public final StreamingSummary lengthSummary = new StreamingSummary();
+	public final StreamingSummary tortuositySummary = new StreamingSummary();
+
+	private FilamentMetrics(int filamentCount) {
+		lengths = new double[filamentCount];
+		tortuosities = new double[filamentCount];
+	}
+
+	public static FilamentMetrics compute(Filaments filaments, double pixelToMicroMeters, ExecutorService executor) throws InterruptedException, ExecutionException {
+		int filamentCount = filaments.getFilamentCount();
+		FilamentMetrics res = new FilamentMetrics(filamentCount);
+		List<Callable<StreamingSummary[]>> tasks = new ArrayList<>();
+		for (int start = 0; start < filamentCount; start += CHUNK_SIZE) {
+			int chunkStart = start;
+			int chunkEnd = Math.min(filamentCount, start + CHUNK_SIZE);
+			tasks.add(() -> res.computeChunk(filaments, chunkStart, chunkEnd, pixelToMicroMeters));
+		}
+		for (Future<StreamingSummary[]> future : executor.invokeAll(tasks)) {
+			StreamingSummary[] summaries = future.get();
+			res.lengthSummary.add(summaries[0]);
+			res.tortuositySummary.add(summaries[1]);
+		}
+		return res;
+	}
+
+	private StreamingSummary[] computeChunk(Filaments filaments, int start, int end, double pixelToMicroMeters) {
+		StreamingSummary lengthSummary = new StreamingSummary();
+		StreamingSummary tortuositySummary = new StreamingSummary();
+		int[] coordinates = filaments.getCoordinates();
+		for (int i = start; i < end; i++) {
+			int first = filaments.getFirstPoint(i);
+			int count = filaments.getPointCount(i);
+			lengths[i] = length(coordinates, first, count) * pixelToMicroMeters;
+			tortuosities[i] = tortuosity(coordinates, first, count, pixelToMicroMeters);
+			lengthSummary.add(lengths[i]);
+			tortuositySummary.add(tortuosities[i]);
+		}
+		return new StreamingSummary[]{lengthSummary, tortuositySummary};
+	}
+
+	/**
+	 * @return the length of the polyline of {@code count} points starting at point {@code first}, in pixels
+	 */
+	static double length(int[] coordinates, int first, int count) {
+		double length = 0;
+		for (int j = 1; j < count; j++) {
+			length += distance(coordinates, first + j - 1, first + j);
+		}
+		return length;
+	}
+
+	/**
+	 * The filament is walked in windows of at least 1 µm length, the tortuosity (path length / end to end distance) of
+	 * each window is weighted by its length.
+	 * @return the length weighted mean tortuosity of the polyline, 1 for filaments with less than two segments
+	 */
+	static double tortuosity(int[] coordinates, int first, int count, double pixelToMicroMeters) {
+		double tortuosity = 0;
+		double sumLength = 0;
+		if (count > 1) {
+			int a = first;
+			int b = first + 1;
+			double lengthLine = distance(coordinates, a, b) * pixelToMicroMeters;
+			for (int j = 1; j < count - 1; j++) {
+				int c = first + j + 1;
+				lengthLine += distance(coordinates, b, c) * pixelToMicroMeters;
+				if (lengthLine > 1 || j == count - 2) {
+					tortuosity += lengthLine / (distance(coordinates, a, c) * pixelToMicroMeters) * lengthLine;
+					sumLength += lengthLine;
+					lengthLine = distance(coordinates, b, c) * pixelToMicroMeters;
+					a = b;
+				}
+				b = c;
+			}
+		}
+		return sumLength > 0 ? tortuosity / sumLength : 1;
+	}
+
+	private static double distance(int[] coordinates, int a, int b) {
+		double dx = coordinates[b * 3] - coordinates[a * 3];
+		double dy = coordinates[b * 3 + 1] - coordinates[a * 3 + 1];
+		double dz = coordinates[b * 3 + 2] - coordinates[a * 3 + 2];
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+}
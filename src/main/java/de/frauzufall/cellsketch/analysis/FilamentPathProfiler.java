@@ -0,0 +1,159 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import de.frauzufall.cellsketch.model.Filaments;
+import de.frauzufall.cellsketch.model.PointQueryPlan;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Samples distance maps along the whole path of each filament, roughly once per pixel of path length.
+ * The sample points are collected in batches which are evaluated on all distance maps with a shared {@link PointQueryPlan}.
+ */
+public class FilamentPathProfiler {
+
+	private static final int batchSize = 1 << 20;
+
+	public static class Profile {
+		/** minimal distance along the path in pixels, NaN if no sample point is inside the distance map */
+		public final float[] minDistance;
+		/** path length in um with a distance to the organelle below the contact threshold */
+		public final double[] contactLength;
+		/** index of the segment of the filament (starting at 0) closest to the organelle */
+		public final int[] closestSegment;
+		private final double contactThresholdInUM;
+
+		Profile(int filaments, double contactThresholdInUM) {
+			minDistance = new float[filaments];
+			contactLength = new double[filaments];
+			closestSegment = new int[filaments];
+			Arrays.fill(minDistance, Float.NaN);
+			Arrays.fill(closestSegment, -1);
+			this.contactThresholdInUM = contactThresholdInUM;
+		}
+	}
+
+	private final ExecutorService executor;
+	private final double pixelToUM;
+
+	public FilamentPathProfiler(ExecutorService executor, double pixelToUM) {
+		this.executor = executor;
+		this.pixelToUM = pixelToUM;
+	}
+
+	public List<Profile> profile(Filaments filaments, List<RandomAccessibleInterval<? extends RealType<?>>> distanceMaps, double[] contactThresholdsInUM) throws InterruptedException, ExecutionException {
+		List<Profile> profiles = new ArrayList<>();
+		for (double threshold : contactThresholdsInUM) {
+			profiles.add(new Profile(filaments.getFilamentCount(), threshold));
+		}
+		if(distanceMaps.isEmpty()) return profiles;
+		RandomAccessibleInterval<?> grid = distanceMaps.get(0);
+		Samples samples = new Samples();
+		for (int filament = 0; filament < filaments.getFilamentCount(); filament++) {
+			int first = filaments.getFirstPoint(filament);
+			int count = filaments.getPointCount(filament);
+			for (int segment = 0; segment < count - 1; segment++) {
+				int a = first + segment;
+				int b = a + 1;
+				double dx = filaments.getX(b) - filaments.getX(a);
+				double dy = filaments.getY(b) - filaments.getY(a);
+				double dz = filaments.getZ(b) - filaments.getZ(a);
+				double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+				int steps = Math.max(1, (int) Math.ceil(length));
+				for (int step = 0; step < steps; step++) {
+					double t = (double) step / steps;
+					samples.add(
+							Math.round(filaments.getX(a) + t * dx),
+							Math.round(filaments.getY(a) + t * dy),
+							Math.round(filaments.getZ(a) + t * dz),
+							filament, segment, (float) (length / steps));
+					if(samples.count == batchSize) {
+						evaluate(samples, grid, distanceMaps, profiles);
+					}
+				}
+			}
+			int last = first + count - 1;
+			samples.add(filaments.getX(last), filaments.getY(last), filaments.getZ(last), filament, Math.max(0, count - 2), 0);
+			if(samples.count == batchSize) {
+				evaluate(samples, grid, distanceMaps, profiles);
+			}
+		}
+		evaluate(samples, grid, distanceMaps, profiles);
+		return profiles;
+	}
+
+	private void evaluate(Samples samples, RandomAccessibleInterval<?> grid, List<RandomAccessibleInterval<? extends RealType<?>>> distanceMaps, List<Profile> profiles) throws InterruptedException, ExecutionException {
+		if(samples.count == 0) return;
+		float[][] values = new PointQueryPlan(samples.coordinates, samples.count, grid).evaluate(distanceMaps, executor);
+		for (int m = 0; m < profiles.size(); m++) {
+			reduce(samples, values[m], profiles.get(m));
+		}
+		samples.count = 0;
+	}
+
+	private void reduce(Samples samples, float[] values, Profile profile) {
+		for (int i = 0; i < samples.count; i++) {
+			float value = values[i];
+			if(Float.isNaN(value)) continue;
+			int filament = samples.filament[i];
+			if(Float.isNaN(profile.minDistance[filament]) || value < profile.minDistance[filament]) {
+				profile.minDistance[filament] = value;
+				profile.closestSegment[filament] = samples.segment[i];
+			}
+			if(value * pixelToUM <= profile.contactThresholdInUM) {
+				profile.contactLength[filament] += samples.length[i] * pixelToUM;
+			}
+		}
+	}
+
+	private static class Samples {
+		final int[] coordinates = new int[batchSize * 3];
+		final int[] filament = new int[batchSize];
+		final int[] segment = new int[batchSize];
+		final float[] length = new float[batchSize];
+		int count = 0;
+
+		void add(long x, long y, long z, int filament, int segment, float length) {
+			coordinates[count * 3] = (int) x;
+			coordinates[count * 3 + 1] = (int) y;
+			coordinates[count * 3 + 2] = (int) z;
+			this.filament[count] = filament;
+			this.segment[count] = segment;
+			this.length[count] = length;
+			count++;
+		}
+	}
+}
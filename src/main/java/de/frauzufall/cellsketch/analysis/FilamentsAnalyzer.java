@@ -33,32 +33,23 @@ import de.frauzufall.cellsketch.model.FilamentsOverviewTable;
 import de.frauzufall.cellsketch.model.FilamentsTable;
 import de.frauzufall.cellsketch.model.*;
 import net.imglib2.Point;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.RealPoint;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
-import org.apache.commons.math3.stat.descriptive.moment.Mean;
-import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
-import org.apache.commons.math3.stat.descriptive.rank.Median;
-import org.apache.commons.math3.stat.descriptive.summary.Sum;
 import org.jdom2.DataConversionException;
-import org.json.JSONArray;
-import org.json.JSONObject;
-import org.json.JSONTokener;
 import org.scijava.app.StatusService;
 import org.scijava.table.DefaultGenericTable;
 import org.scijava.table.Table;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 
 import static de.frauzufall.cellsketch.analysis.AnalyzeUtils.getTableData;
 import static de.frauzufall.cellsketch.analysis.LabelMapAnalyzer.getColumnIndex;
@@ -67,50 +58,48 @@ public class FilamentsAnalyzer {
 
     private final CellProject project;
     private final FilamentsItemGroup item;
+    private final ExecutorService executor;
+    private final double contactThresholdInUM;
 
 //    private static float connectedToGolgiThresholdInMicroMeter = 0.02f;
 //    private static float connectedToCentriolesThresholdInMicroMeter = 0.2f;
 
-    public FilamentsAnalyzer(CellProject data, FilamentsItemGroup item) {
+    /**
+     * @param contactThresholdInUM the maximal distance of a filament to an organelle counted as contact,
+     *                             if the organelle does not define its own threshold
+     */
+    public FilamentsAnalyzer(CellProject data, FilamentsItemGroup item, ExecutorService executor, double contactThresholdInUM) {
         this.project = data;
         this.item = item;
-    }
-
-    private FileItem getFilamentsYamlItem() {
-        return this.item.getFilamentsYamlItem();
-    }
-
-    private LabelMapFileItem getFilamentsLabelMap() {
-        return this.item.getLabelMap();
+        this.executor = executor;
+        this.contactThresholdInUM = contactThresholdInUM;
     }
 
     public void analyze(double pixelToMicroMeters) throws DataConversionException, IOException, NMLReader.NMLReaderIOException {
-        if(this.item != null && getFilamentsLabelMap().exists()) {
-            File outputYAML = new File(project.getProjectDir(), getFilamentsYamlItem().getDefaultFileName());
+        if(this.item != null && this.item.importLegacyFilaments()) {
             File sumTableFile = new File(project.getProjectDir(), this.item.getOverallStats().getDefaultFileName());
             File individualTableFile = new File(project.getProjectDir(), this.item.getIndividualStats().getDefaultFileName());
-            List<List<Point>> mts = read(outputYAML);
+            Filaments mts = this.item.getFilaments().read();
             writeTables(project, mts, sumTableFile, individualTableFile, pixelToMicroMeters);
         } else {
-            project.context().service(StatusService.class).showStatus("Cannot analyze filaments, label map missing.");
+            project.context().service(StatusService.class).showStatus("Cannot analyze filaments, filament points missing.");
         }
     }
 
-    private void writeTables(CellProject data, List<List<Point>> mts, File sumTableFile, File individualTableFile, double pixelToMicroMeters) throws DataConversionException, NMLReader.NMLReaderIOException, IOException {
+    private void writeTables(CellProject data, Filaments mts, File sumTableFile, File individualTableFile, double pixelToMicroMeters) throws DataConversionException, NMLReader.NMLReaderIOException, IOException {
         Table summaryTable = new DefaultGenericTable();
         this.item.getOverallStats().setTable(summaryTable);
         Table detailsTable = new DefaultGenericTable();
         this.item.getIndividualStats().setTable(detailsTable);
         writeTables(detailsTable, summaryTable, mts, pixelToMicroMeters);
-        for (MaskItemGroup item : data.getMaskItems()) {
-            calculateDistanceMapRelationship(mts, detailsTable, item, pixelToMicroMeters);
-        }
-        for (LabelMapItemGroup item : data.getLabelMapItems()) {
-            calculateDistanceMapRelationship(mts, detailsTable, item, pixelToMicroMeters);
-        }
-        if(data.getBoundary() != null) {
-            calculateDistanceMapRelationship(mts, detailsTable, data.getBoundary(), pixelToMicroMeters);
+        List<HasDistanceMap> distanceItems = getDistanceItems(data);
+        if(!distanceItems.isEmpty()) {
+            PointQueryPlan endpoints = createEndpointsPlan(mts, distanceItems.get(0).getDistanceMap());
+            for (HasDistanceMap distanceItem : distanceItems) {
+                calculateDistanceMapRelationship(mts, endpoints, detailsTable, distanceItem, pixelToMicroMeters);
+            }
         }
+        calculatePathProfiles(mts, distanceItems, detailsTable, pixelToMicroMeters);
         this.item.getOverallStats().setFile(sumTableFile);
         this.item.getOverallStats().save();
         this.item.getIndividualStats().setFile(individualTableFile);
@@ -118,7 +107,27 @@ public class FilamentsAnalyzer {
         this.item.saveConfig();
     }
 
-    private void calculateDistanceMapRelationship(List<List<Point>> mts, Table detailsTable, HasDistanceMap distanceItem, double pixelToMicroMeters) {
+    private static List<HasDistanceMap> getDistanceItems(CellProject data) {
+        List<HasDistanceMap> items = new ArrayList<>();
+        items.addAll(data.getMaskItems());
+        items.addAll(data.getLabelMapItems());
+        if(data.getBoundary() != null) items.add(data.getBoundary());
+        items.removeIf(distanceItem -> !distanceItem.getDistanceMap().exists());
+        return items;
+    }
+
+    private static PointQueryPlan createEndpointsPlan(Filaments mts, ImageFileItem<?> grid) {
+        int[] coordinates = new int[mts.getFilamentCount() * 6];
+        for (int i = 0; i < mts.getFilamentCount(); i++) {
+            int first = mts.getFirstPoint(i);
+            int last = first + mts.getPointCount(i) - 1;
+            System.arraycopy(mts.getCoordinates(), first * 3, coordinates, i * 6, 3);
+            System.arraycopy(mts.getCoordinates(), last * 3, coordinates, i * 6 + 3, 3);
+        }
+        return grid.createQueryPlan(coordinates, mts.getFilamentCount() * 2);
+    }
+
+    private void calculateDistanceMapRelationship(Filaments mts, PointQueryPlan endpoints, Table detailsTable, HasDistanceMap distanceItem, double pixelToMicroMeters) throws IOException {
         String distanceEnd1ToColumnName = FilamentsTable.getDistanceEnd1ToColumnName(distanceItem.getName());
         int distanceEnd1Column = getColumnIndex(detailsTable, distanceEnd1ToColumnName);
         String distanceEnd2ToColumnName = FilamentsTable.getDistanceEnd2ToColumnName(distanceItem.getName());
@@ -126,18 +135,61 @@ public class FilamentsAnalyzer {
         String connectedToColumnName = FilamentsTable.getConnectedToColumnName(distanceItem.getName());
         int connectedToColumn = getColumnIndex(detailsTable, connectedToColumnName);
         Double connectedToThreshold = distanceItem.getConnectedToFilamentsEndThresholdInUM();
+        Map<Object, Pair<ClosestPoint, ClosestPoint>> analysis;
+        try {
+            analysis = computeDistance(mts, distanceItem.getDistanceMap().query(endpoints, executor));
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        }
         ValuePair maxValues;
         if(connectedToThreshold != null) {
-            maxValues = calculateDistanceConnected(detailsTable, distanceEnd1Column, distanceEnd2Column, connectedToColumn, mts, distanceItem.getDistanceMap(), connectedToThreshold, pixelToMicroMeters);
+            maxValues = writeResultToTableConnected(detailsTable, distanceEnd1Column, distanceEnd2Column, connectedToColumn, analysis, connectedToThreshold, pixelToMicroMeters);
             calculateConnectedToPercentages(distanceItem);
             this.item.addLabelIfNotExists(connectedToColumnName, Boolean.class, true);
         } else {
-            maxValues = calculateDistance(detailsTable, distanceEnd1Column, distanceEnd2Column, mts, distanceItem.getDistanceMap().getImage(), pixelToMicroMeters);
+            maxValues = writeResultToTable(detailsTable, distanceEnd1Column, distanceEnd2Column, analysis, pixelToMicroMeters);
         }
         LabelTagItem label = this.item.addLabelIfNotExists(distanceEnd1ToColumnName, Double.class, false);
         label.setMaxValue((Double) maxValues.getA());
     }
 
+    private void calculatePathProfiles(Filaments mts, List<HasDistanceMap> items, Table detailsTable, double pixelToMicroMeters) throws IOException {
+        if(items.isEmpty()) return;
+        project.context().service(StatusService.class).showStatus("Computing distance profiles along " + this.item.getName());
+        List<RandomAccessibleInterval<? extends RealType<?>>> distanceMaps = new ArrayList<>();
+        double[] thresholds = new double[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            HasDistanceMap distanceItem = items.get(i);
+            distanceMaps.add(distanceItem.getDistanceMap().getImage());
+            Double threshold = distanceItem.getConnectedToFilamentsEndThresholdInUM();
+            thresholds[i] = threshold != null ? threshold : contactThresholdInUM;
+        }
+        List<FilamentPathProfiler.Profile> profiles;
+        try {
+            profiles = new FilamentPathProfiler(executor, pixelToMicroMeters).profile(mts, distanceMaps, thresholds);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        } finally {
+            for (HasDistanceMap distanceItem : items) {
+                distanceItem.getDistanceMap().unload();
+            }
+        }
+        for (int i = 0; i < items.size(); i++) {
+            String name = items.get(i).getName();
+            FilamentPathProfiler.Profile profile = profiles.get(i);
+            int minDistanceColumn = getColumnIndex(detailsTable, FilamentsTable.getMinDistanceAlongPathToColumnName(name));
+            int contactLengthColumn = getColumnIndex(detailsTable, FilamentsTable.getContactLengthWithColumnName(name));
+            int closestSegmentColumn = getColumnIndex(detailsTable, FilamentsTable.getClosestSegmentToColumnName(name));
+            for (int filament = 0; filament < mts.getFilamentCount(); filament++) {
+                int rowIndex = detailsTable.getRowIndex(String.valueOf(filament + 1));
+                if(rowIndex < 0) continue;
+                detailsTable.set(minDistanceColumn, rowIndex, Double.toString(pixelToMicroMeters * profile.minDistance[filament]));
+                detailsTable.set(contactLengthColumn, rowIndex, Double.toString(profile.contactLength[filament]));
+                detailsTable.set(closestSegmentColumn, rowIndex, String.valueOf(profile.closestSegment[filament]));
+            }
+        }
+    }
+
     private void calculateConnectedToPercentages(HasDistanceMap distanceItem) {
         Table table = this.item.getIndividualStats().getTable();
         int allMTs = table.getRowCount();
@@ -160,122 +212,47 @@ public class FilamentsAnalyzer {
         }
     }
 
-    public void writeTables(Table table, Table summaryTable, List<List<Point>> mts, double pixelToMicroMeters) {
-        double[] lengths = new double[mts.size()];
-        double[] tortuosities = new double[mts.size()];
-        for (int i = 0; i < mts.size(); i++) {
-            List<Point> filament = mts.get(i);
+    public void writeTables(Table table, Table summaryTable, Filaments mts, double pixelToMicroMeters) throws IOException {
+        FilamentMetrics metrics;
+        try {
+            metrics = FilamentMetrics.compute(mts, pixelToMicroMeters, executor);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        }
+        int lengthColumn = getColumnIndex(table, FilamentsTable.getLengthColumnName());
+        int tortuosityColumn = getColumnIndex(table, FilamentsTable.getTortuosityColumnName());
+        boolean newTable = table.getRowCount() == 0;
+        if (newTable) {
+            table.appendRows(mts.getFilamentCount());
+        }
+        for (int i = 0; i < mts.getFilamentCount(); i++) {
             String rowHeader = String.valueOf(i + 1);
-            int rowIndex = table.getRowIndex(rowHeader);
-            if (rowIndex < 0) {
-                rowIndex = table.getRowCount();
-                table.appendRow(rowHeader);
-            }
-            double length = 0;
-            List<RealPoint> subsampled_mt = new ArrayList<>();
-            Point first = filament.get(0);
-            for (int j = 1; j < filament.size(); j++) {
-                Point next = filament.get(j);
-                double length_line = distance(first, next);
-                length += toMicroMeters(length_line, pixelToMicroMeters);
-                subsampled_mt.add(new RealPoint(next.getDoublePosition(0), next.getDoublePosition(1), next.getDoublePosition(2)));
-                first = next;
-            }
-            double tortuosity = 0;
-            double sum_length = 0;
-            Point a = filament.get(0);
-            Point b = filament.get(1);
-            double length_line = distance(a, b) * pixelToMicroMeters;
-//			int start = 0;
-            for (int j = 1; j < filament.size() - 1; j++) {
-                Point c = filament.get(j + 1);
-                length_line += distance(b, c) * pixelToMicroMeters;
-                if (length_line > 1 || j == filament.size() - 2) {
-//					System.out.println(start + " -> " + j);
-                    double linetortuosity = getTortuosity(length_line, a, c, pixelToMicroMeters);
-                    tortuosity += linetortuosity * length_line;
-                    sum_length += length_line;
-                    length_line = distance(b, c) * pixelToMicroMeters;
-                    a = b;
-//					start = j;
-                }
-                b = c;
-            }
-            if (sum_length > 0) {
-                tortuosity /= sum_length;
+            int rowIndex;
+            if (newTable) {
+                rowIndex = i;
+                table.setRowHeader(rowIndex, rowHeader);
             } else {
-                tortuosity = 1;
+                rowIndex = table.getRowIndex(rowHeader);
+                if (rowIndex < 0) {
+                    rowIndex = table.getRowCount();
+                    table.appendRow(rowHeader);
+                }
             }
-            lengths[i] = length;
-            tortuosities[i] = tortuosity;
-            table.set(getColumnIndex(table, FilamentsTable.getLengthColumnName()), rowIndex, String.valueOf(length));
-            table.set(getColumnIndex(table, FilamentsTable.getTortuosityColumnName()), rowIndex, String.valueOf(tortuosity));
+            table.set(lengthColumn, rowIndex, String.valueOf(metrics.lengths[i]));
+            table.set(tortuosityColumn, rowIndex, String.valueOf(metrics.tortuosities[i]));
         }
 //		summaryTable.clear();
+        StreamingSummary lengths = metrics.lengthSummary;
+        StreamingSummary tortuosities = metrics.tortuositySummary;
         summaryTable.appendRow("all");
-        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getCountColumnName()), 0, String.valueOf(lengths.length));
-        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getTotalLengthColumnName()), 0, String.valueOf(new Sum().evaluate(lengths)));
-        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getMeanLengthColumnName()), 0, String.valueOf(new Mean().evaluate(lengths)));
-        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getStdevLengthColumnName()), 0, String.valueOf(new StandardDeviation().evaluate(lengths)));
-        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getMedianLengthColumnName()), 0, String.valueOf(new Median().evaluate(lengths)));
-        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getMeanTortuosityColumnName()), 0, String.valueOf(new Mean().evaluate(tortuosities)));
-        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getStdevTortuosityColumnName()), 0, String.valueOf(new StandardDeviation().evaluate(tortuosities)));
-        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getMedianTortuosityColumnName()), 0, String.valueOf(new Median().evaluate(tortuosities)));
-//        System.out.println(summaryTable);
-    }
-
-    public static List<List<Point>> read(File input) throws FileNotFoundException {
-        JSONTokener tokener = new JSONTokener(new FileReader(input));
-        JSONObject root = new JSONObject(tokener);
-        JSONArray filaments = (JSONArray) root.get("lines");
-        List<List<Point>> res = new ArrayList<>();
-        for (int i = 0; i < filaments.length(); i++) {
-            List<Point> mt = new ArrayList<>();
-            JSONArray points = (JSONArray) filaments.get(i);
-            for (int j = 0; j < points.length(); j++) {
-                JSONArray point = (JSONArray) ((JSONArray) filaments.get(i)).get(j);
-                mt.add(new Point(point.getLong(0), point.getLong(1), point.getLong(2)));
-            }
-            res.add(mt);
-        }
-        return res;
-    }
-
-    private static double getTortuosity(double lengthInMicroMeters, Point start, Point end, double pixelToMicroMeters) {
-        double distance = distance(start, end);
-        double distanceInMicroMeters = toMicroMeters(distance, pixelToMicroMeters);
-        return lengthInMicroMeters / distanceInMicroMeters;
-    }
-
-    private static double toMicroMeters(double value, double scale) {
-        return value * scale;
-    }
-
-    private static double distance(Point a, Point b) {
-        return distance(a.getDoublePosition(0), a.getDoublePosition(1), a.getDoublePosition(2),
-                b.getDoublePosition(0), b.getDoublePosition(1), b.getDoublePosition(2));
-    }
-
-    private static double distance(double x1, double y1, double z1, double x2, double y2, double z2) {
-        return Math.sqrt((x2 - x1) * (x2 - x1) + (y2 - y1) * (y2 - y1) + (z2 - z1) * (z2 - z1));
-    }
-
-    private ValuePair calculateDistance(Table table, int distanceFirstColumn, int distanceSecondColumn, List<List<Point>> mts, RandomAccessibleInterval<? extends RealType> distance, double pixelToMicroMeters) {
-        Map<Object, Pair<ClosestPoint, ClosestPoint>> analysis = computeDistance(mts, distance);
-        return writeResultToTable(table, distanceFirstColumn, distanceSecondColumn, analysis, pixelToMicroMeters);
-    }
-
-    private ValuePair calculateDistanceConnected(Table table,
-                                                 int distance1Column,
-                                                 int distance2Column,
-                                                 int connectedColumn,
-                                                 List<List<Point>> mts,
-                                                 ImageFileItem distance,
-                                                 double connectedThresholdInUM,
-                                                 double pixelToUM) {
-        Map<Object, Pair<ClosestPoint, ClosestPoint>> analysis = computeDistance(mts, distance.getImage());
-        distance.unload();
-        return writeResultToTableConnected(table, distance1Column, distance2Column, connectedColumn, analysis, connectedThresholdInUM, pixelToUM);
+        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getCountColumnName()), 0, String.valueOf(lengths.getCount()));
+        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getTotalLengthColumnName()), 0, String.valueOf(lengths.getSum()));
+        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getMeanLengthColumnName()), 0, String.valueOf(lengths.getMean()));
+        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getStdevLengthColumnName()), 0, String.valueOf(lengths.getStandardDeviation()));
+        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getMedianLengthColumnName()), 0, String.valueOf(lengths.getMedian()));
+        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getMeanTortuosityColumnName()), 0, String.valueOf(tortuosities.getMean()));
+        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getStdevTortuosityColumnName()), 0, String.valueOf(tortuosities.getStandardDeviation()));
+        summaryTable.set(getColumnIndex(summaryTable, FilamentsOverviewTable.getMedianTortuosityColumnName()), 0, String.valueOf(tortuosities.getMedian()));
     }
 
     private ValuePair writeResultToTable(Table table, int distanceFirstColumn, int distanceSecondColumn, Map<Object, Pair<ClosestPoint, ClosestPoint>> analysis, double pixelToMicroMeters) {
@@ -319,17 +296,20 @@ public class FilamentsAnalyzer {
         return new ValuePair(maxDistanceP1, maxDistanceP2);
     }
 
-    private static Map<Object, Pair<ClosestPoint, ClosestPoint>> computeDistance(List<List<Point>> mts, RandomAccessibleInterval<? extends RealType> distanceTransform) {
+    /**
+     * @param endpointDistances the distances of the first and last point of each filament
+     */
+    private static Map<Object, Pair<ClosestPoint, ClosestPoint>> computeDistance(Filaments mts, float[] endpointDistances) {
         Map<Object, Pair<ClosestPoint, ClosestPoint>> analysis = new HashMap<>();
-        RandomAccess<? extends RealType> ra = distanceTransform.randomAccess();
-        for (int i = 0; i < mts.size(); i++) {
-            List<Point> mt = mts.get(i);
+        for (int i = 0; i < mts.getFilamentCount(); i++) {
             ClosestPoint close = new ClosestPoint();
             ClosestPoint far = new ClosestPoint();
-            Point mt1 = mt.get(0);
-            Point mt2 = mt.get(mt.size() - 1);
-            double distance1 = ra.setPositionAndGet(mt1).getRealDouble();
-            double distance2 = ra.setPositionAndGet(mt2).getRealDouble();
+            int first = mts.getFirstPoint(i);
+            int last = first + mts.getPointCount(i) - 1;
+            Point mt1 = new Point(mts.getX(first), mts.getY(first), mts.getZ(first));
+            Point mt2 = new Point(mts.getX(last), mts.getY(last), mts.getZ(last));
+            double distance1 = endpointDistances[i * 2];
+            double distance2 = endpointDistances[i * 2 + 1];
             if (distance1 < distance2) {
                 close.point = mt1;
                 close.distance = distance1;
@@ -29,27 +29,33 @@
 package de.frauzufall.cellsketch.analysis;
 
 import de.frauzufall.cellsketch.CellProject;
+import de.frauzufall.cellsketch.model.FilamentGraphFileItem;
+import de.frauzufall.cellsketch.model.Filaments;
+import de.frauzufall.cellsketch.model.FilamentsFileItem;
 import de.frauzufall.cellsketch.model.FilamentsItemGroup;
-import de.frauzufall.cellsketch.model.FileItem;
 import de.frauzufall.cellsketch.model.LabelMapFileItem;
+import de.frauzufall.cellsketch.n5.CompressionPolicy;
+import de.frauzufall.cellsketch.n5.CompressionSelector;
+import de.frauzufall.cellsketch.n5.DatasetKind;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.cache.img.DiskCachedCellImgFactory;
-import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.N5Writer;
 import org.jdom2.DataConversionException;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 public class FilamentsImporter {
 
@@ -71,22 +77,46 @@ public class FilamentsImporter {
             double scaleZ,
             boolean fixZOffset,
             boolean fixLineOrder) throws DataConversionException, IOException, NMLReader.NMLReaderIOException {
-        FileItem filamentsYaml = getFilamentsYamlItem();
-        fix(project.getSourceItem().getImage(), knossosInput, new File(project.getProjectDir().getAbsolutePath(), filamentsYaml.getDefaultFileName()), scaleX, scaleY, scaleZ, fixZOffset, fixLineOrder);
+        fix(project.getSourceItem().getImage(), knossosInput, item.getFilaments(), item.getGraph(), scaleX, scaleY, scaleZ, fixZOffset, fixLineOrder);
     }
 
-    private FileItem getFilamentsYamlItem() {
-        return this.item.getFilamentsYamlItem();
+    /**
+     * Imports the KNOSSOS filaments into the filament store and renders them into the label map, without reading
+     * them back from the store.
+     * @param renderLabelMap whether to render the label map - the filaments can also be displayed as lines without it
+     */
+    public void importKnossosFilaments(
+            File knossosInput,
+            double scaleX,
+            double scaleY,
+            double scaleZ,
+            boolean fixZOffset,
+            boolean fixLineOrder,
+            double radius,
+            boolean renderLabelMap) throws DataConversionException, IOException, NMLReader.NMLReaderIOException {
+        Filaments filaments = fix(project.getSourceItem().getImage(), knossosInput, item.getFilaments(), item.getGraph(), scaleX, scaleY, scaleZ, fixZOffset, fixLineOrder);
+        if(renderLabelMap) writeLabelMap(createRasterizer(filaments, radius));
     }
 
     public void render(double radius) throws IOException {
-        File outputYAML = new File(project.getProjectDir(), getFilamentsYamlItem().getDefaultFileName());
-        File outputIndexImg = new File(project.getProjectDir(), getFilamentsLabelMap().getDefaultFileName());
-        RandomAccessibleInterval<IntType> rendering = render(outputYAML, radius);
-        getFilamentsLabelMap().setFile(outputIndexImg);
-        getFilamentsLabelMap().setImage(rendering);
-        getFilamentsLabelMap().save();
-        getFilamentsLabelMap().unload();
+        if(!item.importLegacyFilaments()) return;
+        writeLabelMap(createRasterizer(item.getFilaments(), radius));
+    }
+
+    private void writeLabelMap(CapsuleRasterizer rasterizer) throws IOException {
+        LabelMapFileItem labelMap = getFilamentsLabelMap();
+        N5Writer writer = project.getN5Store().getWriter();
+        try {
+            CompressionPolicy policy = project.getCompressionPolicy(DatasetKind.LABEL_MAP);
+            CompressionSelector.Selection selection = CompressionSelector.selectUnsampled(DataType.INT32, policy);
+            rasterizer.write(writer, labelMap.getDefaultFileName(), selection.compression, project.getExecutors().getCpuExecutor());
+            CompressionSelector.record(writer, labelMap.getDefaultFileName(), policy, selection);
+        } finally {
+            project.getMetadataCache().invalidate(labelMap.getDefaultFileName());
+        }
+        labelMap.setFile(new File(project.getProjectDir(), labelMap.getDefaultFileName()));
+        labelMap.unload();
+        project.updateUI();
     }
 
     private LabelMapFileItem getFilamentsLabelMap() {
@@ -94,9 +124,10 @@ public class FilamentsImporter {
     }
 
 
-    private static List<List<Pair<Point, Point>>> fix(RandomAccessibleInterval original, File input, File output, double scaleX, double scaleY, double scaleZ, boolean fixZOffset, boolean fixLineOrder) throws DataConversionException, NMLReader.NMLReaderIOException, JSONException, IOException {
+    private static Filaments fix(RandomAccessibleInterval original, File input, FilamentsFileItem output, FilamentGraphFileItem graphOutput, double scaleX, double scaleY, double scaleZ, boolean fixZOffset, boolean fixLineOrder) throws DataConversionException, NMLReader.NMLReaderIOException, IOException {
         double[] scaleFactors = new double[]{scaleX, scaleY, scaleZ};
-        long[] dimensions = NMLReader.getDimensions(input, scaleFactors);
+        NMLSkeleton skeleton = NMLReader.readSkeleton(input);
+        long[] dimensions = skeleton.getDimensions(scaleFactors);
         long offset = 0;
         if(fixZOffset) {
             if (dimensions[0] != original.dimension(0) || dimensions[1] != original.dimension(1)) {
@@ -108,44 +139,25 @@ public class FilamentsImporter {
                 }
             }
         }
-        List<List<Pair<Point, Point>>> fixedPoints = NMLReader.toPoints(input, scaleFactors);
+        List<List<Pair<Point, Point>>> fixedPoints = skeleton.toPoints(scaleFactors);
         System.out.println("MT count from KNOSSOS:" + fixedPoints.size());
         if(fixLineOrder) {
             fixedPoints = FilamentsImporter.correctLineOrder(fixedPoints, 1.5f);
             System.out.println("MT count reordered:" + fixedPoints.size());
         }
-        JSONArray lines = new JSONArray();
-        for (int i = 0; i < fixedPoints.size(); i++) {
-            JSONArray points = new JSONArray();
-            int j = 0;
-            for (; j < fixedPoints.get(i).size(); j++) {
-                JSONArray point = new JSONArray();
-                point.put(fixedPoints.get(i).get(j).getA().getIntPosition(0));
-                point.put(fixedPoints.get(i).get(j).getA().getIntPosition(1));
-                point.put(fixedPoints.get(i).get(j).getA().getIntPosition(2) + offset);
-                points.put(j, point);
+        Filaments.Builder filaments = new Filaments.Builder();
+        for (List<Pair<Point, Point>> filament : fixedPoints) {
+            for (Pair<Point, Point> line : filament) {
+                filaments.addPoint(line.getA().getLongPosition(0), line.getA().getLongPosition(1), line.getA().getLongPosition(2) + offset);
             }
-            JSONArray point = new JSONArray();
-            point.put(fixedPoints.get(i).get(j - 1).getB().getIntPosition(0));
-            point.put(fixedPoints.get(i).get(j - 1).getB().getIntPosition(1));
-            point.put(fixedPoints.get(i).get(j - 1).getB().getIntPosition(2) + offset);
-            points.put(j, point);
-            lines.put(i, points);
+            Point last = filament.get(filament.size() - 1).getB();
+            filaments.addPoint(last.getLongPosition(0), last.getLongPosition(1), last.getLongPosition(2) + offset);
+            filaments.endFilament();
         }
-        JSONObject out = new JSONObject();
-        JSONArray dimensionsList = new JSONArray();
-        dimensionsList.put(0, dimensions[0]);
-        dimensionsList.put(1, dimensions[1]);
-        dimensionsList.put(2, dimensions[2] + offset);
-        out.put("dimensions", dimensionsList);
-        out.put("lines", lines);
-        try (FileWriter file = new FileWriter(output)) {
-            out.write(file);
-            file.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return fixedPoints;
+        Filaments res = filaments.build(new long[]{dimensions[0], dimensions[1], dimensions[2] + offset});
+        output.write(res);
+        graphOutput.write(skeleton.toGraph(scaleFactors, offset));
+        return res;
     }
 
     public static void compare(RandomAccessibleInterval<UnsignedByteType> rendering, RandomAccessibleInterval<UnsignedByteType> rendering2) {
@@ -184,34 +196,22 @@ public class FilamentsImporter {
         return output;
     }
 
-    public static RandomAccessibleInterval<IntType> render(File input, double radius) throws FileNotFoundException, JSONException {
-        JSONTokener tokener = new JSONTokener(new FileReader(input));
-        JSONObject root = new JSONObject(tokener);
-        JSONArray dimensions = (JSONArray) root.get("dimensions");
-        int x = (int) dimensions.get(0);
-        int y = (int) dimensions.get(1);
-        int z = (int) dimensions.get(2);
-        final RandomAccessibleInterval<IntType> output = new DiskCachedCellImgFactory<>(new IntType())
-                .create(x, y, z);
-
-        JSONArray filaments = (JSONArray) root.get("lines");
-
-        for (int i = 0; i < filaments.length(); i++) {
-            JSONArray points = (JSONArray) filaments.get(i);
-            JSONArray first = (JSONArray) points.get(0);
-            for (int j = 1; j < points.length(); j++) {
-                JSONArray point = (JSONArray) ((JSONArray) filaments.get(i)).get(j);
-                drawLine(output, first, point, radius, i + 1);
-                first = point;
-            }
-        }
-        return output;
+    /**
+     * @return a rasterizer with the segments of all filaments, labeled with the filament index + 1
+     */
+    public static CapsuleRasterizer createRasterizer(FilamentsFileItem input, double radius) throws IOException {
+        CapsuleRasterizer rasterizer = new CapsuleRasterizer(input.getDimensions(), new int[]{64, 64, 64}, radius);
+        input.iterate((filament, coordinates, pointCount) -> rasterizer.addSegments(coordinates, 0, pointCount, filament + 1));
+        return rasterizer;
     }
 
-    private static void drawLine(RandomAccessibleInterval<IntType> output, JSONArray first, JSONArray point, double radius, int i) throws JSONException {
-        Point point1 = new Point(first.getLong(0), first.getLong(1), first.getLong(2));
-        Point point2 = new Point(point.getLong(0), point.getLong(1), point.getLong(2));
-        NMLReader.drawLine(output, point1, point2, radius, i);
+    /**
+     * @return a rasterizer with the segments of all filaments, labeled with the filament index + 1
+     */
+    public static CapsuleRasterizer createRasterizer(Filaments filaments, double radius) {
+        CapsuleRasterizer rasterizer = new CapsuleRasterizer(filaments.getDimensions(), new int[]{64, 64, 64}, radius);
+        rasterizer.addFilaments(filaments);
+        return rasterizer;
     }
 
     static List<List<Pair<Point, Point>>> correctLineOrder(List<List<Pair<Point, Point>>> filaments, float mergeDistance) {
@@ -243,57 +243,221 @@ public class FilamentsImporter {
         return res;
     }
 
-    private static void mergeEnds(List<List<Pair<Point, Point>>> lines, float mergeDistance) {
-        boolean changedList = false;
-//		List<List<Pair<Point, Point>>> linesCopy = new ArrayList<>(lines);
-//		List<List<Pair<Point, Point>>> toRemove = new ArrayList<>();
-        for (int i = 0; i < lines.size(); i++) {
-            List<Pair<Point, Point>> lineA = lines.get(i);
-            for (int j = 0; j < lines.size(); j++) {
-                List<Pair<Point, Point>> lineB = lines.get(j);
-                if (lineA == lineB) continue;
-                Point startA = lineA.get(0).getA();
-                Point endA = lineA.get(lineA.size() - 1).getB();
-                Point startB = lineB.get(0).getA();
-                Point endB = lineB.get(lineB.size() - 1).getB();
-                if (distance(endA, startB) <= mergeDistance) {
-                    lineA.addAll(lineB);
-                    lines.remove(lineB);
-                    changedList = true;
-                    break;
-                }
-                if (distance(endB, startA) <= mergeDistance) {
-                    lineB.addAll(lineA);
-                    lines.remove(lineA);
-                    changedList = true;
-                    break;
+    /**
+     * Repeatedly merges the first line (in list order) which has an end close to an end of another line with the first
+     * such other line, until no ends are closer than {@code mergeDistance}. Lines are looked up by their ends in a grid
+     * and only combined into chains of line references while merging.
+     */
+    static void mergeEnds(List<List<Pair<Point, Point>>> lines, float mergeDistance) {
+        int count = lines.size();
+        if (count < 2) return;
+        Point[] starts = new Point[count];
+        Point[] ends = new Point[count];
+        FragmentChain[] chains = new FragmentChain[count];
+        EndpointGrid grid = new EndpointGrid(Math.max(mergeDistance, 1));
+        for (int i = 0; i < count; i++) {
+            List<Pair<Point, Point>> line = lines.get(i);
+            starts[i] = line.get(0).getA();
+            ends[i] = line.get(line.size() - 1).getB();
+            chains[i] = new FragmentChain(i);
+            grid.add(starts[i], i);
+            grid.add(ends[i], i);
+        }
+        // merging only ever combines existing ends, so lines without a partner never get one later
+        for (int i = 0; i < count; i++) {
+            while (chains[i] != null) {
+                FragmentChain chainA = chains[i];
+                Point startA = chainA.getStart(starts, ends);
+                Point endA = chainA.getEnd(starts, ends);
+                int match = -1;
+                int matchRule = -1;
+                for (int j : grid.getCandidates(startA, endA)) {
+                    if (j == i || chains[j] == null || (match >= 0 && j > match)) continue;
+                    int rule = getMergeRule(startA, endA, chains[j].getStart(starts, ends), chains[j].getEnd(starts, ends), mergeDistance);
+                    if (rule >= 0) {
+                        match = j;
+                        matchRule = rule;
+                    }
                 }
-                if (distance(startA, startB) <= mergeDistance) {
-                    reverse(lineA);
-                    lineA.addAll(lineB);
-                    lines.remove(lineB);
-                    changedList = true;
-                    break;
+                if (match < 0) break;
+                FragmentChain chainB = chains[match];
+                int survivor = i;
+                FragmentChain merged;
+                switch (matchRule) {
+                    case 0:
+                        merged = FragmentChain.concat(chainA, chainB);
+                        break;
+                    case 1:
+                        merged = FragmentChain.concat(chainB, chainA);
+                        survivor = match;
+                        break;
+                    case 2:
+                        chainA.reverse();
+                        merged = FragmentChain.concat(chainA, chainB);
+                        break;
+                    default:
+                        chainB.reverse();
+                        merged = FragmentChain.concat(chainA, chainB);
+                        break;
                 }
-                if (distance(endA, endB) <= mergeDistance) {
-                    reverse(lineB);
-                    lineA.addAll(lineB);
-                    lines.remove(lineB);
-                    changedList = true;
-                    break;
+                chains[i] = null;
+                chains[match] = null;
+                chains[survivor] = merged;
+                grid.add(merged.getStart(starts, ends), survivor);
+                grid.add(merged.getEnd(starts, ends), survivor);
+            }
+        }
+        List<List<Pair<Point, Point>>> res = new ArrayList<>();
+        for (FragmentChain chain : chains) {
+            if (chain == null) continue;
+            List<Pair<Point, Point>> line = new ArrayList<>();
+            for (int element : chain.toList()) {
+                List<Pair<Point, Point>> fragment = lines.get(FragmentChain.getFragment(element));
+                if (FragmentChain.isReversed(element)) {
+                    for (int k = fragment.size() - 1; k >= 0; k--) {
+                        line.add(new ValuePair<>(fragment.get(k).getB(), fragment.get(k).getA()));
+                    }
+                } else {
+                    line.addAll(fragment);
                 }
             }
-            if (changedList) break;
+            res.add(line);
         }
-        if (changedList) mergeEnds(lines, mergeDistance);
+        lines.clear();
+        lines.addAll(res);
     }
 
-    private static void reverse(List<Pair<Point, Point>> line) {
-        ArrayList<Pair<Point, Point>> copy = new ArrayList<>(line);
-        line.clear();
-        Collections.reverse(copy);
-        for (Pair<Point, Point> pair : copy) {
-            line.add(new ValuePair<>(pair.getB(), pair.getA()));
+    /**
+     * @return the first of the rules end A - start B, end B - start A, start A - start B, end A - end B which
+     * matches, -1 if the lines cannot be merged
+     */
+    private static int getMergeRule(Point startA, Point endA, Point startB, Point endB, float mergeDistance) {
+        if (distance(endA, startB) <= mergeDistance) return 0;
+        if (distance(endB, startA) <= mergeDistance) return 1;
+        if (distance(startA, startB) <= mergeDistance) return 2;
+        if (distance(endA, endB) <= mergeDistance) return 3;
+        return -1;
+    }
+
+    /**
+     * Sequence of line indices, each with a flag whether the line is traversed in reverse. Reversing the whole chain
+     * is constant time, and concatenating moves the elements of the shorter chain into the longer one.
+     */
+    private static class FragmentChain {
+
+        private final ArrayDeque<Integer> elements = new ArrayDeque<>();
+        private boolean reversed = false;
+
+        FragmentChain(int fragment) {
+            elements.add(fragment << 1);
+        }
+
+        static int getFragment(int element) {
+            return element >> 1;
+        }
+
+        static boolean isReversed(int element) {
+            return (element & 1) == 1;
+        }
+
+        int size() {
+            return elements.size();
+        }
+
+        void reverse() {
+            reversed = !reversed;
+        }
+
+        Point getStart(Point[] starts, Point[] ends) {
+            int first = reversed ? elements.peekLast() ^ 1 : elements.peekFirst();
+            return isReversed(first) ? ends[getFragment(first)] : starts[getFragment(first)];
+        }
+
+        Point getEnd(Point[] starts, Point[] ends) {
+            int last = reversed ? elements.peekFirst() ^ 1 : elements.peekLast();
+            return isReversed(last) ? starts[getFragment(last)] : ends[getFragment(last)];
+        }
+
+        private void addFirst(int element) {
+            if (reversed) elements.addLast(element ^ 1);
+            else elements.addFirst(element);
+        }
+
+        private void addLast(int element) {
+            if (reversed) elements.addFirst(element ^ 1);
+            else elements.addLast(element);
+        }
+
+        List<Integer> toList() {
+            List<Integer> res = new ArrayList<>(elements.size());
+            if (reversed) {
+                Iterator<Integer> iterator = elements.descendingIterator();
+                while (iterator.hasNext()) res.add(iterator.next() ^ 1);
+            } else {
+                res.addAll(elements);
+            }
+            return res;
+        }
+
+        /**
+         * @return the chain holding the elements of {@code first} followed by the elements of {@code second}
+         */
+        static FragmentChain concat(FragmentChain first, FragmentChain second) {
+            if (first.size() >= second.size()) {
+                for (int element : second.toList()) first.addLast(element);
+                return first;
+            }
+            List<Integer> elements = first.toList();
+            for (int k = elements.size() - 1; k >= 0; k--) second.addFirst(elements.get(k));
+            return second;
+        }
+    }
+
+    /**
+     * Line indices by the grid cells of their ends. Entries of merged lines or outdated ends are kept and have to be
+     * filtered by the caller.
+     */
+    private static class EndpointGrid {
+
+        private final double cellSize;
+        private final Map<Long, List<Integer>> cells = new HashMap<>();
+
+        EndpointGrid(double cellSize) {
+            this.cellSize = cellSize;
+        }
+
+        void add(Point point, int index) {
+            List<Integer> cell = cells.computeIfAbsent(key(cell(point, 0), cell(point, 1), cell(point, 2)), k -> new ArrayList<>(2));
+            if (cell.isEmpty() || cell.get(cell.size() - 1) != index) cell.add(index);
+        }
+
+        List<Integer> getCandidates(Point start, Point end) {
+            List<Integer> res = new ArrayList<>();
+            collect(start, res);
+            collect(end, res);
+            return res;
+        }
+
+        private void collect(Point point, List<Integer> res) {
+            long x = cell(point, 0);
+            long y = cell(point, 1);
+            long z = cell(point, 2);
+            for (long dz = -1; dz <= 1; dz++) {
+                for (long dy = -1; dy <= 1; dy++) {
+                    for (long dx = -1; dx <= 1; dx++) {
+                        List<Integer> cell = cells.get(key(x + dx, y + dy, z + dz));
+                        if (cell != null) res.addAll(cell);
+                    }
+                }
+            }
+        }
+
+        private long cell(Point point, int d) {
+            return (long) Math.floor(point.getDoublePosition(d) / cellSize);
+        }
+
+        private static long key(long x, long y, long z) {
+            return ((x & 0x1FFFFF) << 42) | ((y & 0x1FFFFF) << 21) | (z & 0x1FFFFF);
         }
     }
 
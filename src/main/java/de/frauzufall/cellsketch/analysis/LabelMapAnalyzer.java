@@ -31,20 +31,21 @@ package de.frauzufall.cellsketch.analysis;
 import de.frauzufall.cellsketch.CellProject;
 import de.frauzufall.cellsketch.model.*;
 import net.imagej.ops.OpService;
-import net.imglib2.roi.labeling.LabelRegion;
-import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.IntegerType;
-import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.view.Views;
 import org.apache.commons.math3.stat.descriptive.moment.Mean;
 import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
 import org.apache.commons.math3.stat.descriptive.rank.Median;
 import org.scijava.app.StatusService;
 import org.scijava.table.DefaultGenericTable;
 import org.scijava.table.Table;
-import sc.fiji.labeleditor.core.model.LabelEditorModel;
 
 import java.io.IOException;
-import java.util.Set;
+import java.util.Map;
+import java.util.TreeMap;
 
 import static de.frauzufall.cellsketch.analysis.AnalyzeUtils.getTableData;
 
@@ -112,25 +113,30 @@ public class LabelMapAnalyzer {
 		labelMap.saveConfig();
 	}
 
-	public void run(Table detailsTable, Table summaryTable, LabelMapItemGroup<? extends IntegerType<?>> labelmap) {
-		LabelEditorModel<IntType> model = labelmap.getLabelMap().getModel();
-		Set<IntType> labels = model.labeling().getMapping().getLabels();
-		double[] sizes = new double[labels.size()];
-
-		LabelRegions<IntType> regions = new LabelRegions<>(model.labeling());
+	public void run(Table detailsTable, Table summaryTable, LabelMapItemGroup<? extends IntegerType<?>> labelmap) throws IOException {
+		Map<Integer, double[]> regions = sweepRegions(labelmap.getLabelMap());
+		double[] sizes = new double[regions.size()];
 		int i = 0;
 		double maxSize = 0;
 		int sizeIndex = getColumnIndex(detailsTable, LabelMapTable.getSizeColumnName());
-		for (LabelRegion<IntType> region : regions) {
-			double size = region.size()*Math.pow(project.getPixelToUM(), 3);
+		int[] centroidIndices = new int[]{
+				getColumnIndex(detailsTable, LabelMapTable.getCentroidColumnName("x")),
+				getColumnIndex(detailsTable, LabelMapTable.getCentroidColumnName("y")),
+				getColumnIndex(detailsTable, LabelMapTable.getCentroidColumnName("z"))};
+		for (Map.Entry<Integer, double[]> entry : regions.entrySet()) {
+			double[] region = entry.getValue();
+			double size = region[0]*Math.pow(project.getPixelToUM(), 3);
 			sizes[i] = size;
-			int row = detailsTable.getRowIndex(region.getLabel().toString());
+			int row = detailsTable.getRowIndex(entry.getKey().toString());
 			if(row < 0) {
 				row = detailsTable.getRowCount();
-				detailsTable.appendRow(region.getLabel().toString());
+				detailsTable.appendRow(entry.getKey().toString());
 			}
 			if(size > maxSize) maxSize = size;
 			detailsTable.set(sizeIndex, row, String.valueOf(size));
+			for (int d = 0; d < centroidIndices.length; d++) {
+				detailsTable.set(centroidIndices[d], row, String.valueOf(region[d + 1] / region[0] * project.getPixelToUM()));
+			}
 			i++;
 		}
 		LabelTagItem tag = labelmap.addLabelIfNotExists(LabelMapTable.getSizeColumnName(), Double.class, true);
@@ -146,6 +152,28 @@ public class LabelMapAnalyzer {
 //		System.out.println(detailsTable);
 	}
 
+	/**
+	 * Sweeps the occupied blocks of the label map.
+	 * @return for each label its voxel count followed by the sums of its voxel positions, sorted by label
+	 */
+	private static Map<Integer, double[]> sweepRegions(LabelMapFileItem<? extends IntegerType<?>> labelMap) throws IOException {
+		RandomAccessibleInterval<? extends IntegerType<?>> image = labelMap.getImage();
+		Map<Integer, double[]> res = new TreeMap<>();
+		for (Interval block : labelMap.getOccupiedBlocks()) {
+			Cursor<? extends IntegerType<?>> cursor = Views.interval(image, block).localizingCursor();
+			while(cursor.hasNext()) {
+				int label = cursor.next().getInteger();
+				if(label == 0) continue;
+				double[] region = res.computeIfAbsent(label, key -> new double[4]);
+				region[0]++;
+				for (int d = 0; d < 3; d++) {
+					region[d + 1] += cursor.getDoublePosition(d);
+				}
+			}
+		}
+		return res;
+	}
+
 	public static int getColumnIndex(Table detailsTable, String columnName) {
 		if(detailsTable.getColumnIndex(columnName) < 0) {
 			detailsTable.appendColumn(columnName);
@@ -172,7 +200,7 @@ public class LabelMapAnalyzer {
 			matcher.run(labelMap.getIndividualStats(),
 					labelMap,
 					item.getName(),
-					item.getDistanceMap().getImage(),
+					item.getDistanceMap(),
 					project.getPixelToUM(),
 					connectedThresholdInUM);
 			labelMap.getIndividualStats().save();
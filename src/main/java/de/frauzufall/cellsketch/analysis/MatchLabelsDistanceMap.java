@@ -29,41 +29,43 @@
 package de.frauzufall.cellsketch.analysis;
 
 import de.frauzufall.cellsketch.model.LabelTagItem;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.roi.labeling.LabelRegion;
-import net.imglib2.roi.labeling.LabelRegionCursor;
-import net.imglib2.roi.labeling.LabelRegions;
 import net.imglib2.type.numeric.IntegerType;
-import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
 import org.scijava.table.Table;
-import sc.fiji.labeleditor.core.model.LabelEditorModel;
+import de.frauzufall.cellsketch.model.ImageFileItem;
+import de.frauzufall.cellsketch.model.LabelMapFileItem;
 import de.frauzufall.cellsketch.model.LabelMapItemGroup;
 import de.frauzufall.cellsketch.model.LabelMapTable;
 import de.frauzufall.cellsketch.model.TableFileItem;
+import de.frauzufall.cellsketch.n5.BlockSummaryIndex;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import static de.frauzufall.cellsketch.analysis.LabelMapAnalyzer.getColumnIndex;
 
 public class MatchLabelsDistanceMap {
 
-	public void run(final TableFileItem table, final LabelMapItemGroup<? extends IntegerType<?>> labelMapItem, String name, final RandomAccessibleInterval<FloatType> distanceTransform, double pixelToUM, 	float connectedThresholdInUM) throws IOException {
-		Map<Object, ClosestPoint> analysis = computeDistance(labelMapItem.getLabelMap().getModel(), distanceTransform);
+	public void run(final TableFileItem table, final LabelMapItemGroup<? extends IntegerType<?>> labelMapItem, String name, final ImageFileItem<FloatType> distanceMap, double pixelToUM, 	float connectedThresholdInUM) throws IOException {
+		Map<Integer, ClosestPoint> analysis = computeDistance(labelMapItem.getLabelMap(), distanceMap);
 		writeResultToTable(labelMapItem, table, name, analysis, pixelToUM, connectedThresholdInUM);
 	}
 
-	private void writeResultToTable(LabelMapItemGroup<? extends IntegerType<?>> labelMapItem, final TableFileItem tableItem, String name, Map<Object, ClosestPoint> analysis, double pixelToUM, double connectedThresholdInUM) throws IOException {
+	private void writeResultToTable(LabelMapItemGroup<? extends IntegerType<?>> labelMapItem, final TableFileItem tableItem, String name, Map<Integer, ClosestPoint> analysis, double pixelToUM, double connectedThresholdInUM) throws IOException {
 		Table table = tableItem.getTable();
 		double max = 0;
-		for (Map.Entry<Object, ClosestPoint> entry : analysis.entrySet()) {
-			Object label = entry.getKey();
+		for (Map.Entry<Integer, ClosestPoint> entry : analysis.entrySet()) {
+			Integer label = entry.getKey();
 			ClosestPoint relation = entry.getValue();
 			int rowIndex = table.getRowIndex(label.toString());
 			if(rowIndex < 0) {
@@ -81,54 +83,61 @@ public class MatchLabelsDistanceMap {
 		labelMapItem.saveConfig();
 	}
 
-	private static Map<Object, ClosestPoint> computeDistance(LabelEditorModel<IntType> model, RandomAccessibleInterval<? extends RealType> distanceTransform) {
-		LabelRegions<IntType> newregions = new LabelRegions<>(model.labeling());
-		Iterator<LabelRegion<IntType>> iterator = newregions.iterator();
-		Map<Object, ClosestPoint> analysis = new HashMap<>();
-//		ExecutorService pool = Executors.newFixedThreadPool(6);
-//		CompletionService<Object> ecs = new ExecutorCompletionService<>(pool);
-		final int size = model.labeling().getMapping().getLabels().size();
-		while(iterator.hasNext()) {
-			LabelRegion<IntType> labelRegion = iterator.next();
-			closestPointRunnable(analysis, size, distanceTransform, labelRegion).run();
-//			ecs.submit(Executors.callable(closestPointRunnable(analysis, size, distanceTransform, labelRegion)));
+	/**
+	 * Sweeps the blocks of the label map, keeping the voxel of each label with the smallest distance. If both datasets
+	 * have a {@link BlockSummaryIndex}, blocks are visited by increasing minimal distance and skipped if none of their
+	 * labels can get closer.
+	 */
+	private static Map<Integer, ClosestPoint> computeDistance(LabelMapFileItem<? extends IntegerType<?>> labelMap, ImageFileItem<FloatType> distanceMap) throws IOException {
+		RandomAccessibleInterval<? extends IntegerType<?>> labels = labelMap.getImage();
+		RandomAccess<FloatType> distanceAccess = distanceMap.getImage().randomAccess();
+		Map<Integer, ClosestPoint> analysis = new HashMap<>();
+		BlockSummaryIndex labelSummary = labelMap.getBlockSummary();
+		BlockSummaryIndex distanceSummary = distanceMap.getBlockSummary();
+		if(labelSummary == null || !labelSummary.hasLabels() || distanceSummary == null || !labelSummary.hasSameGrid(distanceSummary)) {
+			for (Interval block : labelMap.getOccupiedBlocks()) {
+				sweep(labels, block, distanceAccess, analysis);
+			}
+			return analysis;
+		}
+		List<Long> blocks = new ArrayList<>();
+		for (long block = 0; block < labelSummary.getBlockCount(); block++) {
+			if(labelSummary.getLabels(block).length > 0) blocks.add(block);
+		}
+		blocks.sort(Comparator.comparingDouble(distanceSummary::getMin));
+		for (long block : blocks) {
+			if(canSkip(labelSummary.getLabels(block), distanceSummary.getMin(block), analysis)) continue;
+			sweep(labels, labelSummary.getInterval(block, labels), distanceAccess, analysis);
 		}
-//		for (int i = 0; i < size; ++i) {
-//			try {
-//				ecs.take().get();
-//			} catch (InterruptedException | ExecutionException e) {
-//				e.printStackTrace();
-//			}
-//		}
 		return analysis;
 	}
 
-	private static Runnable closestPointRunnable(Map<Object, ClosestPoint> analysis, int size, RandomAccessibleInterval<? extends RealType> distanceTransform, LabelRegion<IntType> labelRegion) {
-		return () -> {
-			ClosestPoint nearest = getClosestPoint(distanceTransform, labelRegion);
-			analysis.put(labelRegion.getLabel(), nearest);
-//			System.out.println("Distance " + labelRegion.getLabel() + " (total " + size + ") : " + nearest.distance);
-		};
+	private static boolean canSkip(long[] labels, double minDistance, Map<Integer, ClosestPoint> analysis) {
+		for (long label : labels) {
+			ClosestPoint closest = analysis.get((int) label);
+			if(closest == null || closest.distance > minDistance) return false;
+		}
+		return true;
 	}
 
-	private static ClosestPoint getClosestPoint(RandomAccessibleInterval<? extends RealType> distanceTransform, LabelRegion<IntType> labelRegion) {
-		ClosestPoint res = new ClosestPoint();
-		Point onGranule = new Point(distanceTransform.numDimensions());
-		double minDistance = Double.MAX_VALUE;
-
-		LabelRegionCursor cursor = labelRegion.localizingCursor();
-		RandomAccess<? extends RealType> distanceAccess = distanceTransform.randomAccess();
+	private static void sweep(RandomAccessibleInterval<? extends IntegerType<?>> labels, Interval block, RandomAccess<FloatType> distanceAccess, Map<Integer, ClosestPoint> analysis) {
+		Cursor<? extends IntegerType<?>> cursor = Views.interval(labels, block).localizingCursor();
 		while(cursor.hasNext()) {
-			cursor.next();
+			int label = cursor.next().getInteger();
+			if(label == 0) continue;
 			distanceAccess.setPosition(cursor);
-			if(distanceAccess.get().getRealDouble() < minDistance) {
-				onGranule.setPosition(cursor);
-				minDistance = distanceAccess.get().getRealDouble();
+			double distance = distanceAccess.get().getRealDouble();
+			ClosestPoint closest = analysis.get(label);
+			if(closest == null) {
+				closest = new ClosestPoint();
+				closest.point = new Point(cursor.numDimensions());
+				analysis.put(label, closest);
+			}
+			if(distance < closest.distance) {
+				closest.point.setPosition(cursor);
+				closest.distance = distance;
 			}
 		}
-		res.point = onGranule;
-		res.distance = minDistance;
-		return res;
 	}
 
 }
@@ -28,6 +28,7 @@
  */
 package de.frauzufall.cellsketch.analysis;
 
+import de.frauzufall.cellsketch.model.FilamentGraph;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
@@ -38,90 +39,62 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.util.Pair;
-import net.imglib2.util.ValuePair;
-import org.jdom2.Attribute;
 import org.jdom2.DataConversionException;
-import org.jdom2.Document;
-import org.jdom2.Element;
-import org.jdom2.input.SAXBuilder;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.util.ArrayList;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.List;
-import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
+/**
+ * Reads KNOSSOS skeleton annotations. Accepts plain <code>.nml</code> files, gzipped <code>.nml.gz</code> files and
+ * KNOSSOS <code>.zip</code> annotations, which are streamed without extracting them first.
+ */
 public class NMLReader {
 
 	public static RandomAccessibleInterval<UnsignedByteType> read(File xmlFile, double scale, int radius) throws NMLReaderIOException, DataConversionException {
 
-		final SAXBuilder sax = new SAXBuilder();
-		Document doc;
-		try
-		{
-			doc = sax.build(xmlFile);
-		}
-		catch ( final Exception e )
-		{
-			throw new NMLReaderIOException( e );
-		}
-		final Element root = doc.getRootElement();
-
-		long x = (long) (root.getChild("parameters").getChild("MovementArea").getAttribute("max.x").getLongValue() * scale);
-		long y = (long) (root.getChild("parameters").getChild("MovementArea").getAttribute("max.y").getLongValue() * scale);
-		long z = (long) (root.getChild("parameters").getChild("MovementArea").getAttribute("max.z").getLongValue() * scale);
-
-
-		long[] dims = new long[]{x,y,z};
+		NMLSkeleton skeleton = readSkeleton(xmlFile);
+		double[] scaleFactors = new double[]{scale, scale, scale};
+		long[] dims = skeleton.getDimensions(scaleFactors);
 
 		System.out.println(Arrays.toString(dims));
 
 		final RandomAccessibleInterval<UnsignedByteType> output = new DiskCachedCellImgFactory<>( new UnsignedByteType() )
-				.create(x, y, z);
+				.create(dims);
 
-		List<Element> things = root.getChildren("thing");
-		things.forEach(thing -> drawThing(output, thing, scale, radius, 255));
+		for (List<Pair<Point, Point>> filament : skeleton.toPoints(scaleFactors)) {
+			for (Pair<Point, Point> line : filament) {
+				drawLine(output, line.getA(), line.getB(), radius, 255);
+			}
+		}
 
 		return output;
 	}
 
 	public static RandomAccessibleInterval<RealType<?>> readIndexed(File xmlFile, double[] scale, int radius) throws NMLReaderIOException, DataConversionException {
 
-
-		final SAXBuilder sax = new SAXBuilder();
-		Document doc;
-		try
-		{
-			doc = sax.build(xmlFile);
-		}
-		catch ( final Exception e )
-		{
-			throw new NMLReaderIOException( e );
-		}
-		final Element root = doc.getRootElement();
-
-		long x = (long) (root.getChild("parameters").getChild("MovementArea").getAttribute("max.x").getLongValue() * scale[0]);
-		long y = (long) (root.getChild("parameters").getChild("MovementArea").getAttribute("max.y").getLongValue() * scale[1]);
-		long z = (long) (root.getChild("parameters").getChild("MovementArea").getAttribute("max.z").getLongValue() * scale[2]);
-
-
-		long[] dims = new long[]{x,y,z};
+		NMLSkeleton skeleton = readSkeleton(xmlFile);
+		long[] dims = skeleton.getDimensions(scale);
 
 		System.out.println(Arrays.toString(dims));
 
 		final DiskCachedCellImg output = new DiskCachedCellImgFactory<>( new IntType() )
-				.create(x, y, z);
-
-		List<List<Pair<Point, Point>>> filaments = new ArrayList<>();
-
-		List<Element> things = root.getChildren("thing");
-		things.forEach(thing -> {
-			List<Pair<Point, Point>> pointList = toPointList(thing, scale);
-			if(pointList != null) filaments.add(pointList);
-		});
+				.create(dims);
 
 		int i = 0;
-		for (List<Pair<Point, Point>> filament : filaments) {
+		for (List<Pair<Point, Point>> filament : skeleton.toPoints(scale)) {
 			i++;
 			for (Pair<Point, Point> line : filament) {
 				drawLine(output, line.getA(), line.getB(), radius, i);
@@ -133,134 +106,133 @@ public class NMLReader {
 
 	public static List<List<Pair<Point, Point>>> toPoints(File xmlFile, double[] scaleFactors) throws NMLReaderIOException, DataConversionException {
 
-		List<List<Pair<Point, Point>>> res = new ArrayList<>();
-
-		final SAXBuilder sax = new SAXBuilder();
-		Document doc;
-		try
-		{
-			doc = sax.build(xmlFile);
-		}
-		catch ( final Exception e )
-		{
-			throw new NMLReaderIOException( e );
-		}
-		final Element root = doc.getRootElement();
-
-		long x = (long) (root.getChild("parameters").getChild("MovementArea").getAttribute("max.x").getLongValue() * scaleFactors[0]);
-		long y = (long) (root.getChild("parameters").getChild("MovementArea").getAttribute("max.y").getLongValue() * scaleFactors[1]);
-		long z = (long) (root.getChild("parameters").getChild("MovementArea").getAttribute("max.z").getLongValue() * scaleFactors[2]);
-
-
-		long[] dims = new long[]{x,y,z};
-
-		System.out.println(Arrays.toString(dims));
-
-		List<Element> things = root.getChildren("thing");
-		things.forEach(thing -> {
-			List<Pair<Point, Point>> pointList = toPointList(thing, scaleFactors);
-			if(pointList != null) res.add(pointList);
-		});
-
+		NMLSkeleton skeleton = readSkeleton(xmlFile);
+		System.out.println(Arrays.toString(skeleton.getDimensions(scaleFactors)));
+		List<List<Pair<Point, Point>>> res = skeleton.toPoints(scaleFactors);
 		System.out.println("MT count: " + res.size());
 		return res;
 	}
 
+	/**
+	 * Only reads the annotation up to its <code>MovementArea</code>, which precedes the things in KNOSSOS files.
+	 */
 	public static long[] getDimensions(File xmlFile, double[] scale) throws NMLReaderIOException, DataConversionException {
+		return parse(xmlFile, true).getDimensions(scale);
+	}
 
-		final SAXBuilder sax = new SAXBuilder();
-		Document doc;
-		try
-		{
-			doc = sax.build(xmlFile);
-		}
-		catch ( final Exception e )
-		{
-			throw new NMLReaderIOException( e );
-		}
-		final Element root = doc.getRootElement();
-
-		long x = (long) (root.getChild("parameters").getChild("MovementArea").getAttribute("max.x").getLongValue() * scale[0]);
-		long y = (long) (root.getChild("parameters").getChild("MovementArea").getAttribute("max.y").getLongValue() * scale[1]);
-		long z = (long) (root.getChild("parameters").getChild("MovementArea").getAttribute("max.z").getLongValue() * scale[2]);
-		return new long[]{x, y, z};
+	/**
+	 * Reads all nodes and edges of all things of the annotation into one graph, keeping branches.
+	 * @param zOffset added to the scaled z coordinate of each node
+	 */
+	public static FilamentGraph toGraph(File xmlFile, double[] scale, long zOffset) throws NMLReaderIOException, DataConversionException {
+		return readSkeleton(xmlFile).toGraph(scale, zOffset);
 	}
 
-	private static List<Pair<Point, Point>> toPointList(Element thing, double[] scale) {
-		List<Pair<Point, Point>> res = new ArrayList<>();
-		Element edgesParent = thing.getChild("edges");
-		if(edgesParent == null) return null;
-		List<Element> edges = edgesParent.getChildren("edge");
-		if(edges.size() == 0) return null;
-		edges.forEach(edge -> res.add(getPair(edge, thing, scale)));
-		return res;
+	/**
+	 * Reads the movement area, nodes and edges of the annotation in one streaming pass.
+	 */
+	public static NMLSkeleton readSkeleton(File xmlFile) throws NMLReaderIOException, DataConversionException {
+		return parse(xmlFile, false);
 	}
 
-	private static Pair<Point, Point> getPair(Element edge, Element thing, double[] scale) {
-		Attribute source = edge.getAttribute("source");
-		Attribute target = edge.getAttribute("target");
-		Element nodesParent = thing.getChild("nodes");
-		if(nodesParent == null) return null;
-		List<Element> nodes = nodesParent.getChildren("node");
-		Optional<Element> sourceEl = findID(nodes, source);
-		Optional<Element> targetEl = findID(nodes, target);
-		if(!sourceEl.isPresent() || !targetEl.isPresent()) {
-			System.out.println("Could not parse " + edge);
-			return null;
-		}
+	private static NMLSkeleton parse(File xmlFile, boolean movementAreaOnly) throws NMLReaderIOException, DataConversionException {
+		NMLSkeleton skeleton = new NMLSkeleton();
+		ZipFile zip = null;
+		InputStream in = null;
+		XMLStreamReader reader = null;
 		try {
-			long x1 = (long) (sourceEl.get().getAttribute("x").getLongValue() * scale[0]);
-			long y1 = (long) (sourceEl.get().getAttribute("y").getLongValue() * scale[1]);
-			long z1 = (long) (sourceEl.get().getAttribute("z").getLongValue() * scale[2]);
-			long x2 = (long) (targetEl.get().getAttribute("x").getLongValue() * scale[0]);
-			long y2 = (long) (targetEl.get().getAttribute("y").getLongValue() * scale[1]);
-			long z2 = (long) (targetEl.get().getAttribute("z").getLongValue() * scale[2]);
-			return new ValuePair<>(new Point(x1, y1, z1), new Point(x2, y2, z2));
-		} catch (DataConversionException e) {
-			System.out.println("Could not parse " + edge);
-			e.printStackTrace();
+			String name = xmlFile.getName().toLowerCase();
+			if(name.endsWith(".zip")) {
+				zip = new ZipFile(xmlFile);
+				in = zip.getInputStream(findAnnotation(zip));
+			} else {
+				in = new FileInputStream(xmlFile);
+				if(name.endsWith(".gz")) in = new GZIPInputStream(in, 1 << 16);
+			}
+			reader = createInputFactory().createXMLStreamReader(new BufferedInputStream(in, 1 << 16));
+			int thing = -1;
+			while(reader.hasNext()) {
+				if(reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+				switch (reader.getLocalName()) {
+					case "MovementArea":
+						skeleton.setMovementArea(
+								(long) getDouble(reader, "max.x"),
+								(long) getDouble(reader, "max.y"),
+								(long) getDouble(reader, "max.z"));
+						if(movementAreaOnly) return skeleton;
+						break;
+					case "thing":
+						thing = skeleton.addThing();
+						break;
+					case "node":
+						if(thing < 0) break;
+						skeleton.addNode(getInt(reader, "id"),
+								getDouble(reader, "x"), getDouble(reader, "y"), getDouble(reader, "z"), thing);
+						break;
+					case "edge":
+						if(thing < 0) break;
+						skeleton.addEdge(getInt(reader, "source"), getInt(reader, "target"), thing);
+						break;
+				}
+			}
+			return skeleton;
+		} catch (IOException | XMLStreamException e) {
+			throw new NMLReaderIOException(e);
+		} finally {
+			// closing the reader does not close the underlying stream
+			try {
+				if(reader != null) reader.close();
+			} catch (XMLStreamException e) {
+				e.printStackTrace();
+			}
+			try {
+				if(in != null) in.close();
+				if(zip != null) zip.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
-		return null;
 	}
 
-	private static boolean drawThing(RandomAccessibleInterval image, Element thing, double scale, int radius, int val) {
-		Element edgesParent = thing.getChild("edges");
-		if(edgesParent == null) return false;
-		List<Element> edges = edgesParent.getChildren("edge");
-		edges.forEach(edge -> drawEdge(image, edge, thing, scale, radius, val));
-		return true;
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return factory;
 	}
 
-	private static void drawEdge(RandomAccessibleInterval image, Element edge, Element thing, double scale, int radius, int val) {
-		Attribute source = edge.getAttribute("source");
-		Attribute target = edge.getAttribute("target");
-		Element nodesParent = thing.getChild("nodes");
-		if(nodesParent == null) return;
-		List<Element> nodes = nodesParent.getChildren("node");
-		Optional<Element> sourceEl = findID(nodes, source);
-		Optional<Element> targetEl = findID(nodes, target);
-		if(!sourceEl.isPresent() || !targetEl.isPresent()) {
-			System.out.println("Could not parse " + edge);
-			return;
+	private static ZipEntry findAnnotation(ZipFile zip) throws IOException {
+		ZipEntry annotation = zip.getEntry("annotation.xml");
+		if(annotation != null) return annotation;
+		Enumeration<? extends ZipEntry> entries = zip.entries();
+		while(entries.hasMoreElements()) {
+			ZipEntry entry = entries.nextElement();
+			String name = entry.getName().toLowerCase();
+			if(!entry.isDirectory() && (name.endsWith(".nml") || name.endsWith(".xml"))) return entry;
 		}
+		throw new IOException("No annotation found in " + zip.getName());
+	}
+
+	private static String getAttribute(XMLStreamReader reader, String name) throws DataConversionException {
+		String value = reader.getAttributeValue(null, name);
+		if(value == null) throw new DataConversionException(name, "number");
+		return value;
+	}
+
+	private static int getInt(XMLStreamReader reader, String name) throws DataConversionException {
 		try {
-			long x1 = (long) (sourceEl.get().getAttribute("x").getLongValue() * scale);
-			long y1 = (long) (sourceEl.get().getAttribute("y").getLongValue() * scale);
-			long z1 = (long) (sourceEl.get().getAttribute("z").getLongValue() * scale);
-			long x2 = (long) (targetEl.get().getAttribute("x").getLongValue() * scale);
-			long y2 = (long) (targetEl.get().getAttribute("y").getLongValue() * scale);
-			long z2 = (long) (targetEl.get().getAttribute("z").getLongValue() * scale);
-			drawLine(image, new Point(x1, y1, z1), new Point(x2, y2, z2), radius, val);
-		} catch (DataConversionException e) {
-			System.out.println("Could not parse " + edge);
-			e.printStackTrace();
+			return Integer.parseInt(getAttribute(reader, name).trim());
+		} catch (NumberFormatException e) {
+			throw new DataConversionException(name, "int");
 		}
 	}
 
-	// source: https://gist.github.com/yamamushi/5823518
-	private static Optional<Element> findID(List<Element> node, Attribute source) {
-
-		return node.stream().filter(el -> el.getAttribute("id").getValue().equals(source.getValue())).findFirst();
+	private static double getDouble(XMLStreamReader reader, String name) throws DataConversionException {
+		try {
+			return Double.parseDouble(getAttribute(reader, name).trim());
+		} catch (NumberFormatException e) {
+			throw new DataConversionException(name, "double");
+		}
 	}
 
 	public static void drawLine(RandomAccessibleInterval image, Point p1, Point p2, double radius, int val) {
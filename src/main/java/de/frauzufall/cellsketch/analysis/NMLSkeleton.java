@@ -0,0 +1,221 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import de.frauzufall.cellsketch.model.FilamentGraph;
+import net.imglib2.Point;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Nodes and edges of a KNOSSOS annotation in primitive buffers, as read by {@link NMLReader#readSkeleton}.
+ * Coordinates are stored unscaled, as in the annotation file.
+ */
+public class NMLSkeleton {
+
+	private final long[] movementArea = new long[3];
+	private int thingCount = 0;
+
+	private int nodeCount = 0;
+	private int[] nodeIds = new int[1024];
+	private int[] nodeThings = new int[1024];
+	private double[] nodeCoordinates = new double[3 * 1024];
+
+	private int edgeCount = 0;
+	private int[] edgeSources = new int[1024];
+	private int[] edgeTargets = new int[1024];
+	private int[] edgeThings = new int[1024];
+
+	private int[] edgeIndices;
+
+	void setMovementArea(long x, long y, long z) {
+		movementArea[0] = x;
+		movementArea[1] = y;
+		movementArea[2] = z;
+	}
+
+	/**
+	 * @return the index of the new thing
+	 */
+	int addThing() {
+		return thingCount++;
+	}
+
+	void addNode(int id, double x, double y, double z, int thing) {
+		if(nodeIds.length == nodeCount) {
+			nodeIds = Arrays.copyOf(nodeIds, nodeCount * 2);
+			nodeThings = Arrays.copyOf(nodeThings, nodeCount * 2);
+			nodeCoordinates = Arrays.copyOf(nodeCoordinates, nodeCount * 6);
+		}
+		nodeIds[nodeCount] = id;
+		nodeThings[nodeCount] = thing;
+		nodeCoordinates[nodeCount * 3] = x;
+		nodeCoordinates[nodeCount * 3 + 1] = y;
+		nodeCoordinates[nodeCount * 3 + 2] = z;
+		nodeCount++;
+		edgeIndices = null;
+	}
+
+	void addEdge(int sourceId, int targetId, int thing) {
+		if(edgeSources.length == edgeCount) {
+			edgeSources = Arrays.copyOf(edgeSources, edgeCount * 2);
+			edgeTargets = Arrays.copyOf(edgeTargets, edgeCount * 2);
+			edgeThings = Arrays.copyOf(edgeThings, edgeCount * 2);
+		}
+		edgeSources[edgeCount] = sourceId;
+		edgeTargets[edgeCount] = targetId;
+		edgeThings[edgeCount] = thing;
+		edgeCount++;
+		edgeIndices = null;
+	}
+
+	public int getThingCount() {
+		return thingCount;
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public int getEdgeCount() {
+		return edgeCount;
+	}
+
+	public long[] getDimensions(double[] scale) {
+		long[] res = new long[3];
+		for (int d = 0; d < 3; d++) {
+			res[d] = (long) (movementArea[d] * scale[d]);
+		}
+		return res;
+	}
+
+	/**
+	 * @return the scaled coordinate of the node along the given dimension
+	 */
+	public long getPosition(int node, int dimension, double[] scale) {
+		return (long) (nodeCoordinates[node * 3 + dimension] * scale[dimension]);
+	}
+
+	/**
+	 * Node ids are resolved among the nodes of the thing of the edge, since different things can reuse the same ids.
+	 * If a thing contains the same id more than once, the first node with the id is used and the duplicates are
+	 * reported.
+	 * @return the node index of the source and target of each edge (interleaved), -1 for unknown node ids
+	 */
+	public int[] resolveEdges() {
+		if(edgeIndices != null) return edgeIndices;
+		int[] nodeOffsets = new int[thingCount + 1];
+		int[] nodesByThing = groupByThing(nodeThings, nodeCount, nodeOffsets);
+		int[] edgeOffsets = new int[thingCount + 1];
+		int[] edgesByThing = groupByThing(edgeThings, edgeCount, edgeOffsets);
+		int[] res = new int[edgeCount * 2];
+		int duplicates = 0;
+		for (int thing = 0; thing < thingCount; thing++) {
+			if(edgeOffsets[thing] == edgeOffsets[thing + 1]) continue;
+			IntIntHashMap nodeIndices = new IntIntHashMap(nodeOffsets[thing + 1] - nodeOffsets[thing]);
+			for (int i = nodeOffsets[thing]; i < nodeOffsets[thing + 1]; i++) {
+				int node = nodesByThing[i];
+				if(nodeIndices.putIfAbsent(nodeIds[node], node) != node) duplicates++;
+			}
+			for (int i = edgeOffsets[thing]; i < edgeOffsets[thing + 1]; i++) {
+				int edge = edgesByThing[i];
+				res[edge * 2] = nodeIndices.get(edgeSources[edge]);
+				res[edge * 2 + 1] = nodeIndices.get(edgeTargets[edge]);
+			}
+		}
+		if(duplicates > 0) System.out.println("Found " + duplicates + " duplicate node ids within things, using the first node of each id");
+		edgeIndices = res;
+		return res;
+	}
+
+	/**
+	 * Sorts the indices of nodes or edges by thing, keeping their order within each thing.
+	 * @param offsets filled with the start of each thing in the returned array, followed by the count
+	 */
+	private int[] groupByThing(int[] things, int count, int[] offsets) {
+		for (int i = 0; i < count; i++) {
+			offsets[things[i] + 1]++;
+		}
+		for (int thing = 0; thing < thingCount; thing++) {
+			offsets[thing + 1] += offsets[thing];
+		}
+		int[] res = new int[count];
+		int[] fill = Arrays.copyOf(offsets, thingCount);
+		for (int i = 0; i < count; i++) {
+			res[fill[things[i]]++] = i;
+		}
+		return res;
+	}
+
+	/**
+	 * @return the edges of each thing with at least one edge, as scaled points
+	 */
+	public List<List<Pair<Point, Point>>> toPoints(double[] scale) {
+		int[] edges = resolveEdges();
+		List<List<Pair<Point, Point>>> things = new ArrayList<>();
+		for (int i = 0; i < thingCount; i++) {
+			things.add(new ArrayList<>());
+		}
+		for (int i = 0; i < edgeCount; i++) {
+			int source = edges[i * 2];
+			int target = edges[i * 2 + 1];
+			if(source < 0 || target < 0) {
+				System.out.println("Could not parse edge " + edgeSources[i] + " -> " + edgeTargets[i]);
+				continue;
+			}
+			things.get(edgeThings[i]).add(new ValuePair<>(toPoint(source, scale), toPoint(target, scale)));
+		}
+		things.removeIf(List::isEmpty);
+		return things;
+	}
+
+	/**
+	 * @param zOffset added to the scaled z coordinate of each node
+	 */
+	public FilamentGraph toGraph(double[] scale, long zOffset) {
+		FilamentGraph.Builder builder = new FilamentGraph.Builder();
+		for (int i = 0; i < nodeCount; i++) {
+			builder.addNode(getPosition(i, 0, scale), getPosition(i, 1, scale), getPosition(i, 2, scale) + zOffset);
+		}
+		int[] edges = resolveEdges();
+		for (int i = 0; i < edgeCount; i++) {
+			if(edges[i * 2] < 0 || edges[i * 2 + 1] < 0) continue;
+			builder.addEdge(edges[i * 2], edges[i * 2 + 1]);
+		}
+		return builder.build();
+	}
+
+	private Point toPoint(int node, double[] scale) {
+		return new Point(getPosition(node, 0, scale), getPosition(node, 1, scale), getPosition(node, 2, scale));
+	}
+}
@@ -0,0 +1,141 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Mergeable sketch of a distribution for approximate quantiles in bounded memory. Values are collected in a stack of
+ * buffers with {@code capacity} entries each. A full buffer is sorted and every second value is promoted to the next
+ * buffer, where it counts twice as much. Up to {@code capacity} values, quantiles are exact.
+ */
+class QuantileSketch {
+
+	private final int capacity;
+	private double[][] levels = new double[1][];
+	private int[] sizes = new int[1];
+	private long count = 0;
+	private boolean compacted = false;
+	// alternates which half of a full buffer is kept, so that compactions do not drift in one direction
+	private int parity = 0;
+
+	QuantileSketch(int capacity) {
+		// an even capacity keeps the total weight when compacting
+		this.capacity = Math.max(2, capacity + (capacity & 1));
+		levels[0] = new double[this.capacity];
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	void add(double value) {
+		append(0, value);
+		count++;
+	}
+
+	void add(QuantileSketch other) {
+		for (int level = 0; level < other.levels.length; level++) {
+			for (int i = 0; i < other.sizes[level]; i++) {
+				append(level, other.levels[level][i]);
+			}
+		}
+		count += other.count;
+		compacted |= other.compacted;
+	}
+
+	private void append(int level, double value) {
+		ensureLevels(level + 1);
+		levels[level][sizes[level]++] = value;
+		if(sizes[level] == capacity) compact(level);
+	}
+
+	private void ensureLevels(int levelCount) {
+		if(levels.length >= levelCount) return;
+		int old = levels.length;
+		levels = Arrays.copyOf(levels, levelCount);
+		sizes = Arrays.copyOf(sizes, levelCount);
+		for (int level = old; level < levelCount; level++) {
+			levels[level] = new double[capacity];
+		}
+	}
+
+	private void compact(int level) {
+		compacted = true;
+		double[] values = levels[level];
+		Arrays.sort(values, 0, sizes[level]);
+		int size = sizes[level];
+		sizes[level] = 0;
+		for (int i = parity; i < size; i += 2) {
+			append(level + 1, values[i]);
+		}
+		parity = 1 - parity;
+	}
+
+	/**
+	 * @param quantile between 0 and 1
+	 * @return the quantile, interpolated between the closest values as the legacy estimation of
+	 * {@link org.apache.commons.math3.stat.descriptive.rank.Percentile} while the sketch is exact, NaN without values
+	 */
+	double getQuantile(double quantile) {
+		if(count == 0) return Double.NaN;
+		if(!compacted) {
+			double[] values = Arrays.copyOf(levels[0], sizes[0]);
+			Arrays.sort(values);
+			double position = quantile * (values.length + 1);
+			if(position < 1) return values[0];
+			if(position >= values.length) return values[values.length - 1];
+			int lower = (int) Math.floor(position);
+			double fraction = position - lower;
+			return values[lower - 1] + fraction * (values[lower] - values[lower - 1]);
+		}
+		double[][] sorted = new double[levels.length][];
+		long weightSum = 0;
+		for (int level = 0; level < levels.length; level++) {
+			sorted[level] = Arrays.copyOf(levels[level], sizes[level]);
+			Arrays.sort(sorted[level]);
+			weightSum += (long) sizes[level] << level;
+		}
+		// walk through the values of all levels in ascending order until the weight reaches the rank
+		double rank = quantile * weightSum;
+		int[] heads = new int[levels.length];
+		long cumulative = 0;
+		double value = Double.NaN;
+		while(true) {
+			int next = -1;
+			for (int level = 0; level < sorted.length; level++) {
+				if(heads[level] < sorted[level].length && (next < 0 || sorted[level][heads[level]] < sorted[next][heads[next]])) next = level;
+			}
+			if(next < 0) return value;
+			value = sorted[next][heads[next]++];
+			cumulative += 1L << next;
+			if(cumulative >= rank) return value;
+		}
+	}
+}
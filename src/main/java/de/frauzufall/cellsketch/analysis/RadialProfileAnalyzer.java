@@ -0,0 +1,225 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import de.frauzufall.cellsketch.CellProject;
+import de.frauzufall.cellsketch.model.FilamentsItemGroup;
+import de.frauzufall.cellsketch.model.ImageFileItem;
+import de.frauzufall.cellsketch.model.LabelMapItemGroup;
+import de.frauzufall.cellsketch.model.MaskItemGroup;
+import de.frauzufall.cellsketch.model.RadialProfileTable;
+import de.frauzufall.cellsketch.model.TableFileItem;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.scijava.app.StatusService;
+import org.scijava.table.DefaultGenericTable;
+import org.scijava.table.Table;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static de.frauzufall.cellsketch.analysis.LabelMapAnalyzer.getColumnIndex;
+
+/**
+ * Volume fraction of all masks and label maps per distance shell from the cell boundary.
+ * The inner distance map of the boundary is swept once together with all datasets, split into z slabs
+ * which are processed in parallel, each slab filling its own histograms which are merged at the end.
+ */
+public class RadialProfileAnalyzer {
+
+	private static final int slabDepth = 16;
+
+	private final CellProject project;
+	private final ExecutorService executor;
+	private final double binWidthInUM;
+
+	public RadialProfileAnalyzer(CellProject project, ExecutorService executor, double binWidthInUM) {
+		this.project = project;
+		this.executor = executor;
+		this.binWidthInUM = binWidthInUM;
+	}
+
+	public void analyze() throws IOException {
+		MaskItemGroup boundary = project.getBoundary();
+		if(boundary == null || !boundary.getDistanceMap().exists()) {
+			project.context().service(StatusService.class).showStatus("Cannot compute radial profiles, boundary distance map missing.");
+			return;
+		}
+		RandomAccessibleInterval<FloatType> distanceMap = boundary.getDistanceMap().getImage();
+		List<Profile> profiles = collectProfiles(distanceMap);
+		if(profiles.isEmpty()) return;
+		project.context().service(StatusService.class).showStatus("Computing radial profiles relative to " + boundary.getName());
+		ShellHistogram histogram;
+		try {
+			histogram = sweep(distanceMap, profiles);
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException(e);
+		}
+		for (int i = 0; i < profiles.size(); i++) {
+			writeTable(profiles.get(i).output, histogram, i);
+		}
+	}
+
+	private List<Profile> collectProfiles(Interval bounds) {
+		List<Profile> res = new ArrayList<>();
+		for (MaskItemGroup mask : project.getMaskItems()) {
+			addProfile(res, bounds, mask.getName(), mask.getMask(), mask.getRadialProfile());
+		}
+		for (LabelMapItemGroup labelMap : project.getLabelMapItems()) {
+			addProfile(res, bounds, labelMap.getName(), labelMap.getLabelMap(), labelMap.getRadialProfile());
+		}
+		for (FilamentsItemGroup filaments : project.getFilamentsItems()) {
+			addProfile(res, bounds, filaments.getName(), filaments.getLabelMap(), filaments.getRadialProfile());
+		}
+		return res;
+	}
+
+	private void addProfile(List<Profile> profiles, Interval bounds, String name, ImageFileItem source, TableFileItem output) {
+		if(!source.exists()) return;
+		RandomAccessibleInterval<? extends RealType<?>> image = source.getImage();
+		if(!Intervals.equals(image, bounds)) {
+			project.context().service(StatusService.class).showStatus("Cannot compute radial profile of " + name + ", dimensions differ from the boundary.");
+			return;
+		}
+		profiles.add(new Profile(image, output));
+	}
+
+	private ShellHistogram sweep(RandomAccessibleInterval<FloatType> distanceMap, List<Profile> profiles) throws InterruptedException, ExecutionException {
+		int zDim = distanceMap.numDimensions() - 1;
+		List<Callable<ShellHistogram>> tasks = new ArrayList<>();
+		for (long z = distanceMap.min(zDim); z <= distanceMap.max(zDim); z += slabDepth) {
+			long[] min = Intervals.minAsLongArray(distanceMap);
+			long[] max = Intervals.maxAsLongArray(distanceMap);
+			min[zDim] = z;
+			max[zDim] = Math.min(z + slabDepth - 1, max[zDim]);
+			Interval slab = new FinalInterval(min, max);
+			tasks.add(() -> sweepSlab(distanceMap, profiles, slab));
+		}
+		ShellHistogram res = new ShellHistogram(profiles.size());
+		for (Future<ShellHistogram> future : executor.invokeAll(tasks)) {
+			res.add(future.get());
+		}
+		return res;
+	}
+
+	private ShellHistogram sweepSlab(RandomAccessibleInterval<FloatType> distanceMap, List<Profile> profiles, Interval slab) {
+		ShellHistogram res = new ShellHistogram(profiles.size());
+		double binsPerPixel = project.getPixelToUM() / binWidthInUM;
+		Cursor<FloatType> distances = Views.flatIterable(Views.interval(distanceMap, slab)).cursor();
+		List<Cursor<? extends RealType<?>>> cursors = new ArrayList<>();
+		for (Profile profile : profiles) {
+			cursors.add(Views.flatIterable(Views.interval(profile.image, slab)).cursor());
+		}
+		while(distances.hasNext()) {
+			float distance = distances.next().get();
+			for (Cursor<? extends RealType<?>> cursor : cursors) {
+				cursor.fwd();
+			}
+			// voxels outside of the cell have a distance of zero
+			if(distance <= 0) continue;
+			int bin = (int) (distance * binsPerPixel);
+			res.ensureBins(bin + 1);
+			res.shells[bin]++;
+			for (int i = 0; i < cursors.size(); i++) {
+				if(cursors.get(i).get().getRealDouble() != 0) res.items[i][bin]++;
+			}
+		}
+		return res;
+	}
+
+	private void writeTable(TableFileItem output, ShellHistogram histogram, int item) throws IOException {
+		double voxelVolume = Math.pow(project.getPixelToUM(), 3);
+		Table table = new DefaultGenericTable();
+		int shellVolumeColumn = getColumnIndex(table, RadialProfileTable.getShellVolumeColumnName());
+		int volumeColumn = getColumnIndex(table, RadialProfileTable.getVolumeColumnName());
+		int fractionColumn = getColumnIndex(table, RadialProfileTable.getVolumeFractionColumnName());
+		for (int bin = 0; bin < histogram.bins; bin++) {
+			table.appendRow(RadialProfileTable.getRowName(bin * binWidthInUM));
+			long shell = histogram.shells[bin];
+			long count = histogram.items[item][bin];
+			table.set(shellVolumeColumn, bin, String.valueOf(shell * voxelVolume));
+			table.set(volumeColumn, bin, String.valueOf(count * voxelVolume));
+			table.set(fractionColumn, bin, String.valueOf(shell == 0 ? 0 : (double) count / shell));
+		}
+		output.setTable(table);
+		output.save();
+	}
+
+	private static class Profile {
+		final RandomAccessibleInterval<? extends RealType<?>> image;
+		final TableFileItem output;
+
+		Profile(RandomAccessibleInterval<? extends RealType<?>> image, TableFileItem output) {
+			this.image = image;
+			this.output = output;
+		}
+	}
+
+	private static class ShellHistogram {
+		long[] shells = new long[0];
+		final long[][] items;
+		int bins = 0;
+
+		ShellHistogram(int itemCount) {
+			items = new long[itemCount][0];
+		}
+
+		void ensureBins(int bins) {
+			this.bins = Math.max(this.bins, bins);
+			if(shells.length >= bins) return;
+			int size = Math.max(bins, shells.length * 2);
+			shells = Arrays.copyOf(shells, size);
+			for (int i = 0; i < items.length; i++) {
+				items[i] = Arrays.copyOf(items[i], size);
+			}
+		}
+
+		void add(ShellHistogram other) {
+			ensureBins(other.bins);
+			for (int bin = 0; bin < other.bins; bin++) {
+				shells[bin] += other.shells[bin];
+				for (int i = 0; i < items.length; i++) {
+					items[i][bin] += other.items[i][bin];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import de.frauzufall.cellsketch.model.Filaments;
+
+import java.util.Arrays;
+
+/**
+ * Labeled line segments, indexed by the blocks of a block grid they come close to.
+ */
+public class SegmentGrid {
+
+	private final long[] dimensions;
+	private final int[] blockSize;
+	private final long[] gridDimensions = new long[3];
+
+	private int segmentCount = 0;
+	private int[] coordinates = new int[6 * 1024];
+	private int[] labels = new int[1024];
+
+	public SegmentGrid(long[] dimensions, int[] blockSize) {
+		this.dimensions = dimensions.clone();
+		this.blockSize = blockSize.clone();
+		for (int d = 0; d < 3; d++) {
+			gridDimensions[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+		}
+	}
+
+	public long[] getDimensions() {
+		return dimensions;
+	}
+
+	public int[] getBlockSize() {
+		return blockSize;
+	}
+
+	public int getBlockCount() {
+		return (int) (gridDimensions[0] * gridDimensions[1] * gridDimensions[2]);
+	}
+
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	/**
+	 * @return the start (x, y, z) and end (x, y, z) of all segments, six values per segment
+	 */
+	public int[] getCoordinates() {
+		return coordinates;
+	}
+
+	public int getLabel(int segment) {
+		return labels[segment];
+	}
+
+	public void addSegment(int x1, int y1, int z1, int x2, int y2, int z2, int label) {
+		if(labels.length == segmentCount) {
+			labels = Arrays.copyOf(labels, segmentCount * 2);
+			coordinates = Arrays.copyOf(coordinates, segmentCount * 12);
+		}
+		int offset = segmentCount * 6;
+		coordinates[offset] = x1;
+		coordinates[offset + 1] = y1;
+		coordinates[offset + 2] = z1;
+		coordinates[offset + 3] = x2;
+		coordinates[offset + 4] = y2;
+		coordinates[offset + 5] = z2;
+		labels[segmentCount] = label;
+		segmentCount++;
+	}
+
+	/**
+	 * Adds the segments between consecutive points of all filaments, labeled with the filament index + 1.
+	 */
+	public void addFilaments(Filaments filaments) {
+		int[] coordinates = filaments.getCoordinates();
+		for (int i = 0; i < filaments.getFilamentCount(); i++) {
+			addSegments(coordinates, filaments.getFirstPoint(i), filaments.getPointCount(i), i + 1);
+		}
+	}
+
+	/**
+	 * Adds the segments between consecutive points of one filament.
+	 * @param coordinates x, y, z of each point
+	 * @param firstPoint index of the first point of the filament
+	 */
+	public void addSegments(int[] coordinates, int firstPoint, int pointCount, int label) {
+		for (int j = 1; j < pointCount; j++) {
+			int previous = (firstPoint + j - 1) * 3;
+			int next = (firstPoint + j) * 3;
+			addSegment(coordinates[previous], coordinates[previous + 1], coordinates[previous + 2],
+					coordinates[next], coordinates[next + 1], coordinates[next + 2], label);
+		}
+	}
+
+	/**
+	 * @param margin distance in pixels by which the bounding box of each segment is extended
+	 * @return for each block (x fastest), the indices of the segments whose extended bounding box overlaps the block,
+	 * in insertion order, or null if there are none
+	 */
+	public int[][] binSegments(long margin) {
+		int blockCount = getBlockCount();
+		int[] counts = new int[blockCount];
+		long[] min = new long[3];
+		long[] max = new long[3];
+		for (int i = 0; i < segmentCount; i++) {
+			if(!getBlockRange(i, margin, min, max)) continue;
+			for (long z = min[2]; z <= max[2]; z++) {
+				for (long y = min[1]; y <= max[1]; y++) {
+					for (long x = min[0]; x <= max[0]; x++) {
+						counts[getBlockIndex(x, y, z)]++;
+					}
+				}
+			}
+		}
+		int[][] res = new int[blockCount][];
+		for (int block = 0; block < blockCount; block++) {
+			if(counts[block] > 0) res[block] = new int[counts[block]];
+			counts[block] = 0;
+		}
+		for (int i = 0; i < segmentCount; i++) {
+			if(!getBlockRange(i, margin, min, max)) continue;
+			for (long z = min[2]; z <= max[2]; z++) {
+				for (long y = min[1]; y <= max[1]; y++) {
+					for (long x = min[0]; x <= max[0]; x++) {
+						int block = getBlockIndex(x, y, z);
+						res[block][counts[block]++] = i;
+					}
+				}
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Intersects the bounding box of the segment, extended by the margin, with the block.
+	 * @return false if the intersection is empty
+	 */
+	boolean getVoxelRange(int segment, long margin, long[] blockMin, int[] size, int[] min, int[] max) {
+		int offset = segment * 6;
+		for (int d = 0; d < 3; d++) {
+			long low = Math.min(coordinates[offset + d], coordinates[offset + 3 + d]) - margin - blockMin[d];
+			long high = Math.max(coordinates[offset + d], coordinates[offset + 3 + d]) + margin - blockMin[d];
+			min[d] = (int) Math.max(0, low);
+			max[d] = (int) Math.min(size[d] - 1, high);
+			if(min[d] > max[d]) return false;
+		}
+		return true;
+	}
+
+	private boolean getBlockRange(int segment, long margin, long[] min, long[] max) {
+		int offset = segment * 6;
+		for (int d = 0; d < 3; d++) {
+			long low = Math.max(0, Math.min(coordinates[offset + d], coordinates[offset + 3 + d]) - margin);
+			long high = Math.min(dimensions[d] - 1, Math.max(coordinates[offset + d], coordinates[offset + 3 + d]) + margin);
+			if(low > high) return false;
+			min[d] = low / blockSize[d];
+			max[d] = high / blockSize[d];
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of blocks along each dimension
+	 */
+	public long[] getGridDimensions() {
+		return gridDimensions;
+	}
+
+	/**
+	 * @return the index of the block at the given grid position, as used in {@link #binSegments(long)}
+	 */
+	public int getBlockIndex(long x, long y, long z) {
+		return (int) ((z * gridDimensions[1] + y) * gridDimensions[0] + x);
+	}
+
+	public long[] getGridPosition(int block) {
+		long x = block % gridDimensions[0];
+		long y = (block / gridDimensions[0]) % gridDimensions[1];
+		long z = block / (gridDimensions[0] * gridDimensions[1]);
+		return new long[]{x, y, z};
+	}
+
+	public long[] getBlockMin(long[] gridPosition) {
+		long[] res = new long[3];
+		for (int d = 0; d < 3; d++) {
+			res[d] = gridPosition[d] * blockSize[d];
+		}
+		return res;
+	}
+
+	public int[] getBlockSize(long[] gridPosition) {
+		int[] res = new int[3];
+		for (int d = 0; d < 3; d++) {
+			res[d] = (int) Math.min(blockSize[d], dimensions[d] - gridPosition[d] * blockSize[d]);
+		}
+		return res;
+	}
+}
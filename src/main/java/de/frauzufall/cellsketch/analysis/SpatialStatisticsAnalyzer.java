@@ -0,0 +1,324 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import de.frauzufall.cellsketch.CellProject;
+import de.frauzufall.cellsketch.model.LabelMapItemGroup;
+import de.frauzufall.cellsketch.model.LabelMapTable;
+import de.frauzufall.cellsketch.model.SpatialStatisticsTable;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import org.scijava.app.StatusService;
+import org.scijava.table.DefaultGenericTable;
+import org.scijava.table.Table;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import static de.frauzufall.cellsketch.analysis.LabelMapAnalyzer.getColumnIndex;
+
+/**
+ * Point pattern statistics (Ripley's K and L, pair correlation function, nearest neighbour G function)
+ * of the label centroids of a label map. Monte-Carlo envelopes are computed from complete spatial randomness
+ * simulations restricted to the cell boundary mask (or the image bounds if there is no boundary),
+ * which accounts for the edge effects of the observed pattern as well.
+ */
+public class SpatialStatisticsAnalyzer {
+
+	private static final long seed = 42;
+
+	private final CellProject project;
+	private final LabelMapItemGroup<?> labelMap;
+	private final ExecutorService executor;
+	private final double maxRadiusInUM;
+	private final int radiusSteps;
+	private final int simulations;
+
+	public SpatialStatisticsAnalyzer(CellProject project, LabelMapItemGroup<?> labelMap, ExecutorService executor, double maxRadiusInUM, int radiusSteps, int simulations) {
+		this.project = project;
+		this.labelMap = labelMap;
+		this.executor = executor;
+		this.maxRadiusInUM = maxRadiusInUM;
+		this.radiusSteps = radiusSteps;
+		this.simulations = simulations;
+	}
+
+	public void analyze() throws IOException {
+		Table details = labelMap.getIndividualStats().getTable();
+		if(details == null) {
+			project.context().service(StatusService.class).showStatus("Cannot compute spatial statistics of " + labelMap.getName() + ", label statistics missing.");
+			return;
+		}
+		double[][] centroids = readCentroids(details);
+		if(centroids[0].length < 2) {
+			project.context().service(StatusService.class).showStatus("Cannot compute spatial statistics of " + labelMap.getName() + ", less than two labels.");
+			return;
+		}
+		SamplingDomain domain = createDomain();
+		if(domain.volume <= 0) {
+			project.context().service(StatusService.class).showStatus("Cannot compute spatial statistics of " + labelMap.getName() + ", boundary mask is empty.");
+			return;
+		}
+		project.context().service(StatusService.class).showStatus("Computing spatial statistics of " + labelMap.getName());
+		double[] radii = getRadii();
+		try {
+			PatternStatistics observed = computeObserved(centroids, domain.volume, radii);
+			List<PatternStatistics> simulated = computeSimulations(centroids[0].length, domain, radii);
+			writeTable(radii, observed, simulated);
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private double[] getRadii() {
+		double[] radii = new double[radiusSteps];
+		for (int i = 0; i < radiusSteps; i++) {
+			radii[i] = maxRadiusInUM * (i + 1) / radiusSteps;
+		}
+		return radii;
+	}
+
+	private double[][] readCentroids(Table details) {
+		int xColumn = details.getColumnIndex(LabelMapTable.getCentroidColumnName("x"));
+		int yColumn = details.getColumnIndex(LabelMapTable.getCentroidColumnName("y"));
+		int zColumn = details.getColumnIndex(LabelMapTable.getCentroidColumnName("z"));
+		if(xColumn < 0 || yColumn < 0 || zColumn < 0) return new double[3][0];
+		int rows = details.getRowCount();
+		double[][] res = new double[3][rows];
+		int count = 0;
+		for (int i = 0; i < rows; i++) {
+			double x = parseCentroid(details.get(xColumn, i));
+			double y = parseCentroid(details.get(yColumn, i));
+			double z = parseCentroid(details.get(zColumn, i));
+			// rows of labels which are no longer in the label map have no centroid
+			if(Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(z)) continue;
+			res[0][count] = x;
+			res[1][count] = y;
+			res[2][count] = z;
+			count++;
+		}
+		if(count < rows) System.out.println("Skipped " + (rows - count) + " rows without centroid in " + labelMap.getName());
+		for (int d = 0; d < 3; d++) res[d] = Arrays.copyOf(res[d], count);
+		return res;
+	}
+
+	/**
+	 * @return the value of a centroid cell, NaN if the cell is empty or not a finite number
+	 */
+	private static double parseCentroid(Object cell) {
+		if(cell == null) return Double.NaN;
+		try {
+			double value = Double.parseDouble(cell.toString().trim());
+			return Double.isInfinite(value) ? Double.NaN : value;
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	private PatternStatistics computeObserved(double[][] centroids, double volume, double[] radii) throws InterruptedException, ExecutionException {
+		CentroidKDTree tree = new CentroidKDTree(centroids[0], centroids[1], centroids[2]);
+		List<Callable<Long>> pairCounts = new ArrayList<>();
+		for (double radius : radii) {
+			pairCounts.add(() -> tree.countPairsWithin(radius));
+		}
+		Future<double[]> nearestNeighbors = executor.submit(tree::nearestNeighborDistances);
+		List<Future<Long>> counts = executor.invokeAll(pairCounts);
+		long[] pairs = new long[radii.length];
+		for (int i = 0; i < radii.length; i++) {
+			pairs[i] = counts.get(i).get();
+		}
+		return new PatternStatistics(pairs, nearestNeighbors.get(), tree.size(), volume, radii);
+	}
+
+	private List<PatternStatistics> computeSimulations(int count, SamplingDomain domain, double[] radii) throws InterruptedException, ExecutionException {
+		List<Callable<PatternStatistics>> tasks = new ArrayList<>();
+		for (int i = 0; i < simulations; i++) {
+			long simulationSeed = seed + i;
+			tasks.add(() -> simulate(count, domain, radii, new SplittableRandom(simulationSeed)));
+		}
+		List<PatternStatistics> res = new ArrayList<>();
+		for (Future<PatternStatistics> future : executor.invokeAll(tasks)) {
+			res.add(future.get());
+		}
+		return res;
+	}
+
+	private PatternStatistics simulate(int count, SamplingDomain domain, double[] radii, SplittableRandom random) {
+		double[][] points = domain.sample(count, random, project.getPixelToUM());
+		CentroidKDTree tree = new CentroidKDTree(points[0], points[1], points[2]);
+		long[] pairs = new long[radii.length];
+		for (int i = 0; i < radii.length; i++) {
+			pairs[i] = tree.countPairsWithin(radii[i]);
+		}
+		return new PatternStatistics(pairs, tree.nearestNeighborDistances(), count, domain.volume, radii);
+	}
+
+	private void writeTable(double[] radii, PatternStatistics observed, List<PatternStatistics> simulated) throws IOException {
+		Table table = new DefaultGenericTable();
+		for (double radius : radii) {
+			table.appendRow(SpatialStatisticsTable.getRowName(radius));
+		}
+		writeColumn(table, SpatialStatisticsTable.getRipleysKColumnName(), observed.k, simulated, s -> s.k);
+		writeColumn(table, SpatialStatisticsTable.getRipleysLColumnName(), observed.l, simulated, s -> s.l);
+		writeColumn(table, SpatialStatisticsTable.getPairCorrelationColumnName(), observed.pcf, simulated, s -> s.pcf);
+		writeColumn(table, SpatialStatisticsTable.getNearestNeighborColumnName(), observed.g, simulated, s -> s.g);
+		labelMap.getSpatialStats().setTable(table);
+		labelMap.getSpatialStats().save();
+	}
+
+	private void writeColumn(Table table, String name, double[] values, List<PatternStatistics> simulated, Function<PatternStatistics, double[]> getter) {
+		int column = getColumnIndex(table, name);
+		int lowColumn = getColumnIndex(table, SpatialStatisticsTable.getEnvelopeLowColumnName(name));
+		int highColumn = getColumnIndex(table, SpatialStatisticsTable.getEnvelopeHighColumnName(name));
+		for (int i = 0; i < values.length; i++) {
+			double low = Double.POSITIVE_INFINITY;
+			double high = Double.NEGATIVE_INFINITY;
+			for (PatternStatistics statistics : simulated) {
+				double value = getter.apply(statistics)[i];
+				low = Math.min(low, value);
+				high = Math.max(high, value);
+			}
+			table.set(column, i, String.valueOf(values[i]));
+			if(!simulated.isEmpty()) {
+				table.set(lowColumn, i, String.valueOf(low));
+				table.set(highColumn, i, String.valueOf(high));
+			}
+		}
+	}
+
+	private SamplingDomain createDomain() throws IOException {
+		RandomAccessibleInterval<? extends RealType<?>> mask = null;
+		List<Interval> maskBlocks = null;
+		if(project.getBoundary() != null && project.getBoundary().getMask().exists()) {
+			mask = (RandomAccessibleInterval) project.getBoundary().getMask().getImage();
+			maskBlocks = project.getBoundary().getMask().getOccupiedBlocks();
+		}
+		RandomAccessibleInterval<?> bounds = mask != null ? mask : labelMap.getLabelMap().getImage();
+		return new SamplingDomain(mask, maskBlocks, bounds, project.getPixelToUM());
+	}
+
+	private static class PatternStatistics {
+		final double[] k;
+		final double[] l;
+		final double[] pcf;
+		final double[] g;
+
+		PatternStatistics(long[] pairs, double[] nearestNeighbors, int count, double volume, double[] radii) {
+			k = new double[radii.length];
+			l = new double[radii.length];
+			pcf = new double[radii.length];
+			g = new double[radii.length];
+			double intensityFactor = volume / ((double) count * (count - 1));
+			double previousK = 0;
+			double previousRadius = 0;
+			for (int i = 0; i < radii.length; i++) {
+				double radius = radii[i];
+				k[i] = intensityFactor * pairs[i];
+				l[i] = Math.cbrt(3. * k[i] / (4. * Math.PI));
+				double shellVolume = 4. / 3. * Math.PI * (radius * radius * radius - previousRadius * previousRadius * previousRadius);
+				pcf[i] = (k[i] - previousK) / shellVolume;
+				int closer = 0;
+				for (double distance : nearestNeighbors) {
+					if(distance <= radius) closer++;
+				}
+				g[i] = (double) closer / count;
+				previousK = k[i];
+				previousRadius = radius;
+			}
+		}
+	}
+
+	private static class SamplingDomain {
+		private final RandomAccessibleInterval<? extends RealType<?>> mask;
+		private final long[] min;
+		private final long[] dimensions;
+		private final double volume;
+
+		/**
+		 * @param maskBlocks the blocks of the mask which contain foreground
+		 */
+		SamplingDomain(RandomAccessibleInterval<? extends RealType<?>> mask, List<Interval> maskBlocks, RandomAccessibleInterval<?> bounds, double pixelToUM) {
+			this.mask = mask;
+			this.min = new long[bounds.numDimensions()];
+			this.dimensions = new long[bounds.numDimensions()];
+			bounds.min(min);
+			bounds.dimensions(dimensions);
+			long voxels = mask == null ? countAll() : countForeground(mask, maskBlocks);
+			this.volume = voxels * Math.pow(pixelToUM, 3);
+		}
+
+		private long countAll() {
+			long res = 1;
+			for (long dimension : dimensions) res *= dimension;
+			return res;
+		}
+
+		private static long countForeground(RandomAccessibleInterval<? extends RealType<?>> mask, List<Interval> blocks) {
+			long res = 0;
+			for (Interval block : blocks) {
+				Cursor<? extends RealType<?>> cursor = Views.interval(mask, block).cursor();
+				while(cursor.hasNext()) {
+					if(cursor.next().getRealDouble() != 0) res++;
+				}
+			}
+			return res;
+		}
+
+		double[][] sample(int count, SplittableRandom random, double pixelToUM) {
+			double[][] res = new double[3][count];
+			RandomAccess<? extends RealType<?>> access = mask == null ? null : mask.randomAccess();
+			long[] position = new long[min.length];
+			int i = 0;
+			while(i < count) {
+				for (int d = 0; d < position.length; d++) {
+					position[d] = min[d] + random.nextLong(dimensions[d]);
+				}
+				if(access != null && access.setPositionAndGet(position).getRealDouble() == 0) continue;
+				for (int d = 0; d < 3; d++) {
+					// uniform position within the voxel, voxel centers are at integer positions
+					res[d][i] = (position[d] + random.nextDouble() - 0.5) * pixelToUM;
+				}
+				i++;
+			}
+			return res;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+/**
+ * Count, sum, mean, standard deviation, extrema and quantiles of a stream of values, collected without storing the
+ * values. Summaries of parts of the stream, e.g. computed in parallel, can be merged with {@link #add(StreamingSummary)}.
+ * Quantiles are exact for up to {@link #DEFAULT_QUANTILE_CAPACITY} values and approximated beyond.
+ */
+public class StreamingSummary {
+
+	public static final int DEFAULT_QUANTILE_CAPACITY = 4096;
+
+	private long count = 0;
+	private double mean = 0;
+	// sum of squared differences from the mean
+	private double m2 = 0;
+	private double sum = 0;
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+	private final QuantileSketch quantiles;
+
+	public StreamingSummary() {
+		this(DEFAULT_QUANTILE_CAPACITY);
+	}
+
+	public StreamingSummary(int quantileCapacity) {
+		quantiles = new QuantileSketch(quantileCapacity);
+	}
+
+	public void add(double value) {
+		count++;
+		double delta = value - mean;
+		mean += delta / count;
+		m2 += delta * (value - mean);
+		sum += value;
+		if(count == 1 || value < min) min = value;
+		if(count == 1 || value > max) max = value;
+		quantiles.add(value);
+	}
+
+	public void add(StreamingSummary other) {
+		if(other.count == 0) return;
+		if(count == 0) {
+			min = other.min;
+			max = other.max;
+		} else {
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+		}
+		long total = count + other.count;
+		double delta = other.mean - mean;
+		m2 += other.m2 + delta * delta * count * other.count / total;
+		mean += delta * other.count / total;
+		count = total;
+		sum += other.sum;
+		quantiles.add(other.quantiles);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getSum() {
+		return sum;
+	}
+
+	/**
+	 * @return the mean, NaN without values
+	 */
+	public double getMean() {
+		return count == 0 ? Double.NaN : mean;
+	}
+
+	/**
+	 * @return the bias corrected sample standard deviation, NaN without values
+	 */
+	public double getStandardDeviation() {
+		if(count == 0) return Double.NaN;
+		if(count == 1) return 0;
+		return Math.sqrt(m2 / (count - 1));
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public double getMedian() {
+		return getQuantile(0.5);
+	}
+
+	/**
+	 * @param quantile between 0 and 1
+	 * @return the quantile, NaN without values
+	 */
+	public double getQuantile(double quantile) {
+		return quantiles.getQuantile(quantile);
+	}
+}
@@ -61,6 +61,10 @@ public class AddFilamentsFromKNOSSOS extends CommandColoredEntity {
 	@Option(name = "--fixLineOrder")
 	private boolean fixLineOrder = false;
 
+	@Parameter(label = "Render filaments into a labelmap (otherwise they are only displayed as lines)", required = false)
+	@Option(name = "--renderLabelMap")
+	private boolean renderLabelMap = true;
+
 	@Parameter(label = "Filaments KNOSSOS file", required = false)
 	@Option(name = "--input")
 	private File input;
@@ -74,7 +78,7 @@ public class AddFilamentsFromKNOSSOS extends CommandColoredEntity {
 		String progressName = "Adding filaments from " + input;
 		try {
 			project.startProgress(progressName);
-			project.addFilamentsFromKNOSSOS(input, name, ARGBType.rgba(color.getRed(), color.getGreen(), color.getBlue(), color.getAlpha()), scaleX, scaleY, scaleZ, radius, fixOffset, fixLineOrder);
+			project.addFilamentsFromKNOSSOS(input, name, ARGBType.rgba(color.getRed(), color.getGreen(), color.getBlue(), color.getAlpha()), scaleX, scaleY, scaleZ, radius, fixOffset, fixLineOrder, renderLabelMap);
 			project.configChanged();
 		} catch (IOException | NMLReader.NMLReaderIOException | DataConversionException e) {
 			e.printStackTrace();
@@ -91,6 +95,7 @@ public class AddFilamentsFromKNOSSOS extends CommandColoredEntity {
 		if (!parseArguments(args)) return;
 		Map<String, Object> command_args = new HashMap<>();
 		if(this.project != null) command_args.put("project", this.project);
+		command_args.put("threads", this.threads);
 		command_args.put("input", this.input);
 		command_args.put("name", this.name);
 		command_args.put("color", this.color);
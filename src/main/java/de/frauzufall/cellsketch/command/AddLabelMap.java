@@ -76,6 +76,7 @@ public class AddLabelMap extends CommandColoredEntityWithFilamentConnection {
 		if (!parseArguments(args)) return;
 		Map<String, Object> command_args = new HashMap<>();
 		if(this.project != null) command_args.put("project", this.project);
+		command_args.put("threads", this.threads);
 		command_args.put("input", this.input);
 		command_args.put("name", this.name);
 		command_args.put("color", this.color);
@@ -63,6 +63,30 @@ public class CellSketchAnalyzer extends CommandWithCmdLineParser {
 	@Option(name = "--skip_existing_distance_maps")
 	private boolean skipExistingDistanceMaps = false;
 
+	@Parameter(label = "Max radius of spatial statistics in μm", required = false)
+	@Option(name = "--spatial_stats_max_radius_in_um")
+	private double spatialStatsMaxRadiusInUM = 2;
+
+	@Parameter(label = "Number of radii of spatial statistics", required = false)
+	@Option(name = "--spatial_stats_radius_steps")
+	private int spatialStatsRadiusSteps = 40;
+
+	@Parameter(label = "Number of random simulations for spatial statistics envelopes", required = false)
+	@Option(name = "--spatial_stats_simulations")
+	private int spatialStatsSimulations = 99;
+
+	@Parameter(label = "Bin width of radial profiles in μm", required = false)
+	@Option(name = "--radial_profile_bin_width_in_um")
+	private double radialProfileBinWidthInUM = 0.05;
+
+	@Parameter(label = "Truncation distance of filament distance maps computed from segments in μm (0: distance transform of labels)", required = false)
+	@Option(name = "--filament_distance_truncation_in_um")
+	private double filamentDistanceTruncationInUM = 0;
+
+	@Parameter(label = "Grid spacing of filament density and orientation maps in μm (0: skip)", required = false)
+	@Option(name = "--filament_field_spacing_in_um")
+	private double filamentFieldSpacingInUM = 0;
+
 	@Parameter(required = false)
 	protected CellProject projectObject = null;
 
@@ -84,7 +108,13 @@ public class CellSketchAnalyzer extends CommandWithCmdLineParser {
 				e.printStackTrace();
 			}
 		}
-		new CellAnalyzer(projectObject, skipExistingDistanceMaps, ops, connectedThresholdInUM).analyze();
+		applyThreads(projectObject);
+		CellAnalyzer analyzer = new CellAnalyzer(projectObject, skipExistingDistanceMaps, ops, connectedThresholdInUM);
+		analyzer.setSpatialStatisticsParameters(spatialStatsMaxRadiusInUM, spatialStatsRadiusSteps, spatialStatsSimulations);
+		analyzer.setRadialProfileBinWidthInUM(radialProfileBinWidthInUM);
+		analyzer.setFilamentDistanceTruncationInUM(filamentDistanceTruncationInUM);
+		analyzer.setFilamentFieldSpacingInUM(filamentFieldSpacingInUM);
+		analyzer.analyze();
 		if(!projectExists) {
 			projectObject.dispose();
 		}
@@ -98,8 +128,15 @@ public class CellSketchAnalyzer extends CommandWithCmdLineParser {
 		if (!parseArguments(args)) return;
 		Map<String, Object> command_args = new HashMap<>();
 		if(this.project != null) command_args.put("project", this.project);
+		command_args.put("threads", this.threads);
 		command_args.put("skipExistingDistanceMaps", this.skipExistingDistanceMaps);
 		command_args.put("connectedThresholdInUM", this.connectedThresholdInUM);
+		command_args.put("spatialStatsMaxRadiusInUM", this.spatialStatsMaxRadiusInUM);
+		command_args.put("spatialStatsRadiusSteps", this.spatialStatsRadiusSteps);
+		command_args.put("spatialStatsSimulations", this.spatialStatsSimulations);
+		command_args.put("radialProfileBinWidthInUM", this.radialProfileBinWidthInUM);
+		command_args.put("filamentDistanceTruncationInUM", this.filamentDistanceTruncationInUM);
+		command_args.put("filamentFieldSpacingInUM", this.filamentFieldSpacingInUM);
 		Context context = new Context();
 		context.service(CommandService.class).run(this.getClass(), false, command_args).get();
 		context.dispose();
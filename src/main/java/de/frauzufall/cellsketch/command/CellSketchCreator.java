@@ -82,6 +82,10 @@ public class CellSketchCreator extends CommandWithCmdLineParser {
 	@Option(name = "--pixel_to_um")
 	private double pixelToUM = 0.004 *4;
 
+	@Parameter(label = "Blocks per shard file in each dimension (0: one file per block)", required = false)
+	@Option(name = "--shard_size")
+	private int shardSize = 0;
+
 	@Parameter
 	private Context context;
 
@@ -93,11 +97,14 @@ public class CellSketchCreator extends CommandWithCmdLineParser {
 		context.service(StatusService.class).showStatus("Creating new project in " + parent + File.separator + projectName + "..");
 		CellProject project = new CellProject(parent, projectName, context);
 		project.setEditable(true);
+		applyThreads(project);
+		project.setShardSize(shardSize);
 		project.create(input, pixelToUM, scaleX, scaleY, scaleZ);
 		try {
 			project.getSourceItem().loadConfig();
 			project.getSourceItem().setColor(ARGBType.rgba(130, 130, 130, 255));
 			project.saveConfig();
+			project.getN5Store().flush();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -122,6 +129,8 @@ public class CellSketchCreator extends CommandWithCmdLineParser {
 		command_args.put("scaleY", this.scaleY);
 		command_args.put("scaleZ", this.scaleZ);
 		command_args.put("headless", this.headless);
+		command_args.put("threads", this.threads);
+		command_args.put("shardSize", this.shardSize);
 		CellSketch cellSketch = new CellSketch();
 		if(!headless) {
 			cellSketch.ui().showUI();
@@ -59,6 +59,7 @@ public class CellSketchViewer extends CommandWithCmdLineParser {
 		CellProject project = new CellProject(projectDir, context);
 		try {
 			project.load();
+			applyThreads(project);
 			project.run();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -73,6 +74,7 @@ public class CellSketchViewer extends CommandWithCmdLineParser {
 		if (!parseArguments(args)) return;
 		Map<String, Object> command_args = new HashMap<>();
 		if(this.projectDir != null) command_args.put("projectDir", this.projectDir);
+		command_args.put("threads", this.threads);
 		CellSketch cellSketch = new CellSketch();
 		cellSketch.ui().showUI();
 		cellSketch.command().run(this.getClass(), true, command_args).get();
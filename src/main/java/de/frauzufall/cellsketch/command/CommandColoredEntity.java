@@ -84,6 +84,7 @@ public abstract class CommandColoredEntity extends CommandWithCmdLineParser {
 				e.printStackTrace();
 			}
 		}
+		applyThreads(project);
 		return project;
 	}
 }
@@ -28,15 +28,22 @@
  */
 package de.frauzufall.cellsketch.command;
 
+import de.frauzufall.cellsketch.BdvProject;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
 import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
 import org.scijava.util.ColorRGBA;
 
 import static org.kohsuke.args4j.OptionHandlerFilter.ALL;
 
 public abstract class CommandWithCmdLineParser implements Command {
 
+	@Parameter(label = "Number of threads (0: project setting)", required = false)
+	@Option(name = "--threads")
+	protected int threads = 0;
+
 	protected boolean parseArguments(String[] args) {
 		CmdLineParser.registerHandler(ColorRGBA.class, ColorOptionHandler.class);
 		CmdLineParser parser = new CmdLineParser(this);
@@ -51,4 +58,11 @@ public abstract class CommandWithCmdLineParser implements Command {
 		}
 		return true;
 	}
+
+	/**
+	 * Overrides the number of threads of the project for this run, without changing the project config.
+	 */
+	protected void applyThreads(BdvProject project) {
+		if(threads > 0) project.getExecutors().setThreads(threads);
+	}
 }
@@ -0,0 +1,207 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.model;
+
+import java.util.Arrays;
+
+/**
+ * Undirected skeleton graph in compressed sparse row layout: the neighbors of node {@code n} are
+ * {@code neighbors[offsets[n]]} to {@code neighbors[offsets[n + 1] - 1]}, each edge is stored once per direction.
+ * Node coordinates are stored interleaved (x, y, z) in pixels.
+ */
+public class FilamentGraph {
+
+	private final int[] coordinates;
+	private final int[] offsets;
+	private final int[] neighbors;
+
+	public FilamentGraph(int[] coordinates, int[] offsets, int[] neighbors) {
+		this.coordinates = coordinates;
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+	}
+
+	public int getNodeCount() {
+		return offsets.length - 1;
+	}
+
+	public int getEdgeCount() {
+		return neighbors.length / 2;
+	}
+
+	public int getDegree(int node) {
+		return offsets[node + 1] - offsets[node];
+	}
+
+	public int getNeighbor(int node, int index) {
+		return neighbors[offsets[node] + index];
+	}
+
+	public int getX(int node) {
+		return coordinates[node * 3];
+	}
+
+	public int getY(int node) {
+		return coordinates[node * 3 + 1];
+	}
+
+	public int getZ(int node) {
+		return coordinates[node * 3 + 2];
+	}
+
+	public double getDistance(int node1, int node2) {
+		double dx = getX(node2) - getX(node1);
+		double dy = getY(node2) - getY(node1);
+		double dz = getZ(node2) - getZ(node1);
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	public int[] getCoordinates() {
+		return coordinates;
+	}
+
+	public int[] getOffsets() {
+		return offsets;
+	}
+
+	public int[] getNeighbors() {
+		return neighbors;
+	}
+
+	/**
+	 * @return the index of the connected component of each node, components are numbered from 0 in order of their lowest node index
+	 */
+	public int[] computeComponents() {
+		int[] res = new int[getNodeCount()];
+		Arrays.fill(res, -1);
+		int[] queue = new int[getNodeCount()];
+		int component = 0;
+		for (int start = 0; start < getNodeCount(); start++) {
+			if(res[start] >= 0) continue;
+			int head = 0;
+			int tail = 0;
+			queue[tail++] = start;
+			res[start] = component;
+			while(head < tail) {
+				int node = queue[head++];
+				for (int i = offsets[node]; i < offsets[node + 1]; i++) {
+					int neighbor = neighbors[i];
+					if(res[neighbor] >= 0) continue;
+					res[neighbor] = component;
+					queue[tail++] = neighbor;
+				}
+			}
+			component++;
+		}
+		return res;
+	}
+
+	public static class Builder {
+
+		private int[] coordinates = new int[3 * 1024];
+		private int[] edges = new int[2 * 1024];
+		private int nodes = 0;
+		private int edgeCount = 0;
+
+		/**
+		 * @return the index of the new node
+		 */
+		public int addNode(long x, long y, long z) {
+			if(coordinates.length < (nodes + 1) * 3) {
+				coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+			}
+			coordinates[nodes * 3] = (int) x;
+			coordinates[nodes * 3 + 1] = (int) y;
+			coordinates[nodes * 3 + 2] = (int) z;
+			return nodes++;
+		}
+
+		public int getNodeCount() {
+			return nodes;
+		}
+
+		public int getEdgeCount() {
+			return edgeCount;
+		}
+
+		public Builder addEdge(int node1, int node2) {
+			if(edges.length < (edgeCount + 1) * 2) {
+				edges = Arrays.copyOf(edges, edges.length * 2);
+			}
+			edges[edgeCount * 2] = node1;
+			edges[edgeCount * 2 + 1] = node2;
+			edgeCount++;
+			return this;
+		}
+
+		/**
+		 * Builds the graph, ignoring self loops and duplicate edges.
+		 */
+		public FilamentGraph build() {
+			int[] offsets = new int[nodes + 1];
+			for (int i = 0; i < edgeCount; i++) {
+				int a = edges[i * 2];
+				int b = edges[i * 2 + 1];
+				if(a == b) continue;
+				offsets[a + 1]++;
+				offsets[b + 1]++;
+			}
+			for (int i = 0; i < nodes; i++) {
+				offsets[i + 1] += offsets[i];
+			}
+			int[] neighbors = new int[offsets[nodes]];
+			int[] fill = Arrays.copyOf(offsets, nodes);
+			for (int i = 0; i < edgeCount; i++) {
+				int a = edges[i * 2];
+				int b = edges[i * 2 + 1];
+				if(a == b) continue;
+				neighbors[fill[a]++] = b;
+				neighbors[fill[b]++] = a;
+			}
+			// sort each row and remove duplicate edges
+			int[] compactOffsets = new int[nodes + 1];
+			int size = 0;
+			for (int node = 0; node < nodes; node++) {
+				Arrays.sort(neighbors, offsets[node], offsets[node + 1]);
+				int previous = -1;
+				for (int i = offsets[node]; i < offsets[node + 1]; i++) {
+					int neighbor = neighbors[i];
+					if(neighbor == previous) continue;
+					neighbors[size++] = neighbor;
+					previous = neighbor;
+				}
+				compactOffsets[node + 1] = size;
+			}
+			return new FilamentGraph(
+					Arrays.copyOf(coordinates, nodes * 3),
+					compactOffsets,
+					Arrays.copyOf(neighbors, size));
+		}
+	}
+}
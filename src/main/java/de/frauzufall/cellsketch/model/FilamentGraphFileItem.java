@@ -0,0 +1,90 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.model;
+
+import de.frauzufall.cellsketch.BdvProject;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Stores a {@link FilamentGraph} as three one dimensional N5 datasets inside the project.
+ */
+public class FilamentGraphFileItem extends FileItem {
+
+	private static final String coordinatesDataset = "coordinates";
+	private static final String offsetsDataset = "offsets";
+	private static final String neighborsDataset = "neighbors";
+	private static final String nodeCountKey = "nodeCount";
+	private static final String neighborCountKey = "neighborCount";
+	private static final int blockSize = 3 * 65536;
+
+	public FilamentGraphFileItem(BdvProject project, String defaultFileName, boolean deletable) {
+		super(project, defaultFileName, deletable);
+	}
+
+	@Override
+	public boolean exists() {
+		if(!super.exists()) return false;
+		try {
+			N5Reader reader = project().getN5Store().getReader();
+			boolean res = reader.datasetExists(getPath(neighborsDataset));
+			return res;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public void write(FilamentGraph graph) throws IOException {
+		N5Writer writer = project().getN5Store().getWriter();
+		if(writer.exists(getDefaultFileName())) writer.remove(getDefaultFileName());
+		N5Arrays.writeInts(writer, getPath(coordinatesDataset), graph.getCoordinates(), blockSize);
+		N5Arrays.writeInts(writer, getPath(offsetsDataset), graph.getOffsets(), blockSize);
+		N5Arrays.writeInts(writer, getPath(neighborsDataset), graph.getNeighbors(), blockSize);
+		writer.setAttribute(getDefaultFileName(), nodeCountKey, graph.getNodeCount());
+		writer.setAttribute(getDefaultFileName(), neighborCountKey, graph.getNeighbors().length);
+	}
+
+	public FilamentGraph read() throws IOException {
+		N5Reader reader = project().getN5Store().getReader();
+		int nodeCount = reader.getAttribute(getDefaultFileName(), nodeCountKey, Integer.class);
+		int neighborCount = reader.getAttribute(getDefaultFileName(), neighborCountKey, Integer.class);
+		FilamentGraph res = new FilamentGraph(
+				N5Arrays.readInts(reader, getPath(coordinatesDataset), nodeCount * 3),
+				N5Arrays.readInts(reader, getPath(offsetsDataset), nodeCount + 1),
+				N5Arrays.readInts(reader, getPath(neighborsDataset), neighborCount));
+		return res;
+	}
+
+	private String getPath(String dataset) {
+		return getDefaultFileName() + File.separator + dataset;
+	}
+}
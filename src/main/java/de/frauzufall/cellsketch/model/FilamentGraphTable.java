@@ -0,0 +1,45 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.model;
+
+public class FilamentGraphTable {
+
+	public static String getComponentColumnName() { return "component"; }
+	public static String getNodeCountColumnName() { return "node count"; }
+	public static String getEdgeCountColumnName() { return "edge count"; }
+	public static String getEndPointCountColumnName() { return "end points"; }
+	public static String getBranchPointCountColumnName() { return "branch points"; }
+	public static String getBranchCountColumnName() { return "branches"; }
+	public static String getTotalLengthColumnName() { return "total length in um"; }
+	public static String getMeanBranchLengthColumnName() { return "mean branch length in um"; }
+	public static String getLengthColumnName() { return "length in um"; }
+	public static String getStartDegreeColumnName() { return "degree of start node"; }
+	public static String getEndDegreeColumnName() { return "degree of end node"; }
+	public static String getBranchTypeColumnName() { return "type"; }
+}
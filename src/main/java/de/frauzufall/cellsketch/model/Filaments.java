@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.model;
+
+import java.util.Arrays;
+
+/**
+ * Columnar representation of filaments: the pixel coordinates of all points are stored interleaved (x, y, z)
+ * in one primitive array, the points of filament {@code i} are the ones from {@code offsets[i]}
+ * (inclusive) to {@code offsets[i + 1]} (exclusive).
+ */
+public class Filaments {
+
+	private final int[] coordinates;
+	private final long[] offsets;
+	private final long[] dimensions;
+
+	public Filaments(int[] coordinates, long[] offsets, long[] dimensions) {
+		this.coordinates = coordinates;
+		this.offsets = offsets;
+		this.dimensions = dimensions;
+	}
+
+	public int getFilamentCount() {
+		return offsets.length - 1;
+	}
+
+	public int getPointCount() {
+		return (int) offsets[offsets.length - 1];
+	}
+
+	public int getPointCount(int filament) {
+		return (int) (offsets[filament + 1] - offsets[filament]);
+	}
+
+	/**
+	 * @return the index of the first point of the filament, the remaining points follow consecutively
+	 */
+	public int getFirstPoint(int filament) {
+		return (int) offsets[filament];
+	}
+
+	public int getX(int point) {
+		return coordinates[point * 3];
+	}
+
+	public int getY(int point) {
+		return coordinates[point * 3 + 1];
+	}
+
+	public int getZ(int point) {
+		return coordinates[point * 3 + 2];
+	}
+
+	public int[] getCoordinates() {
+		return coordinates;
+	}
+
+	public long[] getOffsets() {
+		return offsets;
+	}
+
+	public long[] getDimensions() {
+		return dimensions;
+	}
+
+	public static class Builder {
+
+		private int[] coordinates = new int[3 * 1024];
+		private long[] offsets = new long[16];
+		private int points = 0;
+		private int filaments = 0;
+
+		public Builder addPoint(long x, long y, long z) {
+			if(coordinates.length < (points + 1) * 3) {
+				coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+			}
+			coordinates[points * 3] = (int) x;
+			coordinates[points * 3 + 1] = (int) y;
+			coordinates[points * 3 + 2] = (int) z;
+			points++;
+			return this;
+		}
+
+		/**
+		 * Finishes the current filament, consisting of all points added since the last call.
+		 * Calls without any new points are ignored.
+		 */
+		public Builder endFilament() {
+			if(points == offsets[filaments]) return this;
+			if(offsets.length < filaments + 2) {
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			}
+			filaments++;
+			offsets[filaments] = points;
+			return this;
+		}
+
+		public Filaments build(long[] dimensions) {
+			endFilament();
+			return new Filaments(
+					Arrays.copyOf(coordinates, points * 3),
+					Arrays.copyOf(offsets, filaments + 1),
+					dimensions.clone());
+		}
+	}
+}
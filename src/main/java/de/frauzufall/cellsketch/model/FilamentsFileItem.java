@@ -0,0 +1,150 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.model;
+
+import de.frauzufall.cellsketch.BdvProject;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Stores {@link Filaments} as two one dimensional N5 datasets inside the project,
+ * one with the interleaved point coordinates and one with the offsets of each filament.
+ */
+public class FilamentsFileItem extends FileItem {
+
+	public interface FilamentVisitor {
+		/**
+		 * @param filament the index of the filament
+		 * @param coordinates the interleaved (x, y, z) coordinates of the filament points, only valid during this call
+		 * @param pointCount the number of points of the filament
+		 */
+		void accept(int filament, int[] coordinates, int pointCount) throws IOException;
+	}
+
+	private static final String coordinatesDataset = "coordinates";
+	private static final String offsetsDataset = "offsets";
+	private static final String dimensionsKey = "dimensions";
+	private static final String filamentCountKey = "filamentCount";
+	private static final String pointCountKey = "pointCount";
+	private static final int coordinatesBlockSize = 3 * 65536;
+	private static final int offsetsBlockSize = 65536;
+
+	public FilamentsFileItem(BdvProject project, String defaultFileName, boolean deletable) {
+		super(project, defaultFileName, deletable);
+	}
+
+	@Override
+	public boolean exists() {
+		if(!super.exists()) return false;
+		try {
+			N5Reader reader = project().getN5Store().getReader();
+			boolean res = reader.datasetExists(getOffsetsPath());
+			return res;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public void write(Filaments filaments) throws IOException {
+		N5Writer writer = project().getN5Store().getWriter();
+		if(writer.exists(getDefaultFileName())) writer.remove(getDefaultFileName());
+		N5Arrays.writeInts(writer, getCoordinatesPath(), filaments.getCoordinates(), coordinatesBlockSize);
+		N5Arrays.writeLongs(writer, getOffsetsPath(), filaments.getOffsets(), offsetsBlockSize);
+		writer.setAttribute(getDefaultFileName(), dimensionsKey, filaments.getDimensions());
+		writer.setAttribute(getDefaultFileName(), filamentCountKey, filaments.getFilamentCount());
+		writer.setAttribute(getDefaultFileName(), pointCountKey, filaments.getPointCount());
+	}
+
+	public Filaments read() throws IOException {
+		N5Reader reader = project().getN5Store().getReader();
+		long[] offsets = readOffsets(reader);
+		int[] coordinates = N5Arrays.readInts(reader, getCoordinatesPath(), (int) offsets[offsets.length - 1] * 3);
+		long[] dimensions = reader.getAttribute(getDefaultFileName(), dimensionsKey, long[].class);
+		return new Filaments(coordinates, offsets, dimensions);
+	}
+
+	/**
+	 * Visits the filaments one by one in index order, loading only one block of coordinates at a time.
+	 */
+	public void iterate(FilamentVisitor visitor) throws IOException {
+		N5Reader reader = project().getN5Store().getReader();
+		long[] offsets = readOffsets(reader);
+		DatasetAttributes attributes = reader.getDatasetAttributes(getCoordinatesPath());
+		int[] buffer = new int[3 * 1024];
+		int[] block = null;
+		long blockStart = 0;
+		for (int filament = 0; filament < offsets.length - 1; filament++) {
+			long from = offsets[filament] * 3;
+			long to = offsets[filament + 1] * 3;
+			if(buffer.length < to - from) buffer = new int[(int) (to - from)];
+			for (long i = from; i < to; ) {
+				if(block == null || i >= blockStart + block.length) {
+					long blockIndex = i / coordinatesBlockSize;
+					block = (int[]) reader.readBlock(getCoordinatesPath(), attributes, blockIndex).getData();
+					blockStart = blockIndex * coordinatesBlockSize;
+				}
+				int count = (int) Math.min(to - i, blockStart + block.length - i);
+				System.arraycopy(block, (int) (i - blockStart), buffer, (int) (i - from), count);
+				i += count;
+			}
+			visitor.accept(filament, buffer, (int) (offsets[filament + 1] - offsets[filament]));
+		}
+	}
+
+	public long[] getDimensions() throws IOException {
+		N5Reader reader = project().getN5Store().getReader();
+		long[] dimensions = reader.getAttribute(getDefaultFileName(), dimensionsKey, long[].class);
+		return dimensions;
+	}
+
+	public void importJson(File input) throws IOException {
+		write(FilamentsJson.read(input));
+	}
+
+	public void exportJson(File output) throws IOException {
+		FilamentsJson.write(read(), output);
+	}
+
+	private long[] readOffsets(N5Reader reader) throws IOException {
+		Integer filamentCount = reader.getAttribute(getDefaultFileName(), filamentCountKey, Integer.class);
+		return N5Arrays.readLongs(reader, getOffsetsPath(), filamentCount + 1);
+	}
+
+	private String getCoordinatesPath() {
+		return getDefaultFileName() + File.separator + coordinatesDataset;
+	}
+
+	private String getOffsetsPath() {
+		return getDefaultFileName() + File.separator + offsetsDataset;
+	}
+}
@@ -29,15 +29,43 @@
 package de.frauzufall.cellsketch.model;
 
 import de.frauzufall.cellsketch.BdvProject;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.io.File;
+import java.io.IOException;
 
 public class FilamentsItemGroup extends LabelMapItemGroup {
 	private final FileItem yamlItem;
+	private final FilamentsFileItem filamentsItem;
+	private final FilamentGraphFileItem graphItem;
+	private final TableFileItem componentsItem;
+	private final TableFileItem branchesItem;
 	private final LabelTagItem tagLength;
 	private final LabelTagItem tagTortuosity;
+	private final FilamentsOverlayItem overlayItem;
+	private final ImageFileItem<FloatType> densityItem;
+	private final ImageFileItem<FloatType> orientationItem;
 
 	public FilamentsItemGroup(BdvProject project, String name, String yamlPath, String path) {
 		super(project, name, path);
 		this.yamlItem = new FileItem(project, yamlPath, true);
+		this.filamentsItem = new FilamentsFileItem(project, path + "_filaments", true);
+		this.graphItem = new FilamentGraphFileItem(project, path + "_graph", true);
+		this.componentsItem = new TableFileItem(project, File.separator + "analysis" + getLabelMap().getDefaultFileName() + "_components.csv", true);
+		this.componentsItem.setName(getLabelMap().getName() + " network components");
+		this.branchesItem = new TableFileItem(project, File.separator + "analysis" + getLabelMap().getDefaultFileName() + "_branches.csv", true);
+		this.branchesItem.setName(getLabelMap().getName() + " network branches");
+		this.overlayItem = new FilamentsOverlayItem(project, this);
+		this.overlayItem.setName(name + " lines");
+		this.densityItem = new ImageFileItem<>(project, File.separator + "analysis" + getLabelMap().getDefaultFileName() + "_density", true);
+		this.densityItem.setName(name + " length density");
+		this.orientationItem = new ImageFileItem<>(project, File.separator + "analysis" + getLabelMap().getDefaultFileName() + "_orientation", true);
+		this.orientationItem.setName(name + " orientation order");
+		this.getItems().add(overlayItem);
+		this.getItems().add(densityItem);
+		this.getItems().add(orientationItem);
+		this.getItems().add(componentsItem);
+		this.getItems().add(branchesItem);
 		this.tagLength = addLabelIfNotExists(FilamentsTable.getLengthColumnName(), Double.class, true);
 		this.tagTortuosity = addLabelIfNotExists(FilamentsTable.getTortuosityColumnName(), Double.class, true);
 	}
@@ -46,6 +74,57 @@ public class FilamentsItemGroup extends LabelMapItemGroup {
 		return yamlItem;
 	}
 
+	public FilamentsFileItem getFilaments() {
+		return filamentsItem;
+	}
+
+	/**
+	 * @return the skeleton graph of the filaments, including branches, as imported from KNOSSOS
+	 */
+	public FilamentGraphFileItem getGraph() {
+		return graphItem;
+	}
+
+	/**
+	 * @return the filaments drawn as lines in BDV, without the rendered label map
+	 */
+	public FilamentsOverlayItem getOverlay() {
+		return overlayItem;
+	}
+
+	/**
+	 * @return the coarse map of filament length per volume in µm / µm³
+	 */
+	public ImageFileItem<FloatType> getDensity() {
+		return densityItem;
+	}
+
+	/**
+	 * @return the coarse map of filament orientation, one channel per entry of {@link de.frauzufall.cellsketch.analysis.FilamentFieldMap#ORIENTATION_CHANNELS}
+	 */
+	public ImageFileItem<FloatType> getOrientation() {
+		return orientationItem;
+	}
+
+	public TableFileItem getComponentStats() {
+		return componentsItem;
+	}
+
+	public TableFileItem getBranchStats() {
+		return branchesItem;
+	}
+
+	/**
+	 * Imports the filaments of projects created before filaments were stored in N5 from their JSON file.
+	 * @return true if the filaments exist after the import
+	 */
+	public boolean importLegacyFilaments() throws IOException {
+		if(filamentsItem.exists()) return true;
+		if(!yamlItem.exists()) return false;
+		filamentsItem.importJson(yamlItem.getFile());
+		return true;
+	}
+
 	public LabelTagItem getTagLength() {
 		return tagLength;
 	}
@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.model;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader and writer of the legacy filaments JSON format (the {@code .yml} files of older projects):
+ * {@code {"dimensions": [x, y, z], "lines": [[[x, y, z], ...], ...]}}.
+ */
+public class FilamentsJson {
+
+	private static final String dimensionsKey = "dimensions";
+	private static final String linesKey = "lines";
+
+	public static Filaments read(File input) throws IOException {
+		Filaments.Builder builder = new Filaments.Builder();
+		long[] dimensions = new long[3];
+		try (JsonReader reader = new JsonReader(new BufferedReader(new FileReader(input)))) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if(name.equals(dimensionsKey)) {
+					List<Long> values = new ArrayList<>();
+					reader.beginArray();
+					while (reader.hasNext()) {
+						values.add(reader.nextLong());
+					}
+					reader.endArray();
+					if(values.size() != dimensions.length) {
+						throw new IOException("Expected " + dimensions.length + " dimensions in " + input + ", found " + values.size());
+					}
+					for (int i = 0; i < dimensions.length; i++) {
+						dimensions[i] = values.get(i);
+					}
+				} else if(name.equals(linesKey)) {
+					reader.beginArray();
+					while (reader.hasNext()) {
+						reader.beginArray();
+						while (reader.hasNext()) {
+							reader.beginArray();
+							builder.addPoint(reader.nextLong(), reader.nextLong(), reader.nextLong());
+							reader.endArray();
+						}
+						reader.endArray();
+						builder.endFilament();
+					}
+					reader.endArray();
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		}
+		return builder.build(dimensions);
+	}
+
+	public static void write(Filaments filaments, File output) throws IOException {
+		try (JsonWriter writer = new JsonWriter(new BufferedWriter(new FileWriter(output)))) {
+			writer.beginObject();
+			writer.name(dimensionsKey).beginArray();
+			for (long dimension : filaments.getDimensions()) {
+				writer.value(dimension);
+			}
+			writer.endArray();
+			writer.name(linesKey).beginArray();
+			for (int filament = 0; filament < filaments.getFilamentCount(); filament++) {
+				writer.beginArray();
+				int first = filaments.getFirstPoint(filament);
+				for (int point = first; point < first + filaments.getPointCount(filament); point++) {
+					writer.beginArray()
+							.value(filaments.getX(point))
+							.value(filaments.getY(point))
+							.value(filaments.getZ(point))
+							.endArray();
+				}
+				writer.endArray();
+			}
+			writer.endArray();
+			writer.endObject();
+		}
+	}
+}
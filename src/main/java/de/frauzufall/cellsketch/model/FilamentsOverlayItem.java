@@ -0,0 +1,207 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.model;
+
+import bdv.util.BdvFunctions;
+import bdv.util.BdvHandle;
+import bdv.util.BdvOptions;
+import bdv.util.BdvSource;
+import de.frauzufall.cellsketch.BdvProject;
+import de.frauzufall.cellsketch.ui.FilamentsOverlay;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.ARGBType;
+import org.scijava.app.StatusService;
+import org.scijava.table.Table;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static de.frauzufall.cellsketch.analysis.LabelMapAnalyzer.getColumnIndex;
+
+/**
+ * Displays filaments as lines in BDV, drawn from the filament store instead of the rendered label map.
+ */
+public class FilamentsOverlayItem extends AbstractItem implements DisplayableInBdv {
+
+	private final BdvProject project;
+	private final FilamentsItemGroup filaments;
+	private boolean visible = false;
+	private List<BdvSource> sources = new ArrayList<>();
+	private FilamentsOverlay overlay;
+	private LabelTagItem colorTag = null;
+	private int filamentCount = 0;
+	private double depth = 10;
+
+	FilamentsOverlayItem(BdvProject project, FilamentsItemGroup filaments) {
+		this.project = project;
+		this.filaments = filaments;
+		getActions().add(new DefaultAction(
+				"Color by length",
+				Collections.singletonList(this),
+				() -> setColorTag(filaments.getTagLength())
+		));
+		getActions().add(new DefaultAction(
+				"Color by tortuosity",
+				Collections.singletonList(this),
+				() -> setColorTag(filaments.getTagTortuosity())
+		));
+		getActions().add(new DefaultAction(
+				"Uniform color",
+				Collections.singletonList(this),
+				() -> setColorTag(null)
+		));
+	}
+
+	/**
+	 * @param depth filament segments further away from the viewer plane than this (in pixels) are not drawn
+	 */
+	public void setDepth(double depth) {
+		this.depth = depth;
+	}
+
+	/**
+	 * @param tag the tag the filaments are colored by, or null to color all filaments the same
+	 */
+	public void setColorTag(LabelTagItem tag) {
+		this.colorTag = tag;
+		updateBdvColor();
+	}
+
+	@Override
+	public boolean exists() {
+		return filaments.getFilaments().exists();
+	}
+
+	@Override
+	public int getColor() {
+		return filaments.getLabelMap().getColor();
+	}
+
+	@Override
+	public void setColor(int color) {
+		filaments.getLabelMap().setColor(color);
+	}
+
+	@Override
+	public void addToBdv() {
+		if(isVisible() || !exists()) return;
+		BdvHandle bdv = project.viewer().getBdv();
+		try {
+			project.context().service(StatusService.class).showStatus("Adding filament overlay to BDV: " + getName());
+			// the filaments are stored in pixel coordinates of the source image, which is displayed first
+			AffineTransform3D sourceTransform = new AffineTransform3D();
+			bdv.getViewerPanel().state().getSources().get(0).getSpimSource().getSourceTransform(0, 0, sourceTransform);
+			Filaments data = filaments.getFilaments().read();
+			filamentCount = data.getFilamentCount();
+			overlay = new FilamentsOverlay(data, sourceTransform, depth);
+			sources = new ArrayList<>();
+			sources.add(BdvFunctions.showOverlay(overlay, getName(), BdvOptions.options().addTo(bdv)));
+			setVisible(true);
+			updateBdvColor();
+			project.updateUI();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void removeFromBdv() {
+		DisplayableInBdv.super.removeFromBdv();
+		overlay = null;
+		setVisible(false);
+	}
+
+	@Override
+	public void updateBdvColor() {
+		if(overlay == null) return;
+		overlay.setColor(getColor());
+		overlay.setColors(colorTag == null ? null : getColors(colorTag));
+		project.viewer().getBdv().getViewerPanel().requestRepaint();
+	}
+
+	/**
+	 * Maps the tag value of each filament to a color between the filament color and the tag color.
+	 */
+	private int[] getColors(LabelTagItem tag) {
+		TableFileItem tableItem = tag.getReferenceTable();
+		if(!tableItem.exists()) return null;
+		Table table = tableItem.getTable();
+		if(table == null) return null;
+		int column = getColumnIndex(table, tag.getReferenceColumnName());
+		int[] res = new int[filamentCount];
+		Arrays.fill(res, getColor());
+		double range = tag.getMaxValue() - tag.getMinValue();
+		for (int row = 0; row < table.getRowCount(); row++) {
+			Object value = table.get(column, row);
+			if(value == null || value.toString().isEmpty()) continue;
+			int filament = Integer.parseInt(table.getRowHeader(row)) - 1;
+			if(filament < 0 || filament >= res.length) continue;
+			double t = range <= 0 ? 1 : (Double.parseDouble(value.toString()) - tag.getMinValue()) / range;
+			t = Math.max(0, Math.min(1, t));
+			if(!tag.getColorMax()) t = 1 - t;
+			res[filament] = interpolate(getColor(), tag.getColor(), t);
+		}
+		return res;
+	}
+
+	private static int interpolate(int color1, int color2, double t) {
+		return ARGBType.rgba(
+				interpolate(ARGBType.red(color1), ARGBType.red(color2), t),
+				interpolate(ARGBType.green(color1), ARGBType.green(color2), t),
+				interpolate(ARGBType.blue(color1), ARGBType.blue(color2), t),
+				interpolate(ARGBType.alpha(color1), ARGBType.alpha(color2), t));
+	}
+
+	private static int interpolate(int value1, int value2, double t) {
+		return (int) Math.round(value1 + t * (value2 - value1));
+	}
+
+	@Override
+	public void setVisible(boolean visible) {
+		this.visible = visible;
+	}
+
+	@Override
+	public boolean isVisible() {
+		return visible;
+	}
+
+	@Override
+	public List<BdvSource> getSources() {
+		return sources;
+	}
+
+	@Override
+	public void setSources(List<BdvSource> sources) {
+		this.sources = sources;
+	}
+}
@@ -36,4 +36,7 @@ public class FilamentsTable {
 	public static String getDistanceEnd1ToColumnName(String other) { return "distance of MT end 1 to " + other + " in um"; }
 	public static String getDistanceEnd2ToColumnName(String other) { return "distance of MT end 2 to " + other + " in um"; }
 	public static String getConnectedToColumnName(String other) { return "connected to " + other; }
+	public static String getMinDistanceAlongPathToColumnName(String other) { return "min distance along path to " + other + " in um"; }
+	public static String getContactLengthWithColumnName(String other) { return "length in contact with " + other + " in um"; }
+	public static String getClosestSegmentToColumnName(String other) { return "segment closest to " + other; }
 }
@@ -28,8 +28,6 @@
  */
 package de.frauzufall.cellsketch.model;
 
-import org.janelia.saalfeldlab.n5.N5FSReader;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import de.frauzufall.cellsketch.BdvProject;
@@ -81,9 +79,8 @@ public class FileItem extends AbstractItem {
 	@Override
 	public void loadConfig() throws IOException {
 		if(!new File(getConfigPath()).exists()) return;
-		N5Reader reader = new N5FSReader(getConfigPath());
+		N5Reader reader = project().getN5Store().getReader(getConfigPath());
 		readAttributes(reader);
-		reader.close();
 	}
 
 	protected void readAttributes(N5Reader reader) throws IOException {}
@@ -95,9 +92,8 @@ public class FileItem extends AbstractItem {
 	@Override
 	public void saveConfig() throws IOException {
 		if(!new File(getConfigPath()).exists()) return;
-		N5Writer writer = new N5FSWriter(getConfigPath());
+		N5Writer writer = project().getN5Store().getWriter(getConfigPath());
 		writeAttributes(writer);
-		writer.close();
 		project.context().service(StatusService.class).showStatus("written config to " + getConfigPath());
 	}
 
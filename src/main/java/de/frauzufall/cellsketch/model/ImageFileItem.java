@@ -29,22 +29,28 @@
 package de.frauzufall.cellsketch.model;
 
 import bdv.util.BdvSource;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.cache.img.CachedCellImg;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.NumericType;
-import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.ui.DataSelection;
 import de.frauzufall.cellsketch.BdvProject;
+import de.frauzufall.cellsketch.n5.BlockOccupancy;
+import de.frauzufall.cellsketch.n5.BlockSummaryIndex;
+import de.frauzufall.cellsketch.n5.DatasetKind;
 import org.scijava.app.StatusService;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 
 public class ImageFileItem<T extends NumericType<T>> extends FileItem implements DisplayableInBdv {
 
@@ -53,11 +59,23 @@ public class ImageFileItem<T extends NumericType<T>> extends FileItem implements
 	private boolean visible = false;
 	protected Double max;
 	protected Double min;
+	private DatasetKind datasetKind = DatasetKind.SOURCE;
 
 	public ImageFileItem(BdvProject app, String defaultFileName, boolean deletable) {
 		super(app, defaultFileName, deletable);
 	}
 
+	public DatasetKind getDatasetKind() {
+		return datasetKind;
+	}
+
+	/**
+	 * @param datasetKind decides which per project defaults, e.g. the compression policy, are used when saving the image
+	 */
+	public void setDatasetKind(DatasetKind datasetKind) {
+		this.datasetKind = datasetKind;
+	}
+
 	public RandomAccessibleInterval<T> getImage() {
 		if(exists() && img == null) {
 			try {
@@ -74,7 +92,7 @@ public class ImageFileItem<T extends NumericType<T>> extends FileItem implements
 	public boolean load() throws IOException {
 		DataSelection selection = project().getDataSelection(getDefaultFileName());
 		if(selection != null) {
-			CachedCellImg img = N5Utils.open(new N5FSReader(project().getProjectDir().getAbsolutePath()), this.getDefaultFileName());
+			CachedCellImg img = N5Utils.open(project().getN5Store().getReader(), this.getDefaultFileName());
 			setImage(img);
 			loadConfig();
 			return true;
@@ -92,6 +110,43 @@ public class ImageFileItem<T extends NumericType<T>> extends FileItem implements
 		this.img = img;
 	}
 
+	/**
+	 * @return the intervals of the blocks of the image which contain foreground, all blocks if the dataset was written
+	 * without {@link BlockOccupancy}, the whole image if it is not stored yet
+	 */
+	public List<Interval> getOccupiedBlocks() throws IOException {
+		RandomAccessibleInterval<T> image = getImage();
+		if(image == null) return Collections.emptyList();
+		N5Reader reader = project().getN5Store().getReader();
+		if(!reader.datasetExists(getDefaultFileName())) return Collections.singletonList(image);
+		int[] blockSize = reader.getDatasetAttributes(getDefaultFileName()).getBlockSize();
+		return BlockOccupancy.read(reader, getDefaultFileName()).getOccupiedIntervals(image, blockSize);
+	}
+
+	/**
+	 * @return the block summary stored with the dataset, null if there is none
+	 */
+	public BlockSummaryIndex getBlockSummary() throws IOException {
+		N5Reader reader = project().getN5Store().getReader();
+		if(!reader.datasetExists(getDefaultFileName())) return null;
+		return BlockSummaryIndex.read(reader, getDefaultFileName());
+	}
+
+	/**
+	 * Creates a plan for querying this and other images with the same block grid at many points.
+	 * @param coordinates the interleaved (x, y, z) pixel coordinates of the queries
+	 */
+	public PointQueryPlan createQueryPlan(int[] coordinates, int count) {
+		return new PointQueryPlan(coordinates, count, getImage());
+	}
+
+	/**
+	 * @return the value of this image at each query point of the plan, NaN for points outside of the image
+	 */
+	public float[] query(PointQueryPlan plan, ExecutorService executor) throws InterruptedException, ExecutionException {
+		return plan.evaluate((RandomAccessibleInterval) getImage(), executor);
+	}
+
 	@Override
 	public boolean save() throws IOException {
 		return saveImage();
@@ -99,7 +154,7 @@ public class ImageFileItem<T extends NumericType<T>> extends FileItem implements
 
 	protected boolean saveImage() throws IOException {
 		project().context().service(StatusService.class).showStatus("Saving loaded " + getName() + " dataset to " + getDefaultFileName() + "..");
-		project().writeImage(getDefaultFileName(), getImage(), null, null, this.min, this.max);
+		project().writeImage(getDefaultFileName(), getImage(), datasetKind, null, null, this.min, this.max);
 		setFile(new File(project().getProjectDir(), getDefaultFileName()));
 		project().updateUI();
 		project().context().service(StatusService.class).showStatus("Successfully saved " + getName() + ".");
@@ -28,6 +28,7 @@
  */
 package de.frauzufall.cellsketch.model;
 
+import de.frauzufall.cellsketch.n5.DatasetKind;
 import net.imagej.ops.OpService;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converters;
@@ -60,6 +61,7 @@ public class LabelMapFileItem<T extends IntegerType<T>> extends ImageFileItem<T>
 
 	public LabelMapFileItem(BdvProject app, String defaultName, boolean deletable) {
 		super(app, defaultName, deletable);
+		setDatasetKind(DatasetKind.LABEL_MAP);
 	}
 
 	public List<LabelTagItem> getTagItems() {
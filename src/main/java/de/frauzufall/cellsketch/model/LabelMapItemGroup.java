@@ -28,10 +28,9 @@
  */
 package de.frauzufall.cellsketch.model;
 
+import de.frauzufall.cellsketch.n5.DatasetKind;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.real.FloatType;
-import org.janelia.saalfeldlab.n5.N5FSReader;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import de.frauzufall.cellsketch.BdvProject;
@@ -47,6 +46,8 @@ public class LabelMapItemGroup<T extends IntegerType<T>> extends BdvItemGroup im
 	private final LabelMapFileItem<T> labelMapItem;
 	private final TableFileItem statsItem;
 	private final TableFileItem individualStatsItem;
+	private final TableFileItem spatialStatsItem;
+	private final TableFileItem radialProfileItem;
 	private Double connectedToFilamentsEndThresholdInUM = null;
 
 	public LabelMapItemGroup(BdvProject project, String name, String path) {
@@ -54,21 +55,28 @@ public class LabelMapItemGroup<T extends IntegerType<T>> extends BdvItemGroup im
 		this.labelMapItem = new LabelMapFileItem(project, path, false);
 		this.labelMapItem.setName(name + " labels");
 		this.distanceMapItem = new ImageFileItem<>(project, File.separator + "analysis" + labelMapItem.getDefaultFileName() + "_distance_map", true);
+		this.distanceMapItem.setDatasetKind(DatasetKind.DISTANCE_MAP);
 		this.distanceMapItem.setName(name + " distance map");
 		this.statsItem = new TableFileItem(project, File.separator + "analysis" + labelMapItem.getDefaultFileName() + ".csv", true);
 		this.statsItem.setName(labelMapItem.getName() + " statistics");
 		this.individualStatsItem = new TableFileItem(project, File.separator + "analysis" + labelMapItem.getDefaultFileName() + "_individual.csv", true);
 		this.individualStatsItem.setName(labelMapItem.getName() + " individual statistics");
+		this.spatialStatsItem = new TableFileItem(project, File.separator + "analysis" + labelMapItem.getDefaultFileName() + "_spatial.csv", true);
+		this.spatialStatsItem.setName(labelMapItem.getName() + " spatial statistics");
+		this.radialProfileItem = new TableFileItem(project, File.separator + "analysis" + labelMapItem.getDefaultFileName() + "_radial_profile.csv", true);
+		this.radialProfileItem.setName(labelMapItem.getName() + " radial profile");
 		this.getItems().add(labelMapItem);
 		this.getItems().add(distanceMapItem);
 		this.getItems().add(statsItem);
 		this.getItems().add(individualStatsItem);
+		this.getItems().add(spatialStatsItem);
+		this.getItems().add(radialProfileItem);
 	}
 
 	@Override
 	public void loadConfig() throws IOException {
 		super.loadConfig();
-		N5Reader reader = new N5FSReader(getConfigPath());
+		N5Reader reader = project.getN5Store().getReader(getConfigPath());
 		if(reader.exists(File.separator)) {
 			Map<String, Map> tags = reader.getAttribute(File.separator, "tags", Map.class);
 			if(tags != null) {
@@ -82,13 +90,12 @@ public class LabelMapItemGroup<T extends IntegerType<T>> extends BdvItemGroup im
 				}
 			}
 		}
-		reader.close();
 	}
 
 	@Override
 	public void saveConfig() throws IOException {
 		super.saveConfig();
-		N5Writer writer = new N5FSWriter(getConfigPath());
+		N5Writer writer = project.getN5Store().getWriter(getConfigPath());
 		Map<String, Map<String, String>> tags = new HashMap<>();
 		for(LabelTagItem tag: labelMapItem.getTagItems()) {
 			Map<String, String> tagProperties = new HashMap<>();
@@ -102,7 +109,6 @@ public class LabelMapItemGroup<T extends IntegerType<T>> extends BdvItemGroup im
 			tags.put(tag.getName(), tagProperties);
 		}
 		writer.setAttribute(File.separator, "tags", tags);
-		writer.close();
 		project.context().service(StatusService.class).showStatus("written config to " + getConfigPath());
 	}
 
@@ -131,6 +137,14 @@ public class LabelMapItemGroup<T extends IntegerType<T>> extends BdvItemGroup im
 		return individualStatsItem;
 	}
 
+	public TableFileItem getSpatialStats() {
+		return spatialStatsItem;
+	}
+
+	public TableFileItem getRadialProfile() {
+		return radialProfileItem;
+	}
+
 	@Override
 	public ImageFileItem<FloatType> getDistanceMap() {
 		return distanceMapItem;
@@ -34,10 +34,13 @@ public class LabelMapTable {
 	private static final String connectedToStr = "connected to ";
 	private static final String distanceToStrStart = "distance to ";
 	private static final String distanceToStrEnd = " in um";
+	private static final String centroidStr = "centroid ";
+	private static final String centroidStrEnd = " in um";
 
 	public static String getSizeColumnName() {
 		return size;
 	}
 	public static String getConnectedToColumnName(String other) { return connectedToStr + other; }
 	public static String getDistanceToColumnName(String other) { return distanceToStrStart + other + distanceToStrEnd; }
+	public static String getCentroidColumnName(String axis) { return centroidStr + axis + centroidStrEnd; }
 }
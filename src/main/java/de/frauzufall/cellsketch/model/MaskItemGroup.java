@@ -28,9 +28,8 @@
  */
 package de.frauzufall.cellsketch.model;
 
+import de.frauzufall.cellsketch.n5.DatasetKind;
 import net.imglib2.type.numeric.real.FloatType;
-import org.janelia.saalfeldlab.n5.N5FSReader;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import de.frauzufall.cellsketch.BdvProject;
@@ -42,22 +41,31 @@ import java.io.IOException;
 public class MaskItemGroup extends BdvItemGroup implements HasDistanceMap {
 	private MaskFileItem maskItem;
 	private ImageFileItem<FloatType> distanceMapItem;
+	private TableFileItem radialProfileItem;
 	private Double connectedToFilamentsThresholdInUM = null;
 
 	public MaskItemGroup(BdvProject project, String name, String path) {
 		super(project, name);
 		this.maskItem = new MaskFileItem(project, path, false);
 		this.distanceMapItem = new ImageFileItem<>(project, File.separator + "analysis" + maskItem.getDefaultFileName() + "_distance_map", true);
+		this.distanceMapItem.setDatasetKind(DatasetKind.DISTANCE_MAP);
 		this.maskItem.setName(name + " mask");
+		this.radialProfileItem = new TableFileItem(project, File.separator + "analysis" + maskItem.getDefaultFileName() + "_radial_profile.csv", true);
 		this.distanceMapItem.setName(name + " distance map");
+		this.radialProfileItem.setName(name + " radial profile");
 		this.getItems().add(maskItem);
 		this.getItems().add(distanceMapItem);
+		this.getItems().add(radialProfileItem);
 	}
 
 	public MaskFileItem getMask() {
 		return maskItem;
 	}
 
+	public TableFileItem getRadialProfile() {
+		return radialProfileItem;
+	}
+
 	@Override
 	public ImageFileItem<FloatType> getDistanceMap() {
 		return distanceMapItem;
@@ -81,22 +89,20 @@ public class MaskItemGroup extends BdvItemGroup implements HasDistanceMap {
 	@Override
 	public void loadConfig() throws IOException {
 		super.loadConfig();
-		N5Reader reader = new N5FSReader(getConfigPath());
+		N5Reader reader = project.getN5Store().getReader(getConfigPath());
 		if(reader.exists(File.separator)) {
 			Double connectedThreshold = reader.getAttribute(File.separator, "connectedToFilamentsThresholdInUM", Double.class);
 			if(connectedThreshold != null) {
 				connectedToFilamentsThresholdInUM = connectedThreshold;
 			}
 		}
-		reader.close();
 	}
 
 	@Override
 	public void saveConfig() throws IOException {
 		super.saveConfig();
-		N5Writer writer = new N5FSWriter(getConfigPath());
+		N5Writer writer = project.getN5Store().getWriter(getConfigPath());
 		writer.setAttribute(File.separator, "connectedToFilamentsThresholdInUM", connectedToFilamentsThresholdInUM);
-		writer.close();
 		project.context().service(StatusService.class).showStatus("written config to " + getConfigPath());
 	}
 
@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.model;
+
+import de.frauzufall.cellsketch.n5.CachedN5FSWriter;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads and writes primitive arrays as one dimensional N5 datasets.
+ * N5 does not support empty datasets, an empty array is therefore stored as a single unused element
+ * and the caller has to keep track of the actual length.
+ */
+public class N5Arrays {
+
+	public static void writeInts(N5Writer writer, String path, int[] data, int blockSize) throws IOException {
+		DatasetAttributes attributes = new DatasetAttributes(new long[]{Math.max(1, data.length)}, new int[]{blockSize}, DataType.INT32, new GzipCompression());
+		writer.createDataset(path, attributes);
+		for (int start = 0, block = 0; start < Math.max(1, data.length); start += blockSize, block++) {
+			int[] blockData = Arrays.copyOfRange(data, start, Math.max(start + 1, Math.min(start + blockSize, data.length)));
+			writer.writeBlock(path, attributes, new IntArrayDataBlock(new int[]{blockData.length}, new long[]{block}, blockData));
+		}
+		if(writer instanceof CachedN5FSWriter) ((CachedN5FSWriter) writer).finishDataset(path);
+	}
+
+	public static void writeLongs(N5Writer writer, String path, long[] data, int blockSize) throws IOException {
+		DatasetAttributes attributes = new DatasetAttributes(new long[]{Math.max(1, data.length)}, new int[]{blockSize}, DataType.INT64, new GzipCompression());
+		writer.createDataset(path, attributes);
+		for (int start = 0, block = 0; start < Math.max(1, data.length); start += blockSize, block++) {
+			long[] blockData = Arrays.copyOfRange(data, start, Math.max(start + 1, Math.min(start + blockSize, data.length)));
+			writer.writeBlock(path, attributes, new LongArrayDataBlock(new int[]{blockData.length}, new long[]{block}, blockData));
+		}
+		if(writer instanceof CachedN5FSWriter) ((CachedN5FSWriter) writer).finishDataset(path);
+	}
+
+	public static int[] readInts(N5Reader reader, String path, int length) throws IOException {
+		int[] res = new int[length];
+		DatasetAttributes attributes = reader.getDatasetAttributes(path);
+		int blockSize = attributes.getBlockSize()[0];
+		for (int block = 0; (long) block * blockSize < length; block++) {
+			int[] data = (int[]) reader.readBlock(path, attributes, block).getData();
+			int start = block * blockSize;
+			System.arraycopy(data, 0, res, start, Math.min(data.length, length - start));
+		}
+		return res;
+	}
+
+	public static long[] readLongs(N5Reader reader, String path, int length) throws IOException {
+		long[] res = new long[length];
+		DatasetAttributes attributes = reader.getDatasetAttributes(path);
+		int blockSize = attributes.getBlockSize()[0];
+		for (int block = 0; (long) block * blockSize < length; block++) {
+			long[] data = (long[]) reader.readBlock(path, attributes, block).getData();
+			int start = block * blockSize;
+			System.arraycopy(data, 0, res, start, Math.min(data.length, length - start));
+		}
+		return res;
+	}
+}
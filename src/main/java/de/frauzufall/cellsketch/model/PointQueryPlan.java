@@ -0,0 +1,162 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.model;
+
+import de.frauzufall.cellsketch.ProjectExecutors;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A batch of 3D point queries sorted by the image block each point falls into.
+ * Evaluating the plan visits every block once and answers the queries of different blocks in parallel.
+ * The same plan can be evaluated on several images sharing the block grid, in which case they are read in lockstep.
+ */
+public class PointQueryPlan {
+
+	private static final int defaultBlockSize = 64;
+
+	private final int[] coordinates;
+	private final int count;
+	private final long[] order;
+
+	/**
+	 * @param coordinates the interleaved (x, y, z) pixel coordinates of the queries
+	 * @param count the number of queries
+	 * @param grid the image defining the block grid, usually one of the images the plan will be evaluated on
+	 */
+	public PointQueryPlan(int[] coordinates, int count, RandomAccessibleInterval<?> grid) {
+		this.coordinates = coordinates;
+		this.count = count;
+		long[] min = new long[3];
+		int[] blockSize = new int[]{defaultBlockSize, defaultBlockSize, defaultBlockSize};
+		long[] gridSize = new long[3];
+		grid.min(min);
+		if(grid instanceof AbstractCellImg) {
+			((AbstractCellImg<?, ?, ?, ?>) grid).getCellGrid().cellDimensions(blockSize);
+		}
+		for (int d = 0; d < 3; d++) {
+			gridSize[d] = (grid.dimension(d) + blockSize[d] - 1) / blockSize[d];
+		}
+		order = new long[count];
+		for (int i = 0; i < count; i++) {
+			long block = 0;
+			for (int d = 2; d >= 0; d--) {
+				long blockPosition = (coordinates[i * 3 + d] - min[d]) / blockSize[d];
+				block = block * gridSize[d] + Math.max(0, Math.min(gridSize[d] - 1, blockPosition));
+			}
+			order[i] = block << 32 | i;
+		}
+		Arrays.parallelSort(order);
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the value of the image at each query point, in query order, NaN for points outside of the image
+	 */
+	public float[] evaluate(RandomAccessibleInterval<? extends RealType<?>> image, ExecutorService executor) throws InterruptedException, ExecutionException {
+		return evaluate(Collections.singletonList(image), executor)[0];
+	}
+
+	/**
+	 * @return for each image the value at each query point, in query order, NaN for points outside of the image
+	 */
+	public float[][] evaluate(List<? extends RandomAccessibleInterval<? extends RealType<?>>> images, ExecutorService executor) throws InterruptedException, ExecutionException {
+		float[][] values = new float[images.size()][count];
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (int[] chunk : getChunks(4 * ProjectExecutors.getParallelism(executor))) {
+			tasks.add(() -> {
+				evaluate(images, chunk[0], chunk[1], values);
+				return null;
+			});
+		}
+		for (Future<Void> future : executor.invokeAll(tasks)) {
+			future.get();
+		}
+		return values;
+	}
+
+	/**
+	 * @return about the given number of ranges of the sorted queries, as start (inclusive) and end (exclusive)
+	 */
+	private List<int[]> getChunks(int chunkCount) {
+		List<int[]> res = new ArrayList<>();
+		int chunkSize = Math.max(1, count / chunkCount);
+		int start = 0;
+		while(start < count) {
+			int end = Math.min(count, start + chunkSize);
+			// chunks end at block borders so that each block is read by one task only
+			while(end < count && order[end] >>> 32 == order[end - 1] >>> 32) end++;
+			res.add(new int[]{start, end});
+			start = end;
+		}
+		return res;
+	}
+
+	private void evaluate(List<? extends RandomAccessibleInterval<? extends RealType<?>>> images, int start, int end, float[][] values) {
+		List<RandomAccess<? extends RealType<?>>> accesses = new ArrayList<>();
+		for (RandomAccessibleInterval<? extends RealType<?>> image : images) {
+			accesses.add(image.randomAccess());
+		}
+		long[] position = new long[3];
+		for (int i = start; i < end; i++) {
+			int query = (int) order[i];
+			for (int d = 0; d < 3; d++) {
+				position[d] = coordinates[query * 3 + d];
+			}
+			for (int m = 0; m < images.size(); m++) {
+				if(contains(images.get(m), position)) {
+					values[m][query] = (float) accesses.get(m).setPositionAndGet(position).getRealDouble();
+				} else {
+					values[m][query] = Float.NaN;
+				}
+			}
+		}
+	}
+
+	private static boolean contains(RandomAccessibleInterval<?> interval, long[] position) {
+		for (int d = 0; d < position.length; d++) {
+			if(position[d] < interval.min(d) || position[d] > interval.max(d)) return false;
+		}
+		return true;
+	}
+}
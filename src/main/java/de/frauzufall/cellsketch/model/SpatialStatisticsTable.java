@@ -0,0 +1,47 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.model;
+
+public class SpatialStatisticsTable {
+
+	private static final String ripleysK = "Ripley's K in um^3";
+	private static final String ripleysL = "Ripley's L in um";
+	private static final String pairCorrelation = "pair correlation";
+	private static final String nearestNeighbor = "nearest neighbour G";
+	private static final String envelopeLow = " CSR envelope low";
+	private static final String envelopeHigh = " CSR envelope high";
+
+	public static String getRipleysKColumnName() { return ripleysK; }
+	public static String getRipleysLColumnName() { return ripleysL; }
+	public static String getPairCorrelationColumnName() { return pairCorrelation; }
+	public static String getNearestNeighborColumnName() { return nearestNeighbor; }
+	public static String getEnvelopeLowColumnName(String column) { return column + envelopeLow; }
+	public static String getEnvelopeHighColumnName(String column) { return column + envelopeHigh; }
+	public static String getRowName(double radiusInUM) { return String.valueOf(radiusInUM); }
+}
@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bitmap of the blocks of a dataset which contain foreground, blocks in x fastest order. Blocks of zeros are not
+ * written, N5 reads missing blocks as zeros. The bitmap is stored as {@value #ATTRIBUTE} attribute of the dataset, so
+ * that sweeps over the image can skip empty regions without listing the block files.
+ */
+public class BlockOccupancy {
+
+	public static final String ATTRIBUTE = "occupancy";
+
+	private final long[] gridDimensions;
+	private final long blockCount;
+	private final AtomicLongArray words;
+
+	public BlockOccupancy(long[] gridDimensions) {
+		this.gridDimensions = gridDimensions.clone();
+		long count = 1;
+		for (long dimension : gridDimensions) count *= dimension;
+		this.blockCount = count;
+		this.words = new AtomicLongArray((int) ((count + 63) / 64));
+	}
+
+	/**
+	 * @return an occupancy with all blocks set
+	 */
+	public static BlockOccupancy full(long[] gridDimensions) {
+		BlockOccupancy res = new BlockOccupancy(gridDimensions);
+		for (int i = 0; i < res.words.length(); i++) {
+			long remaining = res.blockCount - i * 64L;
+			res.words.set(i, remaining >= 64 ? -1L : (1L << remaining) - 1);
+		}
+		return res;
+	}
+
+	/**
+	 * @return the stored occupancy of the dataset, all blocks for datasets written without occupancy
+	 */
+	public static BlockOccupancy read(N5Reader reader, String dataset) throws IOException {
+		DatasetAttributes attributes = reader.getDatasetAttributes(dataset);
+		long[] gridDimensions = getGridDimensions(attributes.getDimensions(), attributes.getBlockSize());
+		long[] words = reader.getAttribute(dataset, ATTRIBUTE, long[].class);
+		BlockOccupancy res = new BlockOccupancy(gridDimensions);
+		if(words == null || words.length != res.words.length()) return full(gridDimensions);
+		for (int i = 0; i < words.length; i++) res.words.set(i, words[i]);
+		return res;
+	}
+
+	public void write(N5Writer writer, String dataset) throws IOException {
+		writer.setAttribute(dataset, ATTRIBUTE, toLongArray());
+	}
+
+	public static long[] getGridDimensions(long[] dimensions, int[] blockSize) {
+		long[] res = new long[dimensions.length];
+		for (int d = 0; d < res.length; d++) {
+			res[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+		}
+		return res;
+	}
+
+	/**
+	 * @return true if all values of the block are zero
+	 */
+	public static boolean isEmpty(DataBlock<?> block) {
+		Object data = block.getData();
+		if(data instanceof byte[]) {
+			for (byte value : (byte[]) data) if(value != 0) return false;
+		} else if(data instanceof short[]) {
+			for (short value : (short[]) data) if(value != 0) return false;
+		} else if(data instanceof int[]) {
+			for (int value : (int[]) data) if(value != 0) return false;
+		} else if(data instanceof long[]) {
+			for (long value : (long[]) data) if(value != 0) return false;
+		} else if(data instanceof float[]) {
+			for (float value : (float[]) data) if(value != 0) return false;
+		} else if(data instanceof double[]) {
+			for (double value : (double[]) data) if(value != 0) return false;
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	public void set(long[] gridPosition) {
+		long index = getIndex(gridPosition);
+		int word = (int) (index >>> 6);
+		long bit = 1L << (index & 63);
+		long value;
+		do {
+			value = words.get(word);
+		} while((value & bit) == 0 && !words.compareAndSet(word, value, value | bit));
+	}
+
+	public boolean isOccupied(long[] gridPosition) {
+		long index = getIndex(gridPosition);
+		return (words.get((int) (index >>> 6)) & 1L << (index & 63)) != 0;
+	}
+
+	public long getBlockCount() {
+		return blockCount;
+	}
+
+	public long getOccupiedCount() {
+		long res = 0;
+		for (int i = 0; i < words.length(); i++) res += Long.bitCount(words.get(i));
+		return res;
+	}
+
+	/**
+	 * @param image the image the dataset was opened as, its min is added to the block positions
+	 * @return the intervals of the occupied blocks, clipped to the image
+	 */
+	public List<Interval> getOccupiedIntervals(Interval image, int[] blockSize) {
+		int n = gridDimensions.length;
+		List<Interval> res = new ArrayList<>();
+		long[] gridPosition = new long[n];
+		for (long block = 0; block < blockCount; block++) {
+			if((words.get((int) (block >>> 6)) & 1L << (block & 63)) == 0) {
+				continue;
+			}
+			long index = block;
+			long[] min = new long[n];
+			long[] max = new long[n];
+			for (int d = 0; d < n; d++) {
+				gridPosition[d] = index % gridDimensions[d];
+				index /= gridDimensions[d];
+				min[d] = image.min(d) + gridPosition[d] * blockSize[d];
+				max[d] = Math.min(image.max(d), min[d] + blockSize[d] - 1);
+			}
+			res.add(new FinalInterval(min, max));
+		}
+		return res;
+	}
+
+	long[] toLongArray() {
+		long[] res = new long[words.length()];
+		for (int i = 0; i < res.length; i++) res[i] = words.get(i);
+		return res;
+	}
+
+	private long getIndex(long[] gridPosition) {
+		long res = 0;
+		for (int d = gridDimensions.length - 1; d >= 0; d--) {
+			res = res * gridDimensions[d] + gridPosition[d];
+		}
+		return res;
+	}
+}
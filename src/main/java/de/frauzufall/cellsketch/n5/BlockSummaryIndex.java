@@ -0,0 +1,286 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Summary of each block of a dataset, computed while writing it: the min and max value and, for label maps, the labels
+ * present in the block. Queries use it to skip blocks which cannot contribute, e.g. blocks of a distance map without
+ * distances below a threshold or blocks of a label map without a certain label. Blocks which were not written are
+ * empty, their min and max are 0 and they contain no labels. Blocks are in x fastest order.
+ * <p>
+ * The index grows with the number of blocks and labels, so it is not stored as attribute, which would be parsed with
+ * every attribute lookup, but as gzipped binary file {@value #FILE} in the directory of the dataset. Only datasets of
+ * file system containers get an index.
+ */
+public class BlockSummaryIndex {
+
+	public static final String FILE = "blockSummary.bin";
+	private static final int VERSION = 1;
+	private static final long[] NO_LABELS = new long[0];
+
+	private final long[] dimensions;
+	private final int[] blockSize;
+	private final long[] gridDimensions;
+	private final double[] min;
+	private final double[] max;
+	private final long[][] labels;
+	private final long valueMask;
+
+	/**
+	 * @param dataType the data type of the dataset, values of unsigned types are read without sign extension
+	 * @param indexLabels whether to store the labels of each block, for integer label maps
+	 */
+	public BlockSummaryIndex(long[] dimensions, int[] blockSize, DataType dataType, boolean indexLabels) {
+		this.dimensions = dimensions.clone();
+		this.valueMask = getValueMask(dataType);
+		this.blockSize = blockSize.clone();
+		this.gridDimensions = BlockOccupancy.getGridDimensions(dimensions, blockSize);
+		long count = 1;
+		for (long dimension : gridDimensions) count *= dimension;
+		this.min = new double[(int) count];
+		this.max = new double[(int) count];
+		this.labels = indexLabels ? new long[(int) count][] : null;
+		if(labels != null) Arrays.fill(labels, NO_LABELS);
+	}
+
+	/**
+	 * @return the stored index of the dataset, null if the dataset was written without index
+	 */
+	public static BlockSummaryIndex read(N5Reader reader, String dataset) throws IOException {
+		Path file = getFile(reader, dataset);
+		if(file == null || !Files.exists(file)) return null;
+		DatasetAttributes attributes = reader.getDatasetAttributes(dataset);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+			if(in.readInt() != VERSION) return null;
+			long count = in.readLong();
+			boolean indexLabels = in.readBoolean();
+			BlockSummaryIndex res = new BlockSummaryIndex(attributes.getDimensions(), attributes.getBlockSize(), attributes.getDataType(), indexLabels);
+			// the dataset was replaced by one with another grid
+			if(count != res.min.length) return null;
+			for (int i = 0; i < res.min.length; i++) res.min[i] = in.readDouble();
+			for (int i = 0; i < res.max.length; i++) res.max[i] = in.readDouble();
+			if(indexLabels) {
+				for (int i = 0; i < res.labels.length; i++) {
+					int length = in.readInt();
+					if(length == 0) continue;
+					long[] blockLabels = new long[length];
+					for (int j = 0; j < length; j++) blockLabels[j] = in.readLong();
+					res.labels[i] = blockLabels;
+				}
+			}
+			return res;
+		}
+	}
+
+	/**
+	 * Stores the index with the dataset, replacing the index of a previous version of the dataset. Does nothing for
+	 * containers which are not on the file system.
+	 */
+	public void write(N5Writer writer, String dataset) throws IOException {
+		Path file = getFile(writer, dataset);
+		if(file == null) return;
+		Path tmp = file.resolveSibling(FILE + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+			out.writeInt(VERSION);
+			out.writeLong(min.length);
+			out.writeBoolean(labels != null);
+			for (double value : min) out.writeDouble(value);
+			for (double value : max) out.writeDouble(value);
+			if(labels != null) {
+				for (long[] blockLabels : labels) {
+					out.writeInt(blockLabels.length);
+					for (long label : blockLabels) out.writeLong(label);
+				}
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static Path getFile(N5Reader reader, String dataset) {
+		if(!(reader instanceof N5FSReader)) return null;
+		return Paths.get(((N5FSReader) reader).getBasePath(), dataset, FILE);
+	}
+
+	/**
+	 * Summarizes a written block. Blocks are added by the writer threads, each block once.
+	 */
+	public void add(DataBlock<?> block) {
+		int index = (int) getIndex(block.getGridPosition());
+		Object data = block.getData();
+		double blockMin = Double.POSITIVE_INFINITY;
+		double blockMax = Double.NEGATIVE_INFINITY;
+		Set<Long> blockLabels = labels == null ? null : new HashSet<>();
+		long lastLabel = 0;
+		if(data instanceof float[]) {
+			for (float value : (float[]) data) {
+				blockMin = Math.min(blockMin, value);
+				blockMax = Math.max(blockMax, value);
+			}
+		} else if(data instanceof double[]) {
+			for (double value : (double[]) data) {
+				blockMin = Math.min(blockMin, value);
+				blockMax = Math.max(blockMax, value);
+			}
+		} else {
+			int length = Array.getLength(data);
+			for (int i = 0; i < length; i++) {
+				long value = getInteger(data, i) & valueMask;
+				blockMin = Math.min(blockMin, value);
+				blockMax = Math.max(blockMax, value);
+				// label maps are constant over long runs, only changes of the value are looked up
+				if(blockLabels != null && value != lastLabel) {
+					if(value != 0) blockLabels.add(value);
+					lastLabel = value;
+				}
+			}
+		}
+		min[index] = blockMin;
+		max[index] = blockMax;
+		if(blockLabels != null) {
+			long[] sorted = new long[blockLabels.size()];
+			int i = 0;
+			for (long label : blockLabels) sorted[i++] = label;
+			Arrays.sort(sorted);
+			labels[index] = sorted;
+		}
+	}
+
+	private static long getValueMask(DataType dataType) {
+		switch (dataType) {
+			case UINT8: return 0xFFL;
+			case UINT16: return 0xFFFFL;
+			case UINT32: return 0xFFFFFFFFL;
+			default: return -1L;
+		}
+	}
+
+	private static long getInteger(Object data, int i) {
+		if(data instanceof byte[]) return ((byte[]) data)[i];
+		if(data instanceof short[]) return ((short[]) data)[i];
+		if(data instanceof int[]) return ((int[]) data)[i];
+		return ((long[]) data)[i];
+	}
+
+	public long getBlockCount() {
+		return min.length;
+	}
+
+	public double getMin(long index) {
+		return min[(int) index];
+	}
+
+	public double getMax(long index) {
+		return max[(int) index];
+	}
+
+	/**
+	 * @return the largest value of the dataset
+	 */
+	public double getMax() {
+		double res = Double.NEGATIVE_INFINITY;
+		for (double value : max) res = Math.max(res, value);
+		return res;
+	}
+
+	public boolean hasLabels() {
+		return labels != null;
+	}
+
+	/**
+	 * @return the sorted labels (values other than 0) of the block, null if labels are not indexed
+	 */
+	public long[] getLabels(long index) {
+		return labels == null ? null : labels[(int) index];
+	}
+
+	/**
+	 * @return false if the block cannot contain the label
+	 */
+	public boolean mayContain(long index, long label) {
+		if(label < min[(int) index] || label > max[(int) index]) return false;
+		return labels == null || Arrays.binarySearch(labels[(int) index], label) >= 0;
+	}
+
+	/**
+	 * @return true if the other index describes a dataset of the same size and block size
+	 */
+	public boolean hasSameGrid(BlockSummaryIndex other) {
+		return Arrays.equals(dimensions, other.dimensions) && Arrays.equals(blockSize, other.blockSize);
+	}
+
+	/**
+	 * @param image the image the dataset was opened as, its min is added to the block position
+	 * @return the interval of the block, clipped to the image
+	 */
+	public Interval getInterval(long index, Interval image) {
+		int n = gridDimensions.length;
+		long[] blockMin = new long[n];
+		long[] blockMax = new long[n];
+		for (int d = 0; d < n; d++) {
+			long gridPosition = index % gridDimensions[d];
+			index /= gridDimensions[d];
+			blockMin[d] = image.min(d) + gridPosition * blockSize[d];
+			blockMax[d] = Math.min(image.max(d), blockMin[d] + blockSize[d] - 1);
+		}
+		return new FinalInterval(blockMin, blockMax);
+	}
+
+	private long getIndex(long[] gridPosition) {
+		long res = 0;
+		for (int d = gridDimensions.length - 1; d >= 0; d--) {
+			res = res * gridDimensions[d] + gridPosition[d];
+		}
+		return res;
+	}
+}
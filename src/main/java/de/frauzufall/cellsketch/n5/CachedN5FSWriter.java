@@ -0,0 +1,280 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import com.google.gson.JsonElement;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link N5FSWriter} reading and writing attributes through the cache of a {@link ProjectN5Store}. Attributes set
+ * with this writer are visible to all writers of the store immediately but only written to disk when the store is
+ * flushed. Blocks of datasets with the {@value ShardedBlocks#ATTRIBUTE} attribute are packed into shard files by
+ * {@link ShardedBlocks}, blocks of other datasets are read and written directly. Writers are shared, {@link #close()}
+ * does nothing.
+ */
+public class CachedN5FSWriter extends N5FSWriter {
+
+	private static final long MAX_PENDING_SHARD_BYTES = 256L << 20;
+
+	private final ProjectN5Store store;
+	private final ShardedBlocks shards = new ShardedBlocks(MAX_PENDING_SHARD_BYTES);
+	// datasets replacing a dataset stored in another layout, by directory
+	private final Map<Path, LayoutChange> layoutChanges = new ConcurrentHashMap<>();
+
+	private static class LayoutChange {
+		final int[] from;
+		final int[] to;
+
+		LayoutChange(int[] from, int[] to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	CachedN5FSWriter(String basePath, ProjectN5Store store) throws IOException {
+		super(basePath);
+		this.store = store;
+	}
+
+	@Override
+	public HashMap<String, JsonElement> getAttributes(String pathName) throws IOException {
+		// the store is not set yet while the super constructor checks the version
+		if(store == null) return super.getAttributes(pathName);
+		return store.getAttributes(this, pathName);
+	}
+
+	@Override
+	public void setAttributes(String pathName, Map<String, ?> attributes) throws IOException {
+		if(store == null) {
+			super.setAttributes(pathName, attributes);
+			return;
+		}
+		store.setAttributes(this, pathName, attributes);
+	}
+
+	/**
+	 * Creates the dataset in the storage layout of the store. A dataset stored in another layout is replaced in two
+	 * steps, since the image being written can be backed by the dataset it replaces: until
+	 * {@link #finishDataset(String)} is called, blocks are read in the old layout and written in the new one.
+	 */
+	@Override
+	public void createDataset(String pathName, DatasetAttributes datasetAttributes) throws IOException {
+		if(store == null) {
+			super.createDataset(pathName, datasetAttributes);
+			return;
+		}
+		boolean existed = datasetExists(pathName);
+		int[] oldShardSize = existed ? getShardSize(pathName) : null;
+		int[] shardSize = store.getShardSize(datasetAttributes.getNumDimensions());
+		layoutChanges.remove(getDirectory(pathName));
+		if(oldShardSize != null && shardSize != null && !Arrays.equals(oldShardSize, shardSize)) {
+			// shard files of both layouts have the same names, the old blocks are unpacked first
+			changeLayout(pathName, getDatasetAttributes(pathName), oldShardSize, null);
+			oldShardSize = null;
+		}
+		super.createDataset(pathName, datasetAttributes);
+		if(existed && !Arrays.equals(oldShardSize, shardSize)) {
+			// blocks left in the new layout, e.g. by an interrupted conversion
+			deleteBlockStorage(pathName, shardSize);
+			layoutChanges.put(getDirectory(pathName), new LayoutChange(oldShardSize, shardSize));
+		} else if(shardSize != null || oldShardSize != null) {
+			setAttribute(pathName, ShardedBlocks.ATTRIBUTE, shardSize);
+		}
+	}
+
+	/**
+	 * Completes a dataset written after {@link #createDataset}. If it replaced a dataset stored in another layout, the
+	 * new blocks are flushed, the layout is switched and the blocks in the old layout are deleted. Has to be called
+	 * after the last block was written.
+	 */
+	public void finishDataset(String pathName) throws IOException {
+		LayoutChange change = layoutChanges.remove(getDirectory(pathName));
+		if(change != null) commitLayout(pathName, change.from, change.to);
+	}
+
+	@Override
+	public DataBlock<?> readBlock(String pathName, DatasetAttributes datasetAttributes, long... gridPosition) throws IOException {
+		return readBlock(pathName, datasetAttributes, getShardSize(pathName), gridPosition);
+	}
+
+	@Override
+	public <T> void writeBlock(String pathName, DatasetAttributes datasetAttributes, DataBlock<T> dataBlock) throws IOException {
+		writeBlock(pathName, datasetAttributes, getWriteShardSize(pathName), dataBlock);
+	}
+
+	@Override
+	public boolean deleteBlock(String pathName, long... gridPosition) throws IOException {
+		int[] shardSize = getWriteShardSize(pathName);
+		if(shardSize == null) return super.deleteBlock(pathName, gridPosition);
+		shards.delete(ShardedBlocks.getShardFile(getDirectory(pathName), gridPosition, shardSize),
+				ShardedBlocks.getBlockCount(shardSize), ShardedBlocks.getIndexInShard(gridPosition, shardSize));
+		return true;
+	}
+
+	@Override
+	public boolean remove(String pathName) throws IOException {
+		if(store == null) return super.remove(pathName);
+		store.invalidate(getDirectory(pathName).toFile());
+		return super.remove(pathName);
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * @return the number of blocks per shard in each dimension, null if the blocks are stored one file per block
+	 */
+	public int[] getShardSize(String pathName) throws IOException {
+		if(store == null) return null;
+		return getAttribute(pathName, ShardedBlocks.ATTRIBUTE, int[].class);
+	}
+
+	/**
+	 * @return the layout new blocks of the dataset are written in, which differs from {@link #getShardSize(String)}
+	 * while the dataset replaces one stored in another layout
+	 */
+	private int[] getWriteShardSize(String pathName) throws IOException {
+		if(layoutChanges.isEmpty()) return getShardSize(pathName);
+		LayoutChange change = layoutChanges.get(getDirectory(pathName));
+		return change == null ? getShardSize(pathName) : change.to;
+	}
+
+	DataBlock<?> readBlock(String pathName, DatasetAttributes datasetAttributes, int[] shardSize, long... gridPosition) throws IOException {
+		if(shardSize == null) return super.readBlock(pathName, datasetAttributes, gridPosition);
+		byte[] block = shards.read(ShardedBlocks.getShardFile(getDirectory(pathName), gridPosition, shardSize),
+				ShardedBlocks.getBlockCount(shardSize), ShardedBlocks.getIndexInShard(gridPosition, shardSize));
+		if(block == null) return null;
+		return DefaultBlockReader.readBlock(new ByteArrayInputStream(block), datasetAttributes, gridPosition);
+	}
+
+	<T> void writeBlock(String pathName, DatasetAttributes datasetAttributes, int[] shardSize, DataBlock<T> dataBlock) throws IOException {
+		if(shardSize == null) {
+			super.writeBlock(pathName, datasetAttributes, dataBlock);
+			return;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DefaultBlockWriter.writeBlock(out, datasetAttributes, dataBlock);
+		long[] gridPosition = dataBlock.getGridPosition();
+		shards.write(ShardedBlocks.getShardFile(getDirectory(pathName), gridPosition, shardSize),
+				ShardedBlocks.getBlockCount(shardSize), ShardedBlocks.getIndexInShard(gridPosition, shardSize), out.toByteArray());
+	}
+
+	/**
+	 * Copies the blocks of a dataset from one layout to another and switches to it, see {@link #commitLayout}.
+	 */
+	void changeLayout(String pathName, DatasetAttributes attributes, int[] from, int[] to) throws IOException {
+		deleteBlockStorage(pathName, to);
+		long[] gridDimensions = BlockOccupancy.getGridDimensions(attributes.getDimensions(), attributes.getBlockSize());
+		long count = 1;
+		for (long dimension : gridDimensions) count *= dimension;
+		for (long index = 0; index < count; index++) {
+			long[] gridPosition = getGridPosition(index, gridDimensions);
+			DataBlock<?> block = readBlock(pathName, attributes, from, gridPosition);
+			if(block != null) writeBlock(pathName, attributes, to, block);
+		}
+		commitLayout(pathName, from, to);
+	}
+
+	/**
+	 * Switches the dataset to the layout its blocks were copied to. The new blocks and the layout attribute are
+	 * flushed before the blocks in the old layout are deleted, so that an interruption leaves a readable dataset.
+	 */
+	void commitLayout(String pathName, int[] from, int[] to) throws IOException {
+		setAttribute(pathName, ShardedBlocks.ATTRIBUTE, to);
+		store.flush();
+		deleteBlockStorage(pathName, from);
+	}
+
+	/**
+	 * Deletes the stored blocks of a dataset, child groups are kept.
+	 * @param shardSize the layout the blocks are stored in
+	 */
+	void deleteBlockStorage(String pathName, int[] shardSize) throws IOException {
+		Path directory = getDirectory(pathName);
+		if(shardSize == null) {
+			ShardedBlocks.deleteBlockFiles(directory);
+		} else {
+			shards.invalidate(directory);
+			ShardedBlocks.deleteShardFiles(directory);
+		}
+	}
+
+	void flushShards() throws IOException {
+		shards.flush();
+	}
+
+	/**
+	 * Drops the pending shards and layout changes of the given directory and of all directories below it.
+	 */
+	void invalidate(Path directory) {
+		shards.invalidate(directory);
+		layoutChanges.keySet().removeIf(path -> path.startsWith(directory));
+	}
+
+	static long[] getGridPosition(long index, long[] gridDimensions) {
+		long[] position = new long[gridDimensions.length];
+		for (int d = 0; d < gridDimensions.length; d++) {
+			position[d] = index % gridDimensions[d];
+			index /= gridDimensions[d];
+		}
+		return position;
+	}
+
+	Path getDirectory(String pathName) {
+		return Paths.get(basePath, pathName).toAbsolutePath().normalize();
+	}
+
+	Path getAttributesFile(String pathName) {
+		return Paths.get(basePath, getAttributesPath(pathName).toString()).toAbsolutePath().normalize();
+	}
+
+	HashMap<String, JsonElement> readAttributesFile(String pathName) throws IOException {
+		if(!getAttributesFile(pathName).toFile().exists()) return new HashMap<>();
+		return super.getAttributes(pathName);
+	}
+
+	void writeAttributesFile(String pathName, Map<String, ?> attributes) throws IOException {
+		super.setAttributes(pathName, attributes);
+	}
+}
@@ -0,0 +1,68 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+/**
+ * Trade-off between write speed and size used by {@link CompressionSelector}. Codecs are compared by the estimated time
+ * to encode and store one MB of raw data, assuming the given storage throughput: the faster the storage, the less a
+ * slow but strong codec pays off.
+ */
+public enum CompressionPolicy {
+	/**
+	 * Always write uncompressed blocks, without benchmarking.
+	 */
+	NONE(0),
+	/**
+	 * Assumes fast local storage, only codecs which are close to free are chosen.
+	 */
+	SPEED(2000),
+	BALANCED(200),
+	/**
+	 * Always writes integer data with {@link SegmentationCompression}, other data like {@link #BALANCED}.
+	 */
+	SEGMENTATION(200),
+	/**
+	 * Chooses the codec producing the smallest blocks, regardless of its speed.
+	 */
+	SIZE(Double.POSITIVE_INFINITY);
+
+	private final double storageMBPerSecond;
+
+	CompressionPolicy(double storageMBPerSecond) {
+		this.storageMBPerSecond = storageMBPerSecond;
+	}
+
+	/**
+	 * @return the estimated seconds to encode and store one MB of raw data
+	 */
+	double cost(double encodeMBPerSecond, double ratio) {
+		if(this == SIZE) return 1 / ratio;
+		return 1 / encodeMBPerSecond + 1 / (ratio * storageMBPerSecond);
+	}
+}
@@ -0,0 +1,185 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.XzCompression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the compression of a dataset by encoding a few sample blocks with each codec available to N5 and comparing
+ * their speed and compression ratio according to a {@link CompressionPolicy}.
+ */
+public class CompressionSelector {
+
+	public static final String ATTRIBUTE = "compressionSelection";
+	private static final int SAMPLE_COUNT = 4;
+
+	public static class Selection {
+		public final Compression compression;
+		public final double ratio;
+		public final double encodeMBPerSecond;
+
+		Selection(Compression compression, double ratio, double encodeMBPerSecond) {
+			this.compression = compression;
+			this.ratio = ratio;
+			this.encodeMBPerSecond = encodeMBPerSecond;
+		}
+	}
+
+	static List<Compression> getCandidates(DataType dataType, CompressionPolicy policy) {
+		if(policy == CompressionPolicy.SEGMENTATION && isInteger(dataType)) return Collections.singletonList(new SegmentationCompression());
+		List<Compression> res = new ArrayList<>(Arrays.asList(new RawCompression(), new Lz4Compression(), new GzipCompression(), new Bzip2Compression(), new XzCompression()));
+		if(isInteger(dataType)) res.add(new SegmentationCompression());
+		return res;
+	}
+
+	static boolean isInteger(DataType dataType) {
+		switch (dataType) {
+			case UINT8: case INT8: case UINT16: case INT16: case UINT32: case INT32: case UINT64: case INT64:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * @return the codec for datasets whose blocks are not known before writing them, without benchmarking: uncompressed
+	 * for {@link CompressionPolicy#NONE}, {@link SegmentationCompression} for integer data of
+	 * {@link CompressionPolicy#SEGMENTATION}, GZIP otherwise
+	 */
+	public static Selection selectUnsampled(DataType dataType, CompressionPolicy policy) {
+		if(policy == CompressionPolicy.NONE) return new Selection(new RawCompression(), 1, Double.NaN);
+		if(policy == CompressionPolicy.SEGMENTATION && isInteger(dataType)) return new Selection(new SegmentationCompression(), Double.NaN, Double.NaN);
+		return new Selection(new GzipCompression(), Double.NaN, Double.NaN);
+	}
+
+	public static <T extends RealType<T>> Selection select(RandomAccessibleInterval<T> img, int[] blockSize, DataType dataType, CompressionPolicy policy) throws IOException {
+		if(policy == CompressionPolicy.NONE) return new Selection(new RawCompression(), 1, Double.NaN);
+		return select(sample(img, blockSize, dataType), blockSize, dataType, policy);
+	}
+
+	public static Selection select(List<DataBlock<?>> samples, int[] blockSize, DataType dataType, CompressionPolicy policy) throws IOException {
+		if(policy == CompressionPolicy.NONE || samples.isEmpty()) return new Selection(new RawCompression(), 1, Double.NaN);
+		long rawBytes = 0;
+		for (DataBlock<?> sample : samples) {
+			rawBytes += sample.toByteBuffer().capacity();
+		}
+		long[] dimensions = new long[blockSize.length];
+		Arrays.fill(dimensions, 1);
+		Selection res = null;
+		double bestCost = Double.POSITIVE_INFINITY;
+		for (Compression compression : getCandidates(dataType, policy)) {
+			DatasetAttributes attributes = new DatasetAttributes(dimensions, blockSize, dataType, compression);
+			// warm up, the first encoding includes class loading and compilation
+			DefaultBlockWriter.writeBlock(new ByteArrayOutputStream(), attributes, samples.get(0));
+			long encodedBytes = 0;
+			long start = System.nanoTime();
+			for (DataBlock<?> sample : samples) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				DefaultBlockWriter.writeBlock(out, attributes, sample);
+				encodedBytes += out.size();
+			}
+			double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+			double ratio = (double) rawBytes / encodedBytes;
+			double encodeMBPerSecond = rawBytes / 1e6 / seconds;
+			double cost = policy.cost(encodeMBPerSecond, ratio);
+			if(cost < bestCost) {
+				bestCost = cost;
+				res = new Selection(compression, ratio, encodeMBPerSecond);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return up to {@link #SAMPLE_COUNT} blocks, evenly spread over the block grid
+	 */
+	public static <T extends RealType<T>> List<DataBlock<?>> sample(RandomAccessibleInterval<T> img, int[] blockSize, DataType dataType) {
+		RandomAccessibleInterval<T> zeroMin = Views.zeroMin(img);
+		int n = zeroMin.numDimensions();
+		long[] gridDimensions = new long[n];
+		long blockCount = 1;
+		for (int d = 0; d < n; d++) {
+			gridDimensions[d] = (zeroMin.dimension(d) + blockSize[d] - 1) / blockSize[d];
+			blockCount *= gridDimensions[d];
+		}
+		List<DataBlock<?>> res = new ArrayList<>();
+		int count = (int) Math.min(SAMPLE_COUNT, blockCount);
+		for (int i = 0; i < count; i++) {
+			long index = blockCount * (2 * i + 1) / (2 * count);
+			long[] gridPosition = new long[n];
+			long[] min = new long[n];
+			long[] max = new long[n];
+			for (int d = 0; d < n; d++) {
+				gridPosition[d] = index % gridDimensions[d];
+				index /= gridDimensions[d];
+				min[d] = gridPosition[d] * blockSize[d];
+				max[d] = Math.min(zeroMin.dimension(d), min[d] + blockSize[d]) - 1;
+			}
+			res.add(DataBlocks.copy(Views.interval(zeroMin, new FinalInterval(min, max)), dataType, gridPosition));
+		}
+		return res;
+	}
+
+	/**
+	 * Stores the policy and the measured performance of the chosen codec with the dataset.
+	 */
+	public static void record(N5Writer writer, String dataset, CompressionPolicy policy, Selection selection) throws IOException {
+		Map<String, Object> attribute = new LinkedHashMap<>();
+		attribute.put("policy", policy.name());
+		attribute.put("codec", selection.compression.getType());
+		if(!Double.isNaN(selection.encodeMBPerSecond)) {
+			attribute.put("ratio", selection.ratio);
+			attribute.put("encodeMBPerSecond", selection.encodeMBPerSecond);
+		}
+		writer.setAttribute(dataset, ATTRIBUTE, attribute);
+	}
+}
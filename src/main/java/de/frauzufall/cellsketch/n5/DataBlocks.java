@@ -0,0 +1,72 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+
+public class DataBlocks {
+
+	/**
+	 * Copies an interval of an image into a new block, x fastest.
+	 */
+	public static <T extends RealType<T>> DataBlock<?> copy(RandomAccessibleInterval<T> interval, DataType dataType, long[] gridPosition) {
+		int[] size = new int[interval.numDimensions()];
+		for (int d = 0; d < size.length; d++) {
+			size[d] = (int) interval.dimension(d);
+		}
+		DataBlock<?> block = dataType.createDataBlock(size, gridPosition);
+		Object data = block.getData();
+		Cursor<T> cursor = Views.flatIterable(interval).cursor();
+		int length = (int) Intervals.numElements(interval);
+		if(data instanceof float[]) {
+			float[] values = (float[]) data;
+			for (int i = 0; i < length; i++) values[i] = cursor.next().getRealFloat();
+		} else if(data instanceof double[]) {
+			double[] values = (double[]) data;
+			for (int i = 0; i < length; i++) values[i] = cursor.next().getRealDouble();
+		} else {
+			for (int i = 0; i < length; i++) {
+				T value = cursor.next();
+				long integer = value instanceof IntegerType ? ((IntegerType<?>) value).getIntegerLong() : (long) value.getRealDouble();
+				if(data instanceof byte[]) ((byte[]) data)[i] = (byte) integer;
+				else if(data instanceof short[]) ((short[]) data)[i] = (short) integer;
+				else if(data instanceof int[]) ((int[]) data)[i] = (int) integer;
+				else ((long[]) data)[i] = integer;
+			}
+		}
+		return block;
+	}
+}
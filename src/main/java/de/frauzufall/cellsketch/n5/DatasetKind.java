@@ -0,0 +1,59 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+/**
+ * Role of an image dataset in a project, used to choose per project defaults, e.g. the {@link CompressionPolicy}.
+ */
+public enum DatasetKind {
+	// raw image data hardly compresses, prefer fast writing
+	SOURCE(CompressionPolicy.SPEED, false),
+	LABEL_MAP(CompressionPolicy.SEGMENTATION, true),
+	MASK(CompressionPolicy.SEGMENTATION, false),
+	DISTANCE_MAP(CompressionPolicy.BALANCED, false);
+
+	private final CompressionPolicy defaultCompressionPolicy;
+	private final boolean indexLabels;
+
+	DatasetKind(CompressionPolicy defaultCompressionPolicy, boolean indexLabels) {
+		this.defaultCompressionPolicy = defaultCompressionPolicy;
+		this.indexLabels = indexLabels;
+	}
+
+	/**
+	 * @return whether the labels of each block are stored in the {@link BlockSummaryIndex}
+	 */
+	public boolean indexesLabels() {
+		return indexLabels;
+	}
+
+	public CompressionPolicy getDefaultCompressionPolicy() {
+		return defaultCompressionPolicy;
+	}
+}
@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import org.janelia.saalfeldlab.n5.ui.DataSelection;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Caches the metadata of the datasets of a project, including the absence of a dataset. Discovering the metadata
+ * needs several parsers reading the attributes of the dataset and its children; a cached entry is only validated
+ * against the modification times of the dataset directory and its attributes file, which change when blocks, children
+ * or attributes are written. Writers of the project invalidate entries explicitly as well.
+ */
+public class MetadataCache {
+
+	private final File root;
+	private final Function<String, DataSelection> loader;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private static class Entry {
+		final long directoryModified;
+		final long attributesModified;
+		final DataSelection selection;
+
+		Entry(long directoryModified, long attributesModified, DataSelection selection) {
+			this.directoryModified = directoryModified;
+			this.attributesModified = attributesModified;
+			this.selection = selection;
+		}
+	}
+
+	/**
+	 * @param root the directory of the N5 container
+	 * @param loader discovers the metadata of a dataset, returns null if there is no dataset with metadata
+	 */
+	public MetadataCache(File root, Function<String, DataSelection> loader) {
+		this.root = root;
+		this.loader = loader;
+	}
+
+	/**
+	 * @return the metadata of the dataset, null if there is none
+	 */
+	public DataSelection get(String dataset) {
+		File directory = new File(root, dataset);
+		long directoryModified = directory.lastModified();
+		long attributesModified = new File(directory, "attributes.json").lastModified();
+		Entry entry = entries.get(dataset);
+		if(entry != null && entry.directoryModified == directoryModified && entry.attributesModified == attributesModified) {
+			hits.incrementAndGet();
+			return entry.selection;
+		}
+		misses.incrementAndGet();
+		DataSelection selection = directoryModified == 0 ? null : loader.apply(dataset);
+		entries.put(dataset, new Entry(directoryModified, attributesModified, selection));
+		return selection;
+	}
+
+	public boolean exists(String dataset) {
+		return get(dataset) != null;
+	}
+
+	/**
+	 * Drops the entries of the dataset, of its children and of its parent groups.
+	 */
+	public void invalidate(String dataset) {
+		String path = normalize(dataset);
+		entries.keySet().removeIf(key -> {
+			String other = normalize(key);
+			return other.equals(path) || other.startsWith(path + "/") || path.startsWith(other + "/");
+		});
+	}
+
+	public void invalidateAll() {
+		entries.clear();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	private static String normalize(String dataset) {
+		String res = dataset.replace(File.separatorChar, '/');
+		while(res.startsWith("/")) res = res.substring(1);
+		while(res.endsWith("/")) res = res.substring(0, res.length() - 1);
+		return res;
+	}
+}
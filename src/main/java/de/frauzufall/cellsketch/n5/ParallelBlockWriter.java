@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import de.frauzufall.cellsketch.ProjectExecutors;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.scijava.app.StatusService;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes the blocks of a dataset on a worker pool. Blocks are handed over by the calling thread one by one; each
+ * block is created, compressed and written by a worker. At most {@code maxInFlight} blocks are queued or being written
+ * at the same time, further calls to {@link #write(Callable)} wait until a worker is done, so that a fast producer
+ * does not fill the memory with pending blocks.
+ * <p>
+ * Blocks of zeros are not written, the {@link BlockOccupancy} and the {@link BlockSummaryIndex} of the written blocks
+ * are stored with the dataset.
+ */
+public class ParallelBlockWriter {
+
+	private final N5Writer writer;
+	private final String dataset;
+	private final DatasetAttributes attributes;
+	private final ExecutorService executor;
+	private final int maxInFlight;
+	private final Semaphore inFlight;
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+	private final BlockOccupancy occupancy;
+	private BlockSummaryIndex summary;
+	private boolean replacing = false;
+	private StatusService status;
+	private long total = 0;
+
+	public ParallelBlockWriter(N5Writer writer, String dataset, DatasetAttributes attributes, ExecutorService executor, int maxInFlight) {
+		this.writer = writer;
+		this.dataset = dataset;
+		this.attributes = attributes;
+		this.executor = executor;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.inFlight = new Semaphore(this.maxInFlight);
+		this.occupancy = new BlockOccupancy(BlockOccupancy.getGridDimensions(attributes.getDimensions(), attributes.getBlockSize()));
+		this.summary = new BlockSummaryIndex(attributes.getDimensions(), attributes.getBlockSize(), attributes.getDataType(), false);
+	}
+
+	/**
+	 * Stores the labels of each block in the {@link BlockSummaryIndex}, for label maps. Has to be called before
+	 * writing blocks.
+	 */
+	public void setIndexLabels(boolean indexLabels) {
+		this.summary = new BlockSummaryIndex(attributes.getDimensions(), attributes.getBlockSize(), attributes.getDataType(), indexLabels);
+	}
+
+	/**
+	 * Deletes the stored blocks at the positions of empty blocks, needed when overwriting an existing dataset.
+	 */
+	public void setReplacing(boolean replacing) {
+		this.replacing = replacing;
+	}
+
+	/**
+	 * Reports the number of written blocks as progress.
+	 * @param total the number of blocks which will be written
+	 */
+	public void setProgress(StatusService status, long total) {
+		this.status = status;
+		this.total = total;
+	}
+
+	/**
+	 * Queues a block, waiting if too many blocks are in flight.
+	 * @param block creates the block, called by a worker
+	 * @throws IOException if writing a previously queued block failed
+	 */
+	public void write(Callable<DataBlock<?>> block) throws IOException {
+		enqueue(() -> {
+			DataBlock<?> dataBlock = block.call();
+			if(dataBlock != null) writeBlock(dataBlock);
+			return null;
+		});
+	}
+
+	/**
+	 * Writes a block on the calling thread, e.g. a worker of another writer computing the blocks of several datasets
+	 * at once.
+	 */
+	public void writeBlock(DataBlock<?> dataBlock) throws IOException {
+		if(BlockOccupancy.isEmpty(dataBlock)) {
+			if(replacing) writer.deleteBlock(dataset, dataBlock.getGridPosition());
+			return;
+		}
+		writer.writeBlock(dataset, attributes, dataBlock);
+		occupancy.set(dataBlock.getGridPosition());
+		summary.add(dataBlock);
+	}
+
+	private void enqueue(Callable<?> task) throws IOException {
+		checkFailure();
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		try {
+			executor.submit(() -> {
+				try {
+					if(failure.get() == null) task.call();
+					reportProgress(written.incrementAndGet());
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					inFlight.release();
+				}
+			});
+		} catch (RuntimeException e) {
+			inFlight.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits until all queued blocks are written, more blocks can be written afterwards.
+	 * @throws IOException if writing any block failed
+	 */
+	public void awaitWritten() throws IOException {
+		try {
+			inFlight.acquire(maxInFlight);
+			inFlight.release(maxInFlight);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Waits until all queued blocks are written, stores the occupancy and summary of the dataset and completes it, see
+	 * {@link CachedN5FSWriter#finishDataset(String)}. Has to be called once, after the last block.
+	 * @throws IOException if writing any block failed
+	 */
+	public void finish() throws IOException {
+		awaitWritten();
+		occupancy.write(writer, dataset);
+		summary.write(writer, dataset);
+		if(writer instanceof CachedN5FSWriter) ((CachedN5FSWriter) writer).finishDataset(dataset);
+	}
+
+	public long getWrittenBlockCount() {
+		return written.get();
+	}
+
+	public BlockOccupancy getOccupancy() {
+		return occupancy;
+	}
+
+	public BlockSummaryIndex getSummary() {
+		return summary;
+	}
+
+	private void reportProgress(long count) {
+		if(status == null || total <= 0) return;
+		long step = Math.max(1, total / 100);
+		if(count % step == 0 || count == total) status.showProgress((int) Math.min(Integer.MAX_VALUE, count), (int) Math.min(Integer.MAX_VALUE, total));
+	}
+
+	private void checkFailure() throws IOException {
+		Throwable e = failure.get();
+		if(e == null) return;
+		if(e instanceof IOException) throw (IOException) e;
+		throw new IOException(e);
+	}
+
+	/**
+	 * Parallel version of {@link N5Utils#save(RandomAccessibleInterval, N5Writer, String, int[], Compression)}.
+	 * @param indexLabels whether the image is a label map, see {@link #setIndexLabels(boolean)}
+	 * @param status receives the progress, can be null
+	 */
+	public static <T extends RealType<T> & NativeType<T>> void save(RandomAccessibleInterval<T> img, N5Writer writer, String dataset,
+			int[] blockSize, Compression compression, boolean indexLabels, ExecutorService executor, StatusService status) throws IOException {
+		RandomAccessibleInterval<T> zeroMin = Views.zeroMin(img);
+		long[] dimensions = Intervals.dimensionsAsLongArray(zeroMin);
+		DataType dataType = N5Utils.dataType(Views.iterable(zeroMin).firstElement());
+		DatasetAttributes attributes = new DatasetAttributes(dimensions, blockSize, dataType, compression);
+		// the image can be backed by the dataset it replaces, which is why the dataset is not removed first
+		boolean replacing = writer.datasetExists(dataset);
+		writer.createDataset(dataset, attributes);
+		int n = dimensions.length;
+		long[] gridDimensions = new long[n];
+		long total = 1;
+		for (int d = 0; d < n; d++) {
+			gridDimensions[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+			total *= gridDimensions[d];
+		}
+		ParallelBlockWriter blockWriter = new ParallelBlockWriter(writer, dataset, attributes, executor, 4 * ProjectExecutors.getParallelism(executor));
+		blockWriter.setProgress(status, total);
+		blockWriter.setReplacing(replacing);
+		blockWriter.setIndexLabels(indexLabels);
+		long[] gridPosition = new long[n];
+		for (long block = 0; block < total; block++) {
+			long index = block;
+			long[] min = new long[n];
+			long[] max = new long[n];
+			for (int d = 0; d < n; d++) {
+				gridPosition[d] = index % gridDimensions[d];
+				index /= gridDimensions[d];
+				min[d] = gridPosition[d] * blockSize[d];
+				max[d] = Math.min(dimensions[d], min[d] + blockSize[d]) - 1;
+			}
+			long[] gridOffset = gridPosition.clone();
+			RandomAccessibleInterval<T> source = Views.interval(zeroMin, new FinalInterval(min, max));
+			blockWriter.write(() -> DataBlocks.copy(source, dataType, gridOffset));
+		}
+		blockWriter.finish();
+	}
+}
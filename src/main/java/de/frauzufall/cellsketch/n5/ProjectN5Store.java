@@ -0,0 +1,235 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import com.google.gson.JsonElement;
+import org.janelia.saalfeldlab.n5.GsonAttributesParser;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The N5 store of a project, shared by all readers and writers of the project. Opening an N5 container and parsing
+ * its attributes files for every config value is slow, so the store keeps one {@link CachedN5FSWriter} per container
+ * and caches the parsed attributes of each group. A cached entry is validated against the modification time and size
+ * of its attributes file, so that changes of other processes are picked up. Setting attributes only changes the
+ * cached entry, the changed entries are written to disk by {@link #flush()}, which is called at the end of stages
+ * and when the project is disposed. Attributes set meanwhile by other processes are overwritten on flush.
+ */
+public class ProjectN5Store {
+
+	private final File root;
+	private final Map<String, CachedN5FSWriter> writers = new ConcurrentHashMap<>();
+	private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicLong reads = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private volatile int shardSize = 0;
+
+	private static class Entry {
+		HashMap<String, JsonElement> attributes;
+		long modified;
+		long length;
+		boolean dirty;
+		CachedN5FSWriter writer;
+		String pathName;
+	}
+
+	public ProjectN5Store(File root) {
+		this.root = root;
+	}
+
+	/**
+	 * Sets the storage layout of datasets created from now on, see {@link ShardedBlocks}.
+	 * @param shardSize the number of blocks per shard in each dimension, 0 to store one file per block
+	 */
+	public void setShardSize(int shardSize) {
+		this.shardSize = shardSize;
+	}
+
+	public int getShardSize() {
+		return shardSize;
+	}
+
+	/**
+	 * @return the shard size of new datasets with the given number of dimensions, null to store one file per block
+	 */
+	int[] getShardSize(int numDimensions) {
+		if(shardSize <= 0) return null;
+		int[] res = new int[numDimensions];
+		Arrays.fill(res, shardSize);
+		return res;
+	}
+
+	/**
+	 * @return the writer of the project container
+	 */
+	public CachedN5FSWriter getWriter() throws IOException {
+		return getWriter(root.getAbsolutePath());
+	}
+
+	/**
+	 * @return the shared writer of the container at the given path, e.g. the directory of a dataset storing config
+	 */
+	public CachedN5FSWriter getWriter(String basePath) throws IOException {
+		String key = new File(basePath).getAbsoluteFile().toPath().normalize().toString();
+		CachedN5FSWriter writer = writers.get(key);
+		if(writer != null) return writer;
+		synchronized (writers) {
+			writer = writers.get(key);
+			if(writer == null) {
+				writer = new CachedN5FSWriter(key, this);
+				writers.put(key, writer);
+			}
+			return writer;
+		}
+	}
+
+	public N5Reader getReader() throws IOException {
+		return getReader(root.getAbsolutePath());
+	}
+
+	/**
+	 * @return the shared writer of the container at the given path, a plain reader if the container does not exist,
+	 * since creating a writer would create the container
+	 */
+	public N5Reader getReader(String basePath) throws IOException {
+		if(!new File(basePath).exists()) return new N5FSReader(basePath);
+		return getWriter(basePath);
+	}
+
+	HashMap<String, JsonElement> getAttributes(CachedN5FSWriter writer, String pathName) throws IOException {
+		Path file = writer.getAttributesFile(pathName);
+		Entry entry = entries.computeIfAbsent(file, key -> new Entry());
+		synchronized (entry) {
+			load(entry, writer, pathName, file);
+			return new HashMap<>(entry.attributes);
+		}
+	}
+
+	void setAttributes(CachedN5FSWriter writer, String pathName, Map<String, ?> attributes) throws IOException {
+		Path file = writer.getAttributesFile(pathName);
+		Entry entry = entries.computeIfAbsent(file, key -> new Entry());
+		synchronized (entry) {
+			load(entry, writer, pathName, file);
+			GsonAttributesParser.insertAttributes(entry.attributes, attributes, writer.getGson());
+			entry.dirty = true;
+			entry.writer = writer;
+			entry.pathName = pathName;
+		}
+	}
+
+	private void load(Entry entry, CachedN5FSWriter writer, String pathName, Path file) throws IOException {
+		if(entry.dirty) return;
+		File attributesFile = file.toFile();
+		long modified = attributesFile.lastModified();
+		long length = attributesFile.length();
+		if(entry.attributes != null && entry.modified == modified && entry.length == length) return;
+		entry.attributes = writer.readAttributesFile(pathName);
+		entry.modified = modified;
+		entry.length = length;
+		reads.incrementAndGet();
+	}
+
+	/**
+	 * Writes all pending shards and changed attributes to disk. Entries of groups which were deleted meanwhile are
+	 * dropped.
+	 */
+	public void flush() throws IOException {
+		for (CachedN5FSWriter writer : writers.values()) {
+			writer.flushShards();
+		}
+		List<Map.Entry<Path, Entry>> dirty = new ArrayList<>();
+		for (Map.Entry<Path, Entry> entry : entries.entrySet()) {
+			if(entry.getValue().dirty) dirty.add(entry);
+		}
+		for (Map.Entry<Path, Entry> mapEntry : dirty) {
+			Entry entry = mapEntry.getValue();
+			synchronized (entry) {
+				if(!entry.dirty) continue;
+				File file = mapEntry.getKey().toFile();
+				if(file.getParentFile().exists()) {
+					entry.writer.writeAttributesFile(entry.pathName, entry.attributes);
+					entry.modified = file.lastModified();
+					entry.length = file.length();
+					writes.incrementAndGet();
+					entry.dirty = false;
+				} else {
+					entries.remove(mapEntry.getKey());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the cached attributes, pending shards and layout changes of the given directory and of all directories
+	 * below it, including changes which were not flushed yet. Needs to be called when deleting a group.
+	 */
+	public void invalidate(File directory) {
+		Path path = directory.getAbsoluteFile().toPath().normalize();
+		entries.keySet().removeIf(file -> file.startsWith(path));
+		for (CachedN5FSWriter writer : writers.values()) {
+			writer.invalidate(path);
+		}
+	}
+
+	/**
+	 * @return the number of attributes files with changes which are not flushed yet
+	 */
+	public int getPendingCount() {
+		int count = 0;
+		for (Entry entry : entries.values()) {
+			if(entry.dirty) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return how often an attributes file was parsed
+	 */
+	public long getReadCount() {
+		return reads.get();
+	}
+
+	/**
+	 * @return how often an attributes file was written
+	 */
+	public long getWriteCount() {
+		return writes.get();
+	}
+}
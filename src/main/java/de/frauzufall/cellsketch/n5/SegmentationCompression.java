@@ -0,0 +1,296 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import org.janelia.saalfeldlab.n5.BlockReader;
+import org.janelia.saalfeldlab.n5.BlockWriter;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compression for integer label blocks, similar to the compressed segmentation format of neuroglancer. Each block is
+ * split into sub-blocks of 8 x 8 x 8 voxels. Per sub-block, the distinct values are stored in a sorted table, followed
+ * by the table index of each voxel, packed into 64 bit words with 0, 1, 2, 4, 8, 16 or 32 bits per voxel. A sub-block
+ * with the same values as the previous one reuses its table, a sub-block of background next to background takes two
+ * bytes.
+ * <p>
+ * Supports blocks of up to three dimensions of the types UINT8, INT8, UINT16, INT16, UINT32, INT32, UINT64 and INT64.
+ */
+@Compression.CompressionType("segmentation")
+public class SegmentationCompression implements Compression, BlockReader, BlockWriter {
+
+	private static final long serialVersionUID = 1L;
+	private static final int SUB_BLOCK_SIZE = 8;
+	private static final int SUB_BLOCK_ELEMENTS = SUB_BLOCK_SIZE * SUB_BLOCK_SIZE * SUB_BLOCK_SIZE;
+	private static final int[] BITS = {0, 1, 2, 4, 8, 16, 32};
+
+	@Override
+	public BlockReader getReader() {
+		return this;
+	}
+
+	@Override
+	public BlockWriter getWriter() {
+		return this;
+	}
+
+	@Override
+	public <T> void write(DataBlock<T> dataBlock, OutputStream out) throws IOException {
+		int[] size = getSize(dataBlock.getSize());
+		Object data = dataBlock.getData();
+		int elementBytes = getElementBytes(data);
+		DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+		long[] values = new long[SUB_BLOCK_ELEMENTS];
+		long[] table = new long[SUB_BLOCK_ELEMENTS];
+		long[] previousTable = new long[SUB_BLOCK_ELEMENTS];
+		int previousTableSize = 0;
+		long[] words = new long[SUB_BLOCK_ELEMENTS / 2];
+		int[] min = new int[3];
+		int[] max = new int[3];
+		for (min[2] = 0; min[2] < size[2]; min[2] += SUB_BLOCK_SIZE) {
+			for (min[1] = 0; min[1] < size[1]; min[1] += SUB_BLOCK_SIZE) {
+				for (min[0] = 0; min[0] < size[0]; min[0] += SUB_BLOCK_SIZE) {
+					for (int d = 0; d < 3; d++) max[d] = Math.min(size[d], min[d] + SUB_BLOCK_SIZE);
+					int count = gather(data, size, min, max, values);
+					System.arraycopy(values, 0, table, 0, count);
+					Arrays.sort(table, 0, count);
+					int tableSize = unique(table, count);
+					if(equals(table, previousTable, tableSize, previousTableSize)) {
+						dataOut.writeShort(0);
+					} else {
+						dataOut.writeShort(tableSize);
+						for (int i = 0; i < tableSize; i++) writeValue(dataOut, table[i], elementBytes);
+						long[] tmp = previousTable;
+						previousTable = table;
+						table = tmp;
+						previousTableSize = tableSize;
+					}
+					int bits = getBits(tableSize);
+					if(bits == 0) continue;
+					int wordCount = (count * bits + 63) / 64;
+					Arrays.fill(words, 0, wordCount, 0);
+					for (int i = 0; i < count; i++) {
+						long index = Arrays.binarySearch(previousTable, 0, tableSize, values[i]);
+						long bit = (long) i * bits;
+						words[(int) (bit >>> 6)] |= index << (bit & 63);
+					}
+					for (int i = 0; i < wordCount; i++) dataOut.writeLong(words[i]);
+				}
+			}
+		}
+		dataOut.flush();
+	}
+
+	@Override
+	public <T, B extends DataBlock<T>> void read(B dataBlock, InputStream in) throws IOException {
+		int[] size = getSize(dataBlock.getSize());
+		Object data = dataBlock.getData();
+		int elementBytes = getElementBytes(data);
+		ByteBuffer buffer = ByteBuffer.wrap(readAll(in));
+		long[] table = new long[SUB_BLOCK_ELEMENTS];
+		int tableSize = 0;
+		long[] words = new long[SUB_BLOCK_ELEMENTS / 2];
+		int[] min = new int[3];
+		int[] max = new int[3];
+		try {
+			for (min[2] = 0; min[2] < size[2]; min[2] += SUB_BLOCK_SIZE) {
+				for (min[1] = 0; min[1] < size[1]; min[1] += SUB_BLOCK_SIZE) {
+					for (min[0] = 0; min[0] < size[0]; min[0] += SUB_BLOCK_SIZE) {
+						for (int d = 0; d < 3; d++) max[d] = Math.min(size[d], min[d] + SUB_BLOCK_SIZE);
+						int count = (max[0] - min[0]) * (max[1] - min[1]) * (max[2] - min[2]);
+						int newTableSize = buffer.getShort();
+						if(newTableSize < 0 || newTableSize > SUB_BLOCK_ELEMENTS || newTableSize == 0 && tableSize == 0) {
+							throw new IOException("Corrupt segmentation block, table size " + newTableSize);
+						}
+						if(newTableSize > 0) {
+							tableSize = newTableSize;
+							for (int i = 0; i < tableSize; i++) table[i] = readValue(buffer, elementBytes);
+						}
+						int bits = getBits(tableSize);
+						int wordCount = (count * bits + 63) / 64;
+						for (int i = 0; i < wordCount; i++) words[i] = buffer.getLong();
+						scatter(data, size, min, max, table, words, bits);
+					}
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Corrupt segmentation block, unexpected end of data", e);
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream res = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1 << 16];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			res.write(buffer, 0, read);
+		}
+		return res.toByteArray();
+	}
+
+	private static void writeValue(DataOutputStream out, long value, int elementBytes) throws IOException {
+		switch (elementBytes) {
+			case 1: out.writeByte((int) value); break;
+			case 2: out.writeShort((int) value); break;
+			case 4: out.writeInt((int) value); break;
+			default: out.writeLong(value);
+		}
+	}
+
+	private static long readValue(ByteBuffer buffer, int elementBytes) {
+		switch (elementBytes) {
+			case 1: return buffer.get();
+			case 2: return buffer.getShort();
+			case 4: return buffer.getInt();
+			default: return buffer.getLong();
+		}
+	}
+
+	private static int[] getSize(int[] blockSize) throws IOException {
+		if(blockSize.length > 3) throw new IOException("Segmentation compression supports at most three dimensions.");
+		int[] size = {1, 1, 1};
+		System.arraycopy(blockSize, 0, size, 0, blockSize.length);
+		return size;
+	}
+
+	private static int getElementBytes(Object data) throws IOException {
+		if(data instanceof byte[]) return 1;
+		if(data instanceof short[]) return 2;
+		if(data instanceof int[]) return 4;
+		if(data instanceof long[]) return 8;
+		throw new IOException("Segmentation compression only supports integer blocks.");
+	}
+	static int getBits(int tableSize) {
+		for (int bits : BITS) {
+			if(tableSize <= 1L << bits) return bits;
+		}
+		throw new IllegalArgumentException("Too many values: " + tableSize);
+	}
+
+	private static boolean equals(long[] table, long[] other, int size, int otherSize) {
+		if(size != otherSize) return false;
+		for (int i = 0; i < size; i++) {
+			if(table[i] != other[i]) return false;
+		}
+		return true;
+	}
+
+	private static int unique(long[] sorted, int count) {
+		int res = 0;
+		for (int i = 0; i < count; i++) {
+			if(res == 0 || sorted[i] != sorted[res - 1]) sorted[res++] = sorted[i];
+		}
+		return res;
+	}
+
+	/**
+	 * Copies the sub-block from {@code min} (inclusive) to {@code max} (exclusive) into {@code values}, x fastest.
+	 * Values are sign extended, also for unsigned types, the cast when decoding restores the original bits.
+	 */
+	private static int gather(Object data, int[] size, int[] min, int[] max, long[] values) {
+		int i = 0;
+		for (int z = min[2]; z < max[2]; z++) {
+			for (int y = min[1]; y < max[1]; y++) {
+				int offset = (z * size[1] + y) * size[0];
+				if(data instanceof int[]) {
+					int[] array = (int[]) data;
+					for (int x = min[0]; x < max[0]; x++) values[i++] = array[offset + x];
+				} else if(data instanceof short[]) {
+					short[] array = (short[]) data;
+					for (int x = min[0]; x < max[0]; x++) values[i++] = array[offset + x];
+				} else if(data instanceof byte[]) {
+					byte[] array = (byte[]) data;
+					for (int x = min[0]; x < max[0]; x++) values[i++] = array[offset + x];
+				} else {
+					long[] array = (long[]) data;
+					for (int x = min[0]; x < max[0]; x++) values[i++] = array[offset + x];
+				}
+			}
+		}
+		return i;
+	}
+
+	private static void scatter(Object data, int[] size, int[] min, int[] max, long[] table, long[] words, int bits) {
+		if(bits == 0) {
+			fill(data, size, min, max, table[0]);
+			return;
+		}
+		long mask = (1L << bits) - 1;
+		long bit = 0;
+		for (int z = min[2]; z < max[2]; z++) {
+			for (int y = min[1]; y < max[1]; y++) {
+				int offset = (z * size[1] + y) * size[0];
+				if(data instanceof int[]) {
+					int[] array = (int[]) data;
+					for (int x = min[0]; x < max[0]; x++, bit += bits) {
+						array[offset + x] = (int) table[(int) ((words[(int) (bit >>> 6)] >>> (bit & 63)) & mask)];
+					}
+				} else if(data instanceof short[]) {
+					short[] array = (short[]) data;
+					for (int x = min[0]; x < max[0]; x++, bit += bits) {
+						array[offset + x] = (short) table[(int) ((words[(int) (bit >>> 6)] >>> (bit & 63)) & mask)];
+					}
+				} else if(data instanceof byte[]) {
+					byte[] array = (byte[]) data;
+					for (int x = min[0]; x < max[0]; x++, bit += bits) {
+						array[offset + x] = (byte) table[(int) ((words[(int) (bit >>> 6)] >>> (bit & 63)) & mask)];
+					}
+				} else {
+					long[] array = (long[]) data;
+					for (int x = min[0]; x < max[0]; x++, bit += bits) {
+						array[offset + x] = table[(int) ((words[(int) (bit >>> 6)] >>> (bit & 63)) & mask)];
+					}
+				}
+			}
+		}
+	}
+
+	private static void fill(Object data, int[] size, int[] min, int[] max, long value) {
+		for (int z = min[2]; z < max[2]; z++) {
+			for (int y = min[1]; y < max[1]; y++) {
+				int from = (z * size[1] + y) * size[0] + min[0];
+				int to = from + max[0] - min[0];
+				if(data instanceof int[]) Arrays.fill((int[]) data, from, to, (int) value);
+				else if(data instanceof short[]) Arrays.fill((short[]) data, from, to, (short) value);
+				else if(data instanceof byte[]) Arrays.fill((byte[]) data, from, to, (byte) value);
+				else Arrays.fill((long[]) data, from, to, value);
+			}
+		}
+	}
+}
@@ -0,0 +1,310 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores the encoded blocks of a dataset packed into shard files, each holding a grid of {@code shardSize} blocks,
+ * to reduce the number of files of large datasets. The layout follows Zarr v3 sharding with the index at the end: the
+ * blocks of a shard are concatenated, followed by one (offset, length) pair of little endian longs per block in x
+ * fastest order, both -1 for missing blocks. Blocks are the N5 encoded blocks including their header.
+ * <p>
+ * Rewriting a shard file for every block would be slow, so written blocks are kept in memory until all blocks of the
+ * shard were written, until more than {@code maxPendingBytes} are pending or until {@link #flush()} is called.
+ * Incomplete shards are merged with the existing shard file. Pending blocks are returned by {@link #read}.
+ */
+public class ShardedBlocks {
+
+	public static final String ATTRIBUTE = "shardSize";
+	private static final String SUFFIX = ".shard";
+	private static final long MISSING = -1;
+	private static final byte[] DELETED = new byte[0];
+
+	private final long maxPendingBytes;
+	// guarded by itself, also guards pendingBytes and the content of the shards
+	private final Map<Path, PendingShard> pending = new HashMap<>();
+	private final Map<Path, Object> fileLocks = new ConcurrentHashMap<>();
+	private long pendingBytes;
+
+	private static class PendingShard {
+		final byte[][] blocks;
+		int count;
+		long version;
+
+		PendingShard(int blockCount) {
+			blocks = new byte[blockCount][];
+		}
+	}
+
+	public ShardedBlocks(long maxPendingBytes) {
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	public static int getBlockCount(int[] shardSize) {
+		int count = 1;
+		for (int size : shardSize) count *= size;
+		return count;
+	}
+
+	/**
+	 * @return the index of the block in its shard, x fastest
+	 */
+	public static int getIndexInShard(long[] gridPosition, int[] shardSize) {
+		int index = 0;
+		for (int d = gridPosition.length - 1; d >= 0; d--) {
+			index = index * shardSize[d] + (int) (gridPosition[d] % shardSize[d]);
+		}
+		return index;
+	}
+
+	/**
+	 * @return the shard file containing the block, named by the grid position of the shard, e.g. {@code 1.0.2.shard}
+	 */
+	public static Path getShardFile(Path datasetDirectory, long[] gridPosition, int[] shardSize) {
+		StringBuilder name = new StringBuilder();
+		for (int d = 0; d < gridPosition.length; d++) {
+			if(d > 0) name.append('.');
+			name.append(gridPosition[d] / shardSize[d]);
+		}
+		return datasetDirectory.resolve(name.append(SUFFIX).toString());
+	}
+
+	/**
+	 * @return the encoded block, null if it is missing
+	 */
+	public byte[] read(Path file, int blockCount, int index) throws IOException {
+		synchronized (pending) {
+			PendingShard shard = pending.get(file);
+			byte[] block = shard == null ? null : shard.blocks[index];
+			if(block != null) return block == DELETED ? null : block;
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer entry = readFully(channel, indexStart(channel, blockCount) + index * 16L, 16);
+			long offset = entry.getLong();
+			long length = entry.getLong();
+			if(offset == MISSING) return null;
+			return readFully(channel, offset, (int) length).array();
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	public void write(Path file, int blockCount, int index, byte[] block) throws IOException {
+		boolean complete;
+		boolean full;
+		synchronized (pending) {
+			PendingShard shard = pending.computeIfAbsent(file, key -> new PendingShard(blockCount));
+			byte[] old = shard.blocks[index];
+			if(old == null) shard.count++;
+			else pendingBytes -= old.length;
+			shard.blocks[index] = block;
+			shard.version++;
+			pendingBytes += block.length;
+			complete = shard.count == blockCount;
+			full = pendingBytes > maxPendingBytes;
+		}
+		if(complete) flush(file);
+		if(full) flush();
+	}
+
+	public void delete(Path file, int blockCount, int index) throws IOException {
+		write(file, blockCount, index, DELETED);
+	}
+
+	/**
+	 * Writes all pending shards.
+	 */
+	public void flush() throws IOException {
+		List<Path> files;
+		synchronized (pending) {
+			files = new ArrayList<>(pending.keySet());
+		}
+		for (Path file : files) {
+			flush(file);
+		}
+	}
+
+	private void flush(Path file) throws IOException {
+		synchronized (fileLocks.computeIfAbsent(file, key -> new Object())) {
+			PendingShard shard;
+			byte[][] blocks;
+			long version;
+			boolean complete;
+			synchronized (pending) {
+				shard = pending.get(file);
+				if(shard == null) return;
+				blocks = shard.blocks.clone();
+				version = shard.version;
+				complete = shard.count == blocks.length;
+			}
+			if(!complete && Files.exists(file)) {
+				byte[][] existing = readAll(file, blocks.length);
+				for (int i = 0; i < blocks.length; i++) {
+					if(blocks[i] == null) blocks[i] = existing[i];
+				}
+			}
+			writeShard(file, blocks);
+			synchronized (pending) {
+				// blocks written meanwhile stay pending
+				if(pending.get(file) == shard && shard.version == version) {
+					pending.remove(file);
+					for (byte[] block : shard.blocks) {
+						if(block != null) pendingBytes -= block.length;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the pending blocks of all shards in the given directory and below.
+	 */
+	public void invalidate(Path directory) {
+		synchronized (pending) {
+			pending.entrySet().removeIf(entry -> {
+				if(!entry.getKey().startsWith(directory)) return false;
+				for (byte[] block : entry.getValue().blocks) {
+					if(block != null) pendingBytes -= block.length;
+				}
+				return true;
+			});
+		}
+	}
+
+	public long getPendingBytes() {
+		synchronized (pending) {
+			return pendingBytes;
+		}
+	}
+
+	/**
+	 * Deletes the shard files of a dataset, child groups are kept.
+	 */
+	public static void deleteShardFiles(Path datasetDirectory) throws IOException {
+		File[] files = datasetDirectory.toFile().listFiles((dir, name) -> name.endsWith(SUFFIX));
+		if(files == null) return;
+		for (File file : files) {
+			Files.delete(file.toPath());
+		}
+	}
+
+	/**
+	 * Deletes the block files of a dataset stored one file per block, which are in directories named by the first
+	 * grid coordinate. Child groups are kept.
+	 */
+	public static void deleteBlockFiles(Path datasetDirectory) throws IOException {
+		File[] directories = datasetDirectory.toFile().listFiles((dir, name) -> name.matches("\\d+"));
+		if(directories == null) return;
+		for (File directory : directories) {
+			if(directory.isDirectory()) FileUtils.deleteDirectory(directory);
+			else Files.delete(directory.toPath());
+		}
+	}
+
+	private static byte[][] readAll(Path file, int blockCount) throws IOException {
+		byte[][] blocks = new byte[blockCount][];
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer index = readFully(channel, indexStart(channel, blockCount), blockCount * 16);
+			for (int i = 0; i < blockCount; i++) {
+				long offset = index.getLong();
+				long length = index.getLong();
+				if(offset != MISSING) blocks[i] = readFully(channel, offset, (int) length).array();
+			}
+		}
+		return blocks;
+	}
+
+	private static void writeShard(Path file, byte[][] blocks) throws IOException {
+		boolean empty = true;
+		for (byte[] block : blocks) {
+			if(block != null && block != DELETED) empty = false;
+		}
+		if(empty) {
+			Files.deleteIfExists(file);
+			return;
+		}
+		Files.createDirectories(file.getParent());
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		ByteBuffer index = ByteBuffer.allocate(blocks.length * 16).order(ByteOrder.LITTLE_ENDIAN);
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long offset = 0;
+			for (byte[] block : blocks) {
+				if(block == null || block == DELETED) {
+					index.putLong(MISSING).putLong(MISSING);
+					continue;
+				}
+				writeFully(channel, ByteBuffer.wrap(block));
+				index.putLong(offset).putLong(block.length);
+				offset += block.length;
+			}
+			index.flip();
+			writeFully(channel, index);
+		}
+		// readers keep reading the old file until they open the shard again
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static long indexStart(FileChannel channel, int blockCount) throws IOException {
+		long start = channel.size() - blockCount * 16L;
+		if(start < 0) throw new IOException("Shard file is smaller than its index.");
+		return start;
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of shard file.");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
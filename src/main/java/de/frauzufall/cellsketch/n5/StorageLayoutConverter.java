@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import de.frauzufall.cellsketch.ProjectExecutors;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.scijava.app.StatusService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Converts the datasets of a project to the storage layout of its {@link ProjectN5Store}, packing the blocks into
+ * shard files or unpacking them into one file per block. The new blocks and layout are flushed before the blocks in
+ * the old layout are deleted, so that an interrupted conversion leaves readable datasets.
+ */
+public class StorageLayoutConverter {
+
+	private final ProjectN5Store store;
+	private final ExecutorService executor;
+
+	public StorageLayoutConverter(ProjectN5Store store, ExecutorService executor) {
+		this.store = store;
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the number of converted datasets
+	 */
+	public int convertAll(StatusService status) throws IOException {
+		List<String> datasets = new ArrayList<>();
+		collectDatasets(store.getWriter(), "/", datasets);
+		int converted = 0;
+		for (int i = 0; i < datasets.size(); i++) {
+			if(status != null) status.showStatus(i, datasets.size(), "Converting storage layout of " + datasets.get(i));
+			if(convert(datasets.get(i))) converted++;
+		}
+		if(status != null) status.clearStatus();
+		return converted;
+	}
+
+	/**
+	 * @return false if the dataset already has the layout of the store
+	 */
+	public boolean convert(String dataset) throws IOException {
+		CachedN5FSWriter writer = store.getWriter();
+		DatasetAttributes attributes = writer.getDatasetAttributes(dataset);
+		int[] from = writer.getShardSize(dataset);
+		int[] to = store.getShardSize(attributes.getNumDimensions());
+		if(Arrays.equals(from, to)) return false;
+		if(from != null && to != null) {
+			// shard files of both layouts have the same names, the blocks are unpacked first
+			copyBlocks(writer, dataset, attributes, from, null);
+			from = null;
+		}
+		copyBlocks(writer, dataset, attributes, from, to);
+		return true;
+	}
+
+	private void copyBlocks(CachedN5FSWriter writer, String dataset, DatasetAttributes attributes, int[] from, int[] to) throws IOException {
+		writer.deleteBlockStorage(dataset, to);
+		long[] gridDimensions = BlockOccupancy.getGridDimensions(attributes.getDimensions(), attributes.getBlockSize());
+		long count = 1;
+		for (long dimension : gridDimensions) count *= dimension;
+		long chunkSize = Math.max(1, count / (4 * ProjectExecutors.getParallelism(executor)));
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (long start = 0; start < count; start += chunkSize) {
+			long first = start;
+			long last = Math.min(count, start + chunkSize);
+			tasks.add(() -> {
+				for (long index = first; index < last; index++) {
+					long[] gridPosition = CachedN5FSWriter.getGridPosition(index, gridDimensions);
+					DataBlock<?> block = writer.readBlock(dataset, attributes, from, gridPosition);
+					if(block != null) writer.writeBlock(dataset, attributes, to, block);
+				}
+				return null;
+			});
+		}
+		try {
+			for (Future<Void> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		writer.commitLayout(dataset, from, to);
+	}
+
+	private static void collectDatasets(CachedN5FSWriter writer, String group, List<String> datasets) throws IOException {
+		for (String child : writer.list(group)) {
+			// block directories of datasets stored one file per block
+			if(child.matches("\\d+")) continue;
+			String path = group.endsWith("/") ? group + child : group + "/" + child;
+			if(writer.datasetExists(path)) datasets.add(path);
+			else collectDatasets(writer, path, datasets);
+		}
+	}
+}
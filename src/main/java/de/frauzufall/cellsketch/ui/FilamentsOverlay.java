@@ -0,0 +1,194 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.ui;
+
+import bdv.util.BdvOverlay;
+import de.frauzufall.cellsketch.analysis.SegmentGrid;
+import de.frauzufall.cellsketch.model.Filaments;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.ARGBType;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Line2D;
+
+/**
+ * Draws the segments of filaments close to the current viewer plane as lines. Only segments of the grid cells
+ * intersecting the visible slab are considered.
+ */
+public class FilamentsOverlay extends BdvOverlay {
+
+	private static final int cellSize = 64;
+
+	private final SegmentGrid grid;
+	private final int[][] cells;
+	private final AffineTransform3D sourceTransform;
+	private final double depth;
+	private final int[] drawn;
+	private int frame = 0;
+	private int width = 0;
+	private int height = 0;
+	private int color = ARGBType.rgba(255, 255, 255, 255);
+	private int[] colors = null;
+
+	/**
+	 * @param sourceTransform transformation from the pixel coordinates of the filaments to global coordinates
+	 * @param depth segments further away from the viewer plane than this (in pixels) are not drawn
+	 */
+	public FilamentsOverlay(Filaments filaments, AffineTransform3D sourceTransform, double depth) {
+		this.grid = new SegmentGrid(filaments.getDimensions(), new int[]{cellSize, cellSize, cellSize});
+		this.grid.addFilaments(filaments);
+		this.cells = grid.binSegments(0);
+		this.sourceTransform = sourceTransform.copy();
+		this.depth = depth;
+		this.drawn = new int[grid.getSegmentCount()];
+	}
+
+	public void setColor(int color) {
+		this.color = color;
+	}
+
+	/**
+	 * @param colors the color of each filament by filament index, or null to draw all filaments with the same color
+	 */
+	public void setColors(int[] colors) {
+		this.colors = colors;
+	}
+
+	@Override
+	public void setCanvasSize(int width, int height) {
+		super.setCanvasSize(width, height);
+		this.width = width;
+		this.height = height;
+	}
+
+	@Override
+	protected void draw(Graphics2D g) {
+		if(width == 0 || height == 0) return;
+		AffineTransform3D transform = new AffineTransform3D();
+		getCurrentTransform3D(transform);
+		transform.concatenate(sourceTransform);
+		double scale = Math.sqrt(transform.get(0, 0) * transform.get(0, 0)
+				+ transform.get(1, 0) * transform.get(1, 0)
+				+ transform.get(2, 0) * transform.get(2, 0));
+		double slab = depth * scale;
+		long[] minCell = new long[3];
+		long[] maxCell = new long[3];
+		if(!getVisibleCells(transform.inverse(), slab, minCell, maxCell)) return;
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setStroke(new BasicStroke(1.5f));
+		frame++;
+		int[] coordinates = grid.getCoordinates();
+		double[] a = new double[3];
+		double[] b = new double[3];
+		Line2D.Double line = new Line2D.Double();
+		for (long z = minCell[2]; z <= maxCell[2]; z++) {
+			for (long y = minCell[1]; y <= maxCell[1]; y++) {
+				for (long x = minCell[0]; x <= maxCell[0]; x++) {
+					int[] segments = cells[grid.getBlockIndex(x, y, z)];
+					if(segments == null) continue;
+					for (int segment : segments) {
+						if(drawn[segment] == frame) continue;
+						drawn[segment] = frame;
+						int offset = segment * 6;
+						for (int d = 0; d < 3; d++) {
+							a[d] = coordinates[offset + d];
+							b[d] = coordinates[offset + 3 + d];
+						}
+						transform.apply(a, a);
+						transform.apply(b, b);
+						drawSegment(g, line, a, b, slab, getColor(grid.getLabel(segment) - 1));
+					}
+				}
+			}
+		}
+	}
+
+	private int getColor(int filament) {
+		if(colors != null && filament < colors.length) return colors[filament];
+		return color;
+	}
+
+	/**
+	 * Clips the segment in screen coordinates to the slab around the viewer plane and draws it, more transparent the
+	 * further it is away from the plane.
+	 */
+	private static void drawSegment(Graphics2D g, Line2D.Double line, double[] a, double[] b, double slab, int color) {
+		double start = 0;
+		double end = 1;
+		double dz = b[2] - a[2];
+		if(dz == 0) {
+			if(Math.abs(a[2]) > slab) return;
+		} else {
+			double t1 = (-slab - a[2]) / dz;
+			double t2 = (slab - a[2]) / dz;
+			start = Math.max(start, Math.min(t1, t2));
+			end = Math.min(end, Math.max(t1, t2));
+			if(start > end) return;
+		}
+		double startZ = a[2] + start * dz;
+		double endZ = a[2] + end * dz;
+		double closest = startZ * endZ <= 0 ? 0 : Math.min(Math.abs(startZ), Math.abs(endZ));
+		double fade = slab == 0 ? 1 : 1 - closest / slab;
+		int alpha = (int) Math.round(ARGBType.alpha(color) * fade);
+		g.setColor(new Color(ARGBType.red(color), ARGBType.green(color), ARGBType.blue(color), alpha));
+		line.setLine(a[0] + start * (b[0] - a[0]), a[1] + start * (b[1] - a[1]),
+				a[0] + end * (b[0] - a[0]), a[1] + end * (b[1] - a[1]));
+		g.draw(line);
+	}
+
+	/**
+	 * Computes the grid cells overlapping the bounding box of the visible screen area, extended by the slab.
+	 * @return false if no cell is visible
+	 */
+	private boolean getVisibleCells(AffineTransform3D screenToSource, double slab, long[] minCell, long[] maxCell) {
+		double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+		double[] max = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		double[] corner = new double[3];
+		for (int i = 0; i < 8; i++) {
+			corner[0] = (i & 1) == 0 ? 0 : width;
+			corner[1] = (i & 2) == 0 ? 0 : height;
+			corner[2] = (i & 4) == 0 ? -slab : slab;
+			screenToSource.apply(corner, corner);
+			for (int d = 0; d < 3; d++) {
+				min[d] = Math.min(min[d], corner[d]);
+				max[d] = Math.max(max[d], corner[d]);
+			}
+		}
+		long[] gridDimensions = grid.getGridDimensions();
+		for (int d = 0; d < 3; d++) {
+			minCell[d] = Math.max(0, (long) Math.floor(min[d] / cellSize));
+			maxCell[d] = Math.min(gridDimensions[d] - 1, (long) Math.floor(max[d] / cellSize));
+			if(minCell[d] > maxCell[d]) return false;
+		}
+		return true;
+	}
+}
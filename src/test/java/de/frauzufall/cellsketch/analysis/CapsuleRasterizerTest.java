@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CapsuleRasterizerTest {
+
+	@Test
+	public void testBlocksMatchBruteForce() {
+		long[] dimensions = {37, 29, 21};
+		int[] blockSize = {8, 8, 8};
+		double radius = 2.2;
+		Random random = new Random(1);
+		CapsuleRasterizer rasterizer = new CapsuleRasterizer(dimensions, blockSize, radius);
+		int[][] segments = new int[40][];
+		for (int i = 0; i < segments.length; i++) {
+			// include segments reaching outside of the image
+			segments[i] = new int[]{random.nextInt(45) - 4, random.nextInt(37) - 4, random.nextInt(29) - 4,
+					random.nextInt(45) - 4, random.nextInt(37) - 4, random.nextInt(29) - 4};
+			rasterizer.addSegment(segments[i][0], segments[i][1], segments[i][2], segments[i][3], segments[i][4], segments[i][5], i + 1);
+		}
+		int[][] blocks = rasterizer.binSegments();
+		for (int block = 0; block < blocks.length; block++) {
+			long[] gridPosition = rasterizer.getGridPosition(block);
+			int[] size = rasterizer.getBlockSize(gridPosition);
+			int[] data = blocks[block] == null ? new int[size[0] * size[1] * size[2]] : rasterizer.rasterize(gridPosition, size, blocks[block]);
+			int index = 0;
+			for (int z = 0; z < size[2]; z++) {
+				for (int y = 0; y < size[1]; y++) {
+					for (int x = 0; x < size[0]; x++, index++) {
+						long[] position = {gridPosition[0] * blockSize[0] + x, gridPosition[1] * blockSize[1] + y, gridPosition[2] * blockSize[2] + z};
+						assertEquals(expectedLabel(segments, position, 2), data[index]);
+					}
+				}
+			}
+		}
+	}
+
+	private static int expectedLabel(int[][] segments, long[] position, long radius) {
+		int res = 0;
+		for (int i = 0; i < segments.length; i++) {
+			// exact integer arithmetic: |ap|^2 * |ab|^2 - (ap . ab)^2 <= r^2 * |ab|^2 if p projects onto the segment
+			long dot = 0, lengthSquared = 0, ap = 0, bp = 0;
+			for (int d = 0; d < 3; d++) {
+				long ab = segments[i][3 + d] - segments[i][d];
+				long pa = position[d] - segments[i][d];
+				long pb = position[d] - segments[i][3 + d];
+				dot += pa * ab;
+				lengthSquared += ab * ab;
+				ap += pa * pa;
+				bp += pb * pb;
+			}
+			boolean covered;
+			if(dot <= 0) covered = ap <= radius * radius;
+			else if(dot >= lengthSquared) covered = bp <= radius * radius;
+			else covered = ap * lengthSquared - dot * dot <= radius * radius * lengthSquared;
+			if(covered) res = i + 1;
+		}
+		return res;
+	}
+}
@@ -0,0 +1,78 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CentroidKDTreeTest {
+
+	@Test
+	public void testQueriesMatchBruteForce() {
+		Random random = new Random(1);
+		int count = 500;
+		double[] x = new double[count];
+		double[] y = new double[count];
+		double[] z = new double[count];
+		for (int i = 0; i < count; i++) {
+			// use a coarse grid along x and z to test points sharing the split coordinate
+			x[i] = Math.floor(random.nextDouble() * 20);
+			y[i] = random.nextDouble() * 20;
+			z[i] = Math.floor(random.nextDouble() * 5);
+		}
+		CentroidKDTree tree = new CentroidKDTree(x, y, z);
+		for (double radius : new double[]{0.5, 1, 2, 3.3}) {
+			long expected = 0;
+			for (int i = 0; i < count; i++) {
+				for (int j = 0; j < count; j++) {
+					if(i != j && distance(x, y, z, i, j) <= radius) expected++;
+				}
+			}
+			assertEquals(expected, tree.countPairsWithin(radius));
+		}
+		double[] nearest = tree.nearestNeighborDistances();
+		for (int i = 0; i < count; i++) {
+			double expected = Double.POSITIVE_INFINITY;
+			for (int j = 0; j < count; j++) {
+				if(i != j) expected = Math.min(expected, distance(x, y, z, i, j));
+			}
+			assertEquals(expected, nearest[i], 1e-12);
+		}
+	}
+
+	private static double distance(double[] x, double[] y, double[] z, int i, int j) {
+		double dx = x[i] - x[j];
+		double dy = y[i] - y[j];
+		double dz = z[i] - z[j];
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+}
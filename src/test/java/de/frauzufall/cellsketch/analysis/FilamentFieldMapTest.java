@@ -0,0 +1,152 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import de.frauzufall.cellsketch.model.Filaments;
+import de.frauzufall.cellsketch.n5.BlockOccupancy;
+import de.frauzufall.cellsketch.n5.BlockSummaryIndex;
+import org.apache.commons.io.FileUtils;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class FilamentFieldMapTest {
+
+	@Test
+	public void testLengthIsConserved() {
+		long[] dimensions = {53, 41, 30};
+		Random random = new Random(1);
+		Filaments.Builder builder = new Filaments.Builder();
+		double expectedLength = 0;
+		for (int i = 0; i < 20; i++) {
+			int[] previous = null;
+			for (int j = 0; j < 5; j++) {
+				int[] point = {random.nextInt(53), random.nextInt(41), random.nextInt(30)};
+				builder.addPoint(point[0], point[1], point[2]);
+				if(previous != null) {
+					double dx = point[0] - previous[0], dy = point[1] - previous[1], dz = point[2] - previous[2];
+					expectedLength += Math.sqrt(dx * dx + dy * dy + dz * dz);
+				}
+				previous = point;
+			}
+			builder.endFilament();
+		}
+		int spacing = 4;
+		FilamentFieldMap map = new FilamentFieldMap(builder.build(dimensions), spacing, new int[]{3, 3, 3}, 1);
+		SegmentGrid grid = new SegmentGrid(dimensions, new int[]{3 * spacing, 3 * spacing, 3 * spacing});
+		double length = 0;
+		for (int block = 0; block < grid.getBlockCount(); block++) {
+			long[] gridPosition = grid.getGridPosition(block);
+			int[] size = map.getBlockSize(gridPosition);
+			int[] segments = new int[80];
+			for (int i = 0; i < segments.length; i++) segments[i] = i;
+			float[] density = map.compute(gridPosition, size, segments)[0];
+			for (int z = 0, index = 0; z < size[2]; z++) {
+				for (int y = 0; y < size[1]; y++) {
+					for (int x = 0; x < size[0]; x++, index++) {
+						long voxels = 1;
+						long[] cell = {gridPosition[0] * 3 + x, gridPosition[1] * 3 + y, gridPosition[2] * 3 + z};
+						for (int d = 0; d < 3; d++) voxels *= Math.min(spacing, dimensions[d] - cell[d] * spacing);
+						length += density[index] * voxels;
+					}
+				}
+			}
+		}
+		assertEquals(expectedLength, length, 1e-3 * expectedLength);
+	}
+
+	@Test
+	public void testAlignedFilamentsAreOrdered() {
+		Filaments filaments = new Filaments.Builder()
+				.addPoint(0, 2, 2).addPoint(15, 2, 2).endFilament()
+				.build(new long[]{16, 8, 8});
+		FilamentFieldMap map = new FilamentFieldMap(filaments, 4, new int[]{4, 2, 2}, 0.5);
+		long[] gridPosition = {0, 0, 0};
+		int[] size = map.getBlockSize(gridPosition);
+		float[][] channels = map.compute(gridPosition, size, new int[]{0});
+		// the line runs through the cells (x, 0, 0), each cell holds 4 pixels of length in a 4 x 4 x 4 pixel volume
+		for (int x = 0; x < 4; x++) {
+			double length = x == 0 || x == 3 ? 3.5 : 4;
+			assertEquals(length / (64 * 0.25), channels[0][x], 1e-5);
+			assertEquals(1, channels[1][x], 1e-5);
+			assertEquals(1, channels[2][x], 1e-5);
+			assertEquals(-0.5, channels[5][x], 1e-5);
+			assertEquals(-0.5, channels[7][x], 1e-5);
+		}
+		assertEquals(0, channels[0][4], 0);
+	}
+
+	@Test
+	public void testWriteSkipsEmptyBlocks() throws IOException {
+		Filaments filaments = new Filaments.Builder()
+				.addPoint(0, 2, 2).addPoint(15, 2, 2).endFilament()
+				.build(new long[]{64, 16, 16});
+		FilamentFieldMap map = new FilamentFieldMap(filaments, 4, new int[]{4, 2, 2}, 0.5);
+		File root = Files.createTempDirectory("fields").toFile();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			N5FSWriter writer = new N5FSWriter(root.getAbsolutePath());
+			double max = map.write(writer, "density", "orientation", new RawCompression(), executor);
+			assertEquals(4 / (64 * 0.25), max, 1e-5);
+			// the line only runs through the first of 4 x 2 x 2 blocks
+			BlockOccupancy density = BlockOccupancy.read(writer, "density");
+			assertEquals(16, density.getBlockCount());
+			assertEquals(1, density.getOccupiedCount());
+			assertNull(writer.readBlock("density", writer.getDatasetAttributes("density"), 1, 0, 0));
+			assertNotNull(BlockSummaryIndex.read(writer, "density"));
+			// order, Qxx, Qxy, Qxz, Qyy, Qyz, Qzz of a line along x
+			long[] occupied = {1, 1, 0, 0, 1, 0, 1};
+			for (int c = 0; c < occupied.length; c++) {
+				assertEquals(occupied[c], BlockOccupancy.read(writer, "orientation/c" + c).getOccupiedCount());
+			}
+		} finally {
+			executor.shutdown();
+			FileUtils.deleteDirectory(root);
+		}
+	}
+
+	@Test
+	public void testLargestEigenvalue() {
+		assertEquals(1, FilamentFieldMap.largestEigenvalue(new double[]{0.2, 0, 0, 1, 0, -0.3}), 1e-9);
+		// rotated diag(2, 1, 0) around z by 45 degrees
+		assertEquals(2, FilamentFieldMap.largestEigenvalue(new double[]{1.5, 0.5, 0, 1.5, 0, 0}), 1e-9);
+		assertEquals(0.25, FilamentFieldMap.largestEigenvalue(new double[]{0.25, 0, 0, 0.25, 0, 0.25}), 1e-9);
+	}
+}
@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import de.frauzufall.cellsketch.model.FilamentGraph;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FilamentGraphAnalyzerTest {
+
+	/**
+	 * A junction with three arms (nodes 0 to 5) and a square loop (nodes 6 to 9).
+	 */
+	private static FilamentGraph createGraph() {
+		FilamentGraph.Builder builder = new FilamentGraph.Builder();
+		builder.addNode(0, 0, 0);
+		builder.addNode(1, 0, 0);
+		builder.addNode(2, 0, 0);
+		builder.addNode(3, 0, 0);
+		builder.addNode(2, 1, 0);
+		builder.addNode(2, 2, 0);
+		builder.addNode(10, 10, 0);
+		builder.addNode(11, 10, 0);
+		builder.addNode(11, 11, 0);
+		builder.addNode(10, 11, 0);
+		builder.addEdge(0, 1).addEdge(1, 2).addEdge(2, 3).addEdge(2, 4).addEdge(4, 5);
+		builder.addEdge(6, 7).addEdge(7, 8).addEdge(8, 9).addEdge(9, 6);
+		// duplicate edges and self loops are ignored
+		builder.addEdge(1, 0).addEdge(3, 3);
+		return builder.build();
+	}
+
+	@Test
+	public void testGraph() {
+		FilamentGraph graph = createGraph();
+		assertEquals(10, graph.getNodeCount());
+		assertEquals(9, graph.getEdgeCount());
+		assertEquals(1, graph.getDegree(0));
+		assertEquals(3, graph.getDegree(2));
+		assertEquals(1, graph.getDegree(3));
+		assertEquals(1, graph.getNeighbor(2, 0));
+		assertEquals(3, graph.getNeighbor(2, 1));
+		assertEquals(4, graph.getNeighbor(2, 2));
+		assertArrayEquals(new int[]{0, 0, 0, 0, 0, 0, 1, 1, 1, 1}, graph.computeComponents());
+	}
+
+	@Test
+	public void testComponentsAndBranches() throws InterruptedException, ExecutionException {
+		FilamentGraph graph = createGraph();
+		List<FilamentGraphAnalyzer.ComponentStats> components = new ArrayList<>();
+		List<FilamentGraphAnalyzer.Branch> branches = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			FilamentGraphAnalyzer.analyze(graph, executor, components, branches);
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(2, components.size());
+		FilamentGraphAnalyzer.ComponentStats tree = components.get(0);
+		assertEquals(0, tree.component);
+		assertEquals(6, tree.nodes);
+		assertEquals(5, tree.edges);
+		assertEquals(3, tree.endPoints);
+		assertEquals(1, tree.branchPoints);
+		assertEquals(3, tree.branches);
+		assertEquals(5, tree.length, 1e-9);
+		FilamentGraphAnalyzer.ComponentStats loop = components.get(1);
+		assertEquals(1, loop.component);
+		assertEquals(4, loop.nodes);
+		assertEquals(4, loop.edges);
+		assertEquals(0, loop.endPoints);
+		assertEquals(0, loop.branchPoints);
+		assertEquals(1, loop.branches);
+		assertEquals(4, loop.length, 1e-9);
+
+		assertEquals(4, branches.size());
+		assertBranch(branches.get(0), 0, 0, 2, 2, "end-junction");
+		assertBranch(branches.get(1), 0, 2, 3, 1, "end-junction");
+		assertBranch(branches.get(2), 0, 2, 5, 2, "end-junction");
+		assertBranch(branches.get(3), 1, 6, 6, 4, "loop");
+	}
+
+	private static void assertBranch(FilamentGraphAnalyzer.Branch branch, int component, int start, int end, double length, String type) {
+		assertEquals(component, branch.component);
+		assertEquals(start, branch.start);
+		assertEquals(end, branch.end);
+		assertEquals(length, branch.length, 1e-9);
+		assertEquals(type, branch.getType());
+	}
+}
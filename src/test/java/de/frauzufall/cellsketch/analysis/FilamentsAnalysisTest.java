@@ -40,8 +40,10 @@ import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class FilamentsAnalysisTest {
 
@@ -92,7 +94,138 @@ public class FilamentsAnalysisTest {
 //		assertPointEquals(corrected.get(1).get(4), 2, 1);
 	}
 
-	private ValuePair<Point, Point> reverse(Pair<Point, Point> pointPointPair) {
+	@Test
+	public void testMergeEndsMatchesPairwiseMerging() {
+		Random random = new Random(1);
+		for (int run = 0; run < 200; run++) {
+			List<List<Pair<Point, Point>>> lines = new ArrayList<>();
+			int count = 2 + random.nextInt(30);
+			for (int i = 0; i < count; i++) {
+				List<Pair<Point, Point>> line = new ArrayList<>();
+				Point start = new Point(random.nextInt(12), random.nextInt(12), random.nextInt(3));
+				for (int j = 0; j < 1 + random.nextInt(3); j++) {
+					Point end = new Point(random.nextInt(12), random.nextInt(12), random.nextInt(3));
+					line.add(new ValuePair<>(start, end));
+					start = end;
+				}
+				lines.add(line);
+			}
+			float mergeDistance = random.nextInt(3) * 0.75f;
+			List<List<Pair<Point, Point>>> expected = copy(lines);
+			mergeEndsPairwise(expected, mergeDistance);
+			List<List<Pair<Point, Point>>> actual = copy(lines);
+			FilamentsImporter.mergeEnds(actual, mergeDistance);
+			assertEquals(toString(expected), toString(actual));
+		}
+	}
+
+	@Test
+	public void testMergeEndsScales() {
+		// a long straight filament, split into shuffled fragments of which some are reversed
+		int fragmentCount = 10_000;
+		Random random = new Random(1);
+		List<List<Pair<Point, Point>>> lines = new ArrayList<>();
+		for (int i = 0; i < fragmentCount; i++) {
+			Pair<Point, Point> first = new ValuePair<>(new Point(i * 4, 0, 0), new Point(i * 4 + 2, 0, 0));
+			Pair<Point, Point> second = new ValuePair<>(new Point(i * 4 + 2, 0, 0), new Point(i * 4 + 3, 0, 0));
+			List<Pair<Point, Point>> line = new ArrayList<>();
+			if(random.nextBoolean()) {
+				line.add(first);
+				line.add(second);
+			} else {
+				line.add(reverse(second));
+				line.add(reverse(first));
+			}
+			lines.add(line);
+		}
+		Collections.shuffle(lines, random);
+		FilamentsImporter.mergeEnds(lines, 1.5f);
+		assertEquals(1, lines.size());
+		List<Pair<Point, Point>> line = lines.get(0);
+		assertEquals(fragmentCount * 2, line.size());
+		for (int i = 1; i < line.size(); i++) {
+			assertTrue(Math.abs(line.get(i).getA().getLongPosition(0) - line.get(i - 1).getB().getLongPosition(0)) <= 1);
+		}
+	}
+
+	/**
+	 * The original merging strategy, comparing all pairs of lines and starting over after each merge.
+	 */
+	private static void mergeEndsPairwise(List<List<Pair<Point, Point>>> lines, float mergeDistance) {
+		boolean changedList = true;
+		while(changedList) {
+			changedList = false;
+			for (int i = 0; i < lines.size() && !changedList; i++) {
+				List<Pair<Point, Point>> lineA = lines.get(i);
+				for (int j = 0; j < lines.size(); j++) {
+					List<Pair<Point, Point>> lineB = lines.get(j);
+					if (lineA == lineB) continue;
+					Point startA = lineA.get(0).getA();
+					Point endA = lineA.get(lineA.size() - 1).getB();
+					Point startB = lineB.get(0).getA();
+					Point endB = lineB.get(lineB.size() - 1).getB();
+					changedList = true;
+					if (distance(endA, startB) <= mergeDistance) {
+						lineA.addAll(lineB);
+						lines.remove(j);
+					} else if (distance(endB, startA) <= mergeDistance) {
+						lineB.addAll(lineA);
+						lines.remove(i);
+					} else if (distance(startA, startB) <= mergeDistance) {
+						reverseLine(lineA);
+						lineA.addAll(lineB);
+						lines.remove(j);
+					} else if (distance(endA, endB) <= mergeDistance) {
+						reverseLine(lineB);
+						lineA.addAll(lineB);
+						lines.remove(j);
+					} else {
+						changedList = false;
+					}
+					if (changedList) break;
+				}
+			}
+		}
+	}
+
+	private static void reverseLine(List<Pair<Point, Point>> line) {
+		List<Pair<Point, Point>> copy = new ArrayList<>(line);
+		line.clear();
+		Collections.reverse(copy);
+		for (Pair<Point, Point> pair : copy) {
+			line.add(new ValuePair<>(pair.getB(), pair.getA()));
+		}
+	}
+
+	private static double distance(Point a, Point b) {
+		double res = 0;
+		for (int d = 0; d < 3; d++) {
+			double diff = a.getDoublePosition(d) - b.getDoublePosition(d);
+			res += diff * diff;
+		}
+		return Math.sqrt(res);
+	}
+
+	private static List<List<Pair<Point, Point>>> copy(List<List<Pair<Point, Point>>> lines) {
+		List<List<Pair<Point, Point>>> res = new ArrayList<>();
+		for (List<Pair<Point, Point>> line : lines) {
+			res.add(new ArrayList<>(line));
+		}
+		return res;
+	}
+
+	private static String toString(List<List<Pair<Point, Point>>> lines) {
+		StringBuilder res = new StringBuilder();
+		for (List<Pair<Point, Point>> line : lines) {
+			for (Pair<Point, Point> pair : line) {
+				res.append(pair.getA()).append("-").append(pair.getB()).append(" ");
+			}
+			res.append("\n");
+		}
+		return res.toString();
+	}
+
+	private static ValuePair<Point, Point> reverse(Pair<Point, Point> pointPointPair) {
 		Point a = pointPointPair.getA();
 		Point b = pointPointPair.getB();
 		return new ValuePair<>(b, a);
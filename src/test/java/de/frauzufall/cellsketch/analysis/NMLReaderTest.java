@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import de.frauzufall.cellsketch.model.FilamentGraph;
+import org.jdom2.DataConversionException;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class NMLReaderTest {
+
+	@Test
+	public void testReadCompressedAnnotations() throws IOException, NMLReader.NMLReaderIOException, DataConversionException {
+		String nml = "<things><parameters><MovementArea min.x=\"0\" min.y=\"0\" min.z=\"0\" max.x=\"100\" max.y=\"80\" max.z=\"40\"/></parameters>" +
+				"<thing id=\"1\"><nodes><node id=\"7\" x=\"10\" y=\"10\" z=\"4\"/><node id=\"3\" x=\"20\" y=\"10\" z=\"4\"/><node id=\"12\" x=\"20\" y=\"30\" z=\"8\"/></nodes>" +
+				"<edges><edge source=\"7\" target=\"3\"/><edge source=\"3\" target=\"12\"/></edges></thing>" +
+				"<thing id=\"2\"><nodes/><edges/></thing></things>";
+		File gz = File.createTempFile("annotation", ".nml.gz");
+		gz.deleteOnExit();
+		try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(gz)), StandardCharsets.UTF_8)) {
+			writer.write(nml);
+		}
+		File zip = File.createTempFile("annotation", ".zip");
+		zip.deleteOnExit();
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+			out.putNextEntry(new ZipEntry("annotation.xml"));
+			out.write(nml.getBytes(StandardCharsets.UTF_8));
+			out.closeEntry();
+		}
+		double[] scale = {0.5, 0.5, 1};
+		for (File file : new File[]{gz, zip}) {
+			assertArrayEquals(new long[]{50, 40, 40}, NMLReader.getDimensions(file, scale));
+			NMLSkeleton skeleton = NMLReader.readSkeleton(file);
+			assertEquals(2, skeleton.getThingCount());
+			assertEquals(3, skeleton.getNodeCount());
+			assertEquals(1, skeleton.toPoints(scale).size());
+			FilamentGraph graph = skeleton.toGraph(scale, 2);
+			assertEquals(2, graph.getEdgeCount());
+			assertEquals(6, graph.getZ(0));
+		}
+	}
+
+	@Test
+	public void testNodeIdsAreResolvedPerThing() throws IOException, NMLReader.NMLReaderIOException, DataConversionException {
+		String nml = "<things><parameters><MovementArea min.x=\"0\" min.y=\"0\" min.z=\"0\" max.x=\"100\" max.y=\"100\" max.z=\"10\"/></parameters>" +
+				"<thing id=\"1\"><nodes><node id=\"1\" x=\"10\" y=\"10\" z=\"1\"/><node id=\"2\" x=\"20\" y=\"10\" z=\"1\"/></nodes>" +
+				"<edges><edge source=\"1\" target=\"2\"/></edges></thing>" +
+				"<thing id=\"2\"><nodes><node id=\"2\" x=\"50\" y=\"50\" z=\"5\"/><node id=\"1\" x=\"60\" y=\"50\" z=\"5\"/></nodes>" +
+				"<edges><edge source=\"1\" target=\"2\"/><edge source=\"1\" target=\"9\"/></edges></thing></things>";
+		File file = File.createTempFile("annotation", ".nml");
+		file.deleteOnExit();
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			writer.write(nml);
+		}
+		NMLSkeleton skeleton = NMLReader.readSkeleton(file);
+		assertEquals(3, skeleton.getEdgeCount());
+		// the edges of the second thing connect its own nodes, the unknown id 9 is not resolved
+		assertArrayEquals(new int[]{0, 1, 3, 2, 3, -1}, skeleton.resolveEdges());
+		FilamentGraph graph = skeleton.toGraph(new double[]{1, 1, 1}, 0);
+		assertEquals(2, graph.getEdgeCount());
+		assertArrayEquals(new int[]{0, 0, 1, 1}, graph.computeComponents());
+	}
+}
@@ -0,0 +1,55 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import static de.frauzufall.cellsketch.analysis.NMLSkeletonTest.createChains;
+
+/**
+ * Measures the edge resolution of {@link NMLSkeleton} on skeletons with shuffled node ids of growing size, the time
+ * per edge should stay constant. Not part of the test suite, run it as main class.
+ */
+public class NMLSkeletonBenchmark {
+
+	public static void main(String... args) {
+		// warm up
+		createChains(10_000, 100).resolveEdges();
+		for (int nodeCount : new int[]{10_000, 100_000, 1_000_000}) {
+			// many short tubes and one long tube, resolved with many small or one large id table
+			for (int nodesPerChain : new int[]{100, nodeCount}) {
+				NMLSkeleton skeleton = createChains(nodeCount, nodesPerChain);
+				long start = System.nanoTime();
+				int[] edges = skeleton.resolveEdges();
+				long duration = System.nanoTime() - start;
+				if(edges.length != skeleton.getEdgeCount() * 2) throw new IllegalStateException("not all edges were resolved");
+				System.out.println(nodeCount + " nodes, " + nodesPerChain + " per chain: " + duration / 1_000_000 + " ms, "
+						+ duration / skeleton.getEdgeCount() + " ns per edge");
+			}
+		}
+	}
+}
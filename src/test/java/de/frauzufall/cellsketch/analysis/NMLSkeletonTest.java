@@ -0,0 +1,73 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class NMLSkeletonTest {
+
+	@Test
+	public void testResolveShuffledIds() {
+		NMLSkeleton skeleton = createChains(10_000, 100);
+		int[] edges = skeleton.resolveEdges();
+		assertEquals(9_900, skeleton.getEdgeCount());
+		for (int i = 0; i < skeleton.getEdgeCount(); i++) {
+			// nodes are added in chain order, so each edge connects consecutive nodes
+			assertEquals(edges[i * 2] + 1, edges[i * 2 + 1]);
+		}
+	}
+
+	/**
+	 * Creates chains of nodes with shuffled ids, similar to traced tubes with large node counts.
+	 */
+	static NMLSkeleton createChains(int nodeCount, int nodesPerChain) {
+		Random random = new Random(1);
+		int[] ids = new int[nodeCount];
+		for (int i = 0; i < nodeCount; i++) ids[i] = i * 3 + 1;
+		for (int i = nodeCount - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = ids[i];
+			ids[i] = ids[j];
+			ids[j] = tmp;
+		}
+		NMLSkeleton skeleton = new NMLSkeleton();
+		skeleton.setMovementArea(1000, 1000, 1000);
+		int thing = -1;
+		for (int i = 0; i < nodeCount; i++) {
+			if(i % nodesPerChain == 0) thing = skeleton.addThing();
+			skeleton.addNode(ids[i], random.nextInt(1000), random.nextInt(1000), random.nextInt(1000), thing);
+			if(i % nodesPerChain != 0) skeleton.addEdge(ids[i - 1], ids[i], thing);
+		}
+		return skeleton;
+	}
+}
@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.analysis;
+
+import org.apache.commons.math3.stat.descriptive.moment.Mean;
+import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
+import org.apache.commons.math3.stat.descriptive.rank.Median;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingSummaryTest {
+
+	@Test
+	public void testMergedSummaryMatchesFullArray() {
+		Random random = new Random(1);
+		double[] values = new double[1001];
+		StreamingSummary summary = new StreamingSummary();
+		StreamingSummary part = new StreamingSummary();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextGaussian() * 3 + 10;
+			if(i % 100 == 0) {
+				summary.add(part);
+				part = new StreamingSummary();
+			}
+			part.add(values[i]);
+		}
+		summary.add(part);
+		assertEquals(values.length, summary.getCount());
+		assertEquals(Arrays.stream(values).sum(), summary.getSum(), 1e-9);
+		assertEquals(new Mean().evaluate(values), summary.getMean(), 1e-9);
+		assertEquals(new StandardDeviation().evaluate(values), summary.getStandardDeviation(), 1e-9);
+		assertEquals(new Median().evaluate(values), summary.getMedian(), 0);
+		assertEquals(new Median().evaluate(values, 0, 1000), median(values, 1000), 0);
+		assertEquals(Arrays.stream(values).min().getAsDouble(), summary.getMin(), 0);
+		assertEquals(Arrays.stream(values).max().getAsDouble(), summary.getMax(), 0);
+	}
+
+	@Test
+	public void testEmptySummary() {
+		StreamingSummary summary = new StreamingSummary();
+		summary.add(new StreamingSummary());
+		assertEquals(0, summary.getCount());
+		assertEquals(0, summary.getSum(), 0);
+		assertTrue(Double.isNaN(summary.getMean()));
+		assertTrue(Double.isNaN(summary.getStandardDeviation()));
+		assertTrue(Double.isNaN(summary.getMedian()));
+	}
+
+	@Test
+	public void testQuantilesOfLargeStreams() {
+		Random random = new Random(2);
+		int count = 1000000;
+		double[] values = new double[count];
+		StreamingSummary summary = new StreamingSummary(256);
+		for (int i = 0; i < count; i++) {
+			values[i] = random.nextDouble();
+			summary.add(values[i]);
+		}
+		Arrays.sort(values);
+		for (double quantile : new double[]{0.1, 0.5, 0.9}) {
+			// compare ranks instead of values
+			int rank = Arrays.binarySearch(values, summary.getQuantile(quantile));
+			assertEquals(quantile, rank / (double) count, 0.02);
+		}
+	}
+
+	private static double median(double[] values, int count) {
+		StreamingSummary summary = new StreamingSummary();
+		for (int i = 0; i < count; i++) summary.add(values[i]);
+		return summary.getMedian();
+	}
+}
@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockOccupancyTest {
+
+	@Test
+	public void testOccupiedIntervals() {
+		long[] dimensions = {100, 70, 10};
+		int[] blockSize = {64, 64, 64};
+		long[] gridDimensions = BlockOccupancy.getGridDimensions(dimensions, blockSize);
+		assertArrayEquals(new long[]{2, 2, 1}, gridDimensions);
+		BlockOccupancy occupancy = new BlockOccupancy(gridDimensions);
+		occupancy.set(new long[]{1, 1, 0});
+		occupancy.set(new long[]{1, 1, 0});
+		assertTrue(occupancy.isOccupied(new long[]{1, 1, 0}));
+		assertFalse(occupancy.isOccupied(new long[]{0, 1, 0}));
+		assertEquals(1, occupancy.getOccupiedCount());
+		List<Interval> intervals = occupancy.getOccupiedIntervals(new FinalInterval(dimensions), blockSize);
+		assertEquals(1, intervals.size());
+		assertArrayEquals(new long[]{64, 64, 0}, intervals.get(0).minAsLongArray());
+		assertArrayEquals(new long[]{99, 69, 9}, intervals.get(0).maxAsLongArray());
+	}
+
+	@Test
+	public void testFull() {
+		BlockOccupancy occupancy = BlockOccupancy.full(new long[]{5, 5, 5});
+		assertEquals(125, occupancy.getBlockCount());
+		assertEquals(125, occupancy.getOccupiedCount());
+		assertEquals(2, occupancy.toLongArray().length);
+	}
+
+	@Test
+	public void testIsEmpty() {
+		int[] size = {2, 2, 1};
+		assertTrue(BlockOccupancy.isEmpty(new IntArrayDataBlock(size, new long[3], new int[4])));
+		assertFalse(BlockOccupancy.isEmpty(new IntArrayDataBlock(size, new long[3], new int[]{0, 0, 3, 0})));
+		assertFalse(BlockOccupancy.isEmpty(new FloatArrayDataBlock(size, new long[3], new float[]{0, Float.NaN, 0, 0})));
+	}
+}
@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlockSummaryIndexTest {
+
+	@Test
+	public void testLabels() {
+		BlockSummaryIndex index = new BlockSummaryIndex(new long[]{6, 4}, new int[]{4, 4}, DataType.INT32, true);
+		assertEquals(2, index.getBlockCount());
+		index.add(new IntArrayDataBlock(new int[]{2, 4}, new long[]{1, 0}, new int[]{0, 4711, 4711, 4711, 3, 3, 0, 4711}));
+		assertArrayEquals(new long[]{3, 4711}, index.getLabels(1));
+		assertTrue(index.mayContain(1, 4711));
+		assertFalse(index.mayContain(1, 4));
+		// blocks which were not written are empty
+		assertArrayEquals(new long[0], index.getLabels(0));
+		assertFalse(index.mayContain(0, 3));
+		Interval interval = index.getInterval(1, new FinalInterval(new long[]{10, 0}, new long[]{15, 3}));
+		assertArrayEquals(new long[]{14, 0}, interval.minAsLongArray());
+		assertArrayEquals(new long[]{15, 3}, interval.maxAsLongArray());
+	}
+
+	@Test
+	public void testMinMax() {
+		BlockSummaryIndex index = new BlockSummaryIndex(new long[]{4, 4}, new int[]{2, 2}, DataType.FLOAT32, false);
+		index.add(new FloatArrayDataBlock(new int[]{2, 2}, new long[]{1, 1}, new float[]{2.5f, 0.5f, 7, 3}));
+		assertEquals(0.5, index.getMin(3), 0);
+		assertEquals(7, index.getMax(3), 0);
+		assertEquals(0, index.getMin(0), 0);
+		assertEquals(7, index.getMax(), 0);
+		assertTrue(index.hasSameGrid(new BlockSummaryIndex(new long[]{4, 4}, new int[]{2, 2}, DataType.FLOAT32, true)));
+		assertFalse(index.hasSameGrid(new BlockSummaryIndex(new long[]{4, 4}, new int[]{4, 4}, DataType.FLOAT32, false)));
+	}
+
+	@Test
+	public void testUnsignedBytes() {
+		BlockSummaryIndex index = new BlockSummaryIndex(new long[]{4}, new int[]{4}, DataType.UINT8, true);
+		index.add(new ByteArrayDataBlock(new int[]{4}, new long[]{0}, new byte[]{0, (byte) 255, (byte) 128, 7}));
+		assertEquals(0, index.getMin(0), 0);
+		assertEquals(255, index.getMax(0), 0);
+		assertArrayEquals(new long[]{7, 128, 255}, index.getLabels(0));
+		assertTrue(index.mayContain(0, 255));
+		assertFalse(index.mayContain(0, -1));
+	}
+
+	@Test
+	public void testUnsignedShorts() {
+		BlockSummaryIndex index = new BlockSummaryIndex(new long[]{4}, new int[]{4}, DataType.UINT16, true);
+		index.add(new ShortArrayDataBlock(new int[]{4}, new long[]{0}, new short[]{(short) 65535, (short) 40000, 3, 3}));
+		assertEquals(3, index.getMin(0), 0);
+		assertEquals(65535, index.getMax(0), 0);
+		assertArrayEquals(new long[]{3, 40000, 65535}, index.getLabels(0));
+		assertTrue(index.mayContain(0, 40000));
+	}
+
+	@Test
+	public void testSignedShorts() {
+		BlockSummaryIndex index = new BlockSummaryIndex(new long[]{2}, new int[]{2}, DataType.INT16, false);
+		index.add(new ShortArrayDataBlock(new int[]{2}, new long[]{0}, new short[]{-5, 12}));
+		assertEquals(-5, index.getMin(0), 0);
+		assertEquals(12, index.getMax(0), 0);
+	}
+
+	@Test
+	public void testWriteRead() throws IOException {
+		File dir = Files.createTempDirectory("summary").toFile();
+		dir.deleteOnExit();
+		N5FSWriter writer = new N5FSWriter(dir.getAbsolutePath());
+		DatasetAttributes attributes = new DatasetAttributes(new long[]{6, 4}, new int[]{4, 4}, DataType.UINT16, new RawCompression());
+		writer.createDataset("labels", attributes);
+		assertNull(BlockSummaryIndex.read(writer, "labels"));
+		BlockSummaryIndex index = new BlockSummaryIndex(attributes.getDimensions(), attributes.getBlockSize(), DataType.UINT16, true);
+		index.add(new ShortArrayDataBlock(new int[]{2, 4}, new long[]{1, 0}, new short[]{0, 5, 5, 5, (short) 60000, 0, 0, 0}));
+		index.write(writer, "labels");
+		// the index is not stored in the attributes
+		assertNull(writer.getAttribute("labels", "blockSummary", Object.class));
+		BlockSummaryIndex read = BlockSummaryIndex.read(writer, "labels");
+		assertTrue(read.hasLabels());
+		assertArrayEquals(new long[0], read.getLabels(0));
+		assertArrayEquals(new long[]{5, 60000}, read.getLabels(1));
+		assertEquals(60000, read.getMax(1), 0);
+		// a replaced dataset with another grid has no index
+		writer.createDataset("labels", new DatasetAttributes(new long[]{12, 4}, new int[]{4, 4}, DataType.UINT16, new RawCompression()));
+		assertNull(BlockSummaryIndex.read(writer, "labels"));
+		writer.remove();
+	}
+}
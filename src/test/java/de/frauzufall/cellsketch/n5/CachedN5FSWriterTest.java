@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CachedN5FSWriterTest {
+
+	private static final String DATASET = "labels";
+	private static final int[] BLOCK_SIZE = {4, 4, 4};
+
+	@Test
+	public void testReplaceSelfBackedDatasetInOtherLayout() throws IOException {
+		File root = Files.createTempDirectory("project").toFile();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			ProjectN5Store store = new ProjectN5Store(root);
+			CachedN5FSWriter writer = store.getWriter();
+			Img<UnsignedShortType> expected = createLabels();
+			ParallelBlockWriter.save(expected, writer, DATASET, BLOCK_SIZE, new GzipCompression(), true, executor, null);
+			store.flush();
+			// the shard files of both sharded layouts have the same names
+			for (int shardSize : new int[]{2, 3, 0}) {
+				store.setShardSize(shardSize);
+				// blocks of the image are read while the dataset is replaced
+				RandomAccessibleInterval<UnsignedShortType> backed = N5Utils.open(writer, DATASET);
+				ParallelBlockWriter.save(backed, writer, DATASET, BLOCK_SIZE, new GzipCompression(), true, executor, null);
+				store.flush();
+				if(shardSize == 0) assertNull(writer.getShardSize(DATASET));
+				else assertArrayEquals(new int[]{shardSize, shardSize, shardSize}, writer.getShardSize(DATASET));
+				assertLayout(new File(root, DATASET), shardSize > 0);
+				assertImageEquals(expected, N5Utils.open(store.getWriter(), DATASET));
+				assertImageEquals(expected, N5Utils.open(new ProjectN5Store(root).getWriter(), DATASET));
+			}
+		} finally {
+			executor.shutdown();
+			delete(root.toPath());
+		}
+	}
+
+	static Img<UnsignedShortType> createLabels() {
+		Img<UnsignedShortType> img = ArrayImgs.unsignedShorts(20, 18, 17);
+		Cursor<UnsignedShortType> cursor = img.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			// leaves empty blocks along x
+			if(cursor.getLongPosition(0) < 8) continue;
+			cursor.get().set(1 + cursor.getIntPosition(1) / 3 + 7 * (cursor.getIntPosition(2) / 5));
+		}
+		return img;
+	}
+
+	static void assertImageEquals(RandomAccessibleInterval<UnsignedShortType> expected, RandomAccessibleInterval<UnsignedShortType> actual) {
+		assertArrayEquals(dimensions(expected), dimensions(actual));
+		Cursor<UnsignedShortType> expectedCursor = Views.flatIterable(expected).cursor();
+		Cursor<UnsignedShortType> actualCursor = Views.flatIterable(actual).cursor();
+		while (expectedCursor.hasNext()) {
+			assertEquals(expectedCursor.next().get(), actualCursor.next().get());
+		}
+	}
+
+	/**
+	 * Checks that the blocks of the dataset are only stored in the given layout.
+	 */
+	static void assertLayout(File dataset, boolean sharded) {
+		boolean hasShards = false;
+		boolean hasBlocks = false;
+		for (String name : dataset.list()) {
+			if(name.endsWith(".shard")) hasShards = true;
+			if(name.matches("\\d+")) hasBlocks = true;
+		}
+		assertEquals(sharded, hasShards);
+		assertFalse(sharded && hasBlocks);
+		assertTrue(sharded || hasBlocks);
+	}
+
+	private static long[] dimensions(RandomAccessibleInterval<?> img) {
+		long[] res = new long[img.numDimensions()];
+		img.dimensions(res);
+		return res;
+	}
+
+	static void delete(Path directory) throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+}
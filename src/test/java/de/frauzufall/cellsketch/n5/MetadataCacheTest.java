@@ -0,0 +1,83 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import org.janelia.saalfeldlab.n5.ui.DataSelection;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetadataCacheTest {
+
+	@Test
+	public void testInvalidation() throws IOException {
+		File root = Files.createTempDirectory("project").toFile();
+		root.deleteOnExit();
+		AtomicInteger loads = new AtomicInteger();
+		DataSelection selection = new DataSelection(null, Collections.emptyList());
+		MetadataCache cache = new MetadataCache(root, dataset -> {
+			loads.incrementAndGet();
+			return selection;
+		});
+		// missing datasets are not discovered
+		assertFalse(cache.exists("/project_mask"));
+		assertFalse(cache.exists("/project_mask"));
+		assertEquals(0, loads.get());
+		assertEquals(1, cache.getHitCount());
+
+		File dataset = new File(root, "project_mask");
+		File attributes = new File(dataset, "attributes.json");
+		assertTrue(dataset.mkdir());
+		Files.write(attributes.toPath(), "{}".getBytes());
+		attributes.deleteOnExit();
+		dataset.deleteOnExit();
+		assertSame(selection, cache.get("/project_mask"));
+		assertSame(selection, cache.get("/project_mask"));
+		assertEquals(1, loads.get());
+
+		assertTrue(attributes.setLastModified(attributes.lastModified() + 2000));
+		assertTrue(cache.exists("/project_mask"));
+		assertEquals(2, loads.get());
+
+		cache.invalidate("/project_mask/c0");
+		assertTrue(cache.exists("/project_mask"));
+		assertEquals(3, loads.get());
+		assertEquals(2, cache.getHitCount());
+		assertEquals(4, cache.getMissCount());
+	}
+}
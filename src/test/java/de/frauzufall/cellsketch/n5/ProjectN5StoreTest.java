@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProjectN5StoreTest {
+
+	@Test
+	public void testWriteBack() throws IOException {
+		File root = Files.createTempDirectory("project").toFile();
+		root.deleteOnExit();
+		new File(root, "attributes.json").deleteOnExit();
+		ProjectN5Store store = new ProjectN5Store(root);
+		CachedN5FSWriter writer = store.getWriter();
+		assertSame(writer, store.getWriter(root.getAbsolutePath()));
+
+		writer.setAttribute("/", "pixelToUM", 0.5);
+		assertEquals(1, store.getPendingCount());
+		assertEquals(0.5, writer.getAttribute("/", "pixelToUM", Double.class), 0);
+		assertNull(new N5FSReader(root.getAbsolutePath()).getAttribute("/", "pixelToUM", Double.class));
+
+		store.flush();
+		assertEquals(0, store.getPendingCount());
+		assertEquals(1, store.getWriteCount());
+		assertEquals(0.5, new N5FSReader(root.getAbsolutePath()).getAttribute("/", "pixelToUM", Double.class), 0);
+
+		// cached attributes are not parsed again
+		long reads = store.getReadCount();
+		for (int i = 0; i < 10; i++) {
+			writer.getAttribute("/", "pixelToUM", Double.class);
+		}
+		assertEquals(reads, store.getReadCount());
+
+		// changes of other writers are picked up
+		new N5FSWriter(root.getAbsolutePath()).setAttribute("/", "pixelToUM", 2.0);
+		File attributes = new File(root, "attributes.json");
+		assertTrue(attributes.setLastModified(attributes.lastModified() + 2000));
+		assertEquals(2.0, writer.getAttribute("/", "pixelToUM", Double.class), 0);
+		assertEquals(reads + 1, store.getReadCount());
+	}
+}
@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static de.frauzufall.cellsketch.n5.SegmentationCompressionTest.decode;
+import static de.frauzufall.cellsketch.n5.SegmentationCompressionTest.encode;
+
+/**
+ * Compares the decoding speed of {@link SegmentationCompression} and GZIP on a label block. Not part of the test suite,
+ * run it as main class.
+ */
+public class SegmentationCompressionBenchmark {
+
+	public static void main(String... args) throws IOException {
+		int[] size = {64, 64, 64};
+		int[] labels = createBlobs(size, 12);
+		DataBlock<?> block = new IntArrayDataBlock(size, new long[3], labels);
+		for (Compression compression : new Compression[]{new GzipCompression(), new SegmentationCompression()}) {
+			byte[] encoded = encode(block, DataType.INT32, compression);
+			int repetitions = 200;
+			decode(encoded, DataType.INT32, compression);
+			long start = System.nanoTime();
+			for (int i = 0; i < repetitions; i++) {
+				decode(encoded, DataType.INT32, compression);
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			if(!Arrays.equals(labels, (int[]) decode(encoded, DataType.INT32, compression).getData())) {
+				throw new IllegalStateException(compression.getType() + " did not restore the labels");
+			}
+			System.out.println(compression.getType() + ": " + encoded.length + " bytes, decoded "
+					+ Math.round(repetitions * labels.length * 4 / 1e6 / seconds) + " MB/s");
+		}
+	}
+
+	/**
+	 * @return labeled spheres on background, similar to a mitochondria label map
+	 */
+	private static int[] createBlobs(int[] size, int count) {
+		int[] res = new int[size[0] * size[1] * size[2]];
+		Random random = new Random(1);
+		for (int label = 1; label <= count; label++) {
+			int cx = random.nextInt(size[0]);
+			int cy = random.nextInt(size[1]);
+			int cz = random.nextInt(size[2]);
+			int radius = 4 + random.nextInt(10);
+			int i = 0;
+			for (int z = 0; z < size[2]; z++) {
+				for (int y = 0; y < size[1]; y++) {
+					for (int x = 0; x < size[0]; x++, i++) {
+						if((x - cx) * (x - cx) + (y - cy) * (y - cy) + (z - cz) * (z - cz) < radius * radius) res[i] = label * 100;
+					}
+				}
+			}
+		}
+		return res;
+	}
+}
@@ -0,0 +1,123 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentationCompressionTest {
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		// not a multiple of the sub-block size
+		int[] size = {20, 13, 9};
+		int[] labels = createLabels(size);
+		labels[5] = -3;
+		labels[17] = Integer.MAX_VALUE;
+		short[] shorts = new short[labels.length];
+		byte[] bytes = new byte[labels.length];
+		for (int i = 0; i < labels.length; i++) {
+			shorts[i] = (short) (labels[i] * 1000);
+			bytes[i] = (byte) (labels[i] % 2 * 255);
+		}
+		long[] gridPosition = {1, 2, 3};
+		assertArrayEquals(labels, (int[]) roundTrip(new IntArrayDataBlock(size, gridPosition, labels), DataType.INT32, new SegmentationCompression()).getData());
+		assertArrayEquals(shorts, (short[]) roundTrip(new ShortArrayDataBlock(size, gridPosition, shorts), DataType.UINT16, new SegmentationCompression()).getData());
+		assertArrayEquals(bytes, (byte[]) roundTrip(new ByteArrayDataBlock(size, gridPosition, bytes), DataType.UINT8, new SegmentationCompression()).getData());
+	}
+
+	@Test
+	public void testConstantBlock() throws IOException {
+		int[] size = {64, 64, 64};
+		int[] labels = new int[size[0] * size[1] * size[2]];
+		DataBlock<?> block = new IntArrayDataBlock(size, new long[3], labels);
+		byte[] encoded = encode(block, DataType.INT32, new SegmentationCompression());
+		// one table, then two bytes for each of the other 511 sub-blocks
+		assertTrue(encoded.length < 512 * 2 + 64);
+		assertArrayEquals(labels, (int[]) decode(encoded, DataType.INT32, new SegmentationCompression()).getData());
+	}
+
+	@Test
+	public void testBits() {
+		assertEquals(0, SegmentationCompression.getBits(1));
+		assertEquals(1, SegmentationCompression.getBits(2));
+		assertEquals(2, SegmentationCompression.getBits(3));
+		assertEquals(4, SegmentationCompression.getBits(5));
+		assertEquals(8, SegmentationCompression.getBits(256));
+		assertEquals(16, SegmentationCompression.getBits(257));
+	}
+
+	/**
+	 * @return a piecewise constant label map of slanted slabs, with a few labels per sub-block
+	 */
+	private static int[] createLabels(int[] size) {
+		int[] res = new int[size[0] * size[1] * size[2]];
+		int i = 0;
+		for (int z = 0; z < size[2]; z++) {
+			for (int y = 0; y < size[1]; y++) {
+				for (int x = 0; x < size[0]; x++) {
+					res[i++] = (x + 2 * y + 3 * z) / 11;
+				}
+			}
+		}
+		return res;
+	}
+
+	private static DataBlock<?> roundTrip(DataBlock<?> block, DataType dataType, Compression compression) throws IOException {
+		return decode(encode(block, dataType, compression), dataType, compression);
+	}
+
+	static byte[] encode(DataBlock<?> block, DataType dataType, Compression compression) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DefaultBlockWriter.writeBlock(out, new DatasetAttributes(new long[]{64, 64, 64}, block.getSize(), dataType, compression), block);
+		return out.toByteArray();
+	}
+
+	static DataBlock<?> decode(byte[] encoded, DataType dataType, Compression compression) throws IOException {
+		// the block size is read from the block header
+		DatasetAttributes attributes = new DatasetAttributes(new long[]{64, 64, 64}, new int[]{64, 64, 64}, dataType, compression);
+		return DefaultBlockReader.readBlock(new ByteArrayInputStream(encoded), attributes, new long[3]);
+	}
+}
@@ -0,0 +1,89 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ShardedBlocksTest {
+
+	@Test
+	public void testWriteAndRead() throws IOException {
+		Path dataset = Files.createTempDirectory("dataset");
+		dataset.toFile().deleteOnExit();
+		int[] shardSize = {2, 2, 2};
+		int blockCount = ShardedBlocks.getBlockCount(shardSize);
+		long[] gridDimensions = {3, 3, 3};
+		byte[][] expected = new byte[27][];
+		Random random = new Random(0);
+		// a small limit flushes incomplete shards while writing
+		ShardedBlocks shards = new ShardedBlocks(500);
+		for (int i = 0; i < expected.length; i++) {
+			if(i % 4 == 0) continue;
+			expected[i] = new byte[1 + random.nextInt(100)];
+			random.nextBytes(expected[i]);
+			long[] gridPosition = position(i, gridDimensions);
+			shards.write(ShardedBlocks.getShardFile(dataset, gridPosition, shardSize), blockCount, ShardedBlocks.getIndexInShard(gridPosition, shardSize), expected[i]);
+		}
+		long[] deleted = position(1, gridDimensions);
+		shards.delete(ShardedBlocks.getShardFile(dataset, deleted, shardSize), blockCount, ShardedBlocks.getIndexInShard(deleted, shardSize));
+		expected[1] = null;
+		assertBlocks(shards, dataset, shardSize, gridDimensions, expected);
+		shards.flush();
+		assertEquals(0, shards.getPendingBytes());
+		assertEquals(8, dataset.toFile().list().length);
+
+		ShardedBlocks reopened = new ShardedBlocks(500);
+		assertBlocks(reopened, dataset, shardSize, gridDimensions, expected);
+
+		ShardedBlocks.deleteShardFiles(dataset);
+	}
+
+	private static void assertBlocks(ShardedBlocks shards, Path dataset, int[] shardSize, long[] gridDimensions, byte[][] expected) throws IOException {
+		int blockCount = ShardedBlocks.getBlockCount(shardSize);
+		for (int i = 0; i < expected.length; i++) {
+			long[] gridPosition = position(i, gridDimensions);
+			byte[] block = shards.read(ShardedBlocks.getShardFile(dataset, gridPosition, shardSize), blockCount, ShardedBlocks.getIndexInShard(gridPosition, shardSize));
+			if(expected[i] == null) assertNull(block);
+			else assertArrayEquals(expected[i], block);
+		}
+	}
+
+	private static long[] position(int index, long[] gridDimensions) {
+		return new long[]{index % gridDimensions[0], index / gridDimensions[0] % gridDimensions[1], index / (gridDimensions[0] * gridDimensions[1])};
+	}
+}
@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * cellsketch
+ * %%
+ * Copyright (C) 2020 - 2023 Deborah Schmidt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.frauzufall.cellsketch.n5;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static de.frauzufall.cellsketch.n5.CachedN5FSWriterTest.assertImageEquals;
+import static de.frauzufall.cellsketch.n5.CachedN5FSWriterTest.assertLayout;
+import static de.frauzufall.cellsketch.n5.CachedN5FSWriterTest.createLabels;
+import static de.frauzufall.cellsketch.n5.CachedN5FSWriterTest.delete;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StorageLayoutConverterTest {
+
+	private static final int[] BLOCK_SIZE = {4, 4, 4};
+
+	@Test
+	public void testConvertRoundTrip() throws IOException {
+		File root = Files.createTempDirectory("project").toFile();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			ProjectN5Store store = new ProjectN5Store(root);
+			Img<UnsignedShortType> expected = createLabels();
+			ParallelBlockWriter.save(expected, store.getWriter(), "group/labels", BLOCK_SIZE, new GzipCompression(), true, executor, null);
+			ParallelBlockWriter.save(expected, store.getWriter(), "mask", BLOCK_SIZE, new GzipCompression(), false, executor, null);
+			store.flush();
+			StorageLayoutConverter converter = new StorageLayoutConverter(store, executor);
+			// the shard files of both sharded layouts have the same names
+			for (int shardSize : new int[]{2, 3, 0}) {
+				store.setShardSize(shardSize);
+				assertEquals(2, converter.convertAll(null));
+				assertFalse(converter.convert("mask"));
+				for (String dataset : new String[]{"group/labels", "mask"}) {
+					// a new store reads the converted datasets from disk
+					CachedN5FSWriter writer = new ProjectN5Store(root).getWriter();
+					if(shardSize == 0) assertNull(writer.getShardSize(dataset));
+					else assertArrayEquals(new int[]{shardSize, shardSize, shardSize}, writer.getShardSize(dataset));
+					assertLayout(new File(root, dataset), shardSize > 0);
+					assertImageEquals(expected, N5Utils.open(writer, dataset));
+				}
+			}
+		} finally {
+			executor.shutdown();
+			delete(root.toPath());
+		}
+	}
+
+	@Test
+	public void testOpenSharded() throws IOException {
+		File root = Files.createTempDirectory("project").toFile();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			ProjectN5Store store = new ProjectN5Store(root);
+			store.setShardSize(2);
+			Img<UnsignedShortType> expected = createLabels();
+			ParallelBlockWriter.save(expected, store.getWriter(), "labels", BLOCK_SIZE, new GzipCompression(), true, executor, null);
+			// pending shards are read before the store is flushed
+			assertImageEquals(expected, N5Utils.open(store.getWriter(), "labels"));
+			store.flush();
+			assertLayout(new File(root, "labels"), true);
+			assertTrue(new File(root, "labels/0.0.0.shard").exists());
+			assertImageEquals(expected, N5Utils.open(new ProjectN5Store(root).getWriter(), "labels"));
+		} finally {
+			executor.shutdown();
+			delete(root.toPath());
+		}
+	}
+}